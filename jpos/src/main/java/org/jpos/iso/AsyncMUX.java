@@ -0,0 +1,39 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jpos.iso;
+
+/**
+ * {@link MUX} able to return a {@link MUXFuture} for a request.
+ *
+ * <p>Kept apart from {@link MUX} so existing implementations don't
+ * have to provide it; callers holding a plain MUX can get the same
+ * behavior passing a new MUXFuture as the listener of
+ * {@link MUX#request(ISOMsg, long, ISOResponseListener, Object)}.</p>
+ */
+public interface AsyncMUX extends MUX {
+    /**
+     * Sends a message to remote host without waiting for the response
+     * @param m message to send
+     * @param timeout time to wait for the response
+     * @return future completed with the response (null if expired)
+     * @throws ISOException
+     */
+    public MUXFuture requestAsync (ISOMsg m, long timeout) throws ISOException;
+}
@@ -31,10 +31,13 @@ import org.jpos.util.NameRegistrar;
 import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * BaseChannel was ISOChannel. Now ISOChannel is an interface
@@ -71,6 +74,15 @@ public abstract class BaseChannel extends Observable
                LogSource, Configurable, BaseChannelMBean, Cloneable
 {
     private Socket socket;
+    private InputStream socketIn;
+    private OutputStream socketOut;
+    private CoalescingOutputStream coalescer;
+    private boolean writeCoalescing;
+    private long writeCoalescingDelay;
+    private BufferPool receiveBufferPool;
+    private ISOMsgPool messagePool;
+    private volatile ISOPackager checkedPackager;
+    private volatile boolean plainMessages;
     private String host, localIface;
     private String[] hosts;
     private int[] ports;
@@ -95,12 +107,15 @@ public abstract class BaseChannel extends Observable
     protected ISOClientSocketFactory socketFactory = null;
 
     protected int[] cnt;
+    protected ChannelMetrics metrics = new ChannelMetrics();
 
     protected Logger logger = null;
     protected String realm = null;
     protected String originalRealm = null;
     protected byte[] header = null;
     private static final int DEFAULT_TIMEOUT = 300000;
+    private static final Map<Class,Boolean> poolSafe = new ConcurrentHashMap<Class,Boolean>();
+    private static final Map<Class,Boolean> ownFraming = new ConcurrentHashMap<Class,Boolean>();
 
     /**
      * constructor shared by server and client
@@ -234,6 +249,7 @@ public abstract class BaseChannel extends Observable
     public void resetCounters() {
         for (int i=0; i<SIZEOF_CNT; i++)
             cnt[i] = 0;
+        metrics.reset();
     }
    /**
     * @return counters
@@ -241,6 +257,45 @@ public abstract class BaseChannel extends Observable
     public int[] getCounters() {
         return cnt;
     }
+    /**
+     * Message and byte counters are always kept; pack, unpack, filter
+     * and write times (a few KB of histograms per channel, and extra
+     * clock reads per message) only when enabled.
+     * @param timing true to keep time histograms
+     */
+    public void setTimingMetrics (boolean timing) {
+        if (timing != metrics.isTimed())
+            metrics = new ChannelMetrics (timing);
+    }
+    public boolean isTimingMetrics () {
+        return metrics.isTimed();
+    }
+    /**
+     * @return message/byte counters, and time histograms if enabled
+     * @see #setTimingMetrics(boolean)
+     */
+    public ChannelMetrics getMetrics() {
+        return metrics;
+    }
+    public long getMessagesIn() {
+        return metrics.getMessagesIn();
+    }
+    public long getMessagesOut() {
+        return metrics.getMessagesOut();
+    }
+    public long getBytesIn() {
+        return metrics.getBytesIn();
+    }
+    public long getBytesOut() {
+        return metrics.getBytesOut();
+    }
+    public String getMetricsAsString() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PrintStream p = new PrintStream (os);
+        metrics.dump (p, "");
+        p.flush();
+        return os.toString();
+    }
     /**
      * @return the connection state
      */
@@ -262,14 +317,24 @@ public abstract class BaseChannel extends Observable
             + socket.getPort()
         );
         synchronized (serverInLock) {
+            // reactor driven streams are already buffered in memory
             serverIn = new DataInputStream (
-                new BufferedInputStream (socket.getInputStream ())
+                socketIn != null ? socketIn :
+                    new BufferedInputStream (socket.getInputStream ())
             );
         }
         synchronized (serverOutLock) {
-            serverOut = new DataOutputStream(
-                new BufferedOutputStream(socket.getOutputStream(), 2048)
-            );
+            OutputStream out =
+                socketOut != null ? socketOut : socket.getOutputStream();
+            if (writeCoalescing) {
+                coalescer = new CoalescingOutputStream (out, writeCoalescingDelay);
+                serverOut = new DataOutputStream (coalescer);
+            } else {
+                coalescer = null;
+                serverOut = new DataOutputStream(
+                    new BufferedOutputStream(out, 2048)
+                );
+            }
         }
         postConnectHook();
         usable = true;
@@ -430,6 +495,22 @@ public abstract class BaseChannel extends Observable
         // accept that keep ServerSocket open.
         // s.close();
     }
+    /**
+     * Accepts a connection whose I/O is driven by an ISOServer
+     * reactor (nio mode) instead of the socket's own streams.
+     * @param s accepted (non-blocking) socket
+     * @param in stream fed by the reactor
+     * @param out stream written through the reactor
+     * @exception IOException
+     */
+    void accept (Socket s, InputStream in, OutputStream out)
+        throws IOException
+    {
+        this.name = s.getInetAddress().getHostAddress()+":"+s.getPort();
+        this.socketIn  = in;
+        this.socketOut = out;
+        connect(s);
+    }
 
     /**
      * @param b - new Usable state (used by ISOMUX internals to
@@ -480,7 +561,60 @@ public abstract class BaseChannel extends Observable
         return image != null ? 
             new BaseHeader (image) : null;
     }
-    protected void sendMessageLength(int len) throws IOException { }
+    /**
+     * Channels whose framing is a plain length prefix (and optional
+     * trailer) describe it through a FrameCodec instead of overriding
+     * sendMessageLength/getMessageLength/getMessageTrailler, so that
+     * the same framing can be used by non-blocking transports.
+     * A subclass that replaces any of those methods without overriding
+     * this one as well is framed by its own methods, the inherited codec
+     * is ignored by non-blocking transports.
+     * @return this channel's wire framing, or null (the default) if
+     * the channel reads and writes it on its own
+     */
+    public FrameCodec getFrameCodec() {
+        return null;
+    }
+    /**
+     * @return {@link #getFrameCodec()}, or null if this channel's class
+     * overrides the framing methods below the class providing the codec
+     */
+    FrameCodec getTrustedFrameCodec() {
+        FrameCodec codec = getFrameCodec();
+        return codec != null && hasOwnFraming (getClass()) ? null : codec;
+    }
+    private static boolean hasOwnFraming (Class c) {
+        Boolean own = ownFraming.get (c);
+        if (own == null) {
+            Class base = c;
+            for (; base != BaseChannel.class; base = base.getSuperclass()) {
+                try {
+                    base.getDeclaredMethod ("getFrameCodec");
+                    break;
+                } catch (NoSuchMethodException ignored) { }
+            }
+            own = overrides (c, base, "sendMessageLength", int.class)
+               || overrides (c, base, "getMessageLength")
+               || overrides (c, base, "sendMessageTrailler", ISOMsg.class, int.class)
+               || overrides (c, base, "sendMessageTrailler", ISOMsg.class, byte[].class)
+               || overrides (c, base, "getMessageTrailler");
+            ownFraming.put (c, own);
+        }
+        return own;
+    }
+    protected void sendMessageLength(int len) throws IOException {
+        FrameCodec codec = getFrameCodec();
+        if (codec != null) {
+            ByteBuffer b = ByteBuffer.allocate (codec.getEncodedLengthSize());
+            try {
+                codec.encodeLength (len, b);
+            } catch (ISOException e) {
+                Logger.log (new LogEvent (this, "send-message-length", e));
+                return;
+            }
+            serverOut.write (b.array(), 0, b.position());
+        }
+    }
     protected void sendMessageHeader(ISOMsg m, int len) throws IOException { 
         if (!isOverrideHeader() && m.getHeader() != null)
             serverOut.write(m.getHeader());
@@ -495,18 +629,41 @@ public abstract class BaseChannel extends Observable
      */
     protected void sendMessageTrailler(ISOMsg m, int len) throws IOException 
     {
+        FrameCodec codec = getFrameCodec();
+        if (codec != null && codec.getTrailerSize() > 0) {
+            ByteBuffer b = ByteBuffer.allocate (codec.getTrailerSize());
+            codec.encodeTrailer (b);
+            serverOut.write (b.array(), 0, b.position());
+        }
     }
     @SuppressWarnings ("deprecation")
     protected void sendMessageTrailler(ISOMsg m, byte[] b) throws IOException 
     {
         sendMessageTrailler (m, b.length);
     }
-    protected void getMessageTrailler() throws IOException { }
+    protected void getMessageTrailler() throws IOException {
+        FrameCodec codec = getFrameCodec();
+        if (codec != null && codec.getTrailerSize() > 0) {
+            byte[] b = new byte[codec.getTrailerSize()];
+            serverIn.readFully (b, 0, b.length);
+        }
+    }
     protected void getMessage (byte[] b, int offset, int len) throws IOException, ISOException { 
         serverIn.readFully(b, offset, len);
     }
     protected int getMessageLength() throws IOException, ISOException {
-        return -1;
+        FrameCodec codec = getFrameCodec();
+        if (codec == null)
+            return -1;
+        byte[] b = new byte[codec.getLengthSize()];
+        for (;;) {
+            serverIn.readFully (b, 0, b.length);
+            int len = codec.decodeLength (ByteBuffer.wrap (b));
+            if (len != FrameCodec.POLL)
+                return len;
+            serverOut.write (b);
+            serverOut.flush ();
+        }
     }
     protected int getHeaderLength() { 
         return header != null ? header.length : 0;
@@ -543,18 +700,31 @@ public abstract class BaseChannel extends Observable
             m.setDirection(ISOMsg.OUTGOING);
             ISOPackager p = getDynamicPackager(m);
             m.setPackager (p);
+            long start = metrics.start();
             m = applyOutgoingFilters (m, evt);
+            metrics.filtered (start);
             evt.addMessage (m);
             m.setDirection(ISOMsg.OUTGOING); // filter may have dropped this info
             m.setPackager (p); // and could have dropped packager as well
+            start = metrics.start();
             byte[] b = m.pack();
+            metrics.packed (start);
+            int hLen = getHeaderLength(m);
+            CoalescingOutputStream c;
             synchronized (serverOutLock) {
-                sendMessageLength(b.length + getHeaderLength(m));
+                start = metrics.start();
+                c = coalescer;
+                sendMessageLength(b.length + hLen);
                 sendMessageHeader(m, b.length);
                 sendMessage (b, 0, b.length);
                 sendMessageTrailler(m, b);
-                serverOut.flush ();
+                if (c == null)
+                    serverOut.flush ();
             }
+            if (c != null)
+                c.drain();
+            metrics.written (start);
+            metrics.sent (b.length + hLen);
             cnt[TX]++;
             setChanged();
             notifyObservers(m);
@@ -590,10 +760,19 @@ public abstract class BaseChannel extends Observable
         try {
             if (!isConnected())
                 throw new ISOException ("unconnected ISOChannel");
+            CoalescingOutputStream c;
+            long start;
             synchronized (serverOutLock) {
+                start = metrics.start();
+                c = coalescer;
                 serverOut.write(b);
-                serverOut.flush();
+                if (c == null)
+                    serverOut.flush();
             }
+            if (c != null)
+                c.drain();
+            metrics.written (start);
+            metrics.sent (b.length);
             cnt[TX]++;
             setChanged();
         } catch (Exception e) {
@@ -630,6 +809,23 @@ public abstract class BaseChannel extends Observable
         return createISOMsg();
     }
     protected ISOMsg createISOMsg () {
+        ISOMsgPool mp = messagePool;
+        ISOPackager p = packager;
+        if (mp != null && p != null) {
+            if (p != checkedPackager) {
+                // first message from this packager tells whether pooled
+                // (plain ISOMsg) instances can stand in for its messages
+                ISOMsg m = p.createISOMsg ();
+                plainMessages = m.getClass() == ISOMsg.class;
+                checkedPackager = p;
+                return m;
+            }
+            if (plainMessages) {
+                ISOMsg m = mp.borrow();
+                if (m != null)
+                    return m;
+            }
+        }
         return packager.createISOMsg ();
     }
 	
@@ -654,10 +850,12 @@ public abstract class BaseChannel extends Observable
     public ISOMsg receive() throws IOException, ISOException {
         byte[] b=null;
         byte[] header=null;
+        int blen = 0;
         LogEvent evt = new LogEvent (this, "receive");
         ISOMsg m = createMsg ();  // call createMsg instead of createISOMsg for 
                                   // backward compatibility
         m.setSource (this);
+        BufferPool pool = canUsePooledBuffer (m) ? receiveBufferPool : null;
         try {
             if (!isConnected())
                 throw new ISOException ("unconnected ISOChannel");
@@ -671,6 +869,8 @@ public abstract class BaseChannel extends Observable
                         header = readHeader(hLen);
                     }
                     b = streamReceive();
+                    blen = b.length;
+                    pool = null;
                 }
                 else if (len > 0 && len <= getMaxPacketLength()) {
                     if (hLen > 0) {
@@ -679,7 +879,8 @@ public abstract class BaseChannel extends Observable
                         header = readHeader(hLen);
                         len -= header.length;
                     }
-                    b = new byte[len];
+                    b = pool != null ? pool.acquire (len) : new byte[len];
+                    blen = len;
                     getMessage (b, 0, len);
                     getMessageTrailler();
                 }
@@ -687,14 +888,29 @@ public abstract class BaseChannel extends Observable
                     throw new ISOException(
                         "receive length " +len + " seems strange - maxPacketLength = " + getMaxPacketLength());
             }
-            m.setPackager (getDynamicPackager(header, b));
-            m.setHeader (getDynamicHeader(header));
-            if (b.length > 0 && !shouldIgnore (header))  // Ignore NULL messages
-                unpack (m, b);
+            long start = metrics.start();
+            if (pool != null) {
+                m.setPackager (packager);
+                m.setHeader (getDynamicHeader(header));
+                if (blen > 0 && !shouldIgnore (header)) {
+                    synchronized (m) {
+                        ((ISOBasePackager) packager).unpack (m, b, blen);
+                    }
+                }
+            } else {
+                m.setPackager (getDynamicPackager(header, b));
+                m.setHeader (getDynamicHeader(header));
+                if (b.length > 0 && !shouldIgnore (header))  // Ignore NULL messages
+                    unpack (m, b);
+            }
+            metrics.unpacked (start);
             m.setDirection(ISOMsg.INCOMING);
             evt.addMessage (m);
-            m = applyIncomingFilters (m, header, b, evt);
+            start = metrics.start();
+            m = applyIncomingFilters (m, header, pool != null ? null : b, evt);
+            metrics.filtered (start);
             m.setDirection(ISOMsg.INCOMING);
+            metrics.received (blen + (header != null ? header.length : 0));
             cnt[RX]++;
             setChanged();
             notifyObservers(m);
@@ -706,7 +922,7 @@ public abstract class BaseChannel extends Observable
             }
             if (b != null) {
                 evt.addMessage ("--- data ---");
-                evt.addMessage (ISOUtil.hexdump (b));
+                evt.addMessage (ISOUtil.hexdump (b, 0, blen));
             }
             throw e;
         } catch (EOFException e) {
@@ -733,9 +949,71 @@ public abstract class BaseChannel extends Observable
             throw new ISOException ("unexpected exception", e);
         } finally {
             Logger.log (evt);
+            if (pool != null)
+                pool.release (b);
         }
         return m;
     }
+
+    /**
+     * Returns a message obtained from {@link #receive()} to this
+     * channel's message pool (if any). The caller must not use
+     * <code>m</code> after calling this method.
+     * @param m message no longer in use
+     * @return true if the message was pooled
+     * @see #setMessagePool(ISOMsgPool)
+     */
+    public boolean recycle (ISOMsg m) {
+        ISOMsgPool mp = messagePool;
+        return mp != null && mp.recycle (m);
+    }
+
+    /**
+     * A pooled receive buffer is longer than the image it holds, so it is
+     * only used along the plain receive path: a non lazy ISOBasePackager
+     * that doesn't override <code>unpack(ISOComponent,byte[])</code>, no
+     * channel or message override of the image handling methods, and no
+     * RawIncomingFilter (those get a reference to the image).
+     */
+    private boolean canUsePooledBuffer (ISOMsg m) {
+        if (receiveBufferPool == null || !(packager instanceof ISOBasePackager)
+          || ((ISOBasePackager) packager).isLazyUnpack())
+            return false;
+        for (Object f : incomingFilters)
+            if (f instanceof RawIncomingFilter)
+                return false;
+        return isPoolSafe (getClass()) && isPoolSafe (packager.getClass())
+            && isPoolSafe (m.getClass());
+    }
+
+    private static boolean isPoolSafe (Class c) {
+        Boolean safe = poolSafe.get (c);
+        if (safe == null) {
+            if (BaseChannel.class.isAssignableFrom (c)) {
+                safe = !overrides (c, BaseChannel.class, "unpack", ISOMsg.class, byte[].class)
+                    && !overrides (c, BaseChannel.class, "getDynamicPackager", byte[].class)
+                    && !overrides (c, BaseChannel.class, "getDynamicPackager", byte[].class, byte[].class)
+                    && !overrides (c, BaseChannel.class, "applyIncomingFilters",
+                         ISOMsg.class, byte[].class, byte[].class, LogEvent.class);
+            } else if (ISOBasePackager.class.isAssignableFrom (c)) {
+                safe = !overrides (c, ISOBasePackager.class, "unpack", ISOComponent.class, byte[].class);
+            } else {
+                safe = !overrides (c, ISOMsg.class, "unpack", byte[].class);
+            }
+            poolSafe.put (c, safe);
+        }
+        return safe;
+    }
+
+    private static boolean overrides (Class c, Class base, String name, Class... types) {
+        for (; c != null && c != base; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod (name, types);
+                return true;
+            } catch (NoSuchMethodException ignored) { }
+        }
+        return false;
+    }
     /**
      * Low level receive
      * @param b byte array
@@ -746,6 +1024,15 @@ public abstract class BaseChannel extends Observable
     public int getBytes (byte[] b) throws IOException {
         return serverIn.read (b);
     }
+    /**
+     * @return true if bytes already received can be consumed without
+     * blocking (channels wrapping serverIn in a Reader should override)
+     * @throws IOException on error
+     */
+    protected boolean isInputPending () throws IOException {
+        DataInputStream in = serverIn;
+        return in != null && in.available() > 0;
+    }
     /**
      * disconnects the TCP/IP session. The instance is ready for
      * a reconnection. There is no need to create a new ISOChannel<br>
@@ -775,6 +1062,9 @@ public abstract class BaseChannel extends Observable
                 } catch (IOException ex) { evt.addMessage (ex); }
                 serverOut = null;
             }
+            socketIn  = null;
+            socketOut = null;
+            coalescer = null;
         } catch (IOException e) {
             evt.addMessage (e);
             Logger.log (evt);
@@ -967,6 +1257,14 @@ public abstract class BaseChannel extends Observable
         }
         setOverrideHeader(cfg.getBoolean ("override-header", false));
         keepAlive = cfg.getBoolean ("keep-alive", false);
+        writeCoalescing = cfg.getBoolean ("write-coalescing", false);
+        writeCoalescingDelay = cfg.getLong ("write-coalescing-delay", 0L);
+        setTimingMetrics (cfg.getBoolean ("metrics", false));
+        if (cfg.getBoolean ("receive-buffer-pool", false))
+            receiveBufferPool = BufferPool.getDefault();
+        int messagePoolSize = cfg.getInt ("message-pool-size", 0);
+        if (messagePoolSize > 0)
+            messagePool = new ISOMsgPool (messagePoolSize);
         if (socketFactory != this && socketFactory instanceof Configurable)
             ((Configurable)socketFactory).setConfiguration (cfg);
         try {
@@ -1035,6 +1333,51 @@ public abstract class BaseChannel extends Observable
     public void setSocketFactory(ISOClientSocketFactory socketFactory) {
         this.socketFactory = socketFactory;
     }
+    /**
+     * When enabled (before connecting), concurrent senders append their
+     * frames to a shared batch and one of them writes the whole batch,
+     * instead of each one flushing its own message. A send may then
+     * return before its frame reaches the socket; a write error is
+     * reported to the sender that was writing the batch.
+     * @param writeCoalescing true to coalesce writes
+     */
+    public void setWriteCoalescing (boolean writeCoalescing) {
+        this.writeCoalescing = writeCoalescing;
+    }
+    public boolean isWriteCoalescing () {
+        return writeCoalescing;
+    }
+    /**
+     * @param micros max time (in microseconds) the writer waits for
+     * more frames to join a batch before writing it; 0 (the default)
+     * writes as soon as there is nothing else queued
+     */
+    public void setWriteCoalescingDelay (long micros) {
+        this.writeCoalescingDelay = micros;
+    }
+    public long getWriteCoalescingDelay () {
+        return writeCoalescingDelay;
+    }
+    /**
+     * @param pool pool used to receive message images, null (the default)
+     * allocates a new array per message
+     */
+    public void setReceiveBufferPool (BufferPool pool) {
+        this.receiveBufferPool = pool;
+    }
+    public BufferPool getReceiveBufferPool () {
+        return receiveBufferPool;
+    }
+    /**
+     * @param pool pool fed by {@link #recycle(ISOMsg)} and used by
+     * {@link #createISOMsg()}; null (the default) disables recycling
+     */
+    public void setMessagePool (ISOMsgPool pool) {
+        this.messagePool = pool;
+    }
+    public ISOMsgPool getMessagePool () {
+        return messagePool;
+    }
     public int getMaxPacketLength() {
         return maxPacketLength;
     }
@@ -1071,6 +1414,7 @@ public abstract class BaseChannel extends Observable
         try {
             BaseChannel channel = (BaseChannel) super.clone();
             channel.cnt = cnt.clone();
+            channel.metrics = new ChannelMetrics (metrics.isTimed());
             // The lock objects must also be cloned, and the DataStreams nullified, as it makes no sense
             // to use the new lock objects to protect the old DataStreams.
             // This should be safe as the only code that calls BaseChannel.clone() is ISOServer.run(),
@@ -1079,6 +1423,7 @@ public abstract class BaseChannel extends Observable
             channel.serverOutLock = new Object();
             channel.serverIn = null;
             channel.serverOut = null;
+            channel.coalescer = null;
             channel.usable = false;
             channel.socket = null;
             return channel;
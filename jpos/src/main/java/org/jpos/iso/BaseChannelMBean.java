@@ -28,5 +28,11 @@ public interface BaseChannelMBean {
     public void connect () throws IOException;
     public void disconnect () throws IOException;
     public void reconnect () throws IOException;
+    public void resetCounters ();
+    public long getMessagesIn ();
+    public long getMessagesOut ();
+    public long getBytesIn ();
+    public long getBytesOut ();
+    public String getMetricsAsString ();
 }
 
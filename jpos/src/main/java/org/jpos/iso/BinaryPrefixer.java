@@ -50,9 +50,17 @@ public class BinaryPrefixer implements Prefixer
 	 * @see org.jpos.iso.Prefixer#encodeLength(int, byte[])
 	 */
     public void encodeLength(int length, byte[] b)
+    {
+        encodeLength(length, b, 0);
+    }
+
+    /**
+	 * Same as {@link #encodeLength(int, byte[])}, writing at <code>offset</code>.
+	 */
+    public void encodeLength(int length, byte[] b, int offset)
     {
         for (int i = nBytes - 1; i >= 0; i--) {
-            b[i] = (byte)(length & 0xFF);
+            b[offset + i] = (byte)(length & 0xFF);
             length >>= 8;
         }
     }
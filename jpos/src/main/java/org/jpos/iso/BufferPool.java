@@ -0,0 +1,126 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of byte arrays in power-of-two size classes.
+ * <p>
+ * Used by BaseChannel to receive message images without allocating a
+ * new array per message. {@link #acquire(int)} returns an array at
+ * least as long as requested (callers must track the actual length);
+ * {@link #release(byte[])} hands it back. Requests larger than the
+ * biggest size class are served by plain allocation and never pooled.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 256;
+    private static final BufferPool defaultPool = new BufferPool (1048576, 64);
+
+    private final List<ConcurrentLinkedQueue<byte[]>> classes;
+    private final AtomicInteger[] sizes;
+    private final int maxPerClass;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize largest pooled buffer (rounded up to a power of two)
+     * @param maxPerClass max number of idle buffers kept per size class
+     */
+    public BufferPool (int maxSize, int maxPerClass) {
+        int n = sizeClass (Math.max (maxSize, MIN_SIZE)) + 1;
+        this.classes = new ArrayList<ConcurrentLinkedQueue<byte[]>>(n);
+        this.sizes = new AtomicInteger[n];
+        for (int i=0; i<n; i++) {
+            classes.add (new ConcurrentLinkedQueue<byte[]>());
+            sizes[i] = new AtomicInteger();
+        }
+        this.maxPerClass = maxPerClass;
+    }
+
+    /**
+     * @return pool shared by channels configured with <code>receive-buffer-pool</code>
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * @param len minimum length
+     * @return an array with at least <code>len</code> bytes
+     */
+    public byte[] acquire (int len) {
+        int c = sizeClass (len);
+        if (c >= classes.size()) {
+            misses.incrementAndGet();
+            return new byte[len];
+        }
+        byte[] b = classes.get (c).poll();
+        if (b != null) {
+            sizes[c].decrementAndGet();
+            hits.incrementAndGet();
+            return b;
+        }
+        misses.incrementAndGet();
+        return new byte[MIN_SIZE << c];
+    }
+
+    /**
+     * Returns a buffer to the pool. Arrays that were not obtained from
+     * {@link #acquire(int)} (i.e. whose length is not a size class) and
+     * arrays exceeding the per class limit are left to the GC.
+     * The caller must not touch <code>b</code> afterwards.
+     * @param b buffer, may be null
+     */
+    public void release (byte[] b) {
+        if (b == null || b.length < MIN_SIZE || Integer.bitCount (b.length) != 1)
+            return;
+        int c = sizeClass (b.length);
+        if (c < classes.size() && sizes[c].incrementAndGet() <= maxPerClass)
+            classes.get (c).offer (b);
+        else if (c < classes.size())
+            sizes[c].decrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+    public long getMisses() {
+        return misses.get();
+    }
+    /**
+     * @return number of idle buffers currently held by this pool
+     */
+    public int getIdleCount() {
+        int n = 0;
+        for (AtomicInteger s : sizes)
+            n += s.get();
+        return n;
+    }
+
+    private static int sizeClass (int len) {
+        if (len <= MIN_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros (len - 1) - 8; // log2(MIN_SIZE) == 8
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import org.jpos.util.Histogram;
+import org.jpos.util.Loggeable;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per channel message and byte counters, and optional pack, unpack,
+ * filter and wire-write time histograms (in microseconds).
+ *
+ * @see BaseChannel#getMetrics()
+ */
+public class ChannelMetrics implements Loggeable {
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final Histogram packTime;
+    private final Histogram unpackTime;
+    private final Histogram writeTime;
+    private final Histogram filterTime;
+
+    /**
+     * Counters only
+     */
+    public ChannelMetrics() {
+        this (false);
+    }
+    /**
+     * @param timed true to also keep time histograms
+     */
+    public ChannelMetrics (boolean timed) {
+        packTime   = timed ? new Histogram() : null;
+        unpackTime = timed ? new Histogram() : null;
+        writeTime  = timed ? new Histogram() : null;
+        filterTime = timed ? new Histogram() : null;
+    }
+
+    public void received (int bytes) {
+        messagesIn.incrementAndGet();
+        bytesIn.addAndGet (bytes);
+    }
+    public void sent (int bytes) {
+        messagesOut.incrementAndGet();
+        bytesOut.addAndGet (bytes);
+    }
+    /**
+     * @return true if time histograms are kept
+     */
+    public boolean isTimed() {
+        return packTime != null;
+    }
+    /**
+     * @return System.nanoTime() if time histograms are kept, 0 otherwise
+     */
+    public long start() {
+        return packTime != null ? System.nanoTime() : 0L;
+    }
+    /**
+     * @param start value of {@link #start()} when packing started
+     */
+    public void packed (long start) {
+        record (packTime, start);
+    }
+    /**
+     * @param start value of {@link #start()} when unpacking started
+     */
+    public void unpacked (long start) {
+        record (unpackTime, start);
+    }
+    /**
+     * @param start value of {@link #start()} when the write started
+     */
+    public void written (long start) {
+        record (writeTime, start);
+    }
+    /**
+     * @param start value of {@link #start()} before filters were applied
+     */
+    public void filtered (long start) {
+        record (filterTime, start);
+    }
+    private void record (Histogram h, long start) {
+        if (h != null)
+            h.record ((System.nanoTime() - start) / 1000L);
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.get();
+    }
+    public long getMessagesOut() {
+        return messagesOut.get();
+    }
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+    /**
+     * @return pack time histogram, null if not {@link #isTimed()}
+     */
+    public Histogram getPackTime() {
+        return packTime;
+    }
+    public Histogram getUnpackTime() {
+        return unpackTime;
+    }
+    public Histogram getWriteTime() {
+        return writeTime;
+    }
+    public Histogram getFilterTime() {
+        return filterTime;
+    }
+
+    /**
+     * Accumulates other channel's metrics into this one (times are
+     * added only if both keep them)
+     * @param m metrics to add
+     */
+    public void add (ChannelMetrics m) {
+        messagesIn.addAndGet (m.getMessagesIn());
+        messagesOut.addAndGet (m.getMessagesOut());
+        bytesIn.addAndGet (m.getBytesIn());
+        bytesOut.addAndGet (m.getBytesOut());
+        if (isTimed() && m.isTimed()) {
+            packTime.add (m.packTime);
+            unpackTime.add (m.unpackTime);
+            writeTime.add (m.writeTime);
+            filterTime.add (m.filterTime);
+        }
+    }
+
+    public void reset() {
+        messagesIn.set (0L);
+        messagesOut.set (0L);
+        bytesIn.set (0L);
+        bytesOut.set (0L);
+        if (isTimed()) {
+            packTime.reset();
+            unpackTime.reset();
+            writeTime.reset();
+            filterTime.reset();
+        }
+    }
+
+    public String getCountersAsString() {
+        return "in=" + getMessagesIn() + "/" + getBytesIn() + "b, out="
+          + getMessagesOut() + "/" + getBytesOut() + "b";
+    }
+
+    public void dump (PrintStream p, String indent) {
+        p.println (indent + getCountersAsString());
+        if (!isTimed())
+            return;
+        p.println (indent + "pack   " + packTime);
+        p.println (indent + "unpack " + unpackTime);
+        p.println (indent + "filter " + filterTime);
+        p.println (indent + "write  " + writeTime);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Output side of a BaseChannel running with write coalescing enabled.
+ * <p>
+ * Senders append their frames to an in-memory batch while holding the
+ * channel's <code>serverOutLock</code> and then call {@link #drain()}
+ * outside of it. The first sender to find no write in progress becomes
+ * the writer and keeps draining the batch with one write call per
+ * round until it is empty; senders arriving while a write is in
+ * progress wait for the round carrying their frame to be written.
+ * Frames are therefore written in the order they were appended.
+ * <p>
+ * While a write is in progress, appenders block once the batch reaches
+ * <code>maxPending</code> bytes, so a slow peer pushes back on senders
+ * as a blocking socket write would. The first write error is kept:
+ * every later <code>write</code> or <code>drain</code> call fails with it.
+ */
+class CoalescingOutputStream extends OutputStream {
+    /**
+     * batches larger than this are written without lingering
+     */
+    static final int LINGER_LIMIT = 65536;
+    /**
+     * default limit on bytes waiting to be written
+     */
+    static final int MAX_PENDING = 1024 * 1024;
+
+    private final OutputStream out;
+    private final long lingerNanos;
+    private final int maxPending;
+    private byte[] buf = new byte[2048];
+    private byte[] spare = new byte[2048];
+    private int count;
+    private boolean writing;
+    private long appended, written;
+    private IOException failure;
+    private long batches, frames;
+
+    /**
+     * @param out underlying (socket) output stream
+     * @param lingerMicros max time the writer waits for more frames
+     *        to join a batch, 0 to write as soon as the batch is drained
+     */
+    CoalescingOutputStream (OutputStream out, long lingerMicros) {
+        this (out, lingerMicros, MAX_PENDING);
+    }
+    /**
+     * @param out underlying (socket) output stream
+     * @param lingerMicros max time the writer waits for more frames
+     *        to join a batch, 0 to write as soon as the batch is drained
+     * @param maxPending bytes waiting to be written above which appenders block
+     */
+    CoalescingOutputStream (OutputStream out, long lingerMicros, int maxPending) {
+        this.out = out;
+        this.lingerNanos = lingerMicros * 1000L;
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public synchronized void write (int b) throws IOException {
+        reserve (1);
+        buf[count++] = (byte) b;
+        appended++;
+    }
+    @Override
+    public synchronized void write (byte[] b, int off, int len) throws IOException {
+        reserve (len);
+        System.arraycopy (b, off, buf, count, len);
+        count += len;
+        appended += len;
+    }
+
+    /**
+     * Writes everything appended so far, unless another thread is
+     * already doing so.
+     */
+    @Override
+    public void flush () throws IOException {
+        drain ();
+    }
+
+    /**
+     * Writes the pending batch (and any frame appended meanwhile) to
+     * the underlying stream. If another thread is already doing so,
+     * waits until it has written everything appended before this call.
+     * @throws IOException on write error (this or a previous one)
+     */
+    void drain () throws IOException {
+        synchronized (this) {
+            frames++;
+            long target = appended;
+            while (writing && written < target && failure == null)
+                await ();
+            checkFailure ();
+            if (written >= target)
+                return;
+            writing = true;
+        }
+        boolean done = false;
+        try {
+            for (;;) {
+                if (lingerNanos > 0 && pending() < LINGER_LIMIT)
+                    LockSupport.parkNanos (lingerNanos);
+                byte[] b;
+                int len;
+                synchronized (this) {
+                    if (count == 0) {
+                        writing = false;
+                        notifyAll ();
+                        done = true;
+                        return;
+                    }
+                    b = buf;
+                    len = count;
+                    buf = spare.length >= b.length ? spare : new byte[b.length];
+                    spare = b;
+                    count = 0;
+                    batches++;
+                    notifyAll ();
+                }
+                try {
+                    out.write (b, 0, len);
+                    out.flush ();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        if (failure == null)
+                            failure = e;
+                    }
+                    throw e;
+                }
+                synchronized (this) {
+                    written += len;
+                    notifyAll ();
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    writing = false;
+                    notifyAll ();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close () throws IOException {
+        out.close ();
+    }
+
+    /**
+     * @return number of bytes waiting to be written
+     */
+    synchronized int pending () {
+        return count;
+    }
+    /**
+     * @return number of write calls issued to the underlying stream
+     */
+    synchronized long getBatchCount () {
+        return batches;
+    }
+    /**
+     * @return number of drain requests (roughly, frames sent)
+     */
+    synchronized long getFrameCount () {
+        return frames;
+    }
+
+    /**
+     * waits while a write is in progress and the batch is full, then
+     * makes room for <code>len</code> bytes
+     */
+    private void reserve (int len) throws IOException {
+        while (writing && count >= maxPending && failure == null)
+            await ();
+        checkFailure ();
+        if (count + len > buf.length) {
+            byte[] b = new byte[Math.max (buf.length << 1, count + len)];
+            System.arraycopy (buf, 0, b, 0, count);
+            buf = b;
+        }
+    }
+    private void await () throws IOException {
+        try {
+            wait ();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException ("interrupted waiting for coalesced write");
+        }
+    }
+    private void checkFailure () throws IOException {
+        if (failure != null)
+            throw new IOException ("previous write failed: " + failure.getMessage(), failure);
+    }
+}
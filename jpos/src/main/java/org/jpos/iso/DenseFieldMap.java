@@ -0,0 +1,332 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * ISOMsg field storage.
+ *
+ * Fields -1 (bitmap) to 192 live in a dense array indexed by field
+ * number. Presence of fields 1..192 is kept in three long words laid
+ * out like an ISO-8583 bitmap on the wire (field 1 is the most
+ * significant bit of the first word), maintained as fields are set and
+ * unset, so lookups, max field and bitmap calculations need neither a
+ * scan nor a BitSet. Any other field number (i.e. tagged or deeply nested
+ * subfields) goes to an overflow TreeMap.
+ *
+ * Iteration follows ascending field number, just like the TreeMap
+ * ISOMsg used to hold its fields. Null values are not supported.
+ *
+ * @see ISOMsg
+ */
+class DenseFieldMap extends AbstractMap<Integer,Object> implements Cloneable {
+    static final int MIN_FIELD = -1;
+    static final int MAX_FIELD = 192;
+    static final int BITMAP_WORDS = 3;
+    private static final int INITIAL_CAPACITY = 130; // -1 .. 128
+
+    private Object[] slots = new Object[INITIAL_CAPACITY];
+    private long[] present = new long[BITMAP_WORDS];
+    private int slotCount;
+    private TreeMap<Integer,Object> overflow;
+    private int modCount;
+
+    static boolean isDense (int fldno) {
+        return fldno >= MIN_FIELD && fldno <= MAX_FIELD;
+    }
+
+    static long bit (int fldno) {
+        return 1L << (63 - ((fldno-1) & 63));
+    }
+
+    public Object get (int fldno) {
+        if (isDense (fldno)) {
+            int i = fldno - MIN_FIELD;
+            return i < slots.length ? slots[i] : null;
+        }
+        return overflow != null ? overflow.get (fldno) : null;
+    }
+
+    @Override
+    public Object get (Object key) {
+        return key instanceof Integer ? get (((Integer) key).intValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey (Object key) {
+        return get (key) != null;
+    }
+
+    @Override
+    public Object put (Integer key, Object value) {
+        if (value == null)
+            throw new NullPointerException ("null field value");
+        int fldno = key;
+        if (!isDense (fldno)) {
+            if (overflow == null)
+                overflow = new TreeMap<Integer,Object>();
+            Object old = overflow.put (key, value);
+            if (old == null)
+                modCount++;
+            return old;
+        }
+        int i = fldno - MIN_FIELD;
+        if (i >= slots.length) {
+            Object[] b = new Object[MAX_FIELD - MIN_FIELD + 1];
+            System.arraycopy (slots, 0, b, 0, slots.length);
+            slots = b;
+        }
+        Object old = slots[i];
+        slots[i] = value;
+        if (old == null) {
+            slotCount++;
+            modCount++;
+            if (fldno > 0)
+                present[(fldno-1) >> 6] |= bit (fldno);
+        }
+        return old;
+    }
+
+    public Object remove (int fldno) {
+        if (!isDense (fldno)) {
+            if (overflow == null)
+                return null;
+            Object old = overflow.remove (fldno);
+            if (old != null)
+                modCount++;
+            return old;
+        }
+        int i = fldno - MIN_FIELD;
+        if (i >= slots.length || slots[i] == null)
+            return null;
+        Object old = slots[i];
+        slots[i] = null;
+        slotCount--;
+        modCount++;
+        if (fldno > 0)
+            present[(fldno-1) >> 6] &= ~bit (fldno);
+        return old;
+    }
+
+    @Override
+    public Object remove (Object key) {
+        return key instanceof Integer ? remove (((Integer) key).intValue()) : null;
+    }
+
+    @Override
+    public int size() {
+        return slotCount + (overflow != null ? overflow.size() : 0);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        for (int i=0; i<slots.length; i++)
+            slots[i] = null;
+        Arrays.fill (present, 0L);
+        slotCount = 0;
+        overflow = null;
+        modCount++;
+    }
+
+    /**
+     * @return highest field number present (-1 if none)
+     */
+    public int getMaxField() {
+        if (overflow != null && !overflow.isEmpty() && overflow.lastKey() > MAX_FIELD)
+            return overflow.lastKey();
+        for (int w=BITMAP_WORDS-1; w>=0; w--) {
+            if (present[w] != 0L)
+                return (w << 6) + 64 - Long.numberOfTrailingZeros (present[w]);
+        }
+        if (slots[-MIN_FIELD] != null)
+            return 0;
+        return overflow != null && !overflow.isEmpty() ? Math.max (-1, overflow.lastKey()) : -1;
+    }
+
+    /**
+     * @return presence of fields 1..192 as three bitmap words (copy),
+     *         field 1 being the most significant bit of the first word
+     */
+    public long[] getBitmapWords() {
+        return present.clone();
+    }
+
+    /**
+     * @param maxField last field to include
+     * @return a new BitSet with the present fields 1..maxField
+     */
+    public BitSet getBitSet (int maxField) {
+        BitSet bmap = new BitSet (((maxField+62)>>6)<<6);
+        int last = Math.min (maxField, MAX_FIELD);
+        for (int i=1; i<=last; i++)
+            if ((present[(i-1) >> 6] & bit (i)) != 0L)
+                bmap.set (i);
+        return bmap;
+    }
+
+    @Override
+    public Set<Map.Entry<Integer,Object>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer,Object>>() {
+            public Iterator<Map.Entry<Integer,Object>> iterator() {
+                return new EntryIterator();
+            }
+            public int size() {
+                return DenseFieldMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public DenseFieldMap clone() {
+        try {
+            DenseFieldMap m = (DenseFieldMap) super.clone();
+            m.slots = slots.clone();
+            m.present = present.clone();
+            if (overflow != null)
+                m.overflow = new TreeMap<Integer,Object> (overflow);
+            m.modCount = 0;
+            return m;
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError();
+        }
+    }
+
+    private class Entry implements Map.Entry<Integer,Object> {
+        private final int fldno;
+        private Object value;
+        Entry (int fldno, Object value) {
+            this.fldno = fldno;
+            this.value = value;
+        }
+        public Integer getKey() {
+            return fldno;
+        }
+        public Object getValue() {
+            return value;
+        }
+        public Object setValue (Object value) {
+            if (value == null)
+                throw new NullPointerException ("null field value");
+            Object old = this.value;
+            this.value = value;
+            if (isDense (fldno))
+                slots[fldno - MIN_FIELD] = value;
+            else
+                overflow.put (fldno, value);
+            return old;
+        }
+        @Override
+        public boolean equals (Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            return getKey().equals (e.getKey()) && value.equals (e.getValue());
+        }
+        @Override
+        public int hashCode() {
+            return fldno ^ value.hashCode();
+        }
+        @Override
+        public String toString() {
+            return fldno + "=" + value;
+        }
+    }
+
+    /**
+     * walks the overflow fields below -1, then the dense array,
+     * then the overflow fields above 192
+     */
+    private class EntryIterator implements Iterator<Map.Entry<Integer,Object>> {
+        private final Object[] head;
+        private final Object[] tail;
+        private int headIndex;
+        private int tailIndex;
+        private int slot = -1;
+        private Entry next;
+        private Entry last;
+        private int expectedModCount = modCount;
+
+        EntryIterator() {
+            if (overflow != null) {
+                // overflow entries are snapshotted so that remove() does not
+                // invalidate a live TreeMap iterator
+                head = overflow.headMap (MIN_FIELD).entrySet().toArray();
+                tail = overflow.tailMap (MAX_FIELD + 1).entrySet().toArray();
+            } else {
+                head = tail = new Object[0];
+            }
+            advance();
+        }
+        private void advance() {
+            next = null;
+            if (headIndex < head.length) {
+                next = entry (head[headIndex++]);
+                return;
+            }
+            while (++slot < slots.length) {
+                if (slots[slot] != null) {
+                    next = new Entry (slot + MIN_FIELD, slots[slot]);
+                    return;
+                }
+            }
+            if (tailIndex < tail.length)
+                next = entry (tail[tailIndex++]);
+        }
+        private Entry entry (Object o) {
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            return new Entry ((Integer) e.getKey(), e.getValue());
+        }
+        public boolean hasNext() {
+            return next != null;
+        }
+        public Map.Entry<Integer,Object> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next == null)
+                throw new NoSuchElementException();
+            last = next;
+            advance();
+            return last;
+        }
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            DenseFieldMap.this.remove (last.fldno);
+            expectedModCount = modCount;
+            last = null;
+        }
+    }
+}
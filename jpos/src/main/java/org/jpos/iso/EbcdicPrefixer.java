@@ -61,10 +61,18 @@ public class EbcdicPrefixer implements Prefixer
 	 * @see org.jpos.iso.Prefixer#encodeLength(int, byte[])
 	 */
     public void encodeLength(int length, byte[] b)
+    {
+        encodeLength(length, b, 0);
+    }
+
+    /**
+	 * Same as {@link #encodeLength(int, byte[])}, writing at <code>offset</code>.
+	 */
+    public void encodeLength(int length, byte[] b, int offset)
     {
         for (int i = nDigits - 1; i >= 0; i--)
         {
-            b[i] = EBCDIC_DIGITS[length % 10];
+            b[offset + i] = EBCDIC_DIGITS[length % 10];
             length /= 10;
         }
     }
@@ -0,0 +1,82 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Describes how a channel frames messages on the wire (length prefix
+ * and optional trailer) independently of the I/O used to move them.
+ * <p>
+ * Implementations are stateless and can be shared among channels.
+ * BaseChannel drives them over its blocking streams while
+ * ISOServer's nio mode uses them to find message boundaries in
+ * buffered input without tying up a thread.
+ *
+ * @see BaseChannel#getFrameCodec()
+ */
+public interface FrameCodec {
+    /**
+     * Returned by {@link #decodeLength} for a zero length poll that
+     * has to be echoed back to the peer.
+     */
+    int POLL = -2;
+
+    /**
+     * @return number of bytes consumed by {@link #decodeLength}
+     */
+    int getLengthSize();
+
+    /**
+     * @return number of bytes produced by {@link #encodeLength}
+     */
+    int getEncodedLengthSize();
+
+    /**
+     * Decodes the length prefix at the buffer's position, consuming
+     * {@link #getLengthSize()} bytes (the caller guarantees they are
+     * available).
+     * @param in input buffer
+     * @return length of the message that follows (header included,
+     * trailer excluded) or {@link #POLL}
+     * @throws ISOException if the prefix is invalid
+     */
+    int decodeLength (ByteBuffer in) throws ISOException;
+
+    /**
+     * Encodes the length prefix of a message
+     * @param len message length (header included, trailer excluded)
+     * @param out output buffer
+     * @throws IOException if len exceeds what the prefix can express
+     * @throws ISOException if len can't be encoded
+     */
+    void encodeLength (int len, ByteBuffer out) throws IOException, ISOException;
+
+    /**
+     * @return number of trailer bytes following each message
+     */
+    int getTrailerSize();
+
+    /**
+     * Writes the message trailer (if any)
+     * @param out output buffer
+     */
+    void encodeTrailer (ByteBuffer out);
+}
@@ -47,6 +47,13 @@ public class IFA_BITMAP extends ISOBitMapPackager {
      * @exception ISOException
      */
     public byte[] pack (ISOComponent c) throws ISOException {
+        long[] words = getLength() >= 8 ? getWords (c) : null;
+        if (words != null) {
+            byte[] b = ISOUtil.bitmap2byte (words);
+            byte[] d = new byte[b.length << 1];
+            ISOUtil.hexEncode (b, 0, b.length, d, 0);
+            return d;
+        }
         BitSet b = (BitSet) c.getValue();
         int len =
             getLength() >= 8 ?
@@ -68,6 +75,18 @@ public class IFA_BITMAP extends ISOBitMapPackager {
         throws ISOException
     {
         int len;
+        if (c instanceof ISOBitMap) {
+            long[] words = new long[3];
+            ISOBitMap bitmap = (ISOBitMap) c;
+            int bits = ISOUtil.hex2bitmap (b, offset, getLength() << 3, words);
+            len = (words[0] < 0L) ? 128 : 64;
+            if (getLength() > 16 && (words[1] < 0L)) {
+                len = 192;
+                words[1] &= Long.MAX_VALUE;
+            }
+            bitmap.setWords (words, bits);
+            return (len >> 2);
+        }
         BitSet bmap = ISOUtil.hex2BitSet (b, offset, getLength() << 3);
         c.setValue(bmap);
         len = (bmap.get(1)) ? 128 : 64; /* changed by Hani */
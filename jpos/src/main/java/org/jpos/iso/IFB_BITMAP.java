@@ -47,6 +47,9 @@ public class IFB_BITMAP extends ISOBitMapPackager {
      * @exception ISOException
      */
     public byte[] pack (ISOComponent c) throws ISOException {
+        long[] words = getLength() >= 8 ? getWords (c) : null;
+        if (words != null)
+            return ISOUtil.bitmap2byte (words);
         BitSet b = (BitSet) c.getValue();
         int len = 
             getLength() >= 8 ?
@@ -64,6 +67,15 @@ public class IFB_BITMAP extends ISOBitMapPackager {
         throws ISOException
     {
         int len;
+        if (c instanceof ISOBitMap) {
+            long[] words = new long[3];
+            ISOBitMap bitmap = (ISOBitMap) c;
+            bitmap.setWords (words, ISOUtil.byte2bitmap (b, offset, getLength() << 3, words));
+            len = bitmap.get(1) ? 128 : 64;
+            if (getLength() > 16 && bitmap.get(65))
+                len = 192;
+            return (Math.min (getLength(), len >> 3));
+        }
         BitSet bmap = ISOUtil.byte2BitSet (b, offset, getLength() << 3);
         c.setValue(bmap);
         len = bmap.get(1) ? 128 : 64;
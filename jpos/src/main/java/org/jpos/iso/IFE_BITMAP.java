@@ -46,13 +46,14 @@ public class IFE_BITMAP extends ISOBitMapPackager {
      * @exception ISOException
      */
     public byte[] pack (ISOComponent c) throws ISOException {
-    	BitSet bitMapValue = (BitSet) c.getValue();
+        long[] words = getWords (c);
+        BitSet bitMapValue = words == null ? (BitSet) c.getValue() : null;
     	int maxBytesPossible = getLength();
     	int maxBitsAllowedPhysically = maxBytesPossible<<3;
-    	int lastBitOn = bitMapValue.length()-1;
+    	int lastBitOn = words != null ? lastBitOn (words) : bitMapValue.length()-1;
         int actualLastBit=lastBitOn; // takes into consideration 2nd and 3rd bit map flags
         if (lastBitOn > 128) {
-        	if (bitMapValue.get(65)) {
+        	if (words != null ? words[1] < 0L : bitMapValue.get(65)) {
         		actualLastBit = 192;
             } else {
                 actualLastBit = 128;
@@ -81,8 +82,24 @@ public class IFE_BITMAP extends ISOBitMapPackager {
             requiredBitMapLengthInBytes=maxBytesPossible;
         }
        		     	
-        byte[] b = ISOUtil.bitSet2byte (bitMapValue, requiredBitMapLengthInBytes);
-        return ISOUtil.asciiToEbcdic(ISOUtil.hexString(b).getBytes());
+        byte[] b = words != null ?
+            ISOUtil.bitmap2byte (words, requiredBitMapLengthInBytes) :
+            ISOUtil.bitSet2byte (bitMapValue, requiredBitMapLengthInBytes);
+        byte[] d = new byte[b.length << 1];
+        ISOUtil.hexEncode (b, 0, b.length, d, 0);
+        ISOUtil.asciiToEbcdic (d, 0, d.length, d, 0);
+        return d;
+    }
+    /**
+     * @return highest field on, -1 if none (BitSet.length()-1 equivalent,
+     *         field 0 never affects the packed length)
+     */
+    private static int lastBitOn (long[] words) {
+        for (int w=words.length-1; w>=0; w--) {
+            if (words[w] != 0L)
+                return (w << 6) + 64 - Long.numberOfTrailingZeros (words[w]);
+        }
+        return -1;
     }
     public int getMaxPackedLength() {
         return getLength() >> 2;
@@ -100,8 +117,15 @@ public class IFE_BITMAP extends ISOBitMapPackager {
 //    	TODO: calculate bytes to read based on bits 1, 65 on/off in the actual data 
     	int bytes;
     	byte [] b1 = ISOUtil.ebcdicToAsciiBytes (b, offset, getLength()*2 );
-    	BitSet bmap = ISOUtil.hex2BitSet (b1, 0, getLength() << 3);
-        c.setValue(bmap);
+        ISOBitMap bmap;
+        if (c instanceof ISOBitMap) {
+            long[] words = new long[3];
+            bmap = (ISOBitMap) c;
+            bmap.setWords (words, ISOUtil.hex2bitmap (b1, 0, getLength() << 3, words));
+        } else {
+            bmap = new ISOBitMap (-1, ISOUtil.hex2BitSet (b1, 0, getLength() << 3));
+            c.setValue(bmap.getValue());
+        }
         bytes = b1.length;
         // check for 2nd bit map indicator
         if ((bytes > 16) && !bmap.get(1)) {
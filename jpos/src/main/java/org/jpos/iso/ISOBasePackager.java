@@ -25,6 +25,7 @@ import org.jpos.util.Logger;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Map;
@@ -41,6 +42,7 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
     protected Logger logger = null;
     protected String realm = null;
     protected int headerLength = 0;
+    protected boolean lazyUnpack = false;
     
     public void setFieldPackager (ISOFieldPackager[] fld) {
         this.fld = fld;
@@ -180,6 +182,110 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
         }
     }
 
+    /**
+     * Packs a message straight into a caller supplied buffer, avoiding
+     * the per-field byte arrays created by {@link #pack(ISOComponent)}.
+     *
+     * The image is written at the buffer's current position, which gets
+     * advanced on success and left untouched on failure. Heap buffers are
+     * written in place; direct buffers are supported through the field
+     * packagers' copying fallback.
+     *
+     * @param   m   the Component to pack
+     * @param   buf destination buffer
+     * @return      number of bytes written
+     * @exception ISOException on error (including buffer overflow)
+     */
+    public int pack (ISOComponent m, ByteBuffer buf) throws ISOException {
+        LogEvent evt = null;
+        if (logger != null)
+            evt = new LogEvent (this, "pack");
+        int start = buf.position();
+        try {
+            if (m.getComposite() != m) 
+                throw new ISOException ("Can't call packager on non Composite");
+
+            ISOComponent c;
+            Map fields = m.getChildren();
+            int first = getFirstField();
+
+            if (m instanceof ISOMsg && headerLength>0) 
+            {
+            	byte[] h = ((ISOMsg) m).getHeader();
+            	if (h != null) {
+                    if (h.length > buf.remaining())
+                        throw new ISOException ("buffer overflow packing header");
+                    buf.put (h);
+                }
+            }
+
+            c = (ISOComponent) fields.get (0);
+            if (first > 0 && c != null)
+                fld[0].pack(c, buf);
+
+            if (emitBitMap()) {
+                c = (ISOComponent) fields.get (-1);
+                getBitMapfieldPackager().pack(c, buf);
+            }
+
+            int tmpMaxField=Math.min (m.getMaxField(), 128);
+            for (int i=first; i<=tmpMaxField; i++) {
+                if ((c=(ISOComponent) fields.get (i)) != null)
+                {
+                    try {
+                        ISOFieldPackager fp = fld[i];
+                        if (fp == null)
+                            throw new ISOException ("null field "+i+" packager");
+                        fp.pack(c, buf);
+                    } catch (ISOException e) {
+                        if (evt != null) {
+                            evt.addMessage ("error packing field "+i);
+                            evt.addMessage (c);
+                            evt.addMessage (e);
+                        }
+                        throw new ISOException("error packing field "+i, e);
+                    }
+                }
+            }
+
+            if(m.getMaxField()>128 && fld.length > 128) {
+                for (int i=1; i<=64; i++) {
+                    if ((c = (ISOComponent) 
+                        fields.get (i + 128)) != null)
+                    {
+                        try {
+                            fld[i+128].pack(c, buf);
+                        } catch (ISOException e) {
+                            if (evt != null) {
+                                evt.addMessage ("error packing field "+(i+128));
+                                evt.addMessage (c);
+                                evt.addMessage (e);
+                            }
+                            throw e;
+                        }
+                    }
+                }
+            }
+            int len = buf.position() - start;
+            if (evt != null) {
+                ByteBuffer image = buf.duplicate();
+                image.position (start);
+                byte[] d = new byte[len];
+                image.get (d);
+                evt.addMessage (ISOUtil.hexString (d));
+            }
+            return len;
+        } catch (ISOException e) {
+            buf.position (start);
+            if (evt != null)
+                evt.addMessage (e);
+            throw e;
+        } finally {
+            if (evt != null)
+                Logger.log(evt);
+        }
+    }
+
     /**
      * @param   m   the Container of this message
      * @param   b   ISO message image
@@ -187,6 +293,22 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
      * @exception ISOException
      */
     public int unpack (ISOComponent m, byte[] b) throws ISOException {
+        return unpack (m, b, b.length);
+    }
+
+    /**
+     * Unpacks an image occupying the first <code>len</code> bytes of
+     * <code>b</code>, so a caller can unpack out of a reusable buffer
+     * larger than the message. Unless lazy unpacking is enabled, no
+     * reference to <code>b</code> is kept once this method returns.
+     *
+     * @param   m   the Container of this message
+     * @param   b   buffer holding the ISO message image
+     * @param   len image length
+     * @return      consumed bytes
+     * @exception ISOException
+     */
+    public int unpack (ISOComponent m, byte[] b, int len) throws ISOException {
         LogEvent evt = new LogEvent (this, "unpack");
         int consumed = 0;
 
@@ -194,7 +316,7 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
             if (m.getComposite() != m) 
                 throw new ISOException ("Can't call packager on non Composite");
             if (logger != null)  // save a few CPU cycle if no logger available
-                evt.addMessage (ISOUtil.hexString (b));
+                evt.addMessage (ISOUtil.hexString (b, 0, len));
 
             
             // if ISOMsg and headerLength defined 
@@ -212,15 +334,14 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
                 consumed  += fld[0].unpack(mti, b, consumed);
                 m.set (mti);
             }
-            BitSet bmap = null;
+            ISOBitMap bmap = null;
             int maxField = fld.length;
             if (emitBitMap()) {
-                ISOBitMap bitmap = new ISOBitMap (-1);
-                consumed += getBitMapfieldPackager().unpack(bitmap,b,consumed);
-                bmap = (BitSet) bitmap.getValue();
+                bmap = new ISOBitMap (-1);
+                consumed += getBitMapfieldPackager().unpack(bmap,b,consumed);
                 if (logger != null)
-                    evt.addMessage ("<bitmap>"+bmap.toString()+"</bitmap>");
-                m.set (bitmap);
+                    evt.addMessage ("<bitmap>"+bmap.getValue().toString()+"</bitmap>");
+                m.set (bmap);
                 maxField = Math.min(maxField, bmap.size());
             }
             for (int i=getFirstField(); i<maxField; i++) {
@@ -234,8 +355,31 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
                         if (fld[i] == null)
                             throw new ISOException ("field packager '" + i + "' is null");
 
+                        if (lazyUnpack) {
+                            int flen = fld[i].getPackedLength (b, consumed);
+                            if (flen >= 0) {
+                                if (consumed + flen > len)
+                                    throw new ISOException (
+                                        "field " + i + " exceeds image length (" 
+                                        + (consumed + flen) + "/" + len + ")"
+                                    );
+                                m.set (new ISOLazyField (i, fld[i], b, consumed));
+                                consumed += flen;
+                                if (logger != null) {
+                                    evt.addMessage ("<unpack fld=\"" + i 
+                                        +"\" packager=\""
+                                        +fld[i].getClass().getName()+ "\" lazy=\"true\"/>");
+                                }
+                                continue;
+                            }
+                        }
                         ISOComponent c = fld[i].createComponent(i);
                         consumed += fld[i].unpack (c, b, consumed);
+                        if (consumed > len)
+                            throw new ISOException (
+                                "field " + i + " exceeds image length (" 
+                                + consumed + "/" + len + ")"
+                            );
                         if (logger != null) {
                             evt.addMessage ("<unpack fld=\"" + i 
                                 +"\" packager=\""
@@ -269,9 +413,9 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
                     throw e;
                 }
             }
-            if (b.length != consumed) {
+            if (len != consumed) {
                 evt.addMessage (
-                    "WARNING: unpack len=" +b.length +" consumed=" +consumed
+                    "WARNING: unpack len=" +len +" consumed=" +consumed
                 );
             }
             return consumed;
@@ -309,15 +453,14 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
                 fld[0].unpack(mti, in);
                 m.set (mti);
             }
-            BitSet bmap = null;
+            ISOBitMap bmap = null;
             int maxField = fld.length;
             if (emitBitMap()) {
-                ISOBitMap bitmap = new ISOBitMap (-1);
-                getBitMapfieldPackager().unpack(bitmap, in);
-                bmap = (BitSet) bitmap.getValue();
+                bmap = new ISOBitMap (-1);
+                getBitMapfieldPackager().unpack(bmap, in);
                 if (logger != null)
-                    evt.addMessage ("<bitmap>"+bmap.toString()+"</bitmap>");
-                m.set (bitmap);
+                    evt.addMessage ("<bitmap>"+bmap.getValue().toString()+"</bitmap>");
+                m.set (bmap);
                 maxField = Math.min(maxField, bmap.size());
             }
                 
@@ -349,9 +492,9 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
             if (bmap != null && bmap.get(65) && fld.length > 128 &&
                 fld[65] instanceof ISOBitMapPackager)
             {
-                bmap= (BitSet) ((ISOComponent) m.getChildren().get(65)).getValue();
+                BitSet bmap3 = (BitSet) ((ISOComponent) m.getChildren().get(65)).getValue();
                 for (int i=1; i<64; i++) {
-                    if (bmap == null || bmap.get(i)) {
+                    if (bmap3 == null || bmap3.get(i)) {
                         ISOComponent c = fld[i+128].createComponent(i);
                         fld[i+128].unpack (c, in);
                         if (logger != null) {
@@ -403,6 +546,57 @@ public abstract class ISOBasePackager implements ISOPackager, LogSource {
     {
         fld[fldNumber] = fieldPackager;
     }
+    /**
+     * Helper for subclasses providing their own {@link #pack(ISOComponent)}
+     * implementation: writes an already packed image into buf.
+     * @param b packed image
+     * @param buf destination buffer
+     * @return number of bytes written
+     * @exception ISOException if buf has not enough room
+     */
+    protected int put (byte[] b, ByteBuffer buf) throws ISOException {
+        if (b.length > buf.remaining())
+            throw new ISOException (
+                "buffer overflow (" + b.length + "/" + buf.remaining() + ")"
+            );
+        buf.put (b);
+        return b.length;
+    }
+    /**
+     * Enables lazy unpacking.
+     *
+     * When enabled, {@link #unpack(ISOComponent, byte[])} only decodes
+     * the MTI, the bitmap and the length prefixes; fields handled by
+     * ISOStringFieldPackager/ISOBinaryFieldPackager keep a reference
+     * to the original image and get decoded the first time their value
+     * is requested. The image must not be modified after unpack, and
+     * field level errors surface at access time.
+     *
+     * @param lazyUnpack true to defer field decoding
+     */
+    public void setLazyUnpack (boolean lazyUnpack) {
+        this.lazyUnpack = lazyUnpack;
+    }
+    public boolean isLazyUnpack () {
+        return lazyUnpack;
+    }
+    /**
+     * Replaces the field packagers by their {@link ISOCompiledFieldPackager}
+     * version where possible, including the field packagers of inner
+     * (ISOMsgFieldPackager) packagers.
+     */
+    public void compileFieldPackagers () {
+        if (fld == null)
+            return;
+        fld = ISOCompiledFieldPackager.compile (fld);
+        for (ISOFieldPackager f : fld) {
+            if (f instanceof ISOMsgFieldPackager) {
+                ISOPackager p = ((ISOMsgFieldPackager) f).getISOMsgPackager();
+                if (p instanceof ISOBasePackager)
+                    ((ISOBasePackager) p).compileFieldPackagers();
+            }
+        }
+    }
     public ISOMsg createISOMsg () {
         return new ISOMsg();
     }
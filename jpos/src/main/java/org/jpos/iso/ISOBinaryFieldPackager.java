@@ -20,6 +20,8 @@ package org.jpos.iso;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * @author joconnor
@@ -78,6 +80,22 @@ public class ISOBinaryFieldPackager extends ISOFieldPackager
         this.interpreter = interpreter;
     }
 
+    /**
+     * @return the interpreter
+     */
+    public BinaryInterpreter getInterpreter()
+    {
+        return interpreter;
+    }
+
+    /**
+     * @return the length prefixer
+     */
+    public Prefixer getPrefixer()
+    {
+        return prefixer;
+    }
+
     /**
      * Sets the length prefixer.
      * @param prefixer The length prefixer to use during packing and unpacking.
@@ -118,6 +136,42 @@ public class ISOBinaryFieldPackager extends ISOFieldPackager
         }
     }
 
+    /**
+     * Packs the component straight into the buffer's backing array.
+     * Direct and read-only buffers fall back to {@link #pack(ISOComponent)}.
+     */
+    public int pack(ISOComponent c, ByteBuffer buf) throws ISOException
+    {
+        if (!buf.hasArray())
+            return super.pack(c, buf);
+        try
+        {
+            byte[] data = c.getBytes();
+            int lenLen = prefixer.getPackedLength();
+            if (lenLen == 0)
+            {
+                if (data.length != getLength())
+                {
+                    throw new ISOException("Binary data length not the same as the packager length (" + data.length + "/" + getLength() + ")");
+                }
+            }
+            int packedLen = interpreter.getPackedLength(data.length) + lenLen;
+            if (packedLen > buf.remaining())
+                throw new ISOException("Buffer overflow (" + packedLen + "/" + buf.remaining() + ")");
+
+            byte[] b = buf.array();
+            int offset = buf.arrayOffset() + buf.position();
+            Arrays.fill(b, offset, offset + packedLen, (byte) 0);
+            encodeLength(prefixer, data.length, b, offset);
+            interpreter.interpret(data, b, offset + lenLen);
+            buf.position(buf.position() + packedLen);
+            return packedLen;
+        } catch(Exception e)
+        {
+            throw new ISOException(makeExceptionMessage(c, "packing"), e);
+        }
+    }
+
     public int unpack(ISOComponent c, byte[] b, int offset) throws ISOException
     {
         try
@@ -140,6 +194,20 @@ public class ISOBinaryFieldPackager extends ISOFieldPackager
         }
     }
 
+    /**
+     * Decodes the length prefix only.
+     * @see ISOFieldPackager#getPackedLength(byte[], int)
+     */
+    public int getPackedLength(byte[] b, int offset) throws ISOException
+    {
+        int len = prefixer.decodeLength(b, offset);
+        if (len == -1)
+            len = getLength();
+        else if (getLength() > 0 && len > getLength())
+            throw new ISOException("Field length " + len + " too long. Max: " + getLength());
+        return prefixer.getPackedLength() + interpreter.getPackedLength(len);
+    }
+
     /** Unpack from an input stream */
     public void unpack (ISOComponent c, InputStream in) 
         throws IOException, ISOException
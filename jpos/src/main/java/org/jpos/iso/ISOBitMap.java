@@ -34,6 +34,14 @@ import java.util.BitSet;
 public class ISOBitMap extends ISOComponent implements Cloneable {
     protected int fieldNumber;
     protected BitSet value;
+    /**
+     * optional wire layout representation of fields 1..192
+     * (field 1 is the most significant bit of words[0]).
+     * When present it is the source of truth until a BitSet
+     * value is requested.
+     */
+    private long[] words;
+    private int bits;
 
     /**
      * @param n - the FieldNumber
@@ -50,6 +58,18 @@ public class ISOBitMap extends ISOComponent implements Cloneable {
         fieldNumber = n;
         value = v;
     }
+    /**
+     * Creates a bitmap backed by bitmap words, so packagers can
+     * read and write it without going through a BitSet.
+     * @param n - fieldNumber
+     * @param words - three words holding fields 1..192, field 1 being
+     *                the most significant bit of words[0] (not copied)
+     * @param bits - bitmap capacity in bits (64, 128 or 192)
+     */
+    ISOBitMap (int n, long[] words, int bits) {
+        fieldNumber = n;
+        setWords (words, bits);
+    }
     /**
      * changes this Component field number<br>
      * Use with care, this method does not change
@@ -90,6 +110,12 @@ public class ISOBitMap extends ISOComponent implements Cloneable {
      * @return Object representing this field value
      */
     public Object getValue() {
+        long[] w = words;
+        if (w != null) {
+            // caller may modify the BitSet, so it becomes the only value
+            value = words2BitSet (w, bits);
+            words = null;
+        }
         return value;
     }
     /**
@@ -98,6 +124,74 @@ public class ISOBitMap extends ISOComponent implements Cloneable {
      */
     public void setValue(Object obj) throws ISOException {
         value = (BitSet) obj;
+        words = null;
+    }
+    /**
+     * @param fldno field number (1..192)
+     * @return true if fldno is on
+     */
+    public boolean get (int fldno) {
+        long[] w = words;
+        if (w != null) {
+            return fldno > 0 && fldno <= 192 &&
+                (w[(fldno-1) >> 6] & (1L << (63 - ((fldno-1) & 63)))) != 0L;
+        }
+        return value != null && fldno >= 0 && value.get (fldno);
+    }
+    /**
+     * @return same as the BitSet value's size(), used to bound unpack loops
+     */
+    int size() {
+        long[] w = words;
+        if (w == null)
+            return value != null ? value.size() : 0;
+        // BitSet word k holds fields k*64 .. k*64+63 and grows to
+        // max(2*capacity, k+1) words as those fields are set
+        long[] k = {
+            w[0] & ~1L, w[0] & 1L | w[1] & ~1L, w[1] & 1L | w[2] & ~1L, w[2] & 1L
+        };
+        int capacity = (bits + 63) >> 6;
+        for (int i=0; i<k.length; i++) {
+            if (k[i] != 0L && i >= capacity)
+                capacity = Math.max (capacity << 1, i + 1);
+        }
+        return capacity << 6;
+    }
+    /**
+     * @return bitmap words for fields 1..192 (not to be modified), or
+     *         null if there's no value or it holds fields beyond 192
+     */
+    long[] getWords() {
+        long[] w = words;
+        if (w != null)
+            return w;
+        if (value == null || value.length() > 193)
+            return null;
+        w = new long[3];
+        for (int i = value.nextSetBit (1); i >= 0; i = value.nextSetBit (i+1))
+            w[(i-1) >> 6] |= 1L << (63 - ((i-1) & 63));
+        return w;
+    }
+    /**
+     * @param words - three words holding fields 1..192 (not copied)
+     * @param bits - bitmap capacity in bits (64, 128 or 192)
+     */
+    void setWords (long[] words, int bits) {
+        this.words = words;
+        this.bits = bits;
+        value = null;
+    }
+    private static BitSet words2BitSet (long[] words, int bits) {
+        BitSet b = new BitSet (bits);
+        for (int w=0; w<words.length; w++) {
+            long v = words[w];
+            while (v != 0L) {
+                int lz = Long.numberOfLeadingZeros (v);
+                b.set ((w << 6) + lz + 1);
+                v &= ~(1L << (63 - lz));
+            }
+        }
+        return b;
     }
     /**
      * dump this field to PrintStream. The output is sorta
@@ -108,7 +202,7 @@ public class ISOBitMap extends ISOComponent implements Cloneable {
     public void dump (PrintStream p, String indent) {
         p.println (indent +"<"+XMLPackager.ISOFIELD_TAG + " " +
             XMLPackager.ID_ATTR +"=\""+XMLPackager.TYPE_BITMAP+"\" "+
-            XMLPackager.VALUE_ATTR +"=\"" +value+"\" "+
+            XMLPackager.VALUE_ATTR +"=\"" +getValue()+"\" "+
             XMLPackager.TYPE_ATTR +"=\"" + XMLPackager.TYPE_BITMAP+ "\"/>"
         );
     }
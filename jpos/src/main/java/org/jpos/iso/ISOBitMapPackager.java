@@ -39,4 +39,12 @@ public abstract class ISOBitMapPackager extends ISOFieldPackager {
     public ISOComponent createComponent(int fieldNumber) {
         return new ISOBitMap (fieldNumber);
     }
+    /**
+     * @param c bitmap component
+     * @return bitmap words (fields 1..192) if c is an ISOBitMap that can
+     *         be represented that way, null otherwise
+     */
+    protected long[] getWords (ISOComponent c) {
+        return c instanceof ISOBitMap ? ((ISOBitMap) c).getWords() : null;
+    }
 }
@@ -0,0 +1,474 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Flattened version of an {@link ISOStringFieldPackager} or
+ * {@link ISOBinaryFieldPackager}.
+ *
+ * The well known Interpreter, Prefixer and Padder implementations
+ * are turned into a handful of int codes at compile time and their
+ * logic is inlined in straight-line pack/unpack code, so the field
+ * packing loop no longer goes through three megamorphic call sites per
+ * field, and the fld[] array of a compiled packager mostly holds
+ * instances of this single final class.
+ *
+ * Packagers using components not known here (or subclasses
+ * overriding pack/unpack) are left as they are.
+ *
+ * @see ISOBasePackager#compileFieldPackagers()
+ */
+public final class ISOCompiledFieldPackager extends ISOFieldPackager {
+    static final int STRING   = 0;
+    static final int BINARY   = 1;
+
+    static final int ASCII    = 0;
+    static final int LITERAL  = 1;
+    static final int EBCDIC   = 2;
+    static final int BCD      = 3;
+
+    static final int P_NONE   = 0;
+    static final int P_ASCII  = 1;
+    static final int P_BCD    = 2;
+    static final int P_BINARY = 3;
+    static final int P_EBCDIC = 4;
+
+    static final int PAD_NONE  = 0;
+    static final int PAD_LEFT  = 1;
+    static final int PAD_RIGHT = 2;
+
+    private static final byte[] EBCDIC_DIGITS = {
+        (byte)0xF0, (byte)0xF1, (byte)0xF2, (byte)0xF3, (byte)0xF4,
+        (byte)0xF5, (byte)0xF6, (byte)0xF7, (byte)0xF8, (byte)0xF9
+    };
+
+    private final ISOFieldPackager fp;
+    private final int type;
+    private final int interpreter;
+    private final boolean bcdLeftPadded;
+    private final boolean bcdFPadded;
+    private final int prefixer;
+    private final int lenLen;
+    private final int padder;
+    private final char padChar;
+
+    private ISOCompiledFieldPackager (ISOFieldPackager fp, int type,
+        int interpreter, boolean bcdLeftPadded, boolean bcdFPadded,
+        int prefixer, int lenLen, int padder, char padChar)
+    {
+        super (fp.getLength(), fp.getDescription());
+        this.pad = fp.pad;
+        this.fp = fp;
+        this.type = type;
+        this.interpreter = interpreter;
+        this.bcdLeftPadded = bcdLeftPadded;
+        this.bcdFPadded = bcdFPadded;
+        this.prefixer = prefixer;
+        this.lenLen = lenLen;
+        this.padder = padder;
+        this.padChar = padChar;
+    }
+
+    /**
+     * @param fp field packager
+     * @return compiled field packager, or fp itself if it can't be compiled
+     */
+    public static ISOFieldPackager compile (ISOFieldPackager fp) {
+        if (fp instanceof ISOStringFieldPackager
+          && !overrides (fp.getClass(), ISOStringFieldPackager.class))
+        {
+            ISOStringFieldPackager sfp = (ISOStringFieldPackager) fp;
+            Interpreter i = sfp.getInterpreter();
+            Padder p = sfp.getPadder();
+            int interp, pad;
+            char padChar = ' ';
+            if (i == AsciiInterpreter.INSTANCE)
+                interp = ASCII;
+            else if (i == LiteralInterpreter.INSTANCE)
+                interp = LITERAL;
+            else if (i == EbcdicInterpreter.INSTANCE)
+                interp = EBCDIC;
+            else if (i instanceof BCDInterpreter && i.getClass() == BCDInterpreter.class)
+                interp = BCD;
+            else
+                return fp;
+
+            if (p == NullPadder.INSTANCE)
+                pad = PAD_NONE;
+            else if (p != null && p.getClass() == LeftPadder.class) {
+                pad = PAD_LEFT;
+                padChar = ((LeftPadder) p).getPad();
+            } else if (p != null && (p.getClass() == RightPadder.class || p.getClass() == RightTPadder.class)) {
+                // data longer than the field is rejected before padding,
+                // so RightTPadder never gets to truncate
+                pad = PAD_RIGHT;
+                padChar = ((RightPadder) p).getPad();
+            } else
+                return fp;
+            int prefix = prefixer (sfp.getPrefixer());
+            if (prefix < 0)
+                return fp;
+            return new ISOCompiledFieldPackager (fp, STRING, interp,
+                i == BCDInterpreter.LEFT_PADDED || i == BCDInterpreter.LEFT_PADDED_F,
+                i == BCDInterpreter.LEFT_PADDED_F || i == BCDInterpreter.RIGHT_PADDED_F,
+                prefix, sfp.getPrefixer().getPackedLength(), pad, padChar
+            );
+        }
+        if (fp instanceof ISOBinaryFieldPackager
+          && !overrides (fp.getClass(), ISOBinaryFieldPackager.class))
+        {
+            ISOBinaryFieldPackager bfp = (ISOBinaryFieldPackager) fp;
+            int prefix = prefixer (bfp.getPrefixer());
+            if (bfp.getInterpreter() != LiteralBinaryInterpreter.INSTANCE || prefix < 0)
+                return fp;
+            return new ISOCompiledFieldPackager (fp, BINARY, LITERAL,
+                false, false, prefix, bfp.getPrefixer().getPackedLength(), PAD_NONE, ' '
+            );
+        }
+        return fp;
+    }
+
+    /**
+     * Compiles an array of field packagers.
+     * @param fld field packagers (may contain nulls)
+     * @return new array with compiled field packagers
+     */
+    public static ISOFieldPackager[] compile (ISOFieldPackager[] fld) {
+        ISOFieldPackager[] f = new ISOFieldPackager[fld.length];
+        for (int i=0; i<fld.length; i++)
+            f[i] = fld[i] != null ? compile (fld[i]) : null;
+        return f;
+    }
+
+    /**
+     * @return the original (interpreted) field packager
+     */
+    public ISOFieldPackager getFieldPackager() {
+        return fp;
+    }
+
+    private static int prefixer (Prefixer p) {
+        if (p == NullPrefixer.INSTANCE)
+            return P_NONE;
+        if (p == null)
+            return -1;
+        if (p.getClass() == AsciiPrefixer.class)
+            return P_ASCII;
+        if (p.getClass() == BcdPrefixer.class)
+            return P_BCD;
+        if (p.getClass() == BinaryPrefixer.class)
+            return P_BINARY;
+        if (p.getClass() == EbcdicPrefixer.class)
+            return P_EBCDIC;
+        return -1;
+    }
+
+    private static boolean overrides (Class<?> c, Class<?> base) {
+        try {
+            return
+                c.getMethod ("pack", ISOComponent.class).getDeclaringClass() != base
+             || c.getMethod ("pack", ISOComponent.class, ByteBuffer.class).getDeclaringClass() != base
+             || c.getMethod ("unpack", ISOComponent.class, byte[].class, int.class).getDeclaringClass() != base
+             || c.getMethod ("getPackedLength", byte[].class, int.class).getDeclaringClass() != base
+             || c.getMethod ("getMaxPackedLength").getDeclaringClass() != base;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    public ISOComponent createComponent (int fieldNumber) {
+        return fp.createComponent (fieldNumber);
+    }
+
+    public int getMaxPackedLength() {
+        return lenLen + packedLength (getLength());
+    }
+
+    public byte[] pack (ISOComponent c) throws ISOException {
+        byte[] b;
+        try {
+            if (type == BINARY) {
+                byte[] data = binaryData (c);
+                b = new byte[lenLen + data.length];
+                encodeLength (data.length, b, 0);
+                System.arraycopy (data, 0, b, lenLen, data.length);
+                return b;
+            }
+            String data = stringData (c);
+            int len = paddedLength (data);
+            b = new byte[lenLen + packedLength (len)];
+            encodeLength (len, b, 0);
+            if (interpret (data, len, b, lenLen))
+                return b;
+        } catch (Exception e) {
+            throw new ISOException (makeExceptionMessage (c, "packing"), e);
+        }
+        return fp.pack (c);
+    }
+
+    public int pack (ISOComponent c, ByteBuffer buf) throws ISOException {
+        if (!buf.hasArray())
+            return super.pack (c, buf);
+        try {
+            byte[] b = buf.array();
+            int offset = buf.arrayOffset() + buf.position();
+            int packedLen;
+            if (type == BINARY) {
+                byte[] data = binaryData (c);
+                packedLen = lenLen + data.length;
+                checkRemaining (packedLen, buf);
+                encodeLength (data.length, b, offset);
+                System.arraycopy (data, 0, b, offset + lenLen, data.length);
+            } else {
+                String data = stringData (c);
+                int len = paddedLength (data);
+                packedLen = lenLen + packedLength (len);
+                checkRemaining (packedLen, buf);
+                if (interpreter == BCD)
+                    Arrays.fill (b, offset, offset + packedLen, (byte) 0); // str2bcd ORs nibbles
+                encodeLength (len, b, offset);
+                if (!interpret (data, len, b, offset + lenLen))
+                    packedLen = -1;
+            }
+            if (packedLen >= 0) {
+                buf.position (buf.position() + packedLen);
+                return packedLen;
+            }
+        } catch (Exception e) {
+            throw new ISOException (makeExceptionMessage (c, "packing"), e);
+        }
+        return fp.pack (c, buf);
+    }
+
+    public int unpack (ISOComponent c, byte[] b, int offset) throws ISOException {
+        try {
+            int len = decodeLength (b, offset);
+            int start = offset + lenLen;
+            if (type == BINARY) {
+                byte[] value = new byte[len];
+                System.arraycopy (b, start, value, 0, len);
+                c.setValue (value);
+                return lenLen + len;
+            }
+            c.setValue (uninterpret (b, start, len));
+            return lenLen + packedLength (len);
+        } catch (Exception e) {
+            throw new ISOException (makeExceptionMessage (c, "unpacking"), e);
+        }
+    }
+
+    public int getPackedLength (byte[] b, int offset) throws ISOException {
+        return lenLen + packedLength (decodeLength (b, offset));
+    }
+
+    public void unpack (ISOComponent c, InputStream in)
+        throws IOException, ISOException
+    {
+        fp.unpack (c, in);
+    }
+
+    private String stringData (ISOComponent c)
+        throws ISOException, UnsupportedEncodingException
+    {
+        String data;
+        if (c.getValue() instanceof byte[])
+            data = new String (c.getBytes(), ISOUtil.ENCODING); // transparent handling of complex fields
+        else
+            data = (String) c.getValue();
+        if (data.length() > getLength())
+            throw new ISOException ("Field length " + data.length() + " too long. Max: " + getLength());
+        return data;
+    }
+
+    private byte[] binaryData (ISOComponent c) throws ISOException {
+        byte[] data = c.getBytes();
+        if (lenLen == 0 && data.length != getLength()) {
+            throw new ISOException (
+              "Binary data length not the same as the packager length (" + data.length + "/" + getLength() + ")"
+            );
+        }
+        return data;
+    }
+
+    private int paddedLength (String data) {
+        return padder == PAD_NONE ? data.length() : getLength();
+    }
+
+    private int packedLength (int len) {
+        return interpreter == BCD ? (len + 1) / 2 : len;
+    }
+
+    private static void checkRemaining (int packedLen, ByteBuffer buf) throws ISOException {
+        if (packedLen > buf.remaining())
+            throw new ISOException ("Buffer overflow (" + packedLen + "/" + buf.remaining() + ")");
+    }
+
+    /**
+     * writes the (padded) data at b[offset]
+     * @return false if data can't be handled here (non ISO-8859-1 chars)
+     */
+    private boolean interpret (String data, int len, byte[] b, int offset) {
+        int padLen = len - data.length();
+        int dataLen = data.length();
+        switch (interpreter) {
+            case ASCII:
+            case LITERAL:
+                int i = offset;
+                if (padder == PAD_LEFT)
+                    for (int n=0; n<padLen; n++)
+                        b[i++] = (byte) padChar;
+                for (int n=0; n<dataLen; n++) {
+                    char ch = data.charAt (n);
+                    if (ch > 0xFF)
+                        return false;
+                    b[i++] = (byte) ch;
+                }
+                if (padder == PAD_RIGHT)
+                    for (int n=0; n<padLen; n++)
+                        b[i++] = (byte) padChar;
+                break;
+            case EBCDIC:
+                ISOUtil.asciiToEbcdic (pad (data, padLen), b, offset);
+                break;
+            case BCD:
+                String s = pad (data, padLen);
+                ISOUtil.str2bcd (s, bcdLeftPadded, b, offset);
+                if (bcdFPadded && len % 2 == 1) {
+                    if (bcdLeftPadded)
+                        b[offset] |= (byte) 0xF0;
+                    else
+                        b[offset + (len >> 1)] |= (byte) 0x0F;
+                }
+                break;
+        }
+        return true;
+    }
+
+    private String pad (String data, int padLen) {
+        if (padLen <= 0 || padder == PAD_NONE)
+            return data;
+        char[] c = new char[data.length() + padLen];
+        if (padder == PAD_LEFT) {
+            Arrays.fill (c, 0, padLen, padChar);
+            data.getChars (0, data.length(), c, padLen);
+        } else {
+            data.getChars (0, data.length(), c, 0);
+            Arrays.fill (c, data.length(), c.length, padChar);
+        }
+        return new String (c);
+    }
+
+    private String uninterpret (byte[] b, int offset, int len)
+        throws UnsupportedEncodingException
+    {
+        switch (interpreter) {
+            case ASCII:
+                if (len > b.length - offset) {
+                    throw new RuntimeException(
+                      String.format("Required %d but just got %d bytes", len, b.length-offset)
+                    );
+                }
+                return new String (b, offset, len, ISOUtil.ENCODING);
+            case EBCDIC:
+                return ISOUtil.ebcdicToAscii (b, offset, len);
+            case BCD:
+                return ISOUtil.bcd2str (b, offset, len, bcdLeftPadded);
+            default:
+                return new String (b, offset, len, ISOUtil.ENCODING);
+        }
+    }
+
+    private void encodeLength (int len, byte[] b, int offset) throws ISOException {
+        switch (prefixer) {
+            case P_ASCII:
+                int n = len;
+                for (int i = lenLen - 1; i >= 0; i--) {
+                    b[offset + i] = (byte)(n % 10 + '0');
+                    n /= 10;
+                }
+                if (n != 0)
+                    throw new ISOException("invalid len "+ len + ". Prefixing digits = " + lenLen);
+                break;
+            case P_BCD:
+                for (int i = lenLen - 1; i >= 0; i--) {
+                    int twoDigits = len % 100;
+                    len /= 100;
+                    b[offset + i] = (byte)(((twoDigits / 10) << 4) + twoDigits % 10);
+                }
+                break;
+            case P_BINARY:
+                for (int i = lenLen - 1; i >= 0; i--) {
+                    b[offset + i] = (byte)(len & 0xFF);
+                    len >>= 8;
+                }
+                break;
+            case P_EBCDIC:
+                for (int i = lenLen - 1; i >= 0; i--) {
+                    b[offset + i] = EBCDIC_DIGITS[len % 10];
+                    len /= 10;
+                }
+                break;
+        }
+    }
+
+    private int decodeLength (byte[] b, int offset) throws ISOException {
+        int len = 0;
+        switch (prefixer) {
+            case P_NONE:
+                return getLength();
+            case P_ASCII:
+                for (int i = 0; i < lenLen; i++)
+                    len = len * 10 + b[offset + i] - (byte)'0';
+                break;
+            case P_BCD:
+                for (int i = 0; i < lenLen; i++)
+                    len = 100 * len + ((b[offset + i] & 0xF0) >> 4) * 10 + ((b[offset + i] & 0x0F));
+                break;
+            case P_BINARY:
+                for (int i = 0; i < lenLen; i++)
+                    len = 256 * len + (b[offset + i] & 0xFF);
+                break;
+            case P_EBCDIC:
+                for (int i = 0; i < lenLen; i++)
+                    len = len * 10 + (b[offset + i] & 0x0F);
+                break;
+        }
+        if (getLength() > 0 && len > getLength())
+            throw new ISOException("Field length " + len + " too long. Max: " + getLength());
+        return len;
+    }
+
+    /** same messages as the interpreted packager */
+    private String makeExceptionMessage (ISOComponent c, String operation) {
+        Object fieldKey = "unknown";
+        if (c != null) {
+            try {
+                fieldKey = c.getKey();
+            } catch (Exception ignore) {
+            }
+        }
+        return fp.getClass().getName() + ": Problem " + operation + " field " + fieldKey;
+    }
+}
@@ -22,6 +22,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
 
 /**
  * base class for the various IF*.java Field Packagers
@@ -108,6 +109,64 @@ public abstract class ISOFieldPackager {
      */
     public abstract byte[] pack (ISOComponent c) throws ISOException;
 
+    /**
+     * Packs a component at the buffer's current position.
+     *
+     * The default implementation delegates to {@link #pack(ISOComponent)};
+     * field packagers able to write their image in place override it.
+     *
+     * @param c - a component
+     * @param buf - destination buffer (position gets advanced)
+     * @return number of bytes written
+     * @exception ISOException on error or if buf has not enough room
+     */
+    public int pack (ISOComponent c, ByteBuffer buf) throws ISOException {
+        byte[] b = pack (c);
+        if (b.length > buf.remaining())
+            throw new ISOException (
+                "buffer overflow packing field " + c.getKey()
+                + " (" + b.length + "/" + buf.remaining() + ")"
+            );
+        buf.put (b);
+        return b.length;
+    }
+
+    /**
+     * Writes a length prefix at the given offset.
+     *
+     * jPOS' own prefixers write in place; any other {@link Prefixer}
+     * encodes into a scratch array that gets copied to <code>b</code>.
+     *
+     * @param prefixer - length prefixer
+     * @param length - length to encode
+     * @param b - destination array
+     * @param offset - starting offset within <code>b</code>
+     * @exception ISOException
+     */
+    protected static void encodeLength
+        (Prefixer prefixer, int length, byte[] b, int offset) throws ISOException
+    {
+        Class<?> c = prefixer.getClass();
+        if (c == AsciiPrefixer.class)
+            ((AsciiPrefixer) prefixer).encodeLength (length, b, offset);
+        else if (c == BcdPrefixer.class)
+            ((BcdPrefixer) prefixer).encodeLength (length, b, offset);
+        else if (c == BinaryPrefixer.class)
+            ((BinaryPrefixer) prefixer).encodeLength (length, b, offset);
+        else if (c == EbcdicPrefixer.class)
+            ((EbcdicPrefixer) prefixer).encodeLength (length, b, offset);
+        else if (c == HexNibblesPrefixer.class)
+            ((HexNibblesPrefixer) prefixer).encodeLength (length, b, offset);
+        else if (c != NullPrefixer.class) {
+            int lenLen = prefixer.getPackedLength();
+            if (lenLen > 0) {
+                byte[] l = new byte[lenLen];
+                prefixer.encodeLength (length, l);
+                System.arraycopy (l, 0, b, offset, lenLen);
+            }
+        }
+    }
+
     /**
      * @param c - the Component to unpack
      * @param b - binary image
@@ -118,6 +177,20 @@ public abstract class ISOFieldPackager {
     public abstract int unpack (ISOComponent c, byte[] b, int offset)
         throws ISOException;
 
+    /**
+     * Computes the number of bytes taken by a packed field without
+     * actually decoding it (used by lazy unpacking).
+     *
+     * @param b - binary image
+     * @param offset - starting offset within the binary image
+     * @return field's packed length, or -1 if it can't be known
+     *         without unpacking the field
+     * @exception ISOException on invalid length
+     */
+    public int getPackedLength (byte[] b, int offset) throws ISOException {
+        return -1;
+    }
+
     /**
      * @param c  - the Component to unpack
      * @param in - input stream
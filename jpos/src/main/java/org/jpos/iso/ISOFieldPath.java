@@ -0,0 +1,117 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pre-parsed dot-separated field path (i.e. 127.2 or 63.2.3).
+ *
+ * <pre>
+ *   static final ISOFieldPath F127_2 = ISOFieldPath.valueOf ("127.2");
+ *   ...
+ *   String s = m.getString (F127_2);
+ * </pre>
+ *
+ * Instances are immutable and can be shared among threads.
+ * {@link #valueOf(String)} keeps an intern table so that
+ * the string based ISOMsg methods parse a given path only once.
+ *
+ * @see ISOMsg
+ */
+public final class ISOFieldPath {
+    static final int MAX_INTERNED = 4096;
+    private static final ConcurrentMap<String,ISOFieldPath> interned =
+        new ConcurrentHashMap<String,ISOFieldPath>();
+
+    private final String fpath;
+    private final int[] path;
+
+    private ISOFieldPath (String fpath) {
+        StringTokenizer st = new StringTokenizer (fpath, ".");
+        int[] p = new int[st.countTokens()];
+        for (int i=0; i<p.length; i++)
+            p[i] = Integer.parseInt (st.nextToken());
+        if (p.length == 0)
+            throw new IllegalArgumentException ("Invalid path '" + fpath + "'");
+        this.fpath = fpath;
+        this.path = p;
+    }
+
+    /**
+     * @param fpath dot-separated field path (i.e. 63.2)
+     * @return compiled field path (interned)
+     * @throws NumberFormatException if a path element is not a number
+     * @throws IllegalArgumentException if the path is empty
+     */
+    public static ISOFieldPath valueOf (String fpath) {
+        ISOFieldPath p = interned.get (fpath);
+        if (p == null) {
+            p = new ISOFieldPath (fpath);
+            if (interned.size() < MAX_INTERNED) {
+                ISOFieldPath q = interned.putIfAbsent (fpath, p);
+                if (q != null)
+                    p = q;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return number of path elements
+     */
+    public int length() {
+        return path.length;
+    }
+
+    /**
+     * @param index path element index
+     * @return field number at the given index
+     */
+    public int getFieldNumber (int index) {
+        return path[index];
+    }
+
+    /**
+     * @return last field number in the path
+     */
+    public int getLastFieldNumber() {
+        return path[path.length-1];
+    }
+
+    @Override
+    public boolean equals (Object o) {
+        if (this == o)
+            return true;
+        return o instanceof ISOFieldPath && Arrays.equals (path, ((ISOFieldPath) o).path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode (path);
+    }
+
+    @Override
+    public String toString() {
+        return fpath;
+    }
+}
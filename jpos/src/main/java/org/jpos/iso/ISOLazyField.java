@@ -0,0 +1,102 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * Placeholder <b>Leaf</b> used by lazy unpacking.
+ *
+ * Holds a reference to the original wire image and the offset
+ * where the field starts; the field is decoded by its field packager
+ * the first time its value is requested. ISOMsg replaces it by the
+ * decoded component on first access, so it is never exposed outside
+ * this package.
+ *
+ * @see ISOBasePackager#setLazyUnpack
+ */
+class ISOLazyField extends ISOComponent {
+    private int fieldNumber;
+    private ISOFieldPackager fp;
+    private byte[] image;
+    private int offset;
+    private ISOComponent c;
+
+    /**
+     * @param fieldNumber - the field number
+     * @param fp - packager used to decode this field
+     * @param image - wire image (must not be modified by the caller)
+     * @param offset - field's starting offset within image
+     */
+    ISOLazyField (int fieldNumber, ISOFieldPackager fp, byte[] image, int offset) {
+        this.fieldNumber = fieldNumber;
+        this.fp = fp;
+        this.image = image;
+        this.offset = offset;
+    }
+    /**
+     * decodes the field (once)
+     * @return the decoded component
+     * @exception ISOException on unpack error
+     */
+    synchronized ISOComponent resolve() throws ISOException {
+        if (c == null) {
+            ISOComponent comp = fp.createComponent (fieldNumber);
+            fp.unpack (comp, image, offset);
+            c = comp;
+            image = null;  // let the wire image go
+        }
+        return c;
+    }
+    public Object getKey() {
+        return fieldNumber;
+    }
+    public Object getValue() throws ISOException {
+        return resolve().getValue();
+    }
+    public byte[] getBytes() throws ISOException {
+        return resolve().getBytes();
+    }
+    public void setValue (Object obj) throws ISOException {
+        resolve().setValue (obj);
+    }
+    public void setFieldNumber (int fieldNumber) {
+        this.fieldNumber = fieldNumber;
+        if (c != null)
+            c.setFieldNumber (fieldNumber);
+    }
+    public byte[] pack() throws ISOException {
+        throw new ISOException ("Not available on Leaf");
+    }
+    public int unpack (byte[] b) throws ISOException {
+        throw new ISOException ("Not available on Leaf");
+    }
+    public void unpack (InputStream in) throws ISOException {
+        throw new ISOException ("Not available on Leaf");
+    }
+    public void dump (PrintStream p, String indent) {
+        try {
+            resolve().dump (p, indent);
+        } catch (ISOException e) {
+            p.println (indent + "<!-- error unpacking field " + fieldNumber
+              + ": " + e.getMessage() + " -->");
+        }
+    }
+}
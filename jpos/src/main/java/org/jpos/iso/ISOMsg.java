@@ -50,18 +50,55 @@ public class ISOMsg extends ISOComponent
     public static final int OUTGOING = 2;
     private static final long serialVersionUID = 4306251831901413975L;
     private WeakReference sourceRef;
+    private static volatile boolean denseStorage =
+        Boolean.getBoolean ("jpos.iso.msg.dense");
 
     /**
      * Creates an ISOMsg
      */
     public ISOMsg () {
-        fields = new TreeMap<Integer,Object>();
+        fields = createFields();
         maxField = -1;
         dirty = true;
         maxFieldDirty=true;
         direction = 0;
         header = null;
     }
+    /**
+     * Selects the field storage used by messages created from now on.
+     * The default is a TreeMap; dense storage ({@link DenseFieldMap}) is
+     * faster but {@link #getChildren()} no longer returns a TreeMap.
+     * Can also be enabled with -Djpos.iso.msg.dense=true
+     * @param dense true to use {@link DenseFieldMap}
+     */
+    public static void setDenseStorage (boolean dense) {
+        denseStorage = dense;
+    }
+    /**
+     * @return true if new messages use {@link DenseFieldMap}
+     */
+    public static boolean isDenseStorage () {
+        return denseStorage;
+    }
+    private static Map<Integer,Object> createFields() {
+        return denseStorage ?
+          new DenseFieldMap() : new TreeMap<Integer,Object>();
+    }
+    /**
+     * Clears this message so it can be reused, see {@link ISOMsgPool}
+     */
+    void reset () {
+        synchronized (this) {
+            fields.clear();
+            maxField = -1;
+            dirty = true;
+            maxFieldDirty = true;
+            direction = 0;
+            header = null;
+            packager = null;
+            sourceRef = null;
+        }
+    }
     /**
      * Creates a nested ISOMsg
      * @param fieldNumber (in the outter ISOMsg) of this nested message
@@ -155,6 +192,11 @@ public class ISOMsg extends ISOComponent
         return maxField;
     }
     private void recalcMaxField() {
+        if (fields instanceof DenseFieldMap) {
+            maxField = Math.max (0, ((DenseFieldMap) fields).getMaxField());
+            maxFieldDirty = false;
+            return;
+        }
         maxField = 0;
         for (Object obj : fields.keySet()) {
             if (obj instanceof Integer)
@@ -221,11 +263,21 @@ public class ISOMsg extends ISOComponent
     * @throws ISOException on error
     */
     public void set (String fpath, String value) throws ISOException {
-        StringTokenizer st = new StringTokenizer (fpath, ".");
+        set (ISOFieldPath.valueOf (fpath), value);
+    }
+
+   /**
+    * Creates an ISOField associated with fldno within this ISOMsg
+    * @param fpath compiled field path
+    * @param value field value
+    * @throws ISOException on error
+    */
+    public void set (ISOFieldPath fpath, String value) throws ISOException {
         ISOMsg m = this;
-        for (;;) {
-            int fldno = Integer.parseInt(st.nextToken());
-            if (st.hasMoreTokens()) {
+        int last = fpath.length() - 1;
+        for (int i=0; ; i++) {
+            int fldno = fpath.getFieldNumber(i);
+            if (i < last) {
                 Object obj = m.getValue(fldno);
                 if (obj instanceof ISOMsg)
                     m = (ISOMsg) obj;
@@ -254,11 +306,21 @@ public class ISOMsg extends ISOComponent
      * @throws ISOException on error
      */
      public void set (String fpath, ISOComponent c) throws ISOException {
-         StringTokenizer st = new StringTokenizer (fpath, ".");
+         set (ISOFieldPath.valueOf (fpath), c);
+     }
+
+    /**
+     * Creates an ISOField associated with fldno within this ISOMsg
+     * @param fpath compiled field path
+     * @param c component
+     * @throws ISOException on error
+     */
+     public void set (ISOFieldPath fpath, ISOComponent c) throws ISOException {
          ISOMsg m = this;
-         for (;;) {
-             int fldno = Integer.parseInt(st.nextToken());
-             if (st.hasMoreTokens()) {
+         int last = fpath.length() - 1;
+         for (int i=0; ; i++) {
+             int fldno = fpath.getFieldNumber(i);
+             if (i < last) {
                  Object obj = m.getValue(fldno);
                  if (obj instanceof ISOMsg)
                      m = (ISOMsg) obj;
@@ -288,11 +350,21 @@ public class ISOMsg extends ISOComponent
     * @throws ISOException on error
     */
     public void set (String fpath, byte[] value) throws ISOException {
-        StringTokenizer st = new StringTokenizer (fpath, ".");
+        set (ISOFieldPath.valueOf (fpath), value);
+    }
+
+   /**
+    * Creates an ISOBinaryField associated with fldno within this ISOMsg
+    * @param fpath compiled field path
+    * @param value binary field value
+    * @throws ISOException on error
+    */
+    public void set (ISOFieldPath fpath, byte[] value) throws ISOException {
         ISOMsg m = this;
-        for (;;) {
-            int fldno = Integer.parseInt(st.nextToken());
-            if (st.hasMoreTokens()) {
+        int last = fpath.length() - 1;
+        for (int i=0; ; i++) {
+            int fldno = fpath.getFieldNumber(i);
+            if (i < last) {
                 Object obj = m.getValue(fldno);
                 if (obj instanceof ISOMsg)
                     m = (ISOMsg) obj;
@@ -340,15 +412,23 @@ public class ISOMsg extends ISOComponent
      * @throws ISOException on error
     */
     public void unset (String fpath) throws ISOException {
-        StringTokenizer st = new StringTokenizer (fpath, ".");
+        unset (ISOFieldPath.valueOf (fpath));
+    }
+    /**
+     * Unset a field referenced by a fpath if it exists, otherwise ignore.
+     * @param fpath compiled field path
+     * @throws ISOException on error
+    */
+    public void unset (ISOFieldPath fpath) throws ISOException {
         ISOMsg m = this;
         ISOMsg lastm = m;
         int fldno = -1 ;
         int lastfldno ;
-        for (;;) {
+        int last = fpath.length() - 1;
+        for (int i=0; ; i++) {
             lastfldno = fldno;
-            fldno = Integer.parseInt(st.nextToken());
-            if (st.hasMoreTokens()) {
+            fldno = fpath.getFieldNumber(i);
+            if (i < last) {
                 Object obj = m.getValue(fldno);
                 if (obj instanceof ISOMsg) {
                     lastm = m;
@@ -387,18 +467,33 @@ public class ISOMsg extends ISOComponent
 
         int mf = Math.min (getMaxField(), 192);
 
-        BitSet bmap = new BitSet (((mf+62)>>6)<<6);
-        for (int i=1; i<=mf; i++)
-            if ((fields.get (i)) != null)
-                bmap.set (i);
-        set (new ISOBitMap (-1, bmap));
+        if (fields instanceof DenseFieldMap) {
+            // no BitSet involved, bitmap packagers work on the words
+            set (new ISOBitMap (-1,
+                ((DenseFieldMap) fields).getBitmapWords(), ((mf+62)>>6)<<6));
+        } else {
+            BitSet bmap = new BitSet (((mf+62)>>6)<<6);
+            for (int i=1; i<=mf; i++)
+                if ((fields.get (i)) != null)
+                    bmap.set (i);
+            set (new ISOBitMap (-1, bmap));
+        }
         dirty = false;
     }
     /**
      * clone fields
      */
     public Map getChildren() {
-        return (Map) ((TreeMap)fields).clone();
+        resolveLazyFields();
+        return cloneFields();
+    }
+    @SuppressWarnings("unchecked")
+    private Map<Integer,Object> cloneFields() {
+        if (fields instanceof DenseFieldMap)
+            return ((DenseFieldMap) fields).clone();
+        if (fields instanceof TreeMap)
+            return (Map<Integer,Object>) ((TreeMap) fields).clone();
+        return new TreeMap<Integer,Object> (fields);
     }
     /**
      * pack the message with the current packager
@@ -461,7 +556,7 @@ public class ISOMsg extends ISOComponent
             ((Loggeable) header).dump (p, newIndent);
 
         for (int i=0; i<=maxField; i++) {
-            if ((c = (ISOComponent) fields.get (i)) != null)
+            if ((c = getComponent (i)) != null)
                 c.dump (p, newIndent);
             //
             // Uncomment to include bitmaps within logs
@@ -481,7 +576,37 @@ public class ISOMsg extends ISOComponent
      * @return the Component
      */
     public ISOComponent getComponent(int fldno) {
-        return (ISOComponent) fields.get(fldno);
+        Object obj = fields instanceof DenseFieldMap ?
+          ((DenseFieldMap) fields).get (fldno) : fields.get (fldno);
+        if (obj instanceof ISOLazyField)
+            return resolve (fldno, (ISOLazyField) obj);
+        return (ISOComponent) obj;
+    }
+    /**
+     * replaces a lazily unpacked field by its decoded component
+     * (if the field can't be decoded, the placeholder stays in place
+     * and will report the error on access)
+     */
+    private ISOComponent resolve (int fldno, ISOLazyField lf) {
+        try {
+            ISOComponent c = lf.resolve();
+            fields.put (fldno, c);
+            return c;
+        } catch (ISOException e) {
+            return lf;
+        }
+    }
+    @SuppressWarnings("PMD.EmptyCatchBlock")
+    private void resolveLazyFields () {
+        for (Map.Entry<Integer,Object> entry : fields.entrySet()) {
+            if (entry.getValue() instanceof ISOLazyField) {
+                try {
+                    entry.setValue (((ISOLazyField) entry.getValue()).resolve());
+                } catch (ISOException ignored) {
+                    // placeholder stays, error reported on access
+                }
+            }
+        }
     }
     /**
      * Return the object value associated with the given field number
@@ -500,13 +625,22 @@ public class ISOMsg extends ISOComponent
      * @throws ISOException on error
      */
     public Object getValue (String fpath) throws ISOException {
-        StringTokenizer st = new StringTokenizer (fpath, ".");
+        return getValue (ISOFieldPath.valueOf (fpath));
+    }
+    /**
+     * Return the object value associated with the given field path
+     * @param fpath compiled field path
+     * @return the field Object (may be null)
+     * @throws ISOException on error
+     */
+    public Object getValue (ISOFieldPath fpath) throws ISOException {
         ISOMsg m = this;
         Object obj;
-        for (;;) {
-            int fldno = Integer.parseInt(st.nextToken());
+        int last = fpath.length() - 1;
+        for (int i=0; ; i++) {
+            int fldno = fpath.getFieldNumber(i);
             obj = m.getValue (fldno);
-            if (st.hasMoreTokens()) {
+            if (i < last) {
                 if (obj instanceof ISOMsg) {
                     m = (ISOMsg) obj;
                 }
@@ -524,13 +658,22 @@ public class ISOMsg extends ISOComponent
      * @throws ISOException on error
      */
     public ISOComponent getComponent (String fpath) throws ISOException {
-        StringTokenizer st = new StringTokenizer (fpath, ".");
+        return getComponent (ISOFieldPath.valueOf (fpath));
+    }
+    /**
+     * get the component associated with the given field path
+     * @param fpath compiled field path
+     * @return the Component
+     * @throws ISOException on error
+     */
+    public ISOComponent getComponent (ISOFieldPath fpath) throws ISOException {
         ISOMsg m = this;
         ISOComponent obj;
-        for (;;) {
-            int fldno = Integer.parseInt(st.nextToken());
+        int last = fpath.length() - 1;
+        for (int i=0; ; i++) {
+            int fldno = fpath.getFieldNumber(i);
             obj = m.getComponent(fldno);
-            if (st.hasMoreTokens()) {
+            if (i < last) {
                 if (obj instanceof ISOMsg) {
                     m = (ISOMsg) obj;
                 }
@@ -567,6 +710,14 @@ public class ISOMsg extends ISOComponent
      * @return field's String value (may be null)
      */
     public String getString (String fpath) {
+        return getString (ISOFieldPath.valueOf (fpath));
+    }
+    /**
+     * Return the String value associated with the given field path
+     * @param fpath compiled field path
+     * @return field's String value (may be null)
+     */
+    public String getString (ISOFieldPath fpath) {
         String s = null;
         try {
             Object obj = getValue(fpath);
@@ -607,6 +758,14 @@ public class ISOMsg extends ISOComponent
      * @return field's byte[] value (may be null)
      */
     public byte[] getBytes (String fpath) {
+        return getBytes (ISOFieldPath.valueOf (fpath));
+    }
+    /**
+     * Return the byte[] value associated with the given field path
+     * @param fpath compiled field path
+     * @return field's byte[] value (may be null)
+     */
+    public byte[] getBytes (ISOFieldPath fpath) {
         byte[] b = null;
         try {
             Object obj = getValue(fpath);
@@ -627,6 +786,8 @@ public class ISOMsg extends ISOComponent
      * @return boolean indicating the existence of the field
      */
     public boolean hasField(int fldno) {
+        if (fields instanceof DenseFieldMap)
+            return ((DenseFieldMap) fields).get (fldno) != null;
         return fields.get(fldno) != null;
     }
     /**
@@ -647,11 +808,20 @@ public class ISOMsg extends ISOComponent
      * @throws ISOException on error
      */
      public boolean hasField (String fpath) throws ISOException {
-         StringTokenizer st = new StringTokenizer (fpath, ".");
+         return hasField (ISOFieldPath.valueOf (fpath));
+     }
+    /**
+     * Check if a field indicated by a compiled fpath is present
+     * @param fpath compiled field path
+     * @return true if field present
+     * @throws ISOException on error
+     */
+     public boolean hasField (ISOFieldPath fpath) throws ISOException {
          ISOMsg m = this;
-         for (;;) {
-             int fldno = Integer.parseInt(st.nextToken());
-             if (st.hasMoreTokens()) {
+         int last = fpath.length() - 1;
+         for (int i=0; ; i++) {
+             int fldno = fpath.getFieldNumber(i);
+             if (i < last) {
                  Object obj = m.getValue(fldno);
                  if (obj instanceof ISOMsg) {
                      m = (ISOMsg) obj;
@@ -685,7 +855,7 @@ public class ISOMsg extends ISOComponent
     public Object clone() {
         try {
             ISOMsg m = (ISOMsg) super.clone();
-            m.fields = (TreeMap) ((TreeMap) fields).clone();
+            m.fields = cloneFields();
             if (header != null)
                 m.header = (ISOHeader) header.clone();
 
@@ -709,7 +879,7 @@ public class ISOMsg extends ISOComponent
     public Object clone(int[] fields) {
         try {
             ISOMsg m = (ISOMsg) super.clone();
-            m.fields = new TreeMap();
+            m.fields = createFields();
             for (int field : fields) {
                 if (hasField(field)) {
                     try {
@@ -939,8 +1109,18 @@ public class ISOMsg extends ISOComponent
 
         // List keySet = new ArrayList (fields.keySet());
         // Collections.sort (keySet);
+        resolveLazyFields();
         for (Object o : fields.values()) {
             ISOComponent c = (ISOComponent) o;
+            if (c instanceof ISOLazyField) {
+                // couldn't be decoded, don't silently leave it out
+                ISOLazyField lazy = (ISOLazyField) c;
+                try {
+                    c = lazy.resolve();
+                } catch (ISOException e) {
+                    throw new IOException ("unable to unpack field " + lazy.getKey(), e);
+                }
+            }
             if (c instanceof ISOMsg) {
                 writeExternal(out, 'M', c);
             } else if (c instanceof ISOBinaryField) {
@@ -0,0 +1,103 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of ISOMsg instances a BaseChannel can recycle.
+ * <p>
+ * Recycling is strictly opt-in: a message goes back to the pool only when
+ * the application calls {@link BaseChannel#recycle(ISOMsg)} once it no
+ * longer holds any reference to it (nor to its fields), and only if
+ * {@link #accept(ISOMsg)} allows it. Override <code>accept</code> to
+ * implement a different recycling policy. A message that is already
+ * idle in the pool is not taken again, so recycling twice can't hand the
+ * same instance to two receivers.
+ *
+ * @see BaseChannel#setMessagePool(ISOMsgPool)
+ */
+public class ISOMsgPool {
+    private final ConcurrentLinkedQueue<ISOMsg> pool = new ConcurrentLinkedQueue<ISOMsg>();
+    private final Set<ISOMsg> idle =
+        Collections.synchronizedSet (Collections.newSetFromMap (new IdentityHashMap<ISOMsg,Boolean>()));
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxSize;
+
+    /**
+     * @param maxSize max number of idle messages kept
+     */
+    public ISOMsgPool (int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return a recycled (empty) message, or null if none available
+     */
+    public ISOMsg borrow () {
+        ISOMsg m = pool.poll();
+        if (m != null) {
+            idle.remove (m);
+            size.decrementAndGet();
+        }
+        return m;
+    }
+
+    /**
+     * Clears <code>m</code> and keeps it for reuse, provided
+     * it is accepted by the recycling policy, is not already pooled
+     * and the pool is not full.
+     * @param m message no longer in use
+     * @return true if the message was pooled
+     */
+    public boolean recycle (ISOMsg m) {
+        if (m == null || !accept (m) || !idle.add (m))
+            return false;
+        if (size.incrementAndGet() > maxSize) {
+            size.decrementAndGet();
+            idle.remove (m);
+            return false;
+        }
+        m.reset();
+        pool.offer (m);
+        return true;
+    }
+
+    /**
+     * Recycling policy. Default implementation accepts plain top level
+     * ISOMsg instances; subclasses (which may carry extra state) and
+     * inner messages are left to the GC.
+     * @param m candidate message
+     * @return true if <code>m</code> can be reused
+     */
+    protected boolean accept (ISOMsg m) {
+        return m.getClass() == ISOMsg.class && !m.isInner();
+    }
+
+    public int getIdleCount () {
+        return size.get();
+    }
+    public int getMaxSize () {
+        return maxSize;
+    }
+}
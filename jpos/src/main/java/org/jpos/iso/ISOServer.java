@@ -18,6 +18,7 @@
 
 package org.jpos.iso;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
@@ -29,21 +30,26 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EventObject;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.Semaphore;
 
 import org.jpos.core.Configurable;
 import org.jpos.core.Configuration;
 import org.jpos.core.ConfigurationException;
+import org.jpos.util.BlockingQueue;
 import org.jpos.util.LogEvent;
 import org.jpos.util.LogSource;
 import org.jpos.util.Loggeable;
@@ -51,6 +57,8 @@ import org.jpos.util.Logger;
 import org.jpos.util.NameRegistrar;
 import org.jpos.util.ThreadPool;
 
+import javax.net.ssl.SSLEngine;
+
 /**
  * Accept ServerChannel sessions and forwards them to ISORequestListeners
  * @author Alejandro P. Revilla
@@ -86,6 +94,14 @@ public class ISOServer extends Observable
     private ServerSocket serverSocket;
     private Map channels;
     protected boolean ignoreISOExceptions;
+    private boolean nio;
+    private int nioSelectors;
+    private int sslHandshakeThreads;
+    ThreadPool sslHandshakePool;
+    private int dispatchThreads;
+    private boolean dispatchOrdered;
+    private int maxInFlight;
+    ThreadPool dispatchPool;
     protected List<ISOServerEventListener> serverListeners = null;
 
    /**
@@ -150,18 +166,11 @@ public class ISOServer extends Observable
                     Logger.log (ev);
                 }
             }
+            Dispatcher dispatcher = createDispatcher (channel);
             try {
                 for (;;) {
                     try {
-                        ISOMsg m = channel.receive();
-                        lastTxn = System.currentTimeMillis();
-                        Iterator iter = listeners.iterator();
-                        while (iter.hasNext()) {
-                            if (((ISORequestListener)iter.next()).process
-                                (channel, m)) {
-                                break;
-                            }
-                        }
+                        dispatch (dispatcher, channel, channel.receive());
                     }
                     catch (ISOFilter.VetoException e) {
                         Logger.log (new LogEvent (this, "VetoException", e.getMessage()));
@@ -211,15 +220,160 @@ public class ISOServer extends Observable
         public void checkPermission (Socket socket, LogEvent evt)
             throws ISOException
         {
-            if (allow != null && allow.length > 0) {
-                String ip = socket.getInetAddress().getHostAddress ();
-                for (String element : allow) {
-                    if (ip.equals (element)) {
-                        evt.addMessage ("access granted, ip=" + ip);
+            ISOServer.this.checkPermission (socket, evt);
+        }
+    }
+    void checkPermission (Socket socket, LogEvent evt)
+        throws ISOException
+    {
+        if (allow != null && allow.length > 0) {
+            String ip = socket.getInetAddress().getHostAddress ();
+            for (String element : allow) {
+                if (ip.equals (element)) {
+                    evt.addMessage ("access granted, ip=" + ip);
+                    return;
+                }
+            }
+            throw new ISOException ("access denied, ip=" + ip);
+        }
+    }
+    /**
+     * Hands a received message to the registered ISORequestListeners
+     * @param source channel the message was received on
+     * @param m received message
+     */
+    void processRequest (ISOSource source, ISOMsg m) {
+        lastTxn = System.currentTimeMillis();
+        Iterator iter = listeners.iterator();
+        while (iter.hasNext()) {
+            if (((ISORequestListener)iter.next()).process (source, m)) {
+                break;
+            }
+        }
+    }
+    /**
+     * @param source channel requests are received on
+     * @return a Dispatcher for the given connection, null if requests
+     * are processed by the thread reading them
+     */
+    Dispatcher createDispatcher (ISOSource source) {
+        return dispatchPool != null ? new Dispatcher (source) : null;
+    }
+    /**
+     * Processes a received message, either on the calling (reader) thread
+     * or, if a dispatcher is given, on the dispatch pool
+     */
+    void dispatch (Dispatcher dispatcher, ISOSource source, ISOMsg m)
+        throws InterruptedIOException
+    {
+        if (dispatcher != null)
+            dispatcher.dispatch (m);
+        else
+            processRequest (source, m);
+    }
+
+    /**
+     * Per-connection handoff of received messages to the
+     * <code>dispatch-threads</code> pool, so a slow ISORequestListener
+     * doesn't stop the session from reading.
+     *
+     * <p>With <code>dispatch-ordered</code> (the default) messages from a
+     * connection are processed one at a time in arrival order, one message
+     * per pool job so busy connections don't starve the rest.
+     * <code>max-in-flight</code> blocks the reader once that many messages
+     * are waiting or being processed. With <code>nio=true</code> the
+     * reader is a worker of the server's ThreadPool, so a connection
+     * held at its limit keeps that worker blocked; size the pool
+     * accordingly, or raise <code>max-in-flight</code>.</p>
+     *
+     * <p>Messages that can't be handed to the dispatch pool (i.e. it has
+     * been closed on shutdown) are logged and dropped, releasing their
+     * in-flight permits.</p>
+     */
+    class Dispatcher implements Runnable {
+        final ISOSource source;
+        final Semaphore inFlight;
+        final LinkedList<ISOMsg> queue = new LinkedList<ISOMsg>();
+        boolean scheduled;
+
+        Dispatcher (ISOSource source) {
+            this.source = source;
+            this.inFlight = maxInFlight > 0 ? new Semaphore (maxInFlight) : null;
+        }
+        void dispatch (final ISOMsg m) throws InterruptedIOException {
+            if (inFlight != null) {
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException ("interrupted waiting for in-flight requests");
+                }
+            }
+            if (dispatchOrdered) {
+                synchronized (this) {
+                    queue.add (m);
+                    if (scheduled)
                         return;
+                    scheduled = true;
+                }
+                if (!execute (this))
+                    abort();
+            } else {
+                boolean executed = execute (new Runnable() {
+                    @Override
+                    public void run () {
+                        process (m);
                     }
+                });
+                if (!executed && inFlight != null)
+                    inFlight.release();
+            }
+        }
+        @Override
+        public void run () {
+            ISOMsg m;
+            synchronized (this) {
+                m = queue.poll();
+            }
+            process (m);
+            synchronized (this) {
+                if (queue.isEmpty()) {
+                    scheduled = false;
+                    return;
                 }
-                throw new ISOException ("access denied, ip=" + ip);
+            }
+            if (!execute (this))
+                abort();
+        }
+        /**
+         * drops queued messages after a failed handoff to the pool
+         */
+        private void abort () {
+            int n;
+            synchronized (this) {
+                n = queue.size();
+                queue.clear();
+                scheduled = false;
+            }
+            if (inFlight != null && n > 0)
+                inFlight.release (n);
+        }
+        private void process (ISOMsg m) {
+            try {
+                processRequest (source, m);
+            } catch (Throwable e) {
+                Logger.log (new LogEvent (ISOServer.this, "dispatch-error", e));
+            } finally {
+                if (inFlight != null)
+                    inFlight.release();
+            }
+        }
+        private boolean execute (Runnable r) {
+            try {
+                dispatchPool.execute (r);
+                return true;
+            } catch (BlockingQueue.Closed e) {
+                Logger.log (new LogEvent (ISOServer.this, "dispatch-error", "dispatch pool closed"));
+                return false;
             }
         }
     }
@@ -263,6 +417,9 @@ public class ISOServer extends Observable
             if (pool != null) {
                 pool.close();
             }
+            if (dispatchPool != null) {
+                dispatchPool.close();
+            }
         } catch (IOException e) {
             fireEvent(new ISOServerShutdownEvent(this));
             Logger.log (new LogEvent (this, "shutdown", e));
@@ -320,6 +477,19 @@ public class ISOServer extends Observable
         if (socketFactory == null) {
             socketFactory = this;
         }
+        if (dispatchThreads > 0 && dispatchPool == null) {
+            dispatchPool = new ThreadPool (dispatchThreads, dispatchThreads, "ISOServer-" + name + "-dispatch");
+        }
+        if (nio) {
+            if (clientSideChannel instanceof BaseChannel
+              && (socketFactory == this || socketFactory instanceof SSLEngineFactory)) {
+                runNIO ();
+                return;
+            }
+            Logger.log (new LogEvent (this, "warn",
+                "nio requires a BaseChannel and the default or an SSLEngineFactory server socket factory, using blocking sessions"
+            ));
+        }
         serverLoop : while  (!shutdown) {
             try {
                 serverSocket = socketFactory.createServerSocket(port);
@@ -389,6 +559,110 @@ public class ISOServer extends Observable
         }
     }
 
+    /**
+     * Accept loop used when <code>nio</code> is enabled: connections are
+     * handed round-robin to a small number of selector threads and only
+     * use a pool thread while they have a message to process.
+     * With an {@link SSLEngineFactory} socket factory connections run TLS
+     * on an SSLEngine whose handshake tasks use a separate, bounded pool
+     * (<code>ssl-handshake-threads</code>).
+     */
+    private void runNIO() {
+        ISOServerReactor[] reactors = new ISOServerReactor[Math.max (1, nioSelectors)];
+        SSLEngineFactory tls = socketFactory != this ? (SSLEngineFactory) socketFactory : null;
+        if (tls != null) {
+            sslHandshakePool = new ThreadPool (1,
+                sslHandshakeThreads > 0 ? sslHandshakeThreads : Runtime.getRuntime().availableProcessors(),
+                "ISOServer-" + name + "-ssl-handshake"
+            );
+        }
+        int next = 0;
+        serverLoop : while (!shutdown) {
+            ServerSocketChannel ssc = null;
+            try {
+                for (int i=0; i<reactors.length; i++) {
+                    if (reactors[i] == null) {
+                        reactors[i] = new ISOServerReactor (this,
+                            "ISOServer-" + name + "-reactor-" + i);
+                        reactors[i].start();
+                    }
+                }
+                ssc = ServerSocketChannel.open();
+                serverSocket = ssc.socket();
+                serverSocket.setReuseAddress(true);
+                serverSocket.bind(new InetSocketAddress(bindAddr, port), backlog);
+
+                Logger.log (new LogEvent (this, "iso-server",
+                    "listening on " + (bindAddr != null ? bindAddr + ":" : "port ") + port
+                    + (backlog > 0 ? " backlog="+backlog : "")
+                    + " nio selectors=" + reactors.length
+                    + (tls != null ? " tls" : "")
+                ));
+                while (!shutdown) {
+                    try {
+                        SocketChannel sc = ssc.accept();
+                        BaseChannel channel = (BaseChannel) clientSideChannel.clone();
+                        try {
+                            SSLEngine engine = null;
+                            if (tls != null) {
+                                Socket s = sc.socket();
+                                engine = tls.createSSLEngine (
+                                    s.getInetAddress().getHostAddress(), s.getPort(), false
+                                );
+                            }
+                            reactors[next++ % reactors.length].accept (channel, sc, engine);
+                        } catch (ISOException e) {
+                            Logger.log (new LogEvent (this, "iso-server", e));
+                            sc.close();
+                            continue;
+                        } catch (IOException e) {
+                            sc.close();
+                            throw e;
+                        }
+                        if ((cnt[CONNECT]++) % 100 == 0) {
+                            purgeChannels ();
+                        }
+                        WeakReference wr = new WeakReference (channel);
+                        channels.put (channel.getName(), wr);
+                        channels.put (LAST, wr);
+                        setChanged ();
+                        notifyObservers (this);
+                        fireEvent(new ISOServerAcceptEvent(this));
+                        channel.addObserver (this);
+                    } catch (SocketException e) {
+                        if (!shutdown) {
+                            Logger.log (new LogEvent (this, "iso-server", e));
+                            ssc.close();
+                            relax();
+                            continue serverLoop;
+                        }
+                    } catch (IOException e) {
+                        if (!shutdown) {
+                            Logger.log (new LogEvent (this, "iso-server", e));
+                            relax();
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                if (ssc != null) {
+                    try {
+                        ssc.close();
+                    } catch (IOException ignored) { }
+                }
+                Logger.log (new LogEvent (this, "iso-server", e));
+                relax();
+            }
+        }
+        for (ISOServerReactor reactor : reactors) {
+            if (reactor != null) {
+                reactor.close();
+            }
+        }
+        if (sslHandshakePool != null) {
+            sslHandshakePool.close();
+        }
+    }
+
     private void relax() {
         try {
             Thread.sleep (5000);
@@ -519,6 +793,12 @@ public class ISOServer extends Observable
         allow = cfg.getAll ("allow");
         backlog = cfg.getInt ("backlog", 0);
         ignoreISOExceptions = cfg.getBoolean("ignore-iso-exceptions");
+        nio = cfg.getBoolean ("nio");
+        nioSelectors = cfg.getInt ("nio-selectors", 1);
+        sslHandshakeThreads = cfg.getInt ("ssl-handshake-threads", 0);
+        dispatchThreads = cfg.getInt ("dispatch-threads", 0);
+        dispatchOrdered = cfg.getBoolean ("dispatch-ordered", true);
+        maxInFlight = cfg.getInt ("max-in-flight", 100);
         String ip = cfg.get ("bind-address", null);
         if (ip != null) {
             try {
@@ -590,6 +870,41 @@ public class ISOServer extends Observable
         }
         return cnt;
     }
+    /**
+     * @return metrics of the currently connected channels, accumulated
+     */
+    public ChannelMetrics getMetrics() {
+        ChannelMetrics metrics = new ChannelMetrics (
+          clientSideChannel instanceof BaseChannel
+            && ((BaseChannel) clientSideChannel).isTimingMetrics()
+        );
+        Iterator iter = channels.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            WeakReference ref = (WeakReference) entry.getValue();
+            ISOChannel c = (ISOChannel) ref.get ();
+            if (c instanceof BaseChannel && !LAST.equals (entry.getKey()) && c.isConnected())
+                metrics.add (((BaseChannel) c).getMetrics());
+        }
+        return metrics;
+    }
+    @Override
+    public String getMetricsAsString () {
+        return metricsAsString (getMetrics());
+    }
+    @Override
+    public String getMetricsAsString (String isoChannelName) {
+        ISOChannel channel = getISOChannel(isoChannelName);
+        return channel instanceof BaseChannel ?
+          metricsAsString (((BaseChannel) channel).getMetrics()) : "";
+    }
+    private String metricsAsString (ChannelMetrics metrics) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PrintStream p = new PrintStream (os);
+        metrics.dump (p, "");
+        p.flush();
+        return os.toString();
+    }
     @Override
     public int getTXCounter() {
         int cnt[] = getCounters();
@@ -631,6 +946,7 @@ public class ISOServer extends Observable
         p.println (indent + getCountersAsString());
         Iterator iter = channels.entrySet().iterator();
         String inner = indent + "  ";
+        getMetrics().dump (p, inner);
         for (int i=0; iter.hasNext(); i++) {
             Map.Entry entry = (Map.Entry) iter.next();
             WeakReference ref = (WeakReference) entry.getValue();
@@ -26,6 +26,8 @@ public interface ISOServerMBean extends ThreadPoolMBean {
     public int getConnectionCount ();
     public String getISOChannelNames();
     public String getCountersAsString (String isoChannelName);
+    public String getMetricsAsString ();
+    public String getMetricsAsString (String isoChannelName);
     public int getTXCounter();
     public int getRXCounter();
     public long getLastTxnTimestampInMillis();
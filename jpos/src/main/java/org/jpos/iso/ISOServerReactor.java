@@ -0,0 +1,841 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+import org.jpos.util.BlockingQueue;
+import org.jpos.util.LogEvent;
+import org.jpos.util.LogSource;
+import org.jpos.util.Logger;
+
+/**
+ * Selector thread used by {@link ISOServer} when configured with
+ * <code>nio=true</code>.
+ * <p>
+ * A reactor only moves bytes. Data read from a connection is appended to
+ * its input buffer and the connection is then scheduled on the server's
+ * ThreadPool, where the channel's regular <code>receive()</code> (and
+ * hence its <code>getMessageLength()</code>/header framing) runs against
+ * the buffered bytes before the message is handed to the
+ * ISORequestListeners. Idle connections do not hold a thread.
+ * <p>
+ * Channels providing a {@link FrameCodec} are only scheduled once a
+ * complete message is buffered, so a slow peer never blocks a pool
+ * thread in the middle of a frame; zero length polls are answered
+ * without going through receive().
+ * <p>
+ * TLS connections run on an SSLEngine: records are unwrapped by the
+ * reactor as they arrive, the channel only sees plain text. Handshake
+ * delegated tasks run on the server's handshake pool, so a burst of
+ * reconnecting peers doesn't stall the selector.
+ *
+ * @see ISOServer
+ */
+class ISOServerReactor implements Runnable, LogSource {
+    static final int READ_BUFFER_SIZE = 16384;
+    static final long SWEEP_INTERVAL  = 1000L;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate (0);
+
+    private final ISOServer server;
+    private final Selector selector;
+    private final ByteBuffer readBuffer;
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private final Thread thread;
+    private volatile boolean closing;
+    private long lastSweep;
+
+    ISOServerReactor (ISOServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocateDirect (READ_BUFFER_SIZE);
+        this.thread = new Thread (this, name);
+        thread.setDaemon (true);
+    }
+    void start () {
+        thread.start();
+    }
+    /**
+     * Stops the reactor once its remaining connections are gone
+     */
+    void close () {
+        closing = true;
+        selector.wakeup();
+    }
+    /**
+     * @return number of connections handled by this reactor
+     */
+    int size () {
+        synchronized (tasks) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * Binds an accepted SocketChannel to a (cloned) server side channel and
+     * starts reading from it.
+     * @param channel channel cloned from the server's client side channel
+     * @param sc accepted socket channel
+     * @param engine server mode SSLEngine, null for plain connections
+     * @throws IOException on error
+     */
+    void accept (BaseChannel channel, SocketChannel sc, SSLEngine engine)
+        throws IOException
+    {
+        sc.configureBlocking (false);
+        Connection c = new Connection (channel, sc, engine);
+        channel.accept (sc.socket(), c.in, c.out);
+        c.start ();
+    }
+
+    @Override
+    public void run () {
+        while (!closing || size() > 0) {
+            try {
+                selector.select (SWEEP_INTERVAL);
+                runTasks();
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            key.interestOps (key.interestOps() & ~SelectionKey.OP_WRITE);
+                            c.out.writable();
+                        }
+                        if (key.isValid() && key.isReadable())
+                            read (c, key);
+                    } catch (CancelledKeyException e) {
+                        c.in.eof();
+                    } catch (IOException e) {
+                        // connection reset, the session ends on its own thread
+                        key.cancel();
+                        c.in.eof();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL) {
+                    sweep (now);
+                    lastSweep = now;
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Throwable t) {
+                Logger.log (new LogEvent (this, "reactor-error", t));
+                ISOUtil.sleep (100L);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) { }
+    }
+
+    private void read (Connection c, SelectionKey key) throws IOException {
+        readBuffer.clear();
+        int n = c.sc.read (readBuffer);
+        if (n < 0) {
+            key.interestOps (key.interestOps() & ~SelectionKey.OP_READ);
+            c.in.eof();
+        } else if (n > 0) {
+            readBuffer.flip();
+            c.lastActivity = System.currentTimeMillis();
+            if (c.tls != null ? c.tls.unwrap (readBuffer) : c.in.append (readBuffer))
+                key.interestOps (key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Expires connections idle for longer than their channel's timeout
+     * (the blocking Session would get a SocketTimeoutException from
+     * receive()) and wakes up sessions whose channel was disconnected
+     * from elsewhere (e.g. ISOServer.shutdown).
+     */
+    private void sweep (long now) {
+        List<Connection> list;
+        synchronized (tasks) {
+            list = new ArrayList<Connection> (connections);
+        }
+        for (Connection c : list) {
+            if (!c.sc.isOpen() || !c.channel.isConnected()) {
+                c.in.eof();
+            } else {
+                int timeout = c.channel.getTimeout();
+                if (timeout > 0 && now - c.lastActivity > timeout)
+                    c.in.expire();
+            }
+        }
+    }
+
+    private void runTasks () {
+        Runnable[] r;
+        synchronized (tasks) {
+            if (tasks.isEmpty())
+                return;
+            r = tasks.toArray (new Runnable[tasks.size()]);
+            tasks.clear();
+        }
+        for (Runnable task : r) {
+            try {
+                task.run();
+            } catch (CancelledKeyException ignored) {
+                // connection already closed
+            }
+        }
+    }
+    private void execute (Runnable task) {
+        synchronized (tasks) {
+            tasks.add (task);
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public void setLogger (Logger logger, String realm) { }
+    @Override
+    public String getRealm () {
+        return server.getRealm() + ".reactor";
+    }
+    @Override
+    public Logger getLogger () {
+        return server.getLogger();
+    }
+
+    /**
+     * Session state of a connection handled by a reactor. Its
+     * <code>run</code> method drains complete messages on a pooled
+     * thread and returns as soon as no more input is buffered.
+     */
+    class Connection implements Runnable, LogSource {
+        final BaseChannel channel;
+        final FrameCodec codec;
+        final SocketChannel sc;
+        final Input in;
+        final Output out;
+        final Tls tls;
+        final ISOServer.Dispatcher dispatcher;
+        final String realm;
+        SelectionKey key;
+        volatile long lastActivity;
+        volatile boolean closed;
+        boolean scheduled;
+
+        Connection (BaseChannel channel, SocketChannel sc, SSLEngine engine) {
+            this.channel = channel;
+            this.codec = channel.getTrustedFrameCodec();
+            this.sc = sc;
+            this.in = new Input (
+                Math.max (channel.getMaxPacketLength(), READ_BUFFER_SIZE) * 2
+            );
+            this.out = new Output ();
+            this.tls = engine != null ? new Tls (engine) : null;
+            this.dispatcher = server.createDispatcher (channel);
+            Socket socket = sc.socket();
+            realm = server.getRealm() + ".session/"
+                + socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            lastActivity = System.currentTimeMillis();
+        }
+
+        void start () throws IOException {
+            LogEvent evt = new LogEvent (this, "session-start");
+            try {
+                server.checkPermission (sc.socket(), evt);
+            } catch (ISOException e) {
+                // no delay here, it would stall the acceptor
+                evt.addMessage (e.getMessage());
+                Logger.log (evt);
+                closed = true;
+                channel.disconnect ();
+                sc.close ();
+                server.fireEvent (new ISOServerShutdownEvent (server));
+                return;
+            }
+            Logger.log (evt);
+            execute (new Runnable() {
+                @Override
+                public void run () {
+                    try {
+                        key = sc.register (selector, SelectionKey.OP_READ, Connection.this);
+                        synchronized (tasks) {
+                            connections.add (Connection.this);
+                        }
+                    } catch (ClosedChannelException e) {
+                        in.eof();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Hands this connection to the server's pool unless it is
+         * already running there
+         */
+        void schedule () {
+            try {
+                server.pool.execute (this);
+            } catch (BlockingQueue.Closed e) {
+                close ();
+            }
+        }
+
+        @Override
+        public void run () {
+            try {
+                for (;;) {
+                    if (!channel.isConnected())
+                        break;
+                    byte[] poll = in.takePoll();
+                    if (poll != null) {
+                        synchronized (channel.serverOutLock) {
+                            channel.serverOut.write (poll);
+                            channel.serverOut.flush ();
+                        }
+                    } else try {
+                        server.dispatch (dispatcher, channel, channel.receive());
+                    } catch (ISOFilter.VetoException e) {
+                        Logger.log (new LogEvent (this, "VetoException", e.getMessage()));
+                    } catch (ISOException e) {
+                        if (server.ignoreISOExceptions) {
+                            Logger.log (new LogEvent (this, "ISOException", e.getMessage()));
+                        } else {
+                            throw e;
+                        }
+                    }
+                    synchronized (in) {
+                        if (!in.pending() && (codec != null || !channel.isInputPending())) {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+            } catch (SocketException e) {
+            } catch (InterruptedIOException e) {
+            } catch (Throwable e) {
+                Logger.log (new LogEvent (this, "session-error", e));
+            }
+            close ();
+        }
+
+        void close () {
+            synchronized (in) {
+                if (closed)
+                    return;
+                closed = true;
+                scheduled = true; // never again
+                in.notifyAll();
+            }
+            if (tls != null)
+                out.closeOutbound();
+            synchronized (out) {
+                out.notifyAll();
+            }
+            try {
+                channel.disconnect();
+            } catch (IOException e) {
+                Logger.log (new LogEvent (this, "session-error", e));
+            }
+            server.fireEvent (new ISOServerClientDisconnectEvent (server));
+            Logger.log (new LogEvent (this, "session-end"));
+            execute (new Runnable() {
+                @Override
+                public void run () {
+                    if (key != null)
+                        key.cancel();
+                    try {
+                        sc.close();
+                    } catch (IOException ignored) { }
+                    synchronized (tasks) {
+                        connections.remove (Connection.this);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void setLogger (Logger logger, String realm) { }
+        @Override
+        public String getRealm () {
+            return realm;
+        }
+        @Override
+        public Logger getLogger () {
+            return server.getLogger();
+        }
+
+        /**
+         * Bytes read by the reactor, consumed by the channel's serverIn
+         */
+        class Input extends InputStream {
+            static final int NONE  = 0;
+            static final int FRAME = 1;
+            static final int POLL  = 2;
+            private final int maxPending;
+            private byte[] buf = new byte[1024];
+            private int pos, limit;
+            private boolean eof, expired, suspended;
+
+            Input (int maxPending) {
+                this.maxPending = maxPending;
+            }
+
+            /**
+             * Called by the reactor thread
+             * @return true if reading should be suspended
+             */
+            synchronized boolean append (ByteBuffer bb) {
+                int n = bb.remaining();
+                if (pos > 0 && limit + n > buf.length) {
+                    System.arraycopy (buf, pos, buf, 0, limit - pos);
+                    limit -= pos;
+                    pos = 0;
+                }
+                if (limit + n > buf.length) {
+                    byte[] b = new byte[Math.max (buf.length << 1, limit + n)];
+                    System.arraycopy (buf, 0, b, 0, limit);
+                    buf = b;
+                }
+                bb.get (buf, limit, n);
+                limit += n;
+                notifyAll();
+                wakeUp();
+                suspended = limit - pos >= maxPending;
+                return suspended;
+            }
+            synchronized void eof () {
+                eof = true;
+                notifyAll();
+                wakeUp();
+            }
+            synchronized void expire () {
+                if (scheduled)
+                    return; // a running session applies its own timeout
+                expired = true;
+                notifyAll();
+                wakeUp();
+            }
+            /**
+             * @return true if there is something for the session to act upon
+             */
+            synchronized boolean pending () {
+                if (eof || expired)
+                    return true;
+                return codec == null ? pos < limit : frame() != NONE;
+            }
+            /**
+             * @return the poll at the head of the buffer (consumed) or null
+             */
+            synchronized byte[] takePoll () {
+                if (codec == null || frame() != POLL)
+                    return null;
+                byte[] b = new byte[codec.getLengthSize()];
+                System.arraycopy (buf, pos, b, 0, b.length);
+                pos += b.length;
+                consumed ();
+                return b;
+            }
+            /**
+             * @return FRAME if a complete message is buffered, POLL if a
+             * poll is, NONE otherwise
+             */
+            private int frame () {
+                int n = limit - pos;
+                if (n < codec.getLengthSize())
+                    return NONE;
+                int len;
+                try {
+                    len = codec.decodeLength (ByteBuffer.wrap (buf, pos, n));
+                } catch (ISOException e) {
+                    return FRAME; // receive() reports it
+                }
+                if (len == FrameCodec.POLL)
+                    return POLL;
+                if (len <= 0 || len > channel.getMaxPacketLength())
+                    return FRAME; // receive() rejects it
+                return n >= codec.getLengthSize() + len + codec.getTrailerSize() ?
+                    FRAME : NONE;
+            }
+            private void wakeUp () {
+                if (!scheduled && pending()) {
+                    scheduled = true;
+                    schedule ();
+                }
+            }
+
+            @Override
+            public synchronized int read () throws IOException {
+                if (!await())
+                    return -1;
+                int b = buf[pos++] & 0xFF;
+                consumed ();
+                return b;
+            }
+            @Override
+            public synchronized int read (byte[] b, int off, int len)
+                throws IOException
+            {
+                if (len == 0)
+                    return 0;
+                if (!await())
+                    return -1;
+                int n = Math.min (len, limit - pos);
+                System.arraycopy (buf, pos, b, off, n);
+                pos += n;
+                consumed ();
+                return n;
+            }
+            @Override
+            public synchronized int available () {
+                return limit - pos;
+            }
+            @Override
+            public void close () { }
+
+            private boolean await () throws IOException {
+                long timeout = channel.getTimeout();
+                long end = System.currentTimeMillis() + timeout;
+                while (pos == limit) {
+                    if (expired) {
+                        expired = false;
+                        throw new SocketTimeoutException ("Read timed out");
+                    }
+                    if (eof || closed)
+                        return false;
+                    try {
+                        if (timeout > 0) {
+                            long remaining = end - System.currentTimeMillis();
+                            if (remaining <= 0)
+                                throw new SocketTimeoutException ("Read timed out");
+                            wait (remaining);
+                        } else {
+                            wait ();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException (e.getMessage());
+                    }
+                }
+                return true;
+            }
+            private void consumed () {
+                if (pos == limit)
+                    pos = limit = 0;
+                if (suspended && limit - pos < maxPending >> 1) {
+                    suspended = false;
+                    execute (new Runnable() {
+                        @Override
+                        public void run () {
+                            if (key != null && key.isValid() && !eof)
+                                key.interestOps (key.interestOps() | SelectionKey.OP_READ);
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Writes straight to the non-blocking socket; when the socket
+         * buffer is full the sender waits for the reactor to report
+         * the socket writable again. On TLS connections data is wrapped
+         * into <code>netOut</code> first, which also carries the
+         * handshake records produced by the reactor.
+         */
+        class Output extends OutputStream {
+            private boolean writable;
+            private ByteBuffer netOut; // TLS records, read mode
+
+            @Override
+            public void write (int b) throws IOException {
+                write (new byte[] { (byte) b }, 0, 1);
+            }
+            @Override
+            public synchronized void write (byte[] b, int off, int len)
+                throws IOException
+            {
+                ByteBuffer bb = ByteBuffer.wrap (b, off, len);
+                if (tls == null) {
+                    while (bb.hasRemaining()) {
+                        sc.write (bb);
+                        if (bb.hasRemaining())
+                            awaitWritable ();
+                    }
+                    return;
+                }
+                long end = System.currentTimeMillis() + channel.getTimeout();
+                while (bb.hasRemaining()) {
+                    SSLEngineResult r = wrap (bb);
+                    if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new SocketException ("Socket closed");
+                    while (netOut.hasRemaining()) {
+                        sc.write (netOut);
+                        if (netOut.hasRemaining())
+                            awaitWritable ();
+                    }
+                    if (r.bytesConsumed() == 0 && bb.hasRemaining()) {
+                        // handshake in progress, the reactor moves it forward
+                        if (closed)
+                            throw new SocketException ("Socket closed");
+                        if (channel.getTimeout() > 0 && System.currentTimeMillis() > end)
+                            throw new SocketTimeoutException ("Handshake timed out");
+                        try {
+                            wait (100L);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException (e.getMessage());
+                        }
+                    }
+                }
+            }
+            synchronized void writable () throws IOException {
+                writable = true;
+                flushNet ();
+                notifyAll();
+            }
+            /**
+             * Called by the reactor when the engine needs to send
+             * handshake data
+             * @return false if the engine is closed
+             */
+            synchronized boolean wrapHandshake () throws IOException {
+                SSLEngineResult r = wrap (EMPTY);
+                flushNet ();
+                notifyAll();
+                return r.getStatus() != SSLEngineResult.Status.CLOSED;
+            }
+            synchronized void handshakeStep () {
+                notifyAll();
+            }
+            /**
+             * Best effort close_notify
+             */
+            synchronized void closeOutbound () {
+                try {
+                    tls.engine.closeOutbound();
+                    wrap (EMPTY);
+                    flushNet ();
+                } catch (IOException ignored) { }
+            }
+            @Override
+            public void close () { }
+
+            private void awaitWritable () throws IOException {
+                if (closed)
+                    throw new SocketException ("Socket closed");
+                writable = false;
+                armWrite ();
+                try {
+                    while (!writable && !closed)
+                        wait ();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException (e.getMessage());
+                }
+            }
+            private void armWrite () {
+                execute (new Runnable() {
+                    @Override
+                    public void run () {
+                        if (key != null && key.isValid())
+                            key.interestOps (key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                });
+            }
+            /**
+             * Non blocking write of pending TLS records
+             */
+            private void flushNet () throws IOException {
+                if (netOut != null && netOut.hasRemaining() && sc.isOpen()) {
+                    sc.write (netOut);
+                    if (netOut.hasRemaining())
+                        armWrite ();
+                }
+            }
+            private SSLEngineResult wrap (ByteBuffer src) throws IOException {
+                int packetSize = tls.engine.getSession().getPacketBufferSize();
+                if (netOut == null) {
+                    netOut = ByteBuffer.allocate (packetSize);
+                    netOut.flip();
+                }
+                for (;;) {
+                    SSLEngineResult r;
+                    netOut.compact();
+                    try {
+                        r = tls.engine.wrap (src, netOut);
+                    } finally {
+                        netOut.flip();
+                    }
+                    if (r.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        return r;
+                    ByteBuffer b = ByteBuffer.allocate (netOut.remaining() + packetSize);
+                    b.put (netOut);
+                    b.flip();
+                    netOut = b;
+                }
+            }
+        }
+
+        /**
+         * SSLEngine glue. Records are unwrapped on the reactor thread and
+         * the resulting plain text appended to {@link #in}; handshake
+         * records are wrapped through {@link #out}.
+         */
+        class Tls {
+            final SSLEngine engine;
+            private ByteBuffer netIn; // read mode
+            private ByteBuffer appIn;
+            private boolean taskPending;
+
+            Tls (SSLEngine engine) {
+                this.engine = engine;
+                netIn = ByteBuffer.allocate (engine.getSession().getPacketBufferSize());
+                netIn.flip();
+                appIn = ByteBuffer.allocate (engine.getSession().getApplicationBufferSize());
+            }
+
+            /**
+             * Called by the reactor thread with data read from the socket
+             * @return true if reading should be suspended
+             */
+            boolean unwrap (ByteBuffer data) throws IOException {
+                if (netIn.capacity() - netIn.remaining() < data.remaining()) {
+                    ByteBuffer b = ByteBuffer.allocate (netIn.remaining() + data.remaining());
+                    b.put (netIn);
+                    netIn = b;
+                } else {
+                    netIn.compact();
+                }
+                netIn.put (data);
+                netIn.flip();
+                return process ();
+            }
+
+            private boolean process () throws IOException {
+                boolean suspend = false;
+                for (;;) {
+                    if (taskPending)
+                        return suspend;
+                    SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                    if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks ();
+                        return suspend;
+                    }
+                    if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        if (!out.wrapHandshake()) {
+                            in.eof();
+                            return suspend;
+                        }
+                        continue;
+                    }
+                    if (!netIn.hasRemaining())
+                        return suspend;
+                    appIn.clear();
+                    SSLEngineResult r = engine.unwrap (netIn, appIn);
+                    switch (r.getStatus()) {
+                        case BUFFER_UNDERFLOW:
+                            return suspend; // wait for the rest of the record
+                        case BUFFER_OVERFLOW:
+                            appIn = ByteBuffer.allocate (
+                                Math.max (appIn.capacity() << 1, engine.getSession().getApplicationBufferSize())
+                            );
+                            continue;
+                        case CLOSED:
+                            in.eof();
+                            return suspend;
+                        default:
+                            break;
+                    }
+                    appIn.flip();
+                    if (appIn.hasRemaining())
+                        suspend = in.append (appIn);
+                    if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+                        out.handshakeStep();
+                    if (r.bytesConsumed() == 0 && r.bytesProduced() == 0)
+                        return suspend;
+                }
+            }
+
+            /**
+             * Runs the engine's delegated tasks (key exchange, certificate
+             * validation) on the handshake pool, then resumes on the reactor.
+             */
+            private void runDelegatedTasks () {
+                taskPending = true;
+                final List<Runnable> list = new ArrayList<Runnable>();
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                    list.add (task);
+                Runnable job = new Runnable() {
+                    @Override
+                    public void run () {
+                        try {
+                            for (Runnable r : list)
+                                r.run();
+                        } finally {
+                            execute (new Runnable() {
+                                @Override
+                                public void run () {
+                                    resume ();
+                                }
+                            });
+                        }
+                    }
+                };
+                try {
+                    server.sslHandshakePool.execute (job);
+                } catch (BlockingQueue.Closed e) {
+                    in.eof();
+                }
+            }
+
+            private void resume () {
+                taskPending = false;
+                try {
+                    boolean suspend = process ();
+                    out.handshakeStep();
+                    if (suspend && key != null && key.isValid())
+                        key.interestOps (key.interestOps() & ~SelectionKey.OP_READ);
+                } catch (IOException e) {
+                    if (key != null)
+                        key.cancel();
+                    in.eof();
+                }
+            }
+        }
+    }
+}
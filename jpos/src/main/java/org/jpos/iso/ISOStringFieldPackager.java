@@ -20,6 +20,8 @@ package org.jpos.iso;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * @author joconnor
@@ -103,6 +105,30 @@ public class ISOStringFieldPackager extends ISOFieldPackager
         this.prefixer = prefixer;
     }
 
+    /**
+     * @return the padder
+     */
+    public Padder getPadder()
+    {
+        return padder;
+    }
+
+    /**
+     * @return the interpreter
+     */
+    public Interpreter getInterpreter()
+    {
+        return interpreter;
+    }
+
+    /**
+     * @return the length prefixer
+     */
+    public Prefixer getPrefixer()
+    {
+        return prefixer;
+    }
+
     /**
      * Returns the prefixer's packed length and the interpreter's packed length.
      */
@@ -155,6 +181,49 @@ public class ISOStringFieldPackager extends ISOFieldPackager
         }
     }
 
+    /**
+     * Packs the component straight into the buffer's backing array.
+     * Direct and read-only buffers fall back to {@link #pack(ISOComponent)}.
+     * @param c The component to pack.
+     * @param buf The destination buffer, its position gets advanced.
+     * @return The number of bytes written.
+     */
+    public int pack(ISOComponent c, ByteBuffer buf) throws ISOException
+    {
+        if (!buf.hasArray())
+            return super.pack(c, buf);
+        try
+        {
+            String data;
+            if(c.getValue() instanceof byte[])
+                data = new String(c.getBytes(), ISOUtil.ENCODING); // transparent handling of complex fields
+            else
+                data = (String)c.getValue();
+
+            if (data.length() > getLength())
+            {
+                throw new ISOException("Field length " + data.length() + " too long. Max: " + getLength());
+            }
+            String paddedData = padder.pad(data, getLength());
+            int lenLen = prefixer.getPackedLength();
+            int packedLen = lenLen + interpreter.getPackedLength(paddedData.length());
+            if (packedLen > buf.remaining())
+                throw new ISOException("Buffer overflow (" + packedLen + "/" + buf.remaining() + ")");
+
+            byte[] b = buf.array();
+            int offset = buf.arrayOffset() + buf.position();
+            // some interpreters (i.e. BCD) OR their nibbles into place
+            Arrays.fill(b, offset, offset + packedLen, (byte) 0);
+            encodeLength(prefixer, paddedData.length(), b, offset);
+            interpreter.interpret(paddedData, b, offset + lenLen);
+            buf.position(buf.position() + packedLen);
+            return packedLen;
+        } catch(Exception e)
+        {
+            throw new ISOException(makeExceptionMessage(c, "packing"), e);
+        }
+    }
+
     /**
      * Unpacks the byte array into the component.
      * @param c The component to unpack into.
@@ -185,6 +254,20 @@ public class ISOStringFieldPackager extends ISOFieldPackager
         }
     }
 
+    /**
+     * Decodes the length prefix only.
+     * @see ISOFieldPackager#getPackedLength(byte[], int)
+     */
+    public int getPackedLength(byte[] b, int offset) throws ISOException
+    {
+        int len = prefixer.decodeLength(b, offset);
+        if (len == -1)
+            len = getLength();
+        else if (getLength() > 0 && len > getLength())
+            throw new ISOException("Field length " + len + " too long. Max: " + getLength());
+        return prefixer.getPackedLength() + interpreter.getPackedLength(len);
+    }
+
     /**
      * Unpack the input stream into the component.
      * @param c  The Component to unpack into.
@@ -20,6 +20,7 @@ package org.jpos.iso;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Generic class for handling binary fields in Tag-Len-Value format
@@ -163,6 +164,19 @@ public class ISOTagBinaryFieldPackager extends ISOBinaryFieldPackager
         }
     }
 
+    /**
+     * Tagged fields have their own layout, bypass the in-place
+     * implementation provided by ISOBinaryFieldPackager.
+     */
+    @Override
+    public int pack(ISOComponent c, ByteBuffer buf) throws ISOException {
+        byte[] b = pack(c);
+        if (b.length > buf.remaining())
+            throw new ISOException(makeExceptionMessage(c, "packing") + " (buffer overflow)");
+        buf.put(b);
+        return b.length;
+    }
+
     /**
      * Unpacks the byte array into the component.
      * @param c The component to unpack into.
@@ -192,6 +206,15 @@ public class ISOTagBinaryFieldPackager extends ISOBinaryFieldPackager
         }
     }
 
+    /**
+     * Tagged fields set their field number while unpacking,
+     * so they can't be lazily unpacked.
+     */
+    @Override
+    public int getPackedLength(byte[] b, int offset) {
+        return -1;
+    }
+
     /**
      * Unpack the input stream into the component.
      * @param c  The Component to unpack into.
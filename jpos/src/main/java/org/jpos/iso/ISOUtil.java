@@ -18,7 +18,6 @@
 
 package org.jpos.iso;
 
-import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.util.*;
 
@@ -43,6 +42,24 @@ public class ISOUtil {
     }
     public static final String[] hexStrings;
 
+    /** upper case hex digits of every byte value (two entries per byte) */
+    private static final char[] HEX_CHARS = new char[512];
+    private static final byte[] HEX_BYTES = new byte[512];
+    /** BCD digits of every byte value (two entries per byte, 0xD maps to '=') */
+    private static final char[] BCD_CHARS = new char[512];
+    /**
+     * byte value of every pair of ASCII hex digits, indexed by
+     * (hi &lt;&lt; 8 | lo), invalid digits give the same (garbage)
+     * result as the Character.digit based implementation
+     */
+    private static final byte[] HEX_PAIRS = new byte[65536];
+    /**
+     * nibble value of every ASCII hex digit, invalid digits map to
+     * 0x0F (all bits on) just like Character.digit's -1 does in the
+     * BitSet based bitmap decoders
+     */
+    private static final byte[] HEX_NIBBLES = new byte[256];
+
     static {
         hexStrings = new String[256];
         for (int i = 0; i < 256; i++ ) {
@@ -53,7 +70,23 @@ public class ISOUtil {
             d.append(Character.toUpperCase(ch));
             hexStrings[i] = d.toString();
         }
-
+        String hex = "0123456789ABCDEF";
+        String bcd = "0123456789ABC=EF";
+        for (int i = 0; i < 256; i++) {
+            HEX_CHARS[i<<1]     = hex.charAt(i >> 4);
+            HEX_CHARS[(i<<1)+1] = hex.charAt(i & 0x0F);
+            HEX_BYTES[i<<1]     = (byte) HEX_CHARS[i<<1];
+            HEX_BYTES[(i<<1)+1] = (byte) HEX_CHARS[(i<<1)+1];
+            BCD_CHARS[i<<1]     = bcd.charAt(i >> 4);
+            BCD_CHARS[(i<<1)+1] = bcd.charAt(i & 0x0F);
+        }
+        int[] digit = new int[256];
+        for (int i = 0; i < 256; i++) {
+            digit[i] = Character.digit((char) (byte) i, 16);
+            HEX_NIBBLES[i] = (byte) (digit[i] & 0x0F);
+        }
+        for (int i = 0; i < 65536; i++)
+            HEX_PAIRS[i] = (byte) ((digit[i >> 8] << 4) | digit[i & 0xFF]);
     }
 
     public static final String ENCODING  = "ISO8859_1";
@@ -197,39 +230,43 @@ public class ISOUtil {
     public static final byte ETX = 0x03;
 
     public static String ebcdicToAscii(byte[] e) {
-        try {
-            return new String (
-                ebcdicToAsciiBytes (e, 0, e.length), ENCODING
-            );
-        } catch (UnsupportedEncodingException ex) {
-            return ex.toString(); // should never happen
-        }
+        return ebcdicToAscii (e, 0, e.length);
     }
     public static String ebcdicToAscii(byte[] e, int offset, int len) {
-        try {
-            return new String (
-                ebcdicToAsciiBytes (e, offset, len), ENCODING
-            );
-        } catch (UnsupportedEncodingException ex) {
-            return ex.toString(); // should never happen
-        }
+        // ISO-8859-1 decoding maps every byte to the char with the same value
+        char[] c = new char[len];
+        for (int i=0; i<len; i++)
+            c[i] = (char) (EBCDIC2ASCII[e[offset+i]&0xFF] & 0xFF);
+        return new String (c);
     }
     public static byte[] ebcdicToAsciiBytes (byte[] e) {
         return ebcdicToAsciiBytes (e, 0, e.length);
     }
     public static byte[] ebcdicToAsciiBytes(byte[] e, int offset, int len) {
         byte[] a = new byte[len];
-        for (int i=0; i<len; i++)
-            a[i] = EBCDIC2ASCII[e[offset+i]&0xFF];
+        ebcdicToAscii (e, offset, len, a, 0);
         return a;
     }
+    /**
+     * converts len EBCDIC bytes to ASCII
+     * @param src source buffer
+     * @param off source offset
+     * @param len number of bytes to convert
+     * @param dst destination buffer
+     * @param dstOff destination offset
+     * @return number of bytes written (len)
+     */
+    public static int ebcdicToAscii (byte[] src, int off, int len, byte[] dst, int dstOff) {
+        for (int i=0; i<len; i++)
+            dst[dstOff+i] = EBCDIC2ASCII[src[off+i]&0xFF];
+        return len;
+    }
     public static byte[] asciiToEbcdic(String s) {
         return asciiToEbcdic (s.getBytes());
     }
     public static byte[] asciiToEbcdic(byte[] a) {
         byte[] e = new byte[a.length];
-        for (int i=0; i<a.length; i++) 
-            e[i] = ASCII2EBCDIC[a[i]&0xFF];
+        asciiToEbcdic (a, 0, a.length, e, 0);
         return e;
     }
     public static void asciiToEbcdic(String s, byte[] e, int offset) {
@@ -238,9 +275,21 @@ public class ISOUtil {
             e[offset + i] = ASCII2EBCDIC[s.charAt(i)&0xFF];
     }
     public static void asciiToEbcdic(byte[] s, byte[] e, int offset) {
-        int len = s.length;
+        asciiToEbcdic (s, 0, s.length, e, offset);
+    }
+    /**
+     * converts len ASCII bytes to EBCDIC
+     * @param src source buffer
+     * @param off source offset
+     * @param len number of bytes to convert
+     * @param dst destination buffer
+     * @param dstOff destination offset
+     * @return number of bytes written (len)
+     */
+    public static int asciiToEbcdic (byte[] src, int off, int len, byte[] dst, int dstOff) {
         for (int i=0; i<len; i++)
-            e[offset + i] = ASCII2EBCDIC[s[i]];
+            dst[dstOff+i] = ASCII2EBCDIC[src[off+i]&0xFF];
+        return len;
     }
 
     /**
@@ -351,11 +400,38 @@ public class ISOUtil {
      */
     public static byte[] str2bcd(String s, boolean padLeft, byte[] d, int offset) {
         int len = s.length();
-        int start = (((len & 1) == 1) && padLeft) ? 1 : 0;
-        for (int i=start; i < len+start; i++) 
-            d [offset + (i >> 1)] |= (s.charAt(i-start)-'0') << ((i & 1) == 1 ? 0 : 4);
+        int i = 0;
+        if ((len & 1) == 1 && padLeft)
+            d[offset++] |= s.charAt(i++) - '0';
+        for (; i+1 < len; i += 2)
+            d[offset++] |= ((s.charAt(i) - '0') << 4) | (s.charAt(i+1) - '0');
+        if (i < len)
+            d[offset] |= (s.charAt(i) - '0') << 4;
         return d;
     }
+    /**
+     * BCD encodes len ASCII digits, nibbles are OR'ed into dst
+     * (as in {@link #str2bcd(String, boolean, byte[], int)}) so
+     * the destination area is expected to be zeroed.
+     * @param src ASCII digits
+     * @param off source offset
+     * @param len number of digits
+     * @param padLeft - flag indicating left/right padding
+     * @param dst destination buffer
+     * @param dstOff destination offset
+     * @return number of bytes written ((len+1)/2)
+     */
+    public static int ascii2bcd (byte[] src, int off, int len, boolean padLeft, byte[] dst, int dstOff) {
+        int i = 0;
+        int j = dstOff;
+        if ((len & 1) == 1 && padLeft)
+            dst[j++] |= (src[off + i++] & 0xFF) - '0';
+        for (; i+1 < len; i += 2)
+            dst[j++] |= (((src[off+i] & 0xFF) - '0') << 4) | ((src[off+i+1] & 0xFF) - '0');
+        if (i < len)
+            dst[j++] |= ((src[off+i] & 0xFF) - '0') << 4;
+        return j - dstOff;
+    }
     /**
      * converts to BCD
      * @param s - the number
@@ -394,17 +470,41 @@ public class ISOUtil {
     public static String bcd2str(byte[] b, int offset,
                         int len, boolean padLeft)
     {
-        StringBuilder d = new StringBuilder(len);
-        int start = (((len & 1) == 1) && padLeft) ? 1 : 0;
-        for (int i=start; i < len+start; i++) {
-            int shift = ((i & 1) == 1 ? 0 : 4);
-            char c = Character.forDigit (
-                ((b[offset+(i>>1)] >> shift) & 0x0F), 16);
-            if (c == 'd')
-                c = '=';
-            d.append (Character.toUpperCase (c));
+        char[] d = new char[len];
+        int i = 0;
+        if ((len & 1) == 1 && padLeft)
+            d[i++] = BCD_CHARS[((b[offset++] & 0xFF) << 1) + 1];
+        for (; i+1 < len; i += 2) {
+            int v = (b[offset++] & 0xFF) << 1;
+            d[i]   = BCD_CHARS[v];
+            d[i+1] = BCD_CHARS[v+1];
         }
-        return d.toString();
+        if (i < len)
+            d[i] = BCD_CHARS[(b[offset] & 0xFF) << 1];
+        return new String (d);
+    }
+    /**
+     * converts len BCD digits to ASCII
+     * @param src BCD representation
+     * @param off source offset
+     * @param len number of digits
+     * @param padLeft - was padLeft packed?
+     * @param dst destination buffer
+     * @param dstOff destination offset
+     * @return number of bytes written (len)
+     */
+    public static int bcd2ascii (byte[] src, int off, int len, boolean padLeft, byte[] dst, int dstOff) {
+        int i = 0;
+        if ((len & 1) == 1 && padLeft)
+            dst[dstOff + i++] = (byte) BCD_CHARS[((src[off++] & 0xFF) << 1) + 1];
+        for (; i+1 < len; i += 2) {
+            int v = (src[off++] & 0xFF) << 1;
+            dst[dstOff+i]   = (byte) BCD_CHARS[v];
+            dst[dstOff+i+1] = (byte) BCD_CHARS[v+1];
+        }
+        if (i < len)
+            dst[dstOff+i] = (byte) BCD_CHARS[(src[off] & 0xFF) << 1];
+        return len;
     }
     /**
      * converts a byte array to hex string 
@@ -413,11 +513,7 @@ public class ISOUtil {
      * @return String representation
      */
     public static String hexString(byte[] b) {
-        StringBuilder d = new StringBuilder(b.length * 2);
-        for (byte aB : b) {
-            d.append(hexStrings[(int) aB & 0xFF]);
-        }
-        return d.toString();
+        return hexString (b, 0, b.length);
     }
     /**
      * converts a byte array to printable characters
@@ -498,12 +594,45 @@ public class ISOUtil {
      * @return String representation
      */
     public static String hexString(byte[] b, int offset, int len) {
-        StringBuilder d = new StringBuilder(len * 2);
-        len += offset;
-        for (int i=offset; i<len; i++) {
-            d.append(hexStrings[(int)b[i] & 0xFF]);
+        char[] d = new char[len << 1];
+        for (int i=0, j=0; i<len; i++) {
+            int v = (b[offset+i] & 0xFF) << 1;
+            d[j++] = HEX_CHARS[v];
+            d[j++] = HEX_CHARS[v+1];
         }
-        return d.toString();
+        return new String (d);
+    }
+    /**
+     * hex encodes len bytes (upper case ASCII)
+     * @param src source buffer
+     * @param off source offset
+     * @param len number of bytes to encode
+     * @param dst destination buffer
+     * @param dstOff destination offset
+     * @return number of bytes written (len*2)
+     */
+    public static int hexEncode (byte[] src, int off, int len, byte[] dst, int dstOff) {
+        for (int i=0; i<len; i++) {
+            int v = (src[off+i] & 0xFF) << 1;
+            dst[dstOff++] = HEX_BYTES[v];
+            dst[dstOff++] = HEX_BYTES[v+1];
+        }
+        return len << 1;
+    }
+    /**
+     * decodes len ASCII hex digits (len is expected to be even)
+     * @param src source buffer
+     * @param off source offset
+     * @param len number of hex digits
+     * @param dst destination buffer
+     * @param dstOff destination offset
+     * @return number of bytes written (len/2)
+     */
+    public static int hexDecode (byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int n = len >> 1;
+        for (int i=0; i<n; i++, off += 2)
+            dst[dstOff+i] = HEX_PAIRS[(src[off] & 0xFF) << 8 | (src[off+1] & 0xFF)];
+        return n;
     }
 
     /**
@@ -563,6 +692,96 @@ public class ISOUtil {
         return d;
     }
     
+    /**
+     * converts bitmap words into a binary field, same as
+     * {@link #bitSet2byte(BitSet)} does with the equivalent BitSet
+     * @param words - fields 1..192, field 1 being the most significant bit of words[0]
+     * @return binary representation
+     */
+    public static byte[] bitmap2byte (long[] words) {
+        int n = words.length;
+        while (n > 0 && words[n-1] == 0L)
+            n--;
+        return bitmap2byte (words, n << 3);
+    }
+
+    /**
+     * converts bitmap words into a binary field, same as
+     * {@link #bitSet2byte(BitSet,int)} does with the equivalent BitSet
+     * @param words - fields 1..192, field 1 being the most significant bit of words[0]
+     * @param bytes - number of bytes to return
+     * @return binary representation
+     */
+    public static byte[] bitmap2byte (long[] words, int bytes) {
+        byte[] d = new byte[bytes];
+        int n = Math.min (bytes, words.length << 3);
+        for (int i=0; i<n; i++)
+            d[i] = (byte) (words[i >> 3] >>> (56 - ((i & 7) << 3)));
+        if (bytes > 8)
+            d[0] |= 0x80;
+        if (bytes > 16)
+            d[8] |= 0x80;
+        return d;
+    }
+
+    /**
+     * Converts a binary representation of a Bitmap field into
+     * bitmap words, same rules as {@link #byte2BitSet(byte[],int,int)}
+     * @param b - binary representation
+     * @param offset - starting offset
+     * @param maxBits - max number of bits (supports 64, 128 or 192)
+     * @param words - three words to receive fields 1..192
+     * @return capacity in bits the equivalent BitSet is created with
+     */
+    public static int byte2bitmap (byte[] b, int offset, int maxBits, long[] words) {
+        int len = maxBits > 64 ?
+            ((b[offset] & 0x80) == 0x80 ? 128 : 64) : maxBits;
+
+        if (maxBits > 128 &&
+            b.length > offset+8 &&
+            (b[offset+8] & 0x80) == 0x80)
+        {
+            len = 192;
+        }
+        Arrays.fill (words, 0L);
+        for (int i=0, n=len >> 3; i<n; i++)
+            words[i >> 3] |= (b[offset+i] & 0xFFL) << (56 - ((i & 7) << 3));
+        return len;
+    }
+
+    /**
+     * Converts an ASCII representation of a Bitmap field into
+     * bitmap words, same rules as {@link #hex2BitSet(byte[],int,int)}
+     * @param b - hex representation
+     * @param offset - starting offset
+     * @param maxBits - max number of bits (supports 64, 128 or 192)
+     * @param words - three words to receive fields 1..192
+     * @return capacity in bits the equivalent BitSet is created with
+     */
+    public static int hex2bitmap (byte[] b, int offset, int maxBits, long[] words) {
+        int len = maxBits > 64 ?
+          ((HEX_NIBBLES[b[offset] & 0xFF] & 0x08) == 8 ? 128 : 64) :
+          maxBits;
+        if (len > 64 && maxBits > 128 &&
+            b.length > offset+16 &&
+            (HEX_NIBBLES[b[offset+16] & 0xFF] & 0x08) == 8)
+        {
+            len = 192;
+        }
+        Arrays.fill (words, 0L);
+        hex2words (b, offset, 0, len >> 2, words);
+        // hex2BitSet extends to a tertiary bitmap when field 66 is on
+        // (its BitSet keeps the initial capacity though)
+        if (len == 128 && maxBits > 128 && (words[1] & 0x4000000000000000L) != 0L)
+            hex2words (b, offset, 32, 48, words);
+        return len;
+    }
+
+    private static void hex2words (byte[] b, int offset, int from, int to, long[] words) {
+        for (int i=from; i<to; i++)
+            words[i >> 4] |= (long) HEX_NIBBLES[b[offset+i] & 0xFF] << (60 - ((i & 15) << 2));
+    }
+
     /*
      * Convert BitSet to int value.
      */
@@ -743,10 +962,7 @@ public class ISOUtil {
      */
     public static byte[] hex2byte (byte[] b, int offset, int len) {
         byte[] d = new byte[len];
-        for (int i=0; i<len*2; i++) {
-            int shift = i%2 == 1 ? 0 : 4;
-            d[i>>1] |= Character.digit((char) b[offset+i], 16) << shift;
-        }
+        hexDecode (b, offset, len << 1, d, 0);
         return d;
     }
     /**
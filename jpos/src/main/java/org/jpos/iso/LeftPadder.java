@@ -86,4 +86,12 @@ public class LeftPadder implements Padder
         }
         return "";
     }
+
+    /**
+     * @return the pad character
+     */
+    public char getPad()
+    {
+        return pad;
+    }
 }
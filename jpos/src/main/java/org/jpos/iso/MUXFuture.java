@@ -0,0 +1,149 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending response of a {@link AsyncMUX#requestAsync(ISOMsg, long)} call.
+ *
+ * <p>The future completes with the response, or with <code>null</code>
+ * if the request expired. Listeners added with
+ * {@link #addResponseListener(ISOResponseListener, Object)} are called
+ * on completion by the thread that completes the future (or right away if
+ * it is already done), so many requests can be outstanding without
+ * tying up a thread each.</p>
+ */
+public class MUXFuture implements Future<ISOMsg>, ISOResponseListener {
+    private final CountDownLatch done = new CountDownLatch (1);
+    private volatile ISOMsg response;
+    private volatile boolean completed;
+    private volatile boolean cancelled;
+    private List<Object[]> listeners;
+
+    /**
+     * Adds a listener to be called once this future completes
+     * @param l listener
+     * @param handBack handback object given to the listener
+     */
+    public void addResponseListener (ISOResponseListener l, Object handBack) {
+        synchronized (this) {
+            if (!completed) {
+                if (listeners == null)
+                    listeners = new ArrayList<Object[]>();
+                listeners.add (new Object[] { l, handBack });
+                return;
+            }
+        }
+        fire (l, handBack);
+    }
+
+    @Override
+    public void responseReceived (ISOMsg m, Object handBack) {
+        complete (m, false);
+    }
+    @Override
+    public void expired (Object handBack) {
+        complete (null, false);
+    }
+    @Override
+    public boolean cancel (boolean mayInterruptIfRunning) {
+        return complete (null, true);
+    }
+
+    @Override
+    public boolean isCancelled () {
+        return cancelled;
+    }
+    @Override
+    public boolean isDone () {
+        return completed;
+    }
+    /**
+     * @return true if the request expired without a response
+     */
+    public boolean isExpired () {
+        return completed && !cancelled && response == null;
+    }
+
+    /**
+     * @return response, null if the request expired
+     * @throws CancellationException if this future was cancelled
+     */
+    @Override
+    public ISOMsg get () throws InterruptedException {
+        done.await();
+        return getResponse();
+    }
+    /**
+     * @return response, null if the request expired
+     * @throws TimeoutException if the request is still pending after the given wait
+     * @throws CancellationException if this future was cancelled
+     */
+    @Override
+    public ISOMsg get (long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException
+    {
+        if (!done.await (timeout, unit))
+            throw new TimeoutException();
+        return getResponse();
+    }
+
+    /**
+     * @param m response, null if expired
+     * @param cancel true to cancel
+     * @return false if this future was already completed
+     */
+    protected boolean complete (ISOMsg m, boolean cancel) {
+        List<Object[]> l;
+        synchronized (this) {
+            if (completed)
+                return false;
+            response = m;
+            cancelled = cancel;
+            completed = true;
+            l = listeners;
+            listeners = null;
+        }
+        done.countDown();
+        if (l != null) {
+            for (Object[] o : l)
+                fire ((ISOResponseListener) o[0], o[1]);
+        }
+        return true;
+    }
+    private ISOMsg getResponse () {
+        if (cancelled)
+            throw new CancellationException();
+        return response;
+    }
+    private void fire (ISOResponseListener l, Object handBack) {
+        ISOMsg m = response;
+        if (m != null)
+            l.responseReceived (m, handBack);
+        else
+            l.expired (handBack);
+    }
+}
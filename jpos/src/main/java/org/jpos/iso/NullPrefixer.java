@@ -41,6 +41,12 @@ public class NullPrefixer implements Prefixer
     public void encodeLength(int length, byte[] b)
     {}
 
+    /**
+	 * Same as {@link #encodeLength(int, byte[])}, writing at <code>offset</code>.
+	 */
+    public void encodeLength(int length, byte[] b, int offset)
+    {}
+
     /**
 	 * Returns -1 meaning there is no length field.
 	 *
@@ -78,4 +78,12 @@ public class RightPadder implements Padder
         }
         return "";
     }
+
+    /**
+     * @return the pad character
+     */
+    public char getPad()
+    {
+        return pad;
+    }
 }
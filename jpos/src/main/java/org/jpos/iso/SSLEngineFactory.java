@@ -0,0 +1,40 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Implemented by socket factories able to hand out SSLEngines, so
+ * ISOServer can run TLS sessions in <code>nio</code> mode.
+ *
+ * @see GenericSSLSocketFactory
+ * @see SunJSSESocketFactory
+ */
+public interface SSLEngineFactory {
+    /**
+     * @param host peer host (used as a session resumption hint)
+     * @param port peer port
+     * @param clientMode true for client side engines
+     * @return a configured SSLEngine
+     * @throws ISOException on error
+     */
+    SSLEngine createSSLEngine (String host, int port, boolean clientMode)
+        throws ISOException;
+}
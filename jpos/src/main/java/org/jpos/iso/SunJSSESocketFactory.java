@@ -48,7 +48,7 @@ import java.security.Security;
  */
 public class SunJSSESocketFactory 
         extends SimpleLogSource 
-        implements ISOServerSocketFactory,ISOClientSocketFactory, Configurable
+        implements ISOServerSocketFactory,ISOClientSocketFactory, SSLEngineFactory, Configurable
 { 
 
     private SSLContext sslc=null;
@@ -62,6 +62,8 @@ public class SunJSSESocketFactory
     private boolean clientAuthNeeded=false;
     private boolean serverAuthNeeded=false;
     private String[] enabledCipherSuites;
+    private int sessionCacheSize;
+    private int sessionTimeout;
 
     private Configuration cfg;
 
@@ -159,8 +161,7 @@ public class SunJSSESocketFactory
     protected SSLServerSocketFactory createServerSocketFactory() 
         throws ISOException
     {
-        if(sslc==null) sslc=getSSLContext();
-        return sslc.getServerSocketFactory();
+        return getContext().getServerSocketFactory();
     }
         
     /**
@@ -172,8 +173,51 @@ public class SunJSSESocketFactory
     protected SSLSocketFactory createSocketFactory() 
         throws ISOException
     {
-        if(sslc==null) sslc=getSSLContext();
-        return sslc.getSocketFactory();
+        return getContext().getSocketFactory();
+    }
+
+    /**
+     * The SSLContext is created once and shared by every socket and
+     * engine handed out by this factory, so its session caches allow
+     * reconnecting peers to resume their sessions (abbreviated handshake).
+     * @return this factory's SSLContext
+     * @exception ISOException if the SSLContext can't be created
+     */
+    private synchronized SSLContext getContext() throws ISOException {
+        if (sslc == null) {
+            SSLContext ctx = getSSLContext();
+            if (sessionCacheSize > 0) {
+                ctx.getServerSessionContext().setSessionCacheSize (sessionCacheSize);
+                ctx.getClientSessionContext().setSessionCacheSize (sessionCacheSize);
+            }
+            if (sessionTimeout > 0) {
+                ctx.getServerSessionContext().setSessionTimeout (sessionTimeout);
+                ctx.getClientSessionContext().setSessionTimeout (sessionTimeout);
+            }
+            sslc = ctx;
+        }
+        return sslc;
+    }
+
+    /**
+     * Create an SSLEngine, used by ISOServer in <code>nio</code> mode.
+     * @param  host peer host
+     * @param  port peer port
+     * @param  clientMode true for client side engines
+     * @return a new SSLEngine
+     * @exception ISOException if the SSLContext can't be created
+     */
+    public SSLEngine createSSLEngine(String host, int port, boolean clientMode)
+        throws ISOException
+    {
+        SSLEngine engine = getContext().createSSLEngine(host, port);
+        engine.setUseClientMode(clientMode);
+        if (!clientMode)
+            engine.setNeedClientAuth(clientAuthNeeded);
+        if (enabledCipherSuites != null && enabledCipherSuites.length > 0) {
+            engine.setEnabledCipherSuites(enabledCipherSuites);
+        }
+        return engine;
     }
     
     /**
@@ -346,6 +390,8 @@ public class SunJSSESocketFactory
         password = cfg.get("storepassword", null);
         keyPassword = cfg.get("keypassword", null);
         enabledCipherSuites = cfg.getAll("addEnabledCipherSuite");
+        sessionCacheSize = cfg.getInt("ssl-session-cache-size", 0);
+        sessionTimeout = cfg.getInt("ssl-session-timeout", 0);
     }
     public Configuration getConfiguration() {
         return cfg;
@@ -71,39 +71,8 @@ public class ASCIIChannel extends BaseChannel {
     {
         super(p, serverSocket);
     }
-    /**
-     * @param len the packed Message len
-     * @exception IOException
-     */
-    protected void sendMessageLength(int len) throws IOException {
-        if (len > 9999)
-            throw new IOException ("len exceeded");
-
-        try {
-            serverOut.write(
-                ISOUtil.zeropad(Integer.toString(len), 4).getBytes()
-            );
-        } catch (ISOException e) { }
-    }
-    /**
-     * @return the Message len
-     * @exception IOException, ISOException
-     */
-    protected int getMessageLength() throws IOException, ISOException {
-        int l = 0;
-        byte[] b = new byte[4];
-        while (l == 0) {
-            serverIn.readFully(b,0,4);
-            try {
-                if ((l=Integer.parseInt(new String(b))) == 0) {
-                    serverOut.write(b);
-                    serverOut.flush();
-                }
-            } catch (NumberFormatException e) { 
-                throw new ISOException ("Invalid message length "+new String(b));
-            }
-        }
-        return l;
+    public FrameCodec getFrameCodec() {
+        return AsciiFrameCodec.LLLL;
     }
 }
 
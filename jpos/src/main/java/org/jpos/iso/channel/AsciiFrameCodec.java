@@ -0,0 +1,100 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.FrameCodec;
+import org.jpos.iso.ISOException;
+
+/**
+ * Fixed number of ASCII digits (decimal or hex) length prefix.
+ */
+public class AsciiFrameCodec implements FrameCodec {
+    /**
+     * four decimal digits, zero length polls echoed (ASCIIChannel)
+     */
+    public static final AsciiFrameCodec LLLL = new AsciiFrameCodec (4, 10, true);
+
+    /**
+     * four hex digits (HEXChannel)
+     */
+    public static final AsciiFrameCodec HHHH = new AsciiFrameCodec (4, 16, false);
+
+    private final int nDigits;
+    private final int radix;
+    private final int max;
+    private final boolean polls;
+
+    /**
+     * @param nDigits number of digits
+     * @param radix 10 or 16
+     * @param polls true if zero length messages are polls to be echoed
+     */
+    public AsciiFrameCodec (int nDigits, int radix, boolean polls) {
+        this.nDigits = nDigits;
+        this.radix   = radix;
+        this.polls   = polls;
+        int m = 1;
+        for (int i=0; i<nDigits; i++)
+            m *= radix;
+        this.max = m - 1;
+    }
+
+    public int getLengthSize() {
+        return nDigits;
+    }
+    public int getEncodedLengthSize() {
+        return nDigits;
+    }
+    public int decodeLength (ByteBuffer in) throws ISOException {
+        int len = 0;
+        boolean valid = true;
+        byte[] b = new byte[nDigits];
+        in.get (b);
+        for (int i=0; i<nDigits; i++) {
+            int d = Character.digit ((char) (b[i] & 0xFF), radix);
+            if (d < 0)
+                valid = false;
+            len = len * radix + d;
+        }
+        if (!valid)
+            throw new ISOException ("Invalid message length " + new String (b));
+        return len == 0 && polls ? POLL : len;
+    }
+    public void encodeLength (int len, ByteBuffer out)
+        throws IOException, ISOException
+    {
+        if (len > max)
+            throw new IOException ("len " + len + " exceeds maximum length " + max);
+        if (len < 0)
+            throw new ISOException ("invalid len " + len);
+        int pos = out.position();
+        for (int i=nDigits-1; i>=0; i--) {
+            out.put (pos + i, (byte) Character.forDigit (len % radix, radix));
+            len /= radix;
+        }
+        out.position (pos + nDigits);
+    }
+    public int getTrailerSize() {
+        return 0;
+    }
+    public void encodeTrailer (ByteBuffer out) { }
+}
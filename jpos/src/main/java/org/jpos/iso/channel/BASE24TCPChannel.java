@@ -81,33 +81,16 @@ public class BASE24TCPChannel extends BaseChannel {
     {
         super(p, serverSocket);
     }
-    /**
-     * @param m the Message to send (in this case it is unused)
-     * @param len   message len (ignored)
-     * @exception IOException
-     */
-    protected void sendMessageTrailler(ISOMsg m, int len) throws IOException {
-        serverOut.write (3);
-    }
-    protected void sendMessageLength(int len) throws IOException {
-        len++;  // one byte trailler
-        serverOut.write (len >> 8);
-        serverOut.write (len);
+    private static final FrameCodec CODEC =
+        new BinaryFrameCodec (null, 2, null, 1, new byte[] { 3 }, true);
+    public FrameCodec getFrameCodec() {
+        return CODEC;
     }
     protected int getMessageLength() throws IOException, ISOException {
-        int l = 0;
-        byte[] b = new byte[2];
         Logger.log (new LogEvent (this, "get-message-length"));
-        while (l == 0) {
-            serverIn.readFully(b,0,2);
-            l = ((((int)b[0])&0xFF) << 8) | (((int)b[1])&0xFF);
-            if (l == 0) {
-                serverOut.write(b);
-                serverOut.flush();
-            }
-        }
-        Logger.log (new LogEvent (this, "got-message-length", Integer.toString(l)));
-        return l - 1;   // trailler length
+        int l = super.getMessageLength();
+        Logger.log (new LogEvent (this, "got-message-length", Integer.toString(l+1)));
+        return l;
     }
     protected void getMessageTrailler() throws IOException {
         Logger.log (new LogEvent (this, "get-message-trailler"));
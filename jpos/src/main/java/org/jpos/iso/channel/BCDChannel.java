@@ -19,8 +19,6 @@
 package org.jpos.iso.channel;
 
 import org.jpos.iso.*;
-import org.jpos.util.LogEvent;
-import org.jpos.util.Logger;
 
 import java.io.IOException;
 import java.net.ServerSocket;
@@ -80,24 +78,8 @@ public class BCDChannel extends BaseChannel {
         super(p, serverSocket);
         this.header = TPDU;
     }
-    protected void sendMessageLength(int len) throws IOException {
-        try {
-            serverOut.write (                                                                                                         
-                ISOUtil.str2bcd (                                                                                                     
-                    ISOUtil.zeropad (Integer.toString (len), 4), true
-                )
-            );
-        } 
-        catch (ISOException e) {
-            Logger.log (new LogEvent (this, "send-message-length", e));
-        }
-    }
-    protected int getMessageLength() throws IOException, ISOException {
-        byte[] b = new byte[2];
-        serverIn.readFully(b,0,2);
-        return Integer.parseInt (
-            ISOUtil.bcd2str (b, 0, 4, true)
-        );
+    public FrameCodec getFrameCodec() {
+        return BcdFrameCodec.LLLL;
     }
     protected void sendMessageHeader(ISOMsg m, int len) throws IOException { 
         byte[] h = m.getHeader();
@@ -0,0 +1,81 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso.channel;
+
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.FrameCodec;
+import org.jpos.iso.ISOException;
+
+/**
+ * Two byte (four digit) BCD length prefix.
+ */
+public class BcdFrameCodec implements FrameCodec {
+    /**
+     * lengths above 9999 are rejected (BCDChannel)
+     */
+    public static final BcdFrameCodec LLLL = new BcdFrameCodec (false);
+
+    /**
+     * lengths are sent modulo 10000 (NCCChannel)
+     */
+    public static final BcdFrameCodec LLLL_MOD = new BcdFrameCodec (true);
+
+    private final boolean modulo;
+
+    /**
+     * @param modulo true to send lengths modulo 10000
+     */
+    public BcdFrameCodec (boolean modulo) {
+        this.modulo = modulo;
+    }
+
+    public int getLengthSize() {
+        return 2;
+    }
+    public int getEncodedLengthSize() {
+        return 2;
+    }
+    public int decodeLength (ByteBuffer in) throws ISOException {
+        int len = 0;
+        for (int i=0; i<2; i++) {
+            int b = in.get() & 0xFF;
+            int hi = b >> 4;
+            int lo = b & 0x0F;
+            if (hi > 9 || lo > 9)
+                throw new ISOException (
+                    "Invalid message length " + Integer.toHexString (b)
+                );
+            len = len * 100 + hi * 10 + lo;
+        }
+        return len;
+    }
+    public void encodeLength (int len, ByteBuffer out) throws ISOException {
+        if (modulo)
+            len %= 10000;
+        if (len < 0 || len > 9999)
+            throw new ISOException ("invalid len " + len);
+        out.put ((byte) ((len / 1000) << 4 | (len / 100) % 10));
+        out.put ((byte) (((len / 10) % 10) << 4 | len % 10));
+    }
+    public int getTrailerSize() {
+        return 0;
+    }
+    public void encodeTrailer (ByteBuffer out) { }
+}
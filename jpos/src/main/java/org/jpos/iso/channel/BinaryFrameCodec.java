@@ -0,0 +1,107 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso.channel;
+
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.FrameCodec;
+
+/**
+ * Big endian binary length prefix, optionally surrounded by fixed
+ * bytes and followed by a fixed trailer.
+ * <p>
+ * Fixed bytes are written as configured but ignored on input, as the
+ * stream based channels always did.
+ */
+public class BinaryFrameCodec implements FrameCodec {
+    private static final byte[] NONE = new byte[0];
+
+    /**
+     * two byte length (NACChannel, PostChannel)
+     */
+    public static final BinaryFrameCodec BB = new BinaryFrameCodec (2);
+
+    /**
+     * four byte length (RawChannel)
+     */
+    public static final BinaryFrameCodec BBBB = new BinaryFrameCodec (4);
+
+    private final byte[] before;
+    private final int nBytes;
+    private final byte[] after;
+    private final int adjust;
+    private final byte[] trailer;
+    private final boolean polls;
+
+    /**
+     * @param nBytes number of bytes used to express the length
+     */
+    public BinaryFrameCodec (int nBytes) {
+        this (null, nBytes, null, 0, null, false);
+    }
+    /**
+     * @param before fixed bytes preceding the length (may be null)
+     * @param nBytes number of bytes used to express the length
+     * @param after fixed bytes following the length (may be null)
+     * @param adjust added to the message length on the wire (i.e. the
+     *        wire length covers itself or the trailer)
+     * @param trailer fixed trailer (may be null)
+     * @param polls true if zero length messages are polls to be echoed
+     */
+    public BinaryFrameCodec
+        (byte[] before, int nBytes, byte[] after, int adjust, byte[] trailer, boolean polls)
+    {
+        this.before  = before  != null ? before  : NONE;
+        this.nBytes  = nBytes;
+        this.after   = after   != null ? after   : NONE;
+        this.adjust  = adjust;
+        this.trailer = trailer != null ? trailer : NONE;
+        this.polls   = polls;
+    }
+
+    public int getLengthSize() {
+        return before.length + nBytes + after.length;
+    }
+    public int getEncodedLengthSize() {
+        return getLengthSize();
+    }
+    public int decodeLength (ByteBuffer in) {
+        in.position (in.position() + before.length);
+        int len = 0;
+        for (int i=0; i<nBytes; i++)
+            len = len << 8 | in.get() & 0xFF;
+        in.position (in.position() + after.length);
+        if (len == 0 && polls)
+            return POLL;
+        return len - adjust;
+    }
+    public void encodeLength (int len, ByteBuffer out) {
+        len += adjust;
+        out.put (before);
+        for (int i=nBytes-1; i>=0; i--)
+            out.put ((byte) (len >> (i << 3)));
+        out.put (after);
+    }
+    public int getTrailerSize() {
+        return trailer.length;
+    }
+    public void encodeTrailer (ByteBuffer out) {
+        out.put (trailer);
+    }
+}
@@ -73,32 +73,10 @@ public class CSChannel extends BaseChannel {
     {
         super(p, serverSocket);
     }
-    /**
-     * @param len the packed Message len
-     * @exception IOException
-     */
-    protected void sendMessageLength(int len) throws IOException {
-        serverOut.write (len >> 8);
-        serverOut.write (len);
-        serverOut.write (0);
-        serverOut.write (0);
-    }
-    /**
-     * @return the Message len
-     * @exception IOException, ISOException
-     */
-    protected int getMessageLength() throws IOException, ISOException {
-        int l = 0;
-        byte[] b = new byte[4];
-        while (l == 0) {
-            serverIn.readFully(b,0,4);
-            l = ((((int)b[0])&0xFF) << 8) | (((int)b[1])&0xFF);
-            if (l == 0) {
-                serverOut.write(b);
-                serverOut.flush();
-            }
-        }
-        return l;
+    private static final FrameCodec CODEC =
+        new BinaryFrameCodec (null, 2, new byte[2], 0, null, true);
+    public FrameCodec getFrameCodec() {
+        return CODEC;
     }
     protected int getHeaderLength() { 
         // CS Channel does not support header
@@ -31,11 +31,42 @@ import org.jpos.util.Logger;
 import org.jpos.util.NameRegistrar;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Random;
+import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * ISOChannel backed by a list of member channels.
+ * <p>
+ * By default the pool sticks to the first member it can connect to.
+ * In <code>adaptive</code> mode every member is connected in parallel
+ * and has its own reader thread; sends are spread across the connected
+ * members with a probability inversely proportional to their score
+ * (recent round trip time weighted by recent error rate), and a failing
+ * member is disconnected and retried in the background every
+ * <code>reconnect-delay</code> milliseconds instead of blocking
+ * <code>connect()</code> or <code>send()</code>.
+ * <p>
+ * RTT is estimated by matching each incoming response with the outstanding
+ * request sent through the same member that has the same <code>key</code>
+ * fields (default <code>41, 11</code>), so responses may come back in any
+ * order.
+ * <p>
+ * Messages read by the members wait for {@link #receive()} in a queue
+ * bounded by <code>receive-queue-size</code> (default 1000); once it is
+ * full, member readers stop reading until there is room. The queue is
+ * cleared on {@link #disconnect()}.
+ */
 @SuppressWarnings("unchecked")
 public class ChannelPool implements ISOChannel, LogSource, Configurable, Cloneable {
+    static final int DEFAULT_RECEIVE_QUEUE_SIZE = 1000;
+    static final String[] DEFAULT_KEY = { "41", "11" };
     boolean usable = true;
     String name = "";
     protected Logger logger;
@@ -43,6 +74,13 @@ public class ChannelPool implements ISOChannel, LogSource, Configurable, Cloneab
     Configuration cfg = null;
     List pool;
     ISOChannel current;
+    boolean adaptive;
+    long reconnectDelay = 1000L;
+    private volatile Member[] members;
+    int receiveQueueSize = DEFAULT_RECEIVE_QUEUE_SIZE;
+    String[] key = DEFAULT_KEY;
+    private BlockingQueue<ISOMsg> received = new LinkedBlockingQueue<ISOMsg>(receiveQueueSize);
+    private final Random random = new Random();
 
     public ChannelPool () {
         super ();
@@ -52,6 +90,10 @@ public class ChannelPool implements ISOChannel, LogSource, Configurable, Cloneab
         // nothing to do
     }
     public synchronized void connect () throws IOException {
+        if (adaptive) {
+            connectMembers ();
+            return;
+        }
         current = null;
         LogEvent evt = new LogEvent (this, "connect");
         evt.addMessage ("pool-size=" + Integer.toString (pool.size()));
@@ -78,6 +120,13 @@ public class ChannelPool implements ISOChannel, LogSource, Configurable, Cloneab
     }
     public synchronized void disconnect () throws IOException {
         current = null;
+        Member[] mm = members;
+        members = null;
+        if (mm != null) {
+            for (Member m : mm)
+                m.running = false;
+        }
+        received.clear();
         LogEvent evt = new LogEvent (this, "disconnect");
         for (Object aPool : pool) {
             try {
@@ -94,6 +143,8 @@ public class ChannelPool implements ISOChannel, LogSource, Configurable, Cloneab
         connect ();
     }
     public synchronized boolean isConnected() {
+        if (adaptive)
+            return getUpCount() > 0;
         try {
             return getCurrent().isConnected ();
         } catch (IOException e) {
@@ -101,13 +152,61 @@ public class ChannelPool implements ISOChannel, LogSource, Configurable, Cloneab
         }
     }
     public ISOMsg receive() throws IOException, ISOException {
-        return getCurrent().receive ();
+        if (!adaptive)
+            return getCurrent().receive ();
+        if (members == null)
+            connect ();
+        try {
+            for (;;) {
+                ISOMsg m = received.poll (1000L, TimeUnit.MILLISECONDS);
+                if (m != null)
+                    return m;
+                if (members == null || getUpCount() == 0)
+                    throw new IOException ("unconnected ChannelPool");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException (e.getMessage());
+        }
     }
     public void send (ISOMsg m) throws IOException, ISOException {
-        getCurrent().send (m);
+        if (!adaptive) {
+            getCurrent().send (m);
+            return;
+        }
+        if (members == null)
+            connect ();
+        Member failed = null;
+        for (;;) {
+            Member mb = select (failed);
+            if (mb == null)
+                throw new IOException ("unable to send, no member connected");
+            try {
+                mb.send (m);
+                return;
+            } catch (IOException e) {
+                mb.failed (e);
+                if (failed != null)
+                    throw e;
+                failed = mb; // retry once on another member
+            }
+        }
     }
     public void send (byte[] b) throws IOException, ISOException {
-        getCurrent().send (b);
+        if (!adaptive) {
+            getCurrent().send (b);
+            return;
+        }
+        if (members == null)
+            connect ();
+        Member mb = select (null);
+        if (mb == null)
+            throw new IOException ("unable to send, no member connected");
+        try {
+            mb.channel.send (b);
+        } catch (IOException e) {
+            mb.failed (e);
+            throw e;
+        }
     }
     public void setUsable(boolean b) {
         this.usable = b;
@@ -136,6 +235,17 @@ public class ChannelPool implements ISOChannel, LogSource, Configurable, Cloneab
         throws ConfigurationException
     {
         this.cfg = cfg;
+        adaptive = cfg.getBoolean ("adaptive", false);
+        reconnectDelay = cfg.getLong ("reconnect-delay", 1000L);
+        receiveQueueSize = cfg.getInt ("receive-queue-size", DEFAULT_RECEIVE_QUEUE_SIZE);
+        received = new LinkedBlockingQueue<ISOMsg>(receiveQueueSize);
+        String k = cfg.get ("key", null);
+        if (k != null) {
+            StringTokenizer st = new StringTokenizer (k, ", ");
+            key = new String[st.countTokens()];
+            for (int i=0; st.hasMoreTokens(); i++)
+                key[i] = st.nextToken();
+        }
         String channelName[] = cfg.getAll ("channel");
         for (String aChannelName : channelName) {
             try {
@@ -163,6 +273,14 @@ public class ChannelPool implements ISOChannel, LogSource, Configurable, Cloneab
         return pool.size();
     }
     public synchronized ISOChannel getCurrent () throws IOException {
+        if (adaptive) {
+            if (members == null)
+                connect ();
+            Member mb = select (null);
+            if (mb == null)
+                throw new IOException ("no member connected");
+            return mb.channel;
+        }
         if (current == null)
             connect();
         else if (!usable)
@@ -171,12 +289,325 @@ public class ChannelPool implements ISOChannel, LogSource, Configurable, Cloneab
         return current;
     }
     
+    public void setAdaptive (boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+    public boolean isAdaptive () {
+        return adaptive;
+    }
+    /**
+     * @param reconnectDelay delay (millis) between background reconnect
+     * attempts of a failed member (adaptive mode)
+     */
+    public void setReconnectDelay (long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+    public long getReconnectDelay () {
+        return reconnectDelay;
+    }
+    /**
+     * @param receiveQueueSize max number of received messages waiting for {@link #receive()}
+     */
+    public synchronized void setReceiveQueueSize (int receiveQueueSize) {
+        this.receiveQueueSize = receiveQueueSize;
+        received = new LinkedBlockingQueue<ISOMsg>(receiveQueueSize);
+    }
+    public int getReceiveQueueSize () {
+        return receiveQueueSize;
+    }
+    /**
+     * @return one line per member showing its state and score (adaptive mode)
+     */
+    public String getMembersAsString () {
+        Member[] mm = members;
+        StringBuilder sb = new StringBuilder();
+        if (mm != null) {
+            for (Member m : mm) {
+                if (sb.length() > 0)
+                    sb.append ('\n');
+                sb.append (m);
+            }
+        }
+        return sb.toString();
+    }
+
     public Object clone(){
       try {
-        return super.clone();
+        ChannelPool p = (ChannelPool) super.clone();
+        p.members = null;
+        p.received = new LinkedBlockingQueue<ISOMsg>(receiveQueueSize);
+        return p;
       } catch (CloneNotSupportedException e) {
         throw new InternalError();
       }
     }
+
+    /**
+     * Starts a thread per member (if not already running) and waits until
+     * one of them connects or every member has made its first attempt.
+     */
+    private void connectMembers () throws IOException {
+        Member[] mm = members;
+        if (mm == null) {
+            mm = new Member[pool.size()];
+            for (int i=0; i<mm.length; i++)
+                mm[i] = new Member (i, (ISOChannel) pool.get (i));
+            members = mm;
+            for (Member m : mm) {
+                Thread t = new Thread (m, "channel-pool-" + name + "-" + m.index);
+                t.setDaemon (true);
+                t.start ();
+            }
+        }
+        LogEvent evt = new LogEvent (this, "connect");
+        evt.addMessage ("pool-size=" + Integer.toString (mm.length) + " adaptive=true");
+        synchronized (mm) {
+            for (;;) {
+                int attempted = 0;
+                for (Member m : mm) {
+                    if (m.up)
+                        attempted = -1;
+                    if (attempted < 0)
+                        break;
+                    if (m.attempts > 0)
+                        attempted++;
+                }
+                if (attempted < 0 || attempted == mm.length)
+                    break;
+                try {
+                    mm.wait (1000L);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        usable = true;
+        if (getUpCount() == 0) {
+            evt.addMessage ("connect failed, retrying in background");
+            Logger.log (evt);
+            throw new IOException ("unable to connect");
+        }
+        evt.addMessage (getMembersAsString());
+        Logger.log (evt);
+    }
+
+    private int getUpCount () {
+        Member[] mm = members;
+        int n = 0;
+        if (mm != null) {
+            for (Member m : mm)
+                if (m.up)
+                    n++;
+        }
+        return n;
+    }
+
+    /**
+     * Weighted random pick among connected members
+     * @param exclude member to skip (may be null)
+     * @return selected member or null
+     */
+    private Member select (Member exclude) {
+        Member[] mm = members;
+        if (mm == null)
+            return null;
+        double total = 0.0;
+        double[] w = new double[mm.length];
+        for (int i=0; i<mm.length; i++) {
+            if (mm[i].up && mm[i] != exclude) {
+                w[i] = mm[i].weight();
+                total += w[i];
+            }
+        }
+        if (total == 0.0)
+            return null;
+        double r;
+        synchronized (random) {
+            r = random.nextDouble() * total;
+        }
+        Member last = null;
+        for (int i=0; i<mm.length; i++) {
+            if (w[i] > 0.0) {
+                last = mm[i];
+                r -= w[i];
+                if (r < 0.0)
+                    break;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Adaptive mode member: connects, reads and reconnects its channel on
+     * its own thread, and keeps the figures used to score it.
+     */
+    class Member implements Runnable {
+        static final double ALPHA = 0.2;
+        static final int MAX_OUTSTANDING = 1000;
+        final int index;
+        final ISOChannel channel;
+        volatile boolean up;
+        volatile boolean running = true;
+        volatile int attempts;
+        private final LinkedHashMap<String,Long> outstanding = new LinkedHashMap<String,Long>();
+        private double rtt;        // EWMA, millis
+        private double errorRate;  // EWMA, 0..1
+
+        Member (int index, ISOChannel channel) {
+            this.index = index;
+            this.channel = channel;
+        }
+
+        public void run () {
+            while (running) {
+                if (!channel.isConnected()) {
+                    try {
+                        channel.connect ();
+                    } catch (Throwable e) {
+                        Logger.log (new LogEvent (ChannelPool.this, "member-" + index, e));
+                    }
+                    attempts++;
+                    if (!channel.isConnected()) {
+                        sample (-1.0, true);
+                        signal ();
+                        sleep ();
+                        continue;
+                    }
+                }
+                if (!running) {
+                    if (members == null) {
+                        // pool disconnected while we were connecting
+                        try {
+                            channel.disconnect ();
+                        } catch (IOException ignored) { }
+                    }
+                    break;
+                }
+                if (!up) {
+                    up = true;
+                    sample (-1.0, false);
+                    signal ();
+                }
+                try {
+                    ISOMsg m = channel.receive ();
+                    response (m);
+                    deliver (m);
+                } catch (Throwable e) {
+                    if (running) {
+                        failed (e);
+                        sleep ();
+                    }
+                }
+            }
+            up = false;
+        }
+
+        /**
+         * Queues <code>m</code> for {@link ChannelPool#receive()}, waiting
+         * for room while the queue is full.
+         */
+        private void deliver (ISOMsg m) throws InterruptedException {
+            BlockingQueue<ISOMsg> q = received;
+            while (running) {
+                if (q.offer (m, 1000L, TimeUnit.MILLISECONDS)) {
+                    if (!running)
+                        q.remove (m); // pool disconnected meanwhile
+                    return;
+                }
+            }
+        }
+
+        void send (ISOMsg m) throws IOException, ISOException {
+            String k = isRequest (m) ? getKey (m) : null;
+            if (k != null) {
+                synchronized (this) {
+                    if (outstanding.size() >= MAX_OUTSTANDING) {
+                        Iterator<Long> iter = outstanding.values().iterator();
+                        iter.next();
+                        iter.remove();
+                    }
+                    outstanding.put (k, System.nanoTime());
+                }
+            }
+            channel.send (m);
+        }
+
+        void failed (Throwable e) {
+            if (!up)
+                return;
+            up = false;
+            Logger.log (new LogEvent (ChannelPool.this, "member-" + index + "-failed", e.getMessage()));
+            synchronized (this) {
+                outstanding.clear();
+            }
+            sample (-1.0, true);
+            try {
+                channel.disconnect ();
+            } catch (IOException ignored) { }
+        }
+
+        /**
+         * @return selection weight, higher is better
+         */
+        synchronized double weight () {
+            return 1.0 / ((rtt + 1.0) * (1.0 + 10.0 * errorRate));
+        }
+
+        private void response (ISOMsg m) {
+            if (isRequest (m))
+                return;
+            String k = getKey (m);
+            Long t = null;
+            if (k != null) {
+                synchronized (this) {
+                    t = outstanding.remove (k);
+                }
+            }
+            sample (t != null ? (System.nanoTime() - t) / 1000000.0 : -1.0, false);
+        }
+        private synchronized void sample (double millis, boolean error) {
+            if (millis >= 0.0)
+                rtt = rtt == 0.0 ? millis : rtt + ALPHA * (millis - rtt);
+            errorRate += ALPHA * ((error ? 1.0 : 0.0) - errorRate);
+        }
+        private void signal () {
+            Member[] mm = members;
+            if (mm != null) {
+                synchronized (mm) {
+                    mm.notifyAll();
+                }
+            }
+        }
+        private void sleep () {
+            try {
+                Thread.sleep (reconnectDelay);
+            } catch (InterruptedException ignored) { }
+        }
+        private String getKey (ISOMsg m) {
+            StringBuilder sb = new StringBuilder();
+            boolean hasFields = false;
+            for (String f : key) {
+                String v = m.getString (f);
+                if (v != null) {
+                    sb.append (v);
+                    hasFields = true;
+                }
+                sb.append ('|');
+            }
+            return hasFields ? sb.toString() : null;
+        }
+        private boolean isRequest (ISOMsg m) {
+            try {
+                return m.isRequest();
+            } catch (ISOException e) {
+                return false;
+            }
+        }
+        public synchronized String toString () {
+            return "member-" + index + (up ? " up" : " down")
+                + String.format (" rtt=%.2fms errors=%.3f outstanding=%d",
+                    rtt, errorRate, outstanding.size());
+        }
+    }
 }
 
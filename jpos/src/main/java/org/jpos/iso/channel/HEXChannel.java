@@ -19,8 +19,6 @@
 package org.jpos.iso.channel;
 
 import org.jpos.iso.*;
-import org.jpos.util.LogEvent;
-import org.jpos.util.Logger;
 
 import java.io.IOException;
 import java.net.ServerSocket;
@@ -76,22 +74,8 @@ public class HEXChannel extends BaseChannel {
         super(p, serverSocket);
         this.header = TPDU;
     }
-    protected void sendMessageLength(int len) throws IOException {
-        if (len > 0xFFFF)
-            throw new IOException (len + " exceeds maximum length");
-        try {
-            serverOut.write (
-                ISOUtil.zeropad (Integer.toString (len % 0xFFFF,16), 4).getBytes()
-            );
-        } 
-        catch (ISOException e) {
-            Logger.log (new LogEvent (this, "send-message-length", e));
-        }
-    }
-    protected int getMessageLength() throws IOException, ISOException {
-        byte[] b = new byte[4];
-        serverIn.readFully(b,0,4);
-        return Integer.parseInt (new String(b),16);
+    public FrameCodec getFrameCodec() {
+        return AsciiFrameCodec.HHHH;
     }
 }
 
@@ -100,6 +100,9 @@ public class LogChannel extends BaseChannel {
         super.connect (socket);
         reader = new BufferedReader (new InputStreamReader (serverIn));
     }
+    protected boolean isInputPending () throws IOException {
+        return super.isInputPending() || (reader != null && reader.ready());
+    }
     public void disconnect () throws IOException {
         super.disconnect ();
         reader = null;
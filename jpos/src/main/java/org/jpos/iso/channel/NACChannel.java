@@ -81,14 +81,8 @@ public class NACChannel extends BaseChannel {
         super(p, serverSocket);
         this.header = TPDU;
     }
-    protected void sendMessageLength(int len) throws IOException {
-        serverOut.write (len >> 8);
-        serverOut.write (len);
-    }
-    protected int getMessageLength() throws IOException, ISOException {
-        byte[] b = new byte[2];
-        serverIn.readFully(b,0,2);
-        return ((((int)b[0])&0xFF) << 8) | (((int)b[1])&0xFF);
+    public FrameCodec getFrameCodec() {
+        return BinaryFrameCodec.BB;
     }
     protected void sendMessageHeader(ISOMsg m, int len) throws IOException { 
         byte[] h = m.getHeader();
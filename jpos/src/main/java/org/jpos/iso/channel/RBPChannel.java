@@ -19,9 +19,7 @@
 package org.jpos.iso.channel;
 
 import org.jpos.iso.BaseChannel;
-import org.jpos.iso.ISOException;
-
-import java.io.IOException;
+import org.jpos.iso.FrameCodec;
 
 /**
  * Implements Record Boundary Preservation protocol
@@ -30,15 +28,9 @@ public class RBPChannel extends BaseChannel {
     static final byte[] PROTOCOL_IDENTIFIER = new byte[] {(byte) 0xd0, 0x4a };
     static final byte[] MORE = new byte[] {(byte) 0x01, 0x00 };
     static final byte[] LAST = new byte[] {(byte) 0x00, 0x00 };
-    protected void sendMessageLength(int len) throws IOException {
-        serverOut.write (PROTOCOL_IDENTIFIER);
-        serverOut.write (len >> 8);
-        serverOut.write (len);
-        serverOut.write (LAST);
-    }
-    protected int getMessageLength() throws IOException, ISOException {
-        byte[] b = new byte[6];
-        serverIn.readFully(b,0,6);
-        return ((((int)b[2])&0xFF) << 8) | (((int)b[3])&0xFF);
+    static final FrameCodec CODEC =
+        new BinaryFrameCodec (PROTOCOL_IDENTIFIER, 2, LAST, 0, null, false);
+    public FrameCodec getFrameCodec() {
+        return CODEC;
     }
 }
@@ -79,19 +79,8 @@ public class RawChannel extends BaseChannel {
         super(p, serverSocket);
         this.header = header;
     }
-    protected void sendMessageLength(int len) throws IOException {
-        serverOut.write (len >> 24);
-        serverOut.write (len >> 16);
-        serverOut.write (len >> 8);
-        serverOut.write (len);
-    }
-    protected int getMessageLength() throws IOException, ISOException {
-        byte[] b = new byte[4];
-        serverIn.readFully(b,0,4);
-        return ((((int)b[0])&0xFF) << 24) |
-        ((((int)b[1])&0xFF) << 16) |
-        ((((int)b[2])&0xFF) << 8) |
-        (((int)b[3])&0xFF);
+    public FrameCodec getFrameCodec() {
+        return BinaryFrameCodec.BBBB;
     }
     /**
      * New QSP compatible signature (see QSP's ConfigChannel)
@@ -156,6 +156,10 @@ public class TelnetXMLChannel extends BaseChannel {
         reader = new BufferedReader(new InputStreamReader(serverIn));
     }
 
+    protected boolean isInputPending() throws IOException {
+        return super.isInputPending() || (reader != null && reader.ready());
+    }
+
     public void disconnect() throws IOException {
         super.disconnect();
         if (reader != null)
@@ -22,6 +22,7 @@ import org.jpos.iso.*;
 import org.jpos.util.LogEvent;
 import org.jpos.util.Logger;
 
+import java.nio.ByteBuffer;
 import java.util.BitSet;
 import java.util.ArrayList;
 import java.util.List;
@@ -115,6 +116,11 @@ public class Base1SubFieldPackager extends ISOBasePackager
         }
     }
 
+    public int pack (ISOComponent m, ByteBuffer buf) throws ISOException
+    {
+        return put (pack (m), buf);
+    }
+
     /**
      * Pack the subfield into a byte array
      */ 
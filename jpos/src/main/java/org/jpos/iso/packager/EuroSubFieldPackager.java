@@ -22,6 +22,7 @@ import org.jpos.iso.*;
 import org.jpos.util.LogEvent;
 import org.jpos.util.Logger;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +53,11 @@ public class EuroSubFieldPackager extends ISOBasePackager
         return false;
     }
 
+    @Override
+    public int pack (ISOComponent c, ByteBuffer buf) throws ISOException {
+        return put (pack (c), buf);
+    }
+
     @Override
     public byte[] pack (ISOComponent c) throws ISOException {
         LogEvent evt = new LogEvent (this, "pack");
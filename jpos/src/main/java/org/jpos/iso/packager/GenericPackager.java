@@ -47,6 +47,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -104,6 +106,9 @@ public class GenericPackager
     private String firstField = null;
     private String filename;
 
+    private static final ConcurrentMap<String,Definition> definitions =
+        new ConcurrentHashMap<String,Definition>();
+
     public GenericPackager() throws ISOException
     {
         super();
@@ -137,8 +142,17 @@ public class GenericPackager
      *  <li>packager-config
      *  <li>packager-logger
      *  <li>packager-realm
+     *  <li>packager-lazy-unpack
+     *  <li>packager-compile
+     *  <li>packager-cache (defaults to true)
      * </ul>
      *
+     * Unless packager-cache is false, the parsed definition is kept in a
+     * process wide cache keyed by the resolved file (or classpath resource)
+     * and its modification time, so packagers configured with the same
+     * file share their (stateless) field packagers and the XML is parsed
+     * again only when the file changes.
+     *
      * @param cfg Configuration
      */
     public void setConfiguration (Configuration cfg) 
@@ -154,13 +168,85 @@ public class GenericPackager
             if (loggerName != null)
                 setLogger(Logger.getLogger (loggerName), 
                            cfg.get ("packager-realm"));
-            readFile(filename);
+            setLazyUnpack (cfg.getBoolean ("packager-lazy-unpack"));
+            boolean compile = cfg.getBoolean ("packager-compile");
+            if (cfg.getBoolean ("packager-cache", true) && isCacheable()) {
+                load (filename, compile, loggerName + "|" + cfg.get ("packager-realm"));
+            } else {
+                readFile(filename);
+                if (compile)
+                    compileFieldPackagers();
+            }
         } catch (ISOException e)
         {
             throw new ConfigurationException(e.getMessage(), e.fillInStackTrace());
         }
     }
 
+    /**
+     * Adopts a cached definition of filename, parsing it if it is not
+     * cached yet or the file has been modified since it was cached.
+     */
+    private void load (String filename, boolean compile, String logging)
+        throws ISOException
+    {
+        String resource = null;
+        long lastModified = 0L;
+        try {
+            if (filename.startsWith("jar:") && filename.length()>4) {
+                ClassLoader cl = Thread.currentThread().getContextClassLoader();
+                URL url = cl.getResource(filename.substring(4));
+                if (url != null) {
+                    resource = url.toString();
+                    if ("file".equals (url.getProtocol()))
+                        lastModified = new File (url.toURI()).lastModified();
+                }
+            } else {
+                File f = new File (filename);
+                if (f.isFile()) {
+                    resource = f.getCanonicalPath();
+                    lastModified = f.lastModified();
+                }
+            }
+        } catch (Exception e) {
+            resource = null;
+        }
+        if (resource == null) {
+            // not a local file or resource, don't cache
+            readFile(filename);
+            if (compile)
+                compileFieldPackagers();
+            return;
+        }
+        String key = getClass().getName() + "|" + resource + "|" + compile + "|" + logging;
+        Definition d = definitions.get (key);
+        if (d == null || d.lastModified != lastModified) {
+            readFile(filename);
+            if (compile)
+                compileFieldPackagers();
+            definitions.put (key, new Definition (this, lastModified));
+        } else {
+            d.copyTo (this);
+        }
+    }
+
+    /**
+     * Subclasses that parse additional state can't use the definition cache
+     */
+    private boolean isCacheable() {
+        for (Class<?> c = getClass(); c != GenericPackager.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod ("readFile", String.class);
+                return false;
+            } catch (NoSuchMethodException ignored) { }
+            try {
+                c.getDeclaredMethod ("setGenericPackagerParams", Attributes.class);
+                return false;
+            } catch (NoSuchMethodException ignored) { }
+        }
+        return true;
+    }
+
     @Override
     protected int getMaxValidField()
     {
@@ -294,6 +380,39 @@ public class GenericPackager
         	setHeaderLength(Integer.parseInt(headerLenStr));
     }
 
+    /**
+     * Parsed packager definition (field packagers are shared, the
+     * fld array itself is copied so that setFieldPackager on one
+     * instance doesn't affect the others)
+     */
+    private static class Definition {
+        final long lastModified;
+        final ISOFieldPackager[] fld;
+        final int maxValidField;
+        final boolean emitBitmap;
+        final int bitmapField;
+        final String firstField;
+        final int headerLength;
+
+        Definition (GenericPackager p, long lastModified) {
+            this.lastModified = lastModified;
+            this.fld = p.fld != null ? p.fld.clone() : null;
+            this.maxValidField = p.maxValidField;
+            this.emitBitmap = p.emitBitmap;
+            this.bitmapField = p.bitmapField;
+            this.firstField = p.firstField;
+            this.headerLength = p.headerLength;
+        }
+        void copyTo (GenericPackager p) {
+            p.fld = fld != null ? fld.clone() : null;
+            p.maxValidField = maxValidField;
+            p.emitBitmap = emitBitmap;
+            p.bitmapField = bitmapField;
+            p.firstField = firstField;
+            p.headerLength = headerLength;
+        }
+    }
+
     public static class GenericEntityResolver implements EntityResolver
     {
         /**
@@ -26,6 +26,7 @@ import org.xml.sax.Attributes;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -143,6 +144,11 @@ public class GenericTaggedFieldsPackager extends GenericPackager {
         }
     }
 
+    @Override
+    public int pack(ISOComponent m, ByteBuffer buf) throws ISOException {
+        return put(pack(m), buf);
+    }
+
     /**
      * Pack the subfield into a byte array
      */
@@ -0,0 +1,107 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.q2.cli;
+
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ChannelMetrics;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOServer;
+import org.jpos.q2.CLICommand;
+import org.jpos.q2.CLIContext;
+import org.jpos.q2.iso.QServer;
+import org.jpos.util.NameRegistrar;
+
+import java.util.Map;
+
+public class METRICS implements CLICommand
+{
+    public void exec(CLIContext cli, String[] args) throws Exception
+    {
+        boolean reset = args.length > 1 && "-r".equals(args[1]);
+        int i = reset ? 2 : 1;
+        if (args.length > i)
+        {
+            for (; i < args.length; i++)
+            {
+                try
+                {
+                    if (!show(cli, args[i], NameRegistrar.get(args[i]), reset))
+                    {
+                        cli.println("Object '" + args[i] + "' is not a channel or server");
+                    }
+                }
+                catch (NameRegistrar.NotFoundException e)
+                {
+                    cli.println("Object '" + args[i] + "' not found in NameRegistrar");
+                }
+            }
+        }
+        else
+        {
+            for (Map.Entry<String,Object> entry : NameRegistrar.getMap().entrySet())
+            {
+                show(cli, entry.getKey(), entry.getValue(), reset);
+            }
+        }
+        cli.getOutputStream().flush();
+    }
+
+    private boolean show(CLIContext cli, String name, Object obj, boolean reset)
+    {
+        ChannelMetrics metrics;
+        if (obj instanceof QServer)
+        {
+            obj = ((QServer) obj).getISOServer();
+        }
+        if (obj instanceof BaseChannel)
+        {
+            metrics = ((BaseChannel) obj).getMetrics();
+        }
+        else if (obj instanceof ISOServer)
+        {
+            metrics = ((ISOServer) obj).getMetrics();
+        }
+        else
+        {
+            return false;
+        }
+        cli.println(name);
+        metrics.dump(cli.getOutputStream(), "   ");
+        if (reset)
+        {
+            if (obj instanceof BaseChannel)
+            {
+                metrics.reset();
+            }
+            else
+            {
+                ISOServer server = (ISOServer) obj;
+                for (String s : server.getISOChannelNames().split(" "))
+                {
+                    ISOChannel c = server.getISOChannel(s);
+                    if (c instanceof BaseChannel)
+                    {
+                        ((BaseChannel) c).getMetrics().reset();
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
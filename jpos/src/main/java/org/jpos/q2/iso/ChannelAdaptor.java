@@ -23,6 +23,7 @@ import org.jpos.core.ConfigurationException;
 import org.jpos.iso.*;
 import org.jpos.q2.QBeanSupport;
 import org.jpos.q2.QFactory;
+import org.jpos.space.LocalSpace;
 import org.jpos.space.Space;
 import org.jpos.space.SpaceFactory;
 import org.jpos.util.LogSource;
@@ -32,10 +33,29 @@ import org.jpos.util.NameRegistrar;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.SocketTimeoutException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * <p>The <code>in</code> queue can be bounded using <code>max-queue-size</code>,
+ * in which case <code>queue-policy</code> defines what happens when it is full:</p>
+ * <ul>
+ *  <li><b>reject</b> (default) - {@link #send(ISOMsg)} throws IllegalStateException,
+ *      {@link #offer(ISOMsg)} returns false</li>
+ *  <li><b>drop-oldest</b> - oldest queued message is discarded</li>
+ *  <li><b>block</b> - caller waits up to <code>queue-block-timeout</code> millis (0 = forever)
+ *      for room in the queue, then it's rejected</li>
+ * </ul>
+ * <p>Bounds require a {@link LocalSpace}. A QMUX whose <code>out</code> queue is
+ * this adaptor's <code>in</code> queue (on the same space) goes through the same
+ * policy, a rejected request fails with an ISOException. Messages other
+ * producers place directly in the Space are only affected by the
+ * drop-oldest policy.</p>
+ *
  * @author Alejandro Revilla
  */
 @SuppressWarnings("unchecked")
@@ -57,6 +77,20 @@ public class ChannelAdaptor
     private Thread receiver;
     private Thread sender;
     private final Object disconnectLock = Boolean.TRUE;
+    public static final String POLICY_REJECT = "reject";
+    public static final String POLICY_DROP_OLDEST = "drop-oldest";
+    public static final String POLICY_BLOCK = "block";
+    int maxQueueSize;
+    String queuePolicy = POLICY_REJECT;
+    long queueBlockTimeout;
+    private final Object queueLock = new Object();
+    private static final long QUEUE_RECHECK_INTERVAL = 100L;
+    private final Map<ISOMsg,Long> enqueued = Collections.synchronizedMap (new WeakHashMap<ISOMsg,Long>());
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dequeued = new AtomicLong();
+    private final AtomicLong totalQueueLatency = new AtomicLong();
+    private final AtomicLong maxQueueLatency = new AtomicLong();
 
     public ChannelAdaptor () {
         super ();
@@ -148,17 +182,37 @@ public class ChannelAdaptor
     /**
      * Queue a message to be transmitted by this adaptor
      * @param m message to send
+     * @throws IllegalStateException if the queue is bounded and full
      */
     public void send (ISOMsg m) {
-        sp.out (in, m);
+        if (maxQueueSize <= 0)
+            sp.out (in, m);
+        else if (!enqueue (m, 0L))
+            throw new IllegalStateException ("queue " + in + " full");
     }
     /**
      * Queue a message to be transmitted by this adaptor
      * @param m message to send
      * @param timeout 
+     * @throws IllegalStateException if the queue is bounded and full
      */
     public void send (ISOMsg m, long timeout) {
-        sp.out (in, m, timeout);
+        if (maxQueueSize <= 0)
+            sp.out (in, m, timeout);
+        else if (!enqueue (m, timeout))
+            throw new IllegalStateException ("queue " + in + " full");
+    }
+    /**
+     * Queue a message to be transmitted by this adaptor
+     * @param m message to send
+     * @return false if the queue is bounded and the message was rejected
+     */
+    public boolean offer (ISOMsg m) {
+        if (maxQueueSize <= 0) {
+            sp.out (in, m);
+            return true;
+        }
+        return enqueue (m, 0L);
     }
 
     /**
@@ -267,6 +321,20 @@ public class ChannelAdaptor
         ready   = getName() + ".ready";
         reconnect = getName() + ".reconnect";
         waitForWorkersOnStop = "yes".equalsIgnoreCase(persist.getChildTextTrim ("wait-for-workers-on-stop"));
+        s = persist.getChildTextTrim ("max-queue-size");
+        maxQueueSize = s != null && s.length() > 0 ? Integer.parseInt (s) : 0;
+        s = persist.getChildTextTrim ("queue-policy");
+        if (s != null && s.length() > 0) {
+            if (!POLICY_REJECT.equals (s) && !POLICY_DROP_OLDEST.equals (s) && !POLICY_BLOCK.equals (s))
+                throw new ConfigurationException ("invalid queue-policy '" + s + "'");
+            queuePolicy = s;
+        }
+        s = persist.getChildTextTrim ("queue-block-timeout");
+        queueBlockTimeout = s != null && s.length() > 0 ? Long.parseLong (s) : 0L;
+        if (maxQueueSize > 0 && !(sp instanceof LocalSpace)) {
+            getLog().warn ("max-queue-size requires a LocalSpace, queue is unbounded");
+            maxQueueSize = 0;
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -281,8 +349,10 @@ public class ChannelAdaptor
                     checkConnection ();
                     if (!running())
                         break;
+                    trimQueue ();
                     Object o = sp.in (in, delay);
                     if (o instanceof ISOMsg) {
+                        dequeued ((ISOMsg) o);
                         channel.send ((ISOMsg) o);
                         tx++;
                     }
@@ -418,6 +488,11 @@ public class ChannelAdaptor
     public void resetCounters () {
         rx = tx = connects = 0;
         lastTxn = 0l;
+        dropped.set (0L);
+        rejected.set (0L);
+        dequeued.set (0L);
+        totalQueueLatency.set (0L);
+        maxQueueLatency.set (0L);
     }
     public String getCountersAsString () {
         StringBuffer sb = new StringBuffer();
@@ -431,6 +506,12 @@ public class ChannelAdaptor
             sb.append(System.currentTimeMillis() - lastTxn);
             sb.append ("ms");
         }
+        if (maxQueueSize > 0) {
+            append (sb, ", queue=", getQueueDepth());
+            append (sb, "/", maxQueueSize);
+            sb.append (", dropped=").append (dropped.get());
+            sb.append (", rejected=").append (rejected.get());
+        }
         return sb.toString();
     }
     public int getTXCounter() {
@@ -451,6 +532,132 @@ public class ChannelAdaptor
     public String getSocketFactory() {
         return getProperty(getProperties ("channel"), "socketFactory");
     }
+    /**
+     * @return number of messages waiting in the <code>in</code> queue,
+     * -1 if unknown (not a LocalSpace)
+     */
+    public int getQueueDepth() {
+        return sp instanceof LocalSpace ? ((LocalSpace) sp).size (in) : -1;
+    }
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+    /**
+     * @param maxQueueSize max number of messages in the <code>in</code> queue, 0 for unbounded
+     */
+    public void setMaxQueueSize (int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+    public String getQueuePolicy() {
+        return queuePolicy;
+    }
+    public long getDroppedCounter() {
+        return dropped.get();
+    }
+    public long getRejectedCounter() {
+        return rejected.get();
+    }
+    /**
+     * @return average time (millis) messages queued through this adaptor
+     * waited in the <code>in</code> queue
+     */
+    public long getAverageQueueLatency() {
+        long n = dequeued.get();
+        return n > 0 ? totalQueueLatency.get() / n : 0L;
+    }
+    public long getMaxQueueLatency() {
+        return maxQueueLatency.get();
+    }
+
+    /**
+     * Bounded queue put, applies the queue policy
+     * @return false if the message was rejected
+     */
+    boolean enqueue (ISOMsg m, long timeout) {
+        synchronized (queueLock) {
+            if (POLICY_DROP_OLDEST.equals (queuePolicy)) {
+                trimQueue (maxQueueSize - 1);
+            } else if (getQueueDepth() >= maxQueueSize) {
+                if (POLICY_BLOCK.equals (queuePolicy)) {
+                    long end = System.currentTimeMillis() + queueBlockTimeout;
+                    try {
+                        while (running()) {
+                            sp.rdp (in); // purges expired entries from the queue's head
+                            if (getQueueDepth() < maxQueueSize)
+                                break;
+                            // entries expiring in the Space don't notify, recheck periodically
+                            long wait = QUEUE_RECHECK_INTERVAL;
+                            if (queueBlockTimeout > 0) {
+                                long remaining = end - System.currentTimeMillis();
+                                if (remaining <= 0)
+                                    break;
+                                wait = Math.min (remaining, wait);
+                            }
+                            queueLock.wait (wait);
+                        }
+                    } catch (InterruptedException ignored) { }
+                }
+                if (getQueueDepth() >= maxQueueSize) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+            }
+            enqueued.put (m, System.currentTimeMillis());
+            if (timeout > 0)
+                sp.out (in, m, timeout);
+            else
+                sp.out (in, m);
+        }
+        return true;
+    }
+    /**
+     * Called by the sender with every message taken from the <code>in</code> queue
+     * @param m message about to be sent
+     */
+    void dequeued (ISOMsg m) {
+        if (maxQueueSize <= 0)
+            return;
+        Long t = enqueued.remove (m);
+        if (t != null) {
+            long elapsed = System.currentTimeMillis() - t;
+            dequeued.incrementAndGet();
+            totalQueueLatency.addAndGet (elapsed);
+            long max;
+            while (elapsed > (max = maxQueueLatency.get()) && !maxQueueLatency.compareAndSet (max, elapsed))
+                ;
+        }
+        if (POLICY_BLOCK.equals (queuePolicy)) {
+            synchronized (queueLock) {
+                queueLock.notifyAll();
+            }
+        }
+    }
+    /**
+     * With the drop-oldest policy, discards messages written straight to
+     * the Space beyond <code>max-queue-size</code>
+     */
+    void trimQueue () {
+        if (maxQueueSize > 0 && POLICY_DROP_OLDEST.equals (queuePolicy))
+            trimQueue (maxQueueSize);
+    }
+    private void trimQueue (int size) {
+        boolean trimmed = false;
+        while (getQueueDepth() > size) {
+            Object o = sp.inp (in);
+            if (o == null)
+                break;
+            trimmed = true;
+            if (o instanceof ISOMsg) {
+                enqueued.remove (o);
+                dropped.incrementAndGet();
+            }
+        }
+        if (trimmed) {
+            synchronized (queueLock) {
+                queueLock.notifyAll();
+            }
+        }
+    }
     public void dump (PrintStream p, String indent) {
         p.println (indent + getCountersAsString());
     }
@@ -47,4 +47,12 @@ public interface ChannelAdaptorMBean extends QBeanSupportMBean {
     public int getConnectsCounter();
     public long getLastTxnTimestampInMillis();
     public long getIdleTimeInMillis();
+    public int getQueueDepth();
+    public int getMaxQueueSize();
+    public void setMaxQueueSize(int maxQueueSize);
+    public String getQueuePolicy();
+    public long getDroppedCounter();
+    public long getRejectedCounter();
+    public long getAverageQueueLatency();
+    public long getMaxQueueLatency();
 }
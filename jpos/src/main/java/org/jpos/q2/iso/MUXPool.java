@@ -22,33 +22,102 @@ import org.jdom.Element;
 import org.jpos.core.ConfigurationException;
 import org.jpos.iso.*;
 import org.jpos.q2.QBeanSupport;
+import org.jpos.util.Histogram;
+import org.jpos.util.Loggeable;
 import org.jpos.util.NameRegistrar;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Random;
 import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Spreads requests among a set of MUXes.
+ *
+ * <p>Supported strategies are <b>primary-secondary</b> (default),
+ * <b>round-robin</b>, <b>least-pending</b> (fewest requests awaiting a response
+ * through this pool), <b>ewma</b> (random, weighted by the inverse of each
+ * member's average response time) and <b>power-of-two</b> (best of two random
+ * members, by average response time times pending requests).</p>
+ *
+ * <p>If <code>breaker-timeout-rate</code> (0.0-1.0) is set, a member whose
+ * recent timeout rate reaches it (after at least <code>breaker-min-requests</code>)
+ * is skipped for <code>breaker-open-time</code> millis; then its next
+ * request decides whether it's closed again or stays open.</p>
+ *
+ * <p>Synchronous requests whose type is listed in <code>hedge</code>
+ * (space separated MTIs, optionally followed by <code>:</code> and a
+ * processing code prefix, i.e. <code>0100:31 0200:31</code>) are hedged:
+ * if no response arrives within the <code>hedge-percentile</code> (default 95)
+ * of the selected member's recent response times, a copy is sent through
+ * a second member and the first response wins. Only list duplicate-safe
+ * messages; reversals (x4xx) are rejected.</p>
+ *
  * @author apr
  */
-public class MUXPool extends QBeanSupport implements MUX {
+public class MUXPool extends QBeanSupport implements AsyncMUX, MUXPoolMBean, Loggeable {
     int strategy = 0;
     String[] muxName;
     MUX[] mux;
+    Member[] members;
     AtomicInteger msgno = new AtomicInteger();
+    double breakerTimeoutRate;
+    int breakerMinRequests;
+    long breakerOpenTime;
+    String[] hedgeTypes;
+    double hedgePercentile;
+    final AtomicLong hedged = new AtomicLong();
+    final AtomicLong hedgeWins = new AtomicLong();
+    static final int HEDGE_WINDOW = 1000;
+    static final int HEDGE_MIN_SAMPLES = 20;
     public static final int ROUND_ROBIN = 1;
     public static final int PRIMARY_SECONDARY = 0;
+    public static final int LEAST_PENDING = 2;
+    public static final int EWMA = 3;
+    public static final int POWER_OF_TWO = 4;
+    private static final String[] STRATEGIES = {
+        "primary-secondary", "round-robin", "least-pending", "ewma", "power-of-two"
+    };
+    private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
        
     public void initService () throws ConfigurationException {
         Element e = getPersist ();
         muxName = toStringArray(e.getChildTextTrim ("muxes"));
         String s = e.getChildTextTrim ("strategy");
-        strategy = "round-robin".equals (s) ? ROUND_ROBIN : PRIMARY_SECONDARY;
+        strategy = PRIMARY_SECONDARY;
+        for (int i=0; i<STRATEGIES.length; i++) {
+            if (STRATEGIES[i].equals (s))
+                strategy = i;
+        }
+        breakerTimeoutRate = cfg.getDouble ("breaker-timeout-rate", 0D);
+        breakerMinRequests = cfg.getInt ("breaker-min-requests", 20);
+        breakerOpenTime = cfg.getLong ("breaker-open-time", 30000L);
+        hedgeTypes = toStringArray (e.getChildTextTrim ("hedge"));
+        if (hedgeTypes != null) {
+            for (String t : hedgeTypes) {
+                if (t.length() < 4 || t.charAt (1) == '4')
+                    throw new ConfigurationException ("invalid hedge type '" + t + "' (reversals can't be hedged)");
+            }
+        }
+        hedgePercentile = cfg.getDouble ("hedge-percentile", 95D);
 
         mux = new MUX[muxName.length];
+        members = new Member[muxName.length];
         try {
-            for (int i=0; i<mux.length; i++)
+            for (int i=0; i<mux.length; i++) {
                 mux[i] = QMUX.getMUX (muxName[i]);
+                members[i] = new Member (muxName[i], mux[i]);
+            }
         } catch (NameRegistrar.NotFoundException ex) {
             throw new ConfigurationException (ex);
         }
@@ -59,27 +128,37 @@ public class MUXPool extends QBeanSupport implements MUX {
     }
     public ISOMsg request (ISOMsg m, long timeout) throws ISOException {
         long maxWait = System.currentTimeMillis() + timeout;
-        MUX mux = strategy == ROUND_ROBIN ?
-            nextAvailableMUX (msgno.incrementAndGet(), maxWait) :
-            firstAvailableMUX (maxWait);
+        Member member = availableMember (msgno.incrementAndGet(), maxWait);
 
-        if (mux != null) {
+        if (member != null) {
             timeout = maxWait - System.currentTimeMillis();
-            if (timeout >= 0)
-                return mux.request (m, timeout);
+            if (timeout >= 0 && isHedgeable (m)) {
+                long delay = member.hedgeDelay (hedgePercentile);
+                if (delay > 0L && delay < timeout)
+                    return hedgedRequest (member, m, delay, maxWait);
+            }
+            if (timeout >= 0) {
+                long start = member.start();
+                ISOMsg resp = null;
+                try {
+                    resp = member.mux.request (m, timeout);
+                } finally {
+                    member.completed (start, resp == null);
+                }
+                return resp;
+            }
         }
         return null;
     }
     public void send (ISOMsg m) throws ISOException, IOException {
         long maxWait = 1000L; // reasonable default
-        MUX mux = strategy == ROUND_ROBIN ?
-            nextAvailableMUX (msgno.incrementAndGet(), maxWait) :
-            firstAvailableMUX (maxWait);
+        Member member = availableMember (msgno.incrementAndGet(), maxWait);
 
-        if (mux == null)
+        if (member == null)
             throw new ISOException ("No available MUX");
 
-        mux.send(m);
+        member.selected.incrementAndGet();
+        member.mux.send(m);
     }
     public boolean isConnected() {
         for (MUX aMux : mux)
@@ -87,26 +166,151 @@ public class MUXPool extends QBeanSupport implements MUX {
                 return true;
         return false;
     }
-    private MUX firstAvailableMUX (long maxWait) {
+    /**
+     * @return true if m is of one of the (duplicate-safe) <code>hedge</code> types
+     */
+    boolean isHedgeable (ISOMsg m) throws ISOException {
+        if (hedgeTypes == null)
+            return false;
+        String mti = m.getMTI();
+        for (String t : hedgeTypes) {
+            if (t.startsWith (mti)) {
+                if (t.length() == mti.length())
+                    return true;
+                String pcode = m.getString (3);
+                if (t.charAt (mti.length()) == ':' && pcode != null
+                  && pcode.startsWith (t.substring (mti.length() + 1)))
+                    return true;
+            }
+        }
+        return false;
+    }
+    private ISOMsg hedgedRequest (Member first, ISOMsg m, long delay, long maxWait)
+        throws ISOException
+    {
+        MUXFuture f1 = requestAsync (first, m, maxWait - System.currentTimeMillis());
+        try {
+            ISOMsg resp = f1.get (delay, TimeUnit.MILLISECONDS);
+            if (resp != null || f1.isExpired())
+                return resp;
+        } catch (TimeoutException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        FirstResponse race = new FirstResponse();
+        f1.addResponseListener (race, first);
+        Member second = selectOther (first);
+        long timeout = maxWait - System.currentTimeMillis();
+        if (second != null && timeout > 0L) {
+            try {
+                MUXFuture f2 = requestAsync (second, (ISOMsg) m.clone(), timeout);
+                hedged.incrementAndGet();
+                race.expect();
+                f2.addResponseListener (race, second);
+            } catch (ISOException e) {
+                getLog().warn ("hedge", e);
+            }
+        }
+        ISOMsg resp = race.await (maxWait);
+        if (resp != null && race.winner == second)
+            hedgeWins.incrementAndGet();
+        return resp;
+    }
+    /**
+     * @return best scored available member other than the given one
+     */
+    private Member selectOther (Member exclude) {
+        long now = System.currentTimeMillis();
+        Member best = null;
+        for (Member m : members) {
+            if (m != exclude && m.isAvailable (now) && (best == null || m.score() < best.score()))
+                best = m;
+        }
+        return best;
+    }
+    /**
+     * Waits up to maxWait for an available member
+     */
+    private Member availableMember (int mnumber, long maxWait) {
         do {
-            for (MUX aMux : mux)
-                if (aMux.isConnected())
-                    return aMux;
+            Member m = select (mnumber);
+            if (m != null)
+                return m;
             ISOUtil.sleep (1000);
         } while (System.currentTimeMillis() < maxWait);
         return null;
     }
-    private MUX nextAvailableMUX (int mnumber, long maxWait) {
-        do {
-            for (int i=0; i<mux.length; i++) {
-                int j = (mnumber+i) % mux.length;
-                if (mux[j].isConnected())
-                    return mux[j];
-                msgno.incrementAndGet();
+    /**
+     * Picks a member according to the strategy, without waiting
+     * @return member or null if none is available
+     */
+    private Member select (int mnumber) {
+        long now = System.currentTimeMillis();
+        switch (strategy) {
+            case ROUND_ROBIN:
+                for (int i=0; i<members.length; i++) {
+                    Member m = members[(mnumber+i) % members.length];
+                    if (m.isAvailable (now))
+                        return m;
+                }
+                return null;
+            case LEAST_PENDING:
+                Member best = null;
+                for (int i=0; i<members.length; i++) {
+                    Member m = members[(mnumber+i) % members.length]; // rotate ties
+                    if (m.isAvailable (now) && (best == null || m.pending.get() < best.pending.get()))
+                        best = m;
+                }
+                return best;
+            case EWMA:
+                return weightedByLatency (now);
+            case POWER_OF_TWO:
+                return bestOfTwo (now);
+            default:
+                for (Member m : members)
+                    if (m.isAvailable (now))
+                        return m;
+                return null;
+        }
+    }
+    private Member weightedByLatency (long now) {
+        double[] weights = new double[members.length];
+        double total = 0D;
+        for (int i=0; i<members.length; i++) {
+            if (members[i].isAvailable (now)) {
+                weights[i] = 1D / (members[i].latency.get() + 1L);
+                total += weights[i];
             }
-            ISOUtil.sleep (1000);
-        } while (System.currentTimeMillis() < maxWait);
-        return null;
+        }
+        if (total == 0D)
+            return null;
+        double r = random.get().nextDouble() * total;
+        int last = -1;
+        for (int i=0; i<members.length; i++) {
+            if (weights[i] > 0D) {
+                last = i;
+                r -= weights[i];
+                if (r < 0D)
+                    return members[i];
+            }
+        }
+        return members[last];
+    }
+    private Member bestOfTwo (long now) {
+        Member[] available = new Member[members.length];
+        int n = 0;
+        for (Member m : members)
+            if (m.isAvailable (now))
+                available[n++] = m;
+        if (n < 2)
+            return n == 1 ? available[0] : null;
+        Random r = random.get();
+        int i = r.nextInt (n);
+        int j = r.nextInt (n-1);
+        if (j >= i)
+            j++;
+        return available[i].score() <= available[j].score() ? available[i] : available[j];
     }
     private String[] toStringArray (String s) {
         String[] ss = null;
@@ -124,14 +328,12 @@ public class MUXPool extends QBeanSupport implements MUX {
         int mnumber;
         long maxWait = System.currentTimeMillis() + timeout;
         mnumber = msgno.incrementAndGet();
-        MUX mux = strategy == ROUND_ROBIN ?
-        nextAvailableMUX (mnumber, maxWait) :
-        firstAvailableMUX (maxWait);
+        Member member = availableMember (mnumber, maxWait);
 
-        if (mux != null) {
+        if (member != null) {
             timeout = maxWait - System.currentTimeMillis();
             if (timeout >= 0)
-                mux.request(m, timeout,r, handBack);
+                requestAsync (member, m, timeout).addResponseListener (r, handBack);
             else {
                 new Thread() {
                     public void run() {
@@ -142,4 +344,214 @@ public class MUXPool extends QBeanSupport implements MUX {
         } else 
             throw new ISOException ("No MUX available");
     }
+    /**
+     * Unlike the other request methods, doesn't wait for a MUX to
+     * become available.
+     * @throws ISOException if no MUX is available
+     */
+    public MUXFuture requestAsync (ISOMsg m, long timeout) throws ISOException {
+        Member member = select (msgno.incrementAndGet());
+        if (member == null)
+            throw new ISOException ("No MUX available");
+        return requestAsync (member, m, timeout);
+    }
+    private MUXFuture requestAsync (final Member member, ISOMsg m, long timeout) throws ISOException {
+        final long start = member.start();
+        final MUXFuture f;
+        try {
+            if (member.mux instanceof AsyncMUX)
+                f = ((AsyncMUX) member.mux).requestAsync (m, timeout);
+            else {
+                f = new MUXFuture();
+                member.mux.request (m, timeout, f, null);
+            }
+        } catch (ISOException e) {
+            member.completed (start, true);
+            throw e;
+        }
+        f.addResponseListener (new ISOResponseListener() {
+            public void responseReceived (ISOMsg resp, Object handBack) {
+                member.completed (start, false);
+            }
+            public void expired (Object handBack) {
+                if (f.isCancelled())
+                    member.cancelled(); // says nothing about the member
+                else
+                    member.completed (start, true);
+            }
+        }, null);
+        return f;
+    }
+
+    public String getStrategy() {
+        return STRATEGIES[strategy];
+    }
+    public long getHedgedCounter() {
+        return hedged.get();
+    }
+    public long getHedgeWinsCounter() {
+        return hedgeWins.get();
+    }
+    public String[] getMemberStats() {
+        String[] stats = new String[members.length];
+        for (int i=0; i<members.length; i++)
+            stats[i] = members[i].toString();
+        return stats;
+    }
+    public void dump (PrintStream p, String indent) {
+        p.println (indent + "strategy=" + getStrategy());
+        if (hedgeTypes != null)
+            p.println (indent + "hedged=" + hedged.get() + ", hedge-wins=" + hedgeWins.get());
+        for (Member m : members)
+            p.println (indent + "  " + m);
+    }
+
+    /**
+     * First non-null response of a hedged request
+     */
+    static class FirstResponse implements ISOResponseListener {
+        int pending = 1;
+        ISOMsg response;
+        Object winner;
+
+        synchronized void expect() {
+            pending++;
+        }
+        public synchronized void responseReceived (ISOMsg m, Object handBack) {
+            if (response == null) {
+                response = m;
+                winner = handBack;
+            }
+            pending--;
+            notifyAll();
+        }
+        public synchronized void expired (Object handBack) {
+            pending--;
+            notifyAll();
+        }
+        synchronized ISOMsg await (long maxWait) {
+            try {
+                long now;
+                while (response == null && pending > 0 && (now = System.currentTimeMillis()) < maxWait)
+                    wait (maxWait - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Per MUX selection counters, response time EWMA and circuit breaker
+     */
+    class Member {
+        final String name;
+        final MUX mux;
+        final AtomicLong selected = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong trips = new AtomicLong();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicLong latency = new AtomicLong();     // EWMA, micros
+        final AtomicLong timeoutRate = new AtomicLong();  // EWMA, 0..1, double bits
+        final AtomicInteger samples = new AtomicInteger();
+        final AtomicLong openUntil = new AtomicLong();
+        final AtomicReference<Histogram> window = new AtomicReference<Histogram>(new Histogram());
+        volatile Histogram previous;
+
+        Member (String name, MUX mux) {
+            this.name = name;
+            this.mux = mux;
+        }
+        boolean isAvailable (long now) {
+            long until = openUntil.get();
+            return (until == 0L || now >= until) && mux.isConnected();
+        }
+        /**
+         * @param percentile percentile of recent response times to wait
+         * @return millis to wait before hedging, 0 if not enough samples
+         */
+        long hedgeDelay (double percentile) {
+            Histogram h = previous;
+            if (h == null)
+                h = window.get();
+            if (h.getCount() < HEDGE_MIN_SAMPLES)
+                return 0L;
+            return Math.max (1L, h.getPercentile (percentile) / 1000L);
+        }
+        long score() {
+            return (latency.get() + 1L) * (pending.get() + 1);
+        }
+        long start() {
+            selected.incrementAndGet();
+            pending.incrementAndGet();
+            return System.nanoTime();
+        }
+        void cancelled () {
+            pending.decrementAndGet();
+        }
+        void completed (long start, boolean timedOut) {
+            pending.decrementAndGet();
+            long elapsed = (System.nanoTime() - start) / 1000L;
+            long r;
+            do {
+                r = timeoutRate.get();
+            } while (!timeoutRate.compareAndSet (r, Double.doubleToLongBits (
+                ewma (Double.longBitsToDouble (r), timedOut ? 1D : 0D, 16))));
+            if (timedOut) {
+                timeouts.incrementAndGet();
+            } else {
+                // expired requests say nothing about response times
+                long l;
+                do {
+                    l = latency.get();
+                } while (!latency.compareAndSet (l, l == 0L ? elapsed : Math.round (ewma (l, elapsed, 8))));
+                Histogram h = window.get();
+                h.record (elapsed);
+                if (h.getCount() >= HEDGE_WINDOW && window.compareAndSet (h, new Histogram()))
+                    previous = h;
+            }
+            samples.incrementAndGet();
+            if (breakerTimeoutRate > 0D)
+                checkBreaker (timedOut);
+        }
+        /**
+         * @return recent timeout rate, 0 to 1
+         */
+        double getTimeoutRate() {
+            return Double.longBitsToDouble (timeoutRate.get());
+        }
+        private double ewma (double avg, double sample, int weight) {
+            return avg + (sample - avg) / weight;
+        }
+        private void checkBreaker (boolean timedOut) {
+            long now = System.currentTimeMillis();
+            long until = openUntil.get();
+            if (until != 0L) {
+                if (now >= until) {
+                    // half open, this result decides
+                    if (timedOut) {
+                        openUntil.compareAndSet (until, now + breakerOpenTime);
+                    } else if (openUntil.compareAndSet (until, 0L)) {
+                        timeoutRate.set (0L);
+                        samples.set (0);
+                    }
+                }
+            } else if (samples.get() >= breakerMinRequests
+                && getTimeoutRate() >= breakerTimeoutRate
+                && openUntil.compareAndSet (0L, now + breakerOpenTime))
+            {
+                trips.incrementAndGet();
+            }
+        }
+        public String toString() {
+            long until = openUntil.get();
+            return name + ": selected=" + selected.get()
+              + ", pending=" + pending.get()
+              + ", timeouts=" + timeouts.get()
+              + ", avg=" + latency.get() + "us"
+              + ", timeout-rate=" + Math.round (getTimeoutRate() * 1000D) / 10D + "%"
+              + ", trips=" + trips.get()
+              + (until > System.currentTimeMillis() ? ", open" : "");
+        }
+    }
 }
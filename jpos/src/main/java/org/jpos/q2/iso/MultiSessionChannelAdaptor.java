@@ -27,9 +27,34 @@ import org.jpos.util.Loggeable;
 import org.jpos.util.NameRegistrar;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * ChannelAdaptor running several sessions (connections) to the same endpoint.
+ * <p>
+ * Outgoing messages are sent through the connected session with the fewest
+ * outstanding requests (<code>balance</code> = <code>least-outstanding</code>,
+ * the default) or in plain round robin fashion
+ * (<code>balance</code> = <code>round-robin</code>).
+ * A request is outstanding from the time it is sent until a message with
+ * the same <code>key</code> fields (default <code>41, 11</code>) comes back
+ * on the same session, or until <code>in-flight-timeout</code> (default
+ * 60000ms) elapses. The same bookkeeping feeds per session latency
+ * statistics (see {@link #getSessionStats()}).
+ * <p>
+ * A session failing to send is disconnected and the message goes back to
+ * the head of the <code>in</code> queue, so it is sent through another
+ * session (or once a session reconnects). A message is requeued only once:
+ * if it fails again it is logged and dropped, as the failure is likely
+ * to repeat (and the failed write may have reached the host already).
+ *
  * @author apr
  * @since 1.8.5
  */
@@ -40,7 +65,11 @@ public class MultiSessionChannelAdaptor
 {
     int sessions = 1;
     ISOChannel[] channels;
+    Session[] sessionInfo;
     int roundRobinCounter = 0;
+    boolean roundRobin;
+    String[] key;
+    long inFlightTimeout = 60000L;
 
     public MultiSessionChannelAdaptor () {
         super ();
@@ -53,6 +82,7 @@ public class MultiSessionChannelAdaptor
     public void startService () {
         try {
             channels = new ISOChannel[sessions];
+            sessionInfo = new Session[sessions];
             for (int i=0; i<sessions; i++) {
                 ISOChannel c = initChannel();
                 if (c instanceof LogSource) {
@@ -61,6 +91,7 @@ public class MultiSessionChannelAdaptor
 
                 }
                 channels[i] = c;
+                sessionInfo[i] = new Session (i, c);
                 if (!writeOnly)
                     new Thread (new Receiver (i), "channel-receiver-" + in + "-" + i).start ();
             }
@@ -77,39 +108,92 @@ public class MultiSessionChannelAdaptor
     public void setSessions(int sessions) {
         this.sessions = sessions;
     }
+    /**
+     * @param i session number
+     * @return session i
+     */
+    public Session getSession (int i) {
+        return sessionInfo[i];
+    }
+    public String[] getSessionStats() {
+        Session[] ss = sessionInfo;
+        if (ss == null)
+            return new String[0];
+        String[] stats = new String[ss.length];
+        for (int i=0; i<ss.length; i++)
+            stats[i] = ss[i].toString();
+        return stats;
+    }
+    @Override
+    public void resetCounters () {
+        super.resetCounters();
+        Session[] ss = sessionInfo;
+        if (ss != null)
+            for (Session s : ss)
+                s.resetCounters();
+    }
+    @Override
+    public void dump (PrintStream p, String indent) {
+        super.dump (p, indent);
+        for (String s : getSessionStats())
+            p.println (indent + s);
+    }
     @SuppressWarnings("unchecked")
     public class Sender implements Runnable {
+        private final Map<ISOMsg,Boolean> retried = new WeakHashMap<ISOMsg,Boolean>();
         public Sender () {
             super ();
         }
         public void run () {
+            long nextExpiration = System.currentTimeMillis() + 1000L;
             while (running ()){
-                ISOChannel channel = null;
+                Session session = null;
+                Object o = null;
                 try {
                     if (!running())
                         break;
+                    long now = System.currentTimeMillis();
+                    if (now >= nextExpiration) {
+                        for (Session s : sessionInfo)
+                            s.expire (inFlightTimeout * 1000000L);
+                        nextExpiration = now + 1000L;
+                    }
                     if (sp.rd(ready, delay) == null)
                         continue;
-                    Object o = sp.in (in, delay);
-                    channel = getNextChannel(); // we want to call getNextChannel even if o is null so that
+                    trimQueue ();
+                    o = sp.in (in, delay);
+                    session = getNextSession(); // we want to call getNextSession even if o is null so that
                                                 // it can pull the 'ready' indicator.
                     if (o instanceof ISOMsg) {
-                        if (channel != null) {
-                            channel.send ((ISOMsg) o);
+                        if (session != null) {
+                            dequeued ((ISOMsg) o);
+                            session.send ((ISOMsg) o);
+                            if (!retried.isEmpty())
+                                retried.remove (o);
                             tx++;
+                        } else {
+                            sp.push (in, o); // no session available, keep it queued
                         }
                     }
                 } catch (ISOFilter.VetoException e) { 
                     getLog().warn ("channel-sender-"+in, e.getMessage ());
                 } catch (ISOException e) {
                     getLog().warn ("channel-sender-"+in, e.getMessage ());
-                    if (!ignoreISOExceptions) {
-                        disconnect (channel);
+                    if (!ignoreISOExceptions && session != null) {
+                        disconnect (session);
                     }
                     ISOUtil.sleep (1000); // slow down on errors
                 } catch (Exception e) { 
-                    getLog().warn ("channel-sender-"+in, e.getMessage ());
-                    disconnect (channel);
+                    if (o instanceof ISOMsg && retried.put ((ISOMsg) o, Boolean.TRUE) == null) {
+                        getLog().warn ("channel-sender-"+in, e.getMessage ());
+                        sp.push (in, o);  // drain: give it to another session
+                    } else {
+                        getLog().warn ("channel-sender-"+in, "dropping message: " + e.getMessage ());
+                        if (o instanceof ISOMsg)
+                            retried.remove (o);
+                    }
+                    if (session != null)
+                        disconnect (session);
                     ISOUtil.sleep (1000);
                 }
             }
@@ -126,6 +210,7 @@ public class MultiSessionChannelAdaptor
             this.slot = slot;
         }
         public void run () {
+            Session session = sessionInfo[slot];
             ISOUtil.sleep(slot*10); // we don't want to blast a server at startup
             while (running()) {
                 try {
@@ -138,6 +223,7 @@ public class MultiSessionChannelAdaptor
                     }
                     ISOMsg m = channel.receive ();
                     rx++;
+                    session.received (m);
                     lastTxn = System.currentTimeMillis();
                     if (timeout > 0)
                         sp.out (out, m, timeout);
@@ -147,14 +233,14 @@ public class MultiSessionChannelAdaptor
                     if (running()) {
                         getLog().warn ("channel-receiver-"+out, e);
                         if (!ignoreISOExceptions) {
-                            disconnect (channel);
+                            disconnect (session);
                         }
                         ISOUtil.sleep(1000);
                     }
                 } catch (Exception e) { 
                     if (running()) {
                         getLog().warn("channel-receiver-" + out, e);
-                        disconnect (channel);
+                        disconnect (session);
                         ISOUtil.sleep(1000);
                     }
                 }
@@ -167,6 +253,14 @@ public class MultiSessionChannelAdaptor
         Element persist = getPersist ();
         String s = persist.getChildTextTrim("sessions");
         setSessions(s != null && s.length() > 0 ? Integer.parseInt(s) : 1);
+        roundRobin = "round-robin".equalsIgnoreCase (persist.getChildTextTrim ("balance"));
+        s = persist.getChildTextTrim ("in-flight-timeout");
+        inFlightTimeout = s != null && s.length() > 0 ? Long.parseLong (s) : 60000L;
+        s = persist.getChildTextTrim ("key");
+        StringTokenizer st = new StringTokenizer (s != null ? s : "41, 11", ", ");
+        key = new String[st.countTokens()];
+        for (int i=0; st.hasMoreTokens(); i++)
+            key[i] = st.nextToken();
     }
 
     private void connect (int slot) {
@@ -180,28 +274,41 @@ public class MultiSessionChannelAdaptor
             }
         }
     }
+    private void disconnect (Session session) {
+        session.clearInFlight();
+        disconnect (session.channel);
+    }
     private void disconnect (ISOChannel channel) {
         try {
-            if (getConnectedCount() <= 1)
-                SpaceUtil.wipe(sp, ready);
             channel.disconnect ();
+            if (getConnectedCount() == 0)
+                SpaceUtil.wipe(sp, ready);
         } catch (IOException e) {
             getLog().warn ("disconnect", e);
         }
     }
     private void disconnectAll() {
-        for (ISOChannel channel : channels) disconnect(channel);
+        for (Session session : sessionInfo) disconnect(session);
     }
-    private ISOChannel getNextChannel() {
-        ISOChannel c = null;
-        for (int size = channels.length; size > 0; size--) {
-            c = channels[roundRobinCounter++ % channels.length];
-            if (c != null && c.isConnected())
-                break;
+    /**
+     * @return connected session with the fewest outstanding requests
+     * (the next connected one if balancing round robin), null if none
+     */
+    private Session getNextSession() {
+        Session selected = null;
+        int start = roundRobinCounter++ & Integer.MAX_VALUE;
+        for (int i=0; i<sessionInfo.length; i++) {
+            Session s = sessionInfo[(start + i) % sessionInfo.length];
+            if (s.channel == null || !s.channel.isConnected())
+                continue;
+            if (roundRobin)
+                return s;
+            if (selected == null || s.getInFlight() < selected.getInFlight())
+                selected = s;
         }
-        if (c == null)
+        if (selected == null)
             SpaceUtil.wipe(sp, ready);
-        return c;
+        return selected;
     }
     private int getConnectedCount() {
         int connected = 0;
@@ -212,4 +319,169 @@ public class MultiSessionChannelAdaptor
         }
         return connected;
     }
+    private String getKey (ISOMsg m) {
+        StringBuilder sb = new StringBuilder();
+        boolean hasFields = false;
+        for (String f : key) {
+            String v = m.getString (f);
+            if (v != null) {
+                sb.append (v);
+                hasFields = true;
+            }
+            sb.append ('|');
+        }
+        return hasFields ? sb.toString() : null;
+    }
+
+    /**
+     * Per session in-flight tracking and latency statistics.
+     */
+    public class Session {
+        final int slot;
+        final ISOChannel channel;
+        private final Map<String,Long> inFlight = new ConcurrentHashMap<String,Long>();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong expired = new AtomicLong();
+        private final AtomicLong responses = new AtomicLong();
+        private final AtomicLong totalLatency = new AtomicLong();
+        private final AtomicLong maxLatency = new AtomicLong();
+        private volatile long lastLatency;
+
+        Session (int slot, ISOChannel channel) {
+            this.slot = slot;
+            this.channel = channel;
+        }
+        void send (ISOMsg m) throws IOException, ISOException {
+            String k = isRequest (m) ? getKey (m) : null;
+            if (k != null)
+                inFlight.put (k, System.nanoTime());
+            try {
+                channel.send (m);
+            } catch (IOException e) {
+                if (k != null)
+                    inFlight.remove (k);
+                throw e;
+            } catch (ISOException e) {
+                if (k != null)
+                    inFlight.remove (k);
+                throw e;
+            }
+            sent.incrementAndGet();
+        }
+        void received (ISOMsg m) {
+            received.incrementAndGet();
+            if (inFlight.isEmpty() || !isResponse (m))
+                return;
+            String k = getKey (m);
+            Long t = k != null ? inFlight.remove (k) : null;
+            if (t != null) {
+                long elapsed = (System.nanoTime() - t) / 1000L;
+                responses.incrementAndGet();
+                totalLatency.addAndGet (elapsed);
+                lastLatency = elapsed;
+                long max;
+                while (elapsed > (max = maxLatency.get()) && !maxLatency.compareAndSet (max, elapsed))
+                    ;
+            }
+        }
+        void expire (long maxAgeNanos) {
+            long limit = System.nanoTime() - maxAgeNanos;
+            Iterator<Long> iter = inFlight.values().iterator();
+            while (iter.hasNext()) {
+                if (iter.next() - limit < 0L) {
+                    iter.remove();
+                    expired.incrementAndGet();
+                }
+            }
+        }
+        void clearInFlight() {
+            inFlight.clear();
+        }
+        void resetCounters() {
+            sent.set (0L);
+            received.set (0L);
+            expired.set (0L);
+            responses.set (0L);
+            totalLatency.set (0L);
+            maxLatency.set (0L);
+            lastLatency = 0L;
+        }
+        public ISOChannel getChannel() {
+            return channel;
+        }
+        public boolean isConnected() {
+            return channel.isConnected();
+        }
+        /**
+         * @return number of requests awaiting a response on this session
+         */
+        public int getInFlight() {
+            return inFlight.size();
+        }
+        public long getSent() {
+            return sent.get();
+        }
+        public long getReceived() {
+            return received.get();
+        }
+        /**
+         * @return number of requests that got no response within in-flight-timeout
+         */
+        public long getExpired() {
+            return expired.get();
+        }
+        /**
+         * @return number of responses matched against a request
+         */
+        public long getResponses() {
+            return responses.get();
+        }
+        /**
+         * @return average latency in microseconds
+         */
+        public long getAverageLatency() {
+            long n = responses.get();
+            return n > 0 ? totalLatency.get() / n : 0L;
+        }
+        /**
+         * @return max latency in microseconds
+         */
+        public long getMaxLatency() {
+            return maxLatency.get();
+        }
+        /**
+         * @return latency of the last matched response in microseconds
+         */
+        public long getLastLatency() {
+            return lastLatency;
+        }
+        public String toString() {
+            StringBuilder sb = new StringBuilder ("session-");
+            sb.append (slot);
+            sb.append (channel.isConnected() ? " connected" : " disconnected");
+            sb.append (", in-flight=").append (getInFlight());
+            sb.append (", tx=").append (getSent());
+            sb.append (", rx=").append (getReceived());
+            sb.append (", expired=").append (getExpired());
+            sb.append (", avg=").append (getAverageLatency()).append ("us");
+            sb.append (", max=").append (getMaxLatency()).append ("us");
+            sb.append (", last=").append (getLastLatency()).append ("us");
+            return sb.toString();
+        }
+        private boolean isRequest (ISOMsg m) {
+            try {
+                return m.isRequest();
+            } catch (ISOException e) {
+                return false;
+            }
+        }
+        private boolean isResponse (ISOMsg m) {
+            try {
+                return m.isResponse();
+            } catch (ISOException e) {
+                return false;
+            }
+        }
+    }
 }
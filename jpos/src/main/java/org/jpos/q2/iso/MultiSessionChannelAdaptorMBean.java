@@ -29,4 +29,5 @@ import org.jpos.q2.QBeanSupportMBean;
 public interface MultiSessionChannelAdaptorMBean extends ChannelAdaptorMBean {
     public int getSessions();
     public void setSessions(int sessions);
+    public String[] getSessionStats();
 }
@@ -30,16 +30,32 @@ import org.jpos.util.NameRegistrar;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * <p>Outstanding requests are correlated with their responses using a
+ * concurrent map keyed by {@link #getKey(ISOMsg)}, so the request/response
+ * path doesn't go through a Space. When <code>reuse-space</code> is
+ * true, requests are tracked in the MUX's Space instead (as in previous
+ * versions), which makes them visible to other MUXes sharing that Space.</p>
+ *
+ * <p>Unless {@link #getKey(ISOMsg)} is overridden, the <code>key</code> and
+ * <code>mtimapping</code> definitions are compiled at {@link #initService()}
+ * into a {@link QMUXKeyExtractor}, so map keys are a 64-bit hash over the
+ * (normalized) key fields and responses are correlated without building
+ * String keys.</p>
+ *
  * @author Alejandro Revilla
  */
 @SuppressWarnings("unchecked")
 public class QMUX
     extends QBeanSupport
-    implements SpaceListener, MUX, QMUXMBean, Loggeable
+    implements SpaceListener, AsyncMUX, QMUXMBean, Loggeable
 {
     static final String nomap = "0123456789";
     static final String DEFAULT_KEY = "41, 11";
@@ -50,10 +66,21 @@ public class QMUX
     protected String ignorerc;
     protected String[] mtiMapping;
     private boolean headerIsKey;
-    private LocalSpace isp; // internal space
+    private LocalSpace isp; // internal space, only used with reuse-space
+    private ConcurrentMap<Object,Object> pending;
+    private QMUXKeyExtractor extractor;
+    private volatile ChannelAdaptor adaptor; // consumer of our out queue, if any
+    private volatile long adaptorCheck;
+    private static final long ADAPTOR_RECHECK_INTERVAL = 10000L;
 
     List<ISORequestListener> listeners;
-    int rx, tx, rxExpired, txExpired, rxPending, rxUnhandled, rxForwarded;
+    final AtomicInteger rx = new AtomicInteger();
+    final AtomicInteger tx = new AtomicInteger();
+    final AtomicInteger rxExpired = new AtomicInteger();
+    final AtomicInteger txExpired = new AtomicInteger();
+    final AtomicInteger rxPending = new AtomicInteger();
+    final AtomicInteger rxUnhandled = new AtomicInteger();
+    final AtomicInteger rxForwarded = new AtomicInteger();
     long lastTxn = 0L;
     boolean listenerRegistered;
     public QMUX () {
@@ -63,7 +90,10 @@ public class QMUX
     public void initService () throws ConfigurationException {
         Element e = getPersist ();
         sp        = grabSpace (e.getChild ("space"));
-        isp       = cfg.getBoolean("reuse-space", false) ? sp : new TSpace();
+        if (cfg.getBoolean("reuse-space", false))
+            isp = sp;
+        else
+            pending = new ConcurrentHashMap<Object,Object>();
         in        = e.getChildTextTrim ("in");
         out       = e.getChildTextTrim ("out");
         ignorerc  = e.getChildTextTrim ("ignore-rc");
@@ -72,6 +102,8 @@ public class QMUX
         mtiMapping = toStringArray(e.getChildTextTrim ("mtimapping"));
         if (mtiMapping == null || mtiMapping.length != 3) 
             mtiMapping = new String[] { nomap, nomap, "0022446789" };
+        if (pending != null && !isGetKeyOverridden())
+            extractor = new QMUXKeyExtractor (this, key, mtiMapping, headerIsKey);
         addListeners ();
         unhandled = e.getChildTextTrim ("unhandled");
         NameRegistrar.register ("mux."+getName (), this);
@@ -113,20 +145,53 @@ public class QMUX
      * @return response or null
      */
     public ISOMsg request (ISOMsg m, long timeout) throws ISOException {
+        if (pending == null)
+            return spaceRequest (m, timeout);
+        Object key = correlationKey (m);
+        PendingRequest pr = new PendingRequest();
+        if (pending.putIfAbsent (key, pr) != null)
+            throw new ISOException ("Duplicate key '" + key + ".req' detected");
+        m.setDirection(0);
+        try {
+            enqueue (m, timeout);
+        } catch (ISOException e) {
+            pending.remove (key, pr);
+            throw e;
+        }
+        ISOMsg resp = null;
+        try {
+            tx.incrementAndGet();
+            rxPending.incrementAndGet();
+            resp = pr.waitForResponse (timeout);
+            if (resp == null && !pending.remove (key, pr)) {
+                // response is being delivered by notify
+                resp = pr.waitForResponse (10000L);
+            }
+            requestCompleted (m, resp);
+        } finally {
+            pending.remove (key, pr);
+            rxPending.decrementAndGet();
+        }
+        return resp;
+    }
+    private ISOMsg spaceRequest (ISOMsg m, long timeout) throws ISOException {
         String key = getKey (m);
         String req = key + ".req";
         if (isp.rdp (req) != null)
             throw new ISOException ("Duplicate key '" + req + "' detected");
         isp.out (req, m);
         m.setDirection(0);
-        if (timeout > 0)
-            sp.out (out, m, timeout);
-        else
-            sp.out (out, m);
+        try {
+            enqueue (m, timeout);
+        } catch (ISOException e) {
+            isp.inp (req);
+            throw e;
+        }
 
         ISOMsg resp = null;
         try {
-            synchronized (this) { tx++; rxPending++; }
+            tx.incrementAndGet();
+            rxPending.incrementAndGet();
 
             for (;;) {
                 resp = (ISOMsg) isp.rd (key, timeout);
@@ -139,27 +204,46 @@ public class QMUX
                 // possible race condition, retry for a few extra seconds
                 resp = (ISOMsg) isp.in (key, 10000);
             }
-            synchronized (this) {
-                if (resp != null) 
-                {
-                    rx++;
-                    lastTxn = System.currentTimeMillis();
-                }else {
-                    rxExpired++;
-                    if (m.getDirection() != ISOMsg.OUTGOING)
-                        txExpired++;
-                }
-            }
+            requestCompleted (m, resp);
         } finally {
-            synchronized (this) { rxPending--; }
+            rxPending.decrementAndGet();
         }
         return resp;
     }
+    private void requestCompleted (ISOMsg m, ISOMsg resp) {
+        if (resp != null) {
+            rx.incrementAndGet();
+            lastTxn = System.currentTimeMillis();
+        } else {
+            rxExpired.incrementAndGet();
+            if (m.getDirection() != ISOMsg.OUTGOING)
+                txExpired.incrementAndGet();
+        }
+    }
     public void notify (Object k, Object value) {
         Object obj = sp.inp (k);
         if (obj instanceof ISOMsg) {
             ISOMsg m = (ISOMsg) obj;
             try {
+                if (pending != null) {
+                    Object key = correlationKey (m);
+                    Object r = pending.get (key);
+                    if (r instanceof PendingRequest && shouldIgnore (m))
+                        return; // ignore-rc, keep waiting for the final response
+                    if (r != null && pending.remove (key, r)) {
+                        if (r instanceof AsyncRequest) {
+                            AsyncRequest ar = (AsyncRequest) r;
+                            if (ar.future != null)
+                                ar.future.cancel (false);
+                            ar.rl.responseReceived (m, ar.handBack);
+                        } else {
+                            ((PendingRequest) r).responseReceived (m);
+                        }
+                        return;
+                    }
+                    processUnhandled (m);
+                    return;
+                }
                 String key = getKey (m);
                 String req = key + ".req";
                 Object r = isp.inp (req);
@@ -253,8 +337,33 @@ public class QMUX
     public void request (ISOMsg m, long timeout, ISOResponseListener rl, Object handBack)
         throws ISOException 
     {
-        String key = getKey (m);
-        String req = key + ".req";
+        if (pending != null) {
+            final Object key = correlationKey (m);
+            final AsyncRequest ar = new AsyncRequest (rl, handBack);
+            if (pending.putIfAbsent (key, ar) != null)
+                throw new ISOException ("Duplicate key '" + key + ".req' detected.");
+            if (timeout > 0) {
+                // scheduled once registered, so it can't fire before there is anything to expire
+                ar.setFuture(getScheduledThreadPoolExecutor().schedule(new Runnable() {
+                    public void run() {
+                        if (pending.remove (key, ar))
+                            ar.run();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS));
+            }
+            if (rl instanceof PendingFuture)
+                ((PendingFuture) rl).register (key, ar);
+            m.setDirection(0);
+            try {
+                enqueue (m, timeout);
+            } catch (ISOException e) {
+                if (pending.remove (key, ar) && ar.future != null)
+                    ar.future.cancel (false);
+                throw e;
+            }
+            return;
+        }
+        String req = getKey (m) + ".req";
         if (isp.rdp (req) != null)
             throw new ISOException ("Duplicate key '" + req + "' detected.");
         m.setDirection(0);
@@ -264,7 +373,52 @@ public class QMUX
                 ar.setFuture(getScheduledThreadPoolExecutor().schedule(ar, timeout, TimeUnit.MILLISECONDS));
         }
         isp.out (req, ar, timeout);
-        sp.out (out, m, timeout);
+        if (rl instanceof PendingFuture)
+            ((PendingFuture) rl).register (req, ar);
+        try {
+            enqueue (m, timeout);
+        } catch (ISOException e) {
+            if (isp.inp (req) != null && ar.future != null)
+                ar.future.cancel (false);
+            throw e;
+        }
+    }
+    /**
+     * Cancelling the returned future deregisters the request, so
+     * its key can be reused right away.
+     */
+    public MUXFuture requestAsync (ISOMsg m, long timeout) throws ISOException {
+        MUXFuture f = new PendingFuture();
+        request (m, timeout, f, null);
+        return f;
+    }
+    /**
+     * @param key request key, as returned by {@link #getKey(ISOMsg)}
+     * @return true if a request with the given key is waiting for its response
+     */
+    boolean hasPendingRequest (String key) {
+        if (pending == null)
+            return isp.rdp (key + ".req") != null;
+        for (Object k : pending.keySet()) {
+            if (key.equals (k.toString()))
+                return true;
+        }
+        return false;
+    }
+    /**
+     * @param m message
+     * @return key used to correlate <code>m</code> in the pending map
+     * @throws ISOException if <code>m</code> has no key fields
+     */
+    private Object correlationKey (ISOMsg m) throws ISOException {
+        return extractor != null ? extractor.extract (m) : getKey (m);
+    }
+    private boolean isGetKeyOverridden() {
+        try {
+            return getClass().getMethod ("getKey", ISOMsg.class).getDeclaringClass() != QMUX.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
     }
     @SuppressWarnings("unused")
     public String[] getReadyIndicatorNames() {
@@ -293,19 +447,25 @@ public class QMUX
     	return listeners.remove(l);
     }
     public synchronized void resetCounters() {
-        rx = tx = rxExpired = txExpired = rxPending = rxUnhandled = rxForwarded = 0;
+        rx.set (0);
+        tx.set (0);
+        rxExpired.set (0);
+        txExpired.set (0);
+        rxPending.set (0);
+        rxUnhandled.set (0);
+        rxForwarded.set (0);
         lastTxn = 0l;
     }
     public String getCountersAsString () {
         StringBuffer sb = new StringBuffer();
-        append (sb, "tx=", tx);
-        append (sb, ", rx=", rx);
-        append (sb, ", tx_expired=", txExpired);
+        append (sb, "tx=", tx.get());
+        append (sb, ", rx=", rx.get());
+        append (sb, ", tx_expired=", txExpired.get());
         append (sb, ", tx_pending=", sp.size(out));
-        append (sb, ", rx_expired=", rxExpired);
-        append (sb, ", rx_pending=", rxPending);
-        append (sb, ", rx_unhandled=", rxUnhandled);
-        append (sb, ", rx_forwarded=", rxForwarded);
+        append (sb, ", rx_expired=", rxExpired.get());
+        append (sb, ", rx_pending=", rxPending.get());
+        append (sb, ", rx_unhandled=", rxUnhandled.get());
+        append (sb, ", rx_forwarded=", rxForwarded.get());
         sb.append (", connected=");
         sb.append (Boolean.toString(isConnected()));
         sb.append (", last=");
@@ -319,10 +479,10 @@ public class QMUX
     }
     
     public int getTXCounter() {
-        return tx;
+        return tx.get();
     }
     public int getRXCounter() {
-        return rx;
+        return rx.get();
     }
 
     public long getLastTxnTimestampInMillis() {
@@ -336,12 +496,12 @@ public class QMUX
         ISOSource source = m.getSource () != null ? m.getSource() : this;
         Iterator iter = listeners.iterator();
         if (iter.hasNext())
-            synchronized (this) { rxForwarded++; }
+            rxForwarded.incrementAndGet();
         while (iter.hasNext())
             if (((ISORequestListener)iter.next()).process (source, m))
                 return;
         if (unhandled != null) {
-            synchronized (this) { rxUnhandled++; }
+            rxUnhandled.incrementAndGet();
             sp.out (unhandled, m, 120000);
         }
     }
@@ -367,7 +527,46 @@ public class QMUX
     public void send(ISOMsg m) throws IOException, ISOException {
         if (!isConnected())
             throw new ISOException ("MUX is not connected");
-        sp.out (out, m);
+        enqueue (m, 0L);
+    }
+
+    /**
+     * Places <code>m</code> in the <code>out</code> queue. If that queue is
+     * the bounded <code>in</code> queue of a ChannelAdaptor on the same
+     * space, the adaptor's queue policy applies.
+     * @param m message to send
+     * @param timeout queue entry timeout, 0 for none
+     * @throws ISOException if the adaptor rejected the message
+     */
+    private void enqueue (ISOMsg m, long timeout) throws ISOException {
+        ChannelAdaptor ca = getBoundedAdaptor();
+        if (ca != null) {
+            if (!ca.enqueue (m, timeout))
+                throw new ISOException ("queue " + out + " full");
+        } else if (timeout > 0)
+            sp.out (out, m, timeout);
+        else
+            sp.out (out, m);
+    }
+    private ChannelAdaptor getBoundedAdaptor () {
+        long now = System.currentTimeMillis();
+        if (now >= adaptorCheck) {
+            // adaptors may be deployed (or redeployed) after this MUX
+            adaptorCheck = now + ADAPTOR_RECHECK_INTERVAL;
+            ChannelAdaptor found = null;
+            for (Object o : NameRegistrar.getMap().values()) {
+                if (o instanceof ChannelAdaptor) {
+                    ChannelAdaptor ca = (ChannelAdaptor) o;
+                    if (ca.sp == sp && out.equals (ca.getInQueue())) {
+                        found = ca;
+                        break;
+                    }
+                }
+            }
+            adaptor = found;
+        }
+        ChannelAdaptor ca = adaptor;
+        return ca != null && ca.getMaxQueueSize() > 0 ? ca : null;
     }
 
     public boolean isConnected() {
@@ -422,10 +621,62 @@ public class QMUX
         sb.append (name);
         sb.append (value);
     }
+    /**
+     * Caller side of a synchronous request waiting for its response
+     */
+    static class PendingRequest {
+        private final CountDownLatch done = new CountDownLatch (1);
+        private volatile ISOMsg response;
+
+        void responseReceived (ISOMsg m) {
+            response = m;
+            done.countDown();
+        }
+        ISOMsg waitForResponse (long timeout) {
+            try {
+                done.await (timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return response;
+        }
+    }
+    /**
+     * MUXFuture that removes its pending request when cancelled
+     */
+    private class PendingFuture extends MUXFuture {
+        private Object key;
+        private AsyncRequest ar;
+
+        synchronized void register (Object key, AsyncRequest ar) {
+            this.key = key;
+            this.ar = ar;
+        }
+        @Override
+        public boolean cancel (boolean mayInterruptIfRunning) {
+            if (!super.cancel (mayInterruptIfRunning))
+                return false;
+            Object k;
+            AsyncRequest r;
+            synchronized (this) {
+                k = key;
+                r = ar;
+            }
+            if (r != null) {
+                if (r.future != null)
+                    r.future.cancel (false);
+                if (pending != null)
+                    pending.remove (k, r);
+                else if (isp.rdp (k) == r)
+                    isp.inp (k);
+            }
+            return true;
+        }
+    }
     public static class AsyncRequest implements Runnable {
         ISOResponseListener rl;
         Object handBack;
-        ScheduledFuture future;
+        volatile ScheduledFuture future;
         public AsyncRequest (ISOResponseListener rl, Object handBack) {
             super();
             this.rl = rl;
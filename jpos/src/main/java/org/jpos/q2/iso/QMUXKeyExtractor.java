@@ -0,0 +1,252 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.q2.iso;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOFieldPath;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOUtil;
+
+import java.util.Arrays;
+
+/**
+ * QMUX <code>key</code> and <code>mtimapping</code> definitions compiled
+ * into an extractor of {@link Key}s: a 64-bit hash plus references to the
+ * message's own field values, compared (normalized) on hash match.
+ *
+ * <p>Keys are equal when {@link QMUX#getKey(ISOMsg)} would return the
+ * same String for both messages (except that field boundaries are
+ * honored), without building that String.</p>
+ */
+final class QMUXKeyExtractor {
+    private static final int NONE = 0;
+    private static final int STAN = 1;  // field 11, zeropadded to 6 (or 12 on 2xxx MTIs) if shorter
+    private static final int TID  = 2;  // field 41, trimmed and zeropadded to 16
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME  = 0x100000001b3L;
+
+    private final QMUX mux;
+    private final ISOFieldPath[] fields;
+    private final int[] normalization;
+    private final String[] mtiMapping;
+    private final boolean headerIsKey;
+    private final String[] mappedMTI = new String[1000];
+
+    QMUXKeyExtractor (QMUX mux, String[] key, String[] mtiMapping, boolean headerIsKey) {
+        this.mux = mux;
+        this.mtiMapping = mtiMapping;
+        this.headerIsKey = headerIsKey;
+        fields = new ISOFieldPath[key.length];
+        normalization = new int[key.length];
+        for (int i=0; i<key.length; i++) {
+            fields[i] = ISOFieldPath.valueOf (key[i]);
+            normalization[i] = "11".equals (key[i]) ? STAN : "41".equals (key[i]) ? TID : NONE;
+        }
+        for (int i=0; i<mappedMTI.length; i++)
+            mappedMTI[i] = mapMTI (ISOUtil.zeropad (i, 3) + "0");
+    }
+
+    /**
+     * @param m message
+     * @return key of the given message
+     * @throws ISOException if none of the key fields is present
+     */
+    Key extract (ISOMsg m) throws ISOException {
+        String mti = m.getMTI();
+        String mapped = null;
+        if (mti != null && mti.length() == 4) {
+            int n = 0;
+            for (int i=0; i<3; i++) {
+                int c = mti.charAt (i) - '0';
+                if (c < 0 || c > 9) {
+                    n = -1;
+                    break;
+                }
+                n = n*10 + c;
+            }
+            if (n >= 0)
+                mapped = mappedMTI[n];
+        }
+        if (mapped == null)
+            mapped = mapMTI (mti);
+        byte[] header = headerIsKey ? m.getHeader() : null;
+        String[] values = new String[fields.length];
+        long[] bounds = new long[fields.length];
+        boolean hasFields = false;
+        long h = hash (FNV_OFFSET, mapped, 0, mapped.length(), 0);
+        if (header != null) {
+            for (byte b : header)
+                h = (h ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        for (int i=0; i<fields.length; i++) {
+            String v = m.getString (fields[i]);
+            h = (h ^ 0xFFFF) * FNV_PRIME; // field separator
+            if (v == null)
+                continue;
+            int start = 0;
+            int end = v.length();
+            int pad = 0;
+            if (normalization[i] != NONE) {
+                int ts = start;
+                int te = end;
+                while (ts < te && v.charAt (ts) <= ' ')
+                    ts++;
+                while (te > ts && v.charAt (te-1) <= ' ')
+                    te--;
+                if (normalization[i] == STAN) {
+                    int l = mti != null && mti.length() > 0 && mti.charAt(0) == '2' ? 12 : 6;
+                    if (te - ts < l) {
+                        start = ts;
+                        end = te;
+                        pad = l - (te - ts);
+                    }
+                } else {
+                    if (te - ts > 16)
+                        throw new ISOException ("invalid len " + (te - ts) + "/16");
+                    start = ts;
+                    end = te;
+                    pad = 16 - (te - ts);
+                }
+            }
+            values[i] = v;
+            bounds[i] = ((long) pad << 40) | ((long) start << 20) | end;
+            h = hash (h, v, start, end, pad);
+            hasFields = true;
+        }
+        Key k = new Key (mapped, header, values, bounds, h);
+        if (!hasFields)
+            throw new ISOException ("Key fields not found - not sending " + k);
+        return k;
+    }
+
+    private String mapMTI (String mti) {
+        StringBuilder sb = new StringBuilder();
+        if (mti != null) {
+            if (mti.length() < 4) {
+                try {
+                    mti = ISOUtil.zeropad(mti, 4); // #jPOS-55
+                } catch (ISOException ignored) { }
+            }
+            if (mti.length() == 4) {
+                for (int i=0; i<mtiMapping.length; i++) {
+                    int c = mti.charAt (i) - '0';
+                    if (c >= 0 && c < 10)
+                        sb.append (mtiMapping[i].charAt(c));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long hash (long h, String v, int start, int end, int pad) {
+        for (int i=0; i<pad; i++)
+            h = (h ^ '0') * FNV_PRIME;
+        for (int i=start; i<end; i++)
+            h = (h ^ v.charAt (i)) * FNV_PRIME;
+        return h;
+    }
+    private static int start (long b) {
+        return (int) (b >>> 20) & 0xFFFFF;
+    }
+    private static int end (long b) {
+        return (int) b & 0xFFFFF;
+    }
+    private static int pad (long b) {
+        return (int) (b >>> 40);
+    }
+
+    /**
+     * Correlation key, as produced by {@link QMUXKeyExtractor#extract(ISOMsg)}
+     */
+    final class Key {
+        private final String mti;
+        private final byte[] header;
+        private final String[] values;
+        private final long[] bounds;
+        private final long hash;
+
+        Key (String mti, byte[] header, String[] values, long[] bounds, long hash) {
+            this.mti = mti;
+            this.header = header;
+            this.values = values;
+            this.bounds = bounds;
+            this.hash = hash;
+        }
+        long longHashCode() {
+            return hash;
+        }
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+        @Override
+        public boolean equals (Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            if (hash != k.hash || !mti.equals (k.mti) || !Arrays.equals (header, k.header)
+              || values.length != k.values.length)
+                return false;
+            for (int i=0; i<values.length; i++) {
+                if (!sameValue (values[i], bounds[i], k.values[i], k.bounds[i]))
+                    return false;
+            }
+            return true;
+        }
+        /**
+         * @return the key as {@link QMUX#getKey(ISOMsg)} would return it
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder (mux.getOutQueue());
+            sb.append ('.');
+            sb.append (mti);
+            if (header != null) {
+                sb.append ('.');
+                sb.append (ISOUtil.hexString (header));
+                sb.append ('.');
+            }
+            for (int i=0; i<values.length; i++) {
+                if (values[i] != null) {
+                    for (int j=pad (bounds[i]); j>0; j--)
+                        sb.append ('0');
+                    sb.append (values[i], start (bounds[i]), end (bounds[i]));
+                }
+            }
+            return sb.toString();
+        }
+        private boolean sameValue (String a, long ba, String b, long bb) {
+            if (a == null || b == null)
+                return a == b;
+            int pa = pad (ba), sa = start (ba), la = pa + end (ba) - sa;
+            int pb = pad (bb), sb = start (bb), lb = pb + end (bb) - sb;
+            if (la != lb)
+                return false;
+            for (int i=0; i<la; i++) {
+                char ca = i < pa ? '0' : a.charAt (sa + i - pa);
+                char cb = i < pb ? '0' : b.charAt (sb + i - pb);
+                if (ca != cb)
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import org.jpos.core.ConfigurationException;
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOResponseListener;
+import org.jpos.iso.MUXFuture;
 
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -68,6 +69,12 @@ public class QMUXProxy implements RemoteQMUX, Configurable {
         qmux.request(m, timeout, rl, handBack);
         
     }
+    /**
+     * Local only, futures can't travel over RMI
+     */
+    public MUXFuture requestAsync(ISOMsg m, long timeout) throws ISOException {
+        return qmux.requestAsync(m, timeout);
+    }
     public void setConfiguration(Configuration cfg)
             throws ConfigurationException {
         qmux.setConfiguration(cfg);
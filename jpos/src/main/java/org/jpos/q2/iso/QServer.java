@@ -270,6 +270,20 @@ public class QServer
     public String getCountersAsString (String isoChannelName) {
         return server.getCountersAsString (isoChannelName);
     }
+    @Override
+    public String getMetricsAsString () {
+        return server.getMetricsAsString ();
+    }
+    @Override
+    public String getMetricsAsString (String isoChannelName) {
+        return server.getMetricsAsString (isoChannelName);
+    }
+    /**
+     * @return underlying ISOServer (null if not started)
+     */
+    public ISOServer getISOServer () {
+        return server;
+    }
     private void addServerSocketFactory () throws ConfigurationException {
         QFactory factory = getFactory ();
         Element persist = getPersist ();
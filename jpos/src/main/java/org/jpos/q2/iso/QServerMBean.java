@@ -51,4 +51,6 @@ public interface QServerMBean extends org.jpos.q2.QBeanSupportMBean {
   String getISOChannelNames();
   String getCountersAsString ();
   String getCountersAsString (String isoChannelName);
+  String getMetricsAsString ();
+  String getMetricsAsString (String isoChannelName);
 }
@@ -0,0 +1,300 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jpos.tlv;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOUtil;
+
+import java.util.Arrays;
+
+/**
+ * Read only BER-TLV index over a raw buffer (i.e. EMV field 55).
+ *
+ * The buffer is parsed once, recording tag, value offset and value
+ * length of every element; values are not copied. Lookups by tag go
+ * through a small hash table, so repeated {@link #hasTag(int)} or
+ * {@link #getValue(int)} calls don't scan the data. Constructed
+ * elements (i.e. templates such as 0x70 or 0x77) can be indexed in
+ * turn with {@link #getNested(int)}, again over the same buffer.
+ *
+ * Padding (0x00 and 0xFF) between elements is skipped, like
+ * {@link TLVList} does. The buffer must not be modified while the
+ * index is in use.
+ *
+ * @since 1.9.7
+ * @see TLVList
+ */
+public class TLVIndex {
+    private static final int INITIAL_CAPACITY = 16;
+    private final byte[] buf;
+    private final int offset;
+    private final int length;
+    private int count;
+    private int[] tags = new int[INITIAL_CAPACITY];
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] next = new int[INITIAL_CAPACITY];
+    private boolean[] constructed = new boolean[INITIAL_CAPACITY];
+    private TLVIndex[] nested;
+    // open addressing table: tag -> first index + 1 (0 means empty)
+    private int[] keys;
+    private int[] first;
+
+    /**
+     * @param buf BER-TLV encoded data
+     * @throws ISOException on malformed data
+     */
+    public TLVIndex (byte[] buf) throws ISOException {
+        this (buf, 0, buf.length);
+    }
+
+    /**
+     * @param buf BER-TLV encoded data
+     * @param offset starting offset
+     * @param length data length
+     * @throws ISOException on malformed data
+     */
+    public TLVIndex (byte[] buf, int offset, int length) throws ISOException {
+        if (offset < 0 || length < 0 || offset + length > buf.length)
+            throw new IndexOutOfBoundsException ();
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+        parse();
+        buildTable();
+    }
+
+    /**
+     * @return number of elements at this level
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param tag tag
+     * @return true if tag is present at this level
+     */
+    public boolean hasTag (int tag) {
+        return indexOf (tag) >= 0;
+    }
+
+    /**
+     * @param tag tag
+     * @return zero based index of the first element with the given tag, -1 if not present
+     */
+    public int indexOf (int tag) {
+        int mask = keys.length - 1;
+        for (int i = hash (tag) & mask; first[i] != 0; i = (i+1) & mask) {
+            if (keys[i] == tag)
+                return first[i] - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @param index zero based index of an element
+     * @return index of the next element with the same tag, -1 if none
+     */
+    public int nextIndexOf (int index) {
+        checkIndex (index);
+        return next[index];
+    }
+
+    public int getTag (int index) {
+        checkIndex (index);
+        return tags[index];
+    }
+
+    /**
+     * @param index zero based index of an element
+     * @return offset of the element's value within {@link #getBuffer()}
+     */
+    public int getValueOffset (int index) {
+        checkIndex (index);
+        return offsets[index];
+    }
+
+    public int getValueLength (int index) {
+        checkIndex (index);
+        return lengths[index];
+    }
+
+    /**
+     * @param index zero based index of an element
+     * @return true if the element is constructed (holds nested TLV data)
+     */
+    public boolean isConstructed (int index) {
+        checkIndex (index);
+        return constructed[index];
+    }
+
+    /**
+     * @return underlying buffer (not a copy)
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @param tag tag
+     * @return a copy of the first value with the given tag, null if not present
+     */
+    public byte[] getValue (int tag) {
+        int i = indexOf (tag);
+        if (i < 0)
+            return null;
+        byte[] b = new byte[lengths[i]];
+        System.arraycopy (buf, offsets[i], b, 0, b.length);
+        return b;
+    }
+
+    /**
+     * @param tag tag
+     * @return first value with the given tag as an hex string, null if not present
+     */
+    public String getString (int tag) {
+        int i = indexOf (tag);
+        return i < 0 ? null : ISOUtil.hexString (buf, offsets[i], lengths[i]);
+    }
+
+    /**
+     * @param tag tag of a constructed element
+     * @return index over the first element's value, null if not present
+     * @throws ISOException if the value is not valid TLV data
+     */
+    public TLVIndex getNested (int tag) throws ISOException {
+        int i = indexOf (tag);
+        return i < 0 ? null : getNestedAt (i);
+    }
+
+    /**
+     * @param index zero based index of a constructed element
+     * @return index over the element's value (parsed once)
+     * @throws ISOException if the value is not valid TLV data
+     */
+    public TLVIndex getNestedAt (int index) throws ISOException {
+        checkIndex (index);
+        if (nested == null)
+            nested = new TLVIndex[count];
+        if (nested[index] == null)
+            nested[index] = new TLVIndex (buf, offsets[index], lengths[index]);
+        return nested[index];
+    }
+
+    /**
+     * @param index zero based index of an element
+     * @return the element as a TLVMsg (value is copied)
+     */
+    public TLVMsg getTLVMsg (int index) {
+        checkIndex (index);
+        byte[] b = new byte[lengths[index]];
+        System.arraycopy (buf, offsets[index], b, 0, b.length);
+        return new TLVMsg (tags[index], b);
+    }
+
+    private void parse() throws ISOException {
+        int end = offset + length;
+        int p = offset;
+        while (p < end) {
+            int b = buf[p++] & 0xFF;
+            if (b == 0x00 || b == 0xFF)
+                continue; // padding
+            boolean cons = (b & 0x20) == 0x20;
+            int tag = b;
+            if ((b & 0x1F) == 0x1F) {
+                do {
+                    if (p >= end)
+                        throw new ISOException (String.format (
+                            "BAD TLV FORMAT - truncated tag (%x)", tag));
+                    b = buf[p++] & 0xFF;
+                    tag = tag << 8 | b;
+                } while ((b & 0x80) == 0x80);
+            }
+            if (p >= end)
+                throw new ISOException (String.format ("BAD TLV FORMAT - tag (%x)"
+                    + " without length or value", tag));
+            int len = buf[p++] & 0xFF;
+            if ((len & 0x80) == 0x80) {
+                int n = len & 0x7F;
+                len = 0;
+                if (n > 4 || p + n > end)
+                    throw new ISOException (String.format ("BAD TLV FORMAT - tag (%x)"
+                        + " invalid length", tag));
+                for (int i=0; i<n; i++)
+                    len = len << 8 | (buf[p++] & 0xFF);
+            }
+            if (len < 0 || len > end - p)
+                throw new ISOException (String.format ("BAD TLV FORMAT - tag (%x)"
+                    + " length (%d) exceeds available data.", tag, len));
+            add (tag, p, len, cons);
+            p += len;
+        }
+    }
+
+    private void add (int tag, int off, int len, boolean cons) {
+        if (count == tags.length) {
+            int n = count << 1;
+            tags = Arrays.copyOf (tags, n);
+            offsets = Arrays.copyOf (offsets, n);
+            lengths = Arrays.copyOf (lengths, n);
+            next = Arrays.copyOf (next, n);
+            constructed = Arrays.copyOf (constructed, n);
+        }
+        tags[count] = tag;
+        offsets[count] = off;
+        lengths[count] = len;
+        next[count] = -1;
+        constructed[count] = cons;
+        count++;
+    }
+
+    private void buildTable() {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < count << 1)
+            capacity <<= 1;
+        keys = new int[capacity];
+        first = new int[capacity];
+        int[] last = new int[capacity];
+        int mask = capacity - 1;
+        for (int n=0; n<count; n++) {
+            int i = hash (tags[n]) & mask;
+            while (first[i] != 0 && keys[i] != tags[n])
+                i = (i+1) & mask;
+            if (first[i] == 0) {
+                keys[i] = tags[n];
+                first[i] = n + 1;
+            } else {
+                next[last[i] - 1] = n;
+            }
+            last[i] = n + 1;
+        }
+    }
+
+    private static int hash (int tag) {
+        int h = tag * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void checkIndex (int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException ("Index: " + index + ", Size: " + count);
+    }
+}
@@ -137,15 +137,8 @@ public class TLVList implements Serializable {
      * @return TLVMsg
      */
     public TLVMsg find(int tag) {
-        tagToFind = tag;
-        for (TLVMsg tlv :tags ) {
-            if (tlv.getTag() == tag) {
-                indexLastOccurrence = tags.indexOf(tlv);
-                return tlv;
-            }
-        }
-        indexLastOccurrence = -1;
-        return null;
+        int i = findIndex(tag);
+        return i >= 0 ? tags.get(i) : null;
     }
 
     /**
@@ -155,10 +148,10 @@ public class TLVList implements Serializable {
      */
     public int findIndex(int tag) {
         tagToFind = tag;
-        for (TLVMsg tlv :tags ) {
-            if (tlv.getTag() == tag) {
-                indexLastOccurrence = tags.indexOf(tlv);
-                return indexLastOccurrence;
+        for (int i=0, n=tags.size(); i<n; i++) {
+            if (tags.get(i).getTag() == tag) {
+                indexLastOccurrence = i;
+                return i;
             }
         }
         indexLastOccurrence = -1;
@@ -195,14 +188,19 @@ public class TLVList implements Serializable {
      * @return the packed message
      */
     public byte[] pack() {
-        ByteBuffer buffer=ByteBuffer.allocate(516);
-        for ( TLVMsg tlv : tags)
-          buffer.put(tlv.getTLV());
-        byte[] b=new byte[buffer.position()];
-        buffer.flip();
-        buffer.get(b);
+        byte[][] parts = new byte[tags.size()][];
+        int len = 0;
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = tags.get(i).getTLV();
+            len += parts[i].length;
+        }
+        byte[] b = new byte[len];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, b, offset, part.length);
+            offset += part.length;
+        }
         return b;
- 
     }
 
     /**
@@ -18,7 +18,6 @@
 
 package org.jpos.tlv;
 
-import java.math.BigInteger;
 import org.jpos.iso.ISOUtil;
 
 /**
@@ -79,25 +78,28 @@ public class TLVMsg {
      * @return tag + length + value of the TLV Message
      */
     public byte[] getTLV() {
-        String hexVal = Integer.toHexString(tag);
-        byte[] bTag = ISOUtil.hex2byte(hexVal);
+        int tagLen = bytesNeeded(tag);
         byte[] bLen = getL();
-        if (value != null) {
-            int tLength = bTag.length + bLen.length + value.length;
-            byte[] out = new byte[tLength];
-            System.arraycopy(bTag, 0, out, 0, bTag.length);
-            System.arraycopy(bLen, 0, out, bTag.length, bLen.length);
-            System.arraycopy(value, 0, out, bTag.length + bLen.length,
-                    value.length);
-            return out;
-        } else {//Length can be 0
-            int tLength = bTag.length + bLen.length;
-            byte[] out = new byte[tLength];
-            System.arraycopy(bTag, 0, out, 0, bTag.length);
-            System.arraycopy(bLen, 0, out, bTag.length, bLen.length);
-            return out;
-
-        }
+        int valueLen = value != null ? value.length : 0; //Length can be 0
+        byte[] out = new byte[tagLen + bLen.length + valueLen];
+        int p = putInt(out, 0, tag, tagLen);
+        System.arraycopy(bLen, 0, out, p, bLen.length);
+        if (valueLen > 0)
+            System.arraycopy(value, 0, out, p + bLen.length, valueLen);
+        return out;
+    }
+
+    /**
+     * @return minimum number of bytes holding i (at least one)
+     */
+    private static int bytesNeeded(int i) {
+        return i == 0 ? 1 : (32 - Integer.numberOfLeadingZeros(i) + 7) >> 3;
+    }
+
+    private static int putInt(byte[] b, int off, int i, int len) {
+        for (int n=len-1; n>=0; n--)
+            b[off++] = (byte) (i >>> (n << 3));
+        return off;
     }
 
     /**
@@ -118,20 +120,15 @@ public class TLVMsg {
         // next 7 bits will indicate the length of following bytes used for
         // length
 
-        BigInteger bi = BigInteger.valueOf(value.length);
-        /* Value to be encoded on multiple bytes */
-        byte[] rBytes = bi.toByteArray();
         /* If value can be encoded on one byte */
         if (value.length < 0x80)
-          return rBytes;
-
-        //we need 1 byte to indicate the length
-        //for that is used sign byte (first 8-bits equals 0),
-        //if it is not present it is added
-        if ( rBytes[0] > 0 )
-          rBytes = ISOUtil.concat(new byte[1], rBytes);
-        rBytes[0] = (byte) (0x80 | rBytes.length-1);
+          return new byte[] { (byte) value.length };
 
+        //we need 1 byte to indicate the number of length bytes
+        int n = bytesNeeded(value.length);
+        byte[] rBytes = new byte[n + 1];
+        rBytes[0] = (byte) (0x80 | n);
+        putInt(rBytes, 1, value.length, n);
         return rBytes;
     }
     
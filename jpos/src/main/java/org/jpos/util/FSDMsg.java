@@ -25,6 +25,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.Arrays;
@@ -36,6 +38,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.WeakHashMap;
 import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.jdom.input.SAXBuilder;
@@ -94,6 +97,11 @@ import org.jpos.space.SpaceFactory;
  * Key fields allow you to specify a tree of possible message formats. The key fields are the fork points of the tree.
  * Multiple key fields are supported. It is also possible to have more key fields specified in appended schemas.
  * </p>
+ * <p>
+ * Schema elements are parsed once into field definitions that are shared by every FSDMsg using them,
+ * so a schema element should not be modified once it has been used to pack or unpack a message.
+ * {@link FSDReader} and {@link FSDWriter} stream records from and to files or sockets.
+ * </p>
  * 
  * @author Alejandro Revila
  * @author Mark Salter
@@ -113,6 +121,8 @@ public class FSDMsg implements Loggeable, Cloneable {
     private static final Set<String> DUMMY_SEPARATORS = new HashSet<String>(Arrays.asList("DS", "EOM"));
     private static final String EOM_SEPARATOR = "EOM";
     private static final int READ_BUFFER = 8192;
+    private static final Map<Element,FieldDef[]> compiledSchemas =
+        Collections.synchronizedMap (new WeakHashMap<Element,FieldDef[]>());
     
     Map<String,String> fields;
     Map<String, Character> separators;
@@ -122,6 +132,8 @@ public class FSDMsg implements Loggeable, Cloneable {
     byte[] header;
     Charset charset;
     int readCount;
+    Map<String,Map<String,Element>> schemas;
+    StringBuilder packBuffer;
 
     /**
      * Creates a FSDMsg with a specific base path for the message format schema.
@@ -145,6 +157,7 @@ public class FSDMsg implements Loggeable, Cloneable {
         this.baseSchema = baseSchema;
         charset = Charset.forName(ISOUtil.ENCODING);
         readCount = 0;
+        schemas = new HashMap<String,Map<String,Element>>();
         
         setSeparator("FS", FS);
         setSeparator("US", US);
@@ -211,6 +224,24 @@ public class FSDMsg implements Loggeable, Cloneable {
             fields.put ("EOF", "true");
         }
     }
+    /**
+     * parse message from a reader, leaving it positioned right after the message, so consecutive
+     * messages can be read from the same reader. If the reader ends before the message is completely read,
+     * then the method adds an EOF field.
+     *
+     * @param r reader
+     *
+     * @throws IOException
+     * @throws JDOMException
+     */
+    public void unpack (Reader r)
+        throws IOException, JDOMException {
+        try {
+            unpack (r, getSchema (baseSchema));
+        } catch (EOFException e) {
+            fields.put ("EOF", "true");
+        }
+    }
     /**
      * parse message. If the stream ends before the message is completely read, then the method adds an EOF field.
      *
@@ -242,6 +273,26 @@ public class FSDMsg implements Loggeable, Cloneable {
     {
         return pack().getBytes(charset);
     }
+    /**
+     * writes the packed message through to a writer, without building the message string
+     * @param w writer
+     * @throws org.jdom.JDOMException
+     * @throws java.io.IOException
+     * @throws ISOException
+     */
+    public void pack (Writer w)
+        throws JDOMException, IOException, ISOException
+    {
+        pack (getSchema (baseSchema), w);
+    }
+    /**
+     * clears fields and header, so this message can be reused to unpack another one
+     */
+    public void clear () {
+        fields.clear();
+        header = null;
+        readCount = 0;
+    }
 
     protected String get (String id, String type, int length, String defValue, String separator) 
         throws ISOException
@@ -332,7 +383,7 @@ public class FSDMsg implements Loggeable, Cloneable {
         return separators.containsValue((char) b);
     }
     
-    private String getSeparatorType(String type) {
+    private static String getSeparatorType(String type) {
         if (type.length() > 2) {
             return type.substring(1);
         }
@@ -352,44 +403,53 @@ public class FSDMsg implements Loggeable, Cloneable {
 
     protected void pack (Element schema, StringBuilder sb)
         throws JDOMException, IOException, ISOException
+    {
+        packFields (schema, sb);
+    }
+
+    /**
+     * Packs the record into a reused buffer and appends it to out once
+     * complete, so a failing field never leaves a truncated record behind.
+     */
+    protected void pack (Element schema, Appendable out)
+        throws JDOMException, IOException, ISOException
+    {
+        if (out instanceof StringBuilder) {
+            packFields (schema, (StringBuilder) out);
+            return;
+        }
+        if (packBuffer == null)
+            packBuffer = new StringBuilder ();
+        packBuffer.setLength (0);
+        packFields (schema, packBuffer);
+        out.append (packBuffer);
+    }
+
+    private void packFields (Element schema, StringBuilder out)
+        throws JDOMException, IOException, ISOException
     {
         String keyOff = "";
         String defaultKey = "";
-        for (Element elem : (List<Element>)schema.getChildren("field")) {
-            String id    = elem.getAttributeValue ("id");
-            int length   = Integer.parseInt (elem.getAttributeValue ("length"));
-            String type  = elem.getAttributeValue ("type");
-            // For backward compatibility, look for a separator at the end of the type attribute, if no separator has been defined.
-            String separator = elem.getAttributeValue ("separator");
-            if (type != null && separator == null) {
-            	separator = getSeparatorType (type);
-            }
-            boolean key  = "true".equals (elem.getAttributeValue ("key"));
-            Map properties = key ? loadProperties(elem) : Collections.EMPTY_MAP;
-            String defValue = elem.getText();
-            // If properties were specified, then the defValue contains lots of \n and \t in it. It should just be set to the empty string, or null.
-            if (!properties.isEmpty()) {
-            	defValue = defValue.replace("\n", "").replace("\t", "").replace("\r", "");
-            }
-            String value = get (id, type, length, defValue, separator);
-            sb.append (value);
+        for (FieldDef f : compile (schema)) {
+            String value = get (f.id, f.type, f.length, f.packDefValue, f.separator);
+            out.append (value);
             
-            if (isSeparated(separator)) {
-                char c = getSeparator(separator);
+            if (isSeparated(f.separator)) {
+                char c = getSeparator(f.separator);
                 if (c > 0)
-                    sb.append(c);
+                    out.append(c);
             }
-            if (key) {
-                String v = isBinary(type) ? ISOUtil.hexString(value.getBytes(charset)) : value;
-                keyOff = keyOff + normalizeKeyValue(v, properties);
-                defaultKey += elem.getAttributeValue ("default-key");
+            if (f.key) {
+                String v = isBinary(f.type) ? ISOUtil.hexString(value.getBytes(charset)) : value;
+                keyOff = keyOff + normalizeKeyValue(v, f.properties);
+                defaultKey += f.defaultKey;
             }
         }
         if (keyOff.length() > 0) 
-            pack (getSchema (getId (schema), keyOff, defaultKey), sb);
+            packFields (getSchema (getId (schema), keyOff, defaultKey), out);
     }
 
-    private Map loadProperties(Element elem) {
+    private static Map loadProperties(Element elem) {
     	Map props = new HashMap ();
         for (Element prop : (List<Element>)elem.getChildren ("property")) {
     		String name = prop.getAttributeValue ("name");
@@ -408,37 +468,58 @@ public class FSDMsg implements Loggeable, Cloneable {
 
     protected void unpack (InputStreamReader r, Element schema)
         throws IOException, JDOMException {
+        unpackFields (r, schema);
+    }
+    /**
+     * Same as {@link #unpack(InputStreamReader, Element)}, for any Reader.
+     * InputStreamReaders go through the InputStreamReader variant.
+     */
+    protected void unpack (Reader r, Element schema)
+        throws IOException, JDOMException {
+        if (r instanceof InputStreamReader)
+            unpack ((InputStreamReader) r, schema);
+        else
+            unpackFields (r, schema);
+    }
+    private void unpackFields (Reader r, Element schema)
+        throws IOException, JDOMException {
 
         String keyOff = "";
         String defaultKey = "";
-        for (Element elem :(List<Element>)schema.getChildren("field")) {
-
-            String id    = elem.getAttributeValue ("id");
-            int length   = Integer.parseInt (elem.getAttributeValue ("length"));
-            String type  = elem.getAttributeValue ("type").toUpperCase();
-            String separator = elem.getAttributeValue ("separator");
-            if (type != null && separator == null) {
-            	separator = getSeparatorType (type);
-            }
-            boolean key  = "true".equals (elem.getAttributeValue ("key"));
-            Map properties = key ? loadProperties(elem) : Collections.EMPTY_MAP;
-            String value = readField(r, id, length, type, separator);
+        for (FieldDef f : compile (schema)) {
+            String value = readField(r, f.id, f.length, f.unpackType, f.unpackSeparator);
             
-            if (key) {
-                keyOff = keyOff + normalizeKeyValue(value, properties);
-                defaultKey += elem.getAttributeValue ("default-key");
+            if (f.key) {
+                keyOff = keyOff + normalizeKeyValue(value, f.properties);
+                defaultKey += f.defaultKey;
             }
-            if ("K".equals(type) && !value.equals (elem.getText()))
+            if ("K".equals(f.unpackType) && !value.equals (f.text))
                 throw new IllegalArgumentException (
-                    "Field "+id 
+                    "Field "+f.id 
                        + " value='"     +value
-                       + "' expected='" + elem.getText () + "'"
+                       + "' expected='" + f.text + "'"
                 );
         }
         if (keyOff.length() > 0) {
             unpack(r, getSchema (getId (schema), keyOff, defaultKey));
         }
     }
+    /**
+     * @param schema schema element
+     * @return field definitions, parsed once per schema element
+     */
+    private FieldDef[] compile (Element schema) {
+        FieldDef[] defs = compiledSchemas.get (schema);
+        if (defs == null) {
+            List<Element> elems = (List<Element>) schema.getChildren ("field");
+            defs = new FieldDef[elems.size()];
+            int i = 0;
+            for (Element elem : elems)
+                defs[i++] = new FieldDef (elem);
+            compiledSchemas.put (schema, defs);
+        }
+        return defs;
+    }
     private String getId (Element e) {
         String s = e.getAttributeValue ("id");
         return s == null ? "" : s;
@@ -446,7 +527,23 @@ public class FSDMsg implements Loggeable, Cloneable {
     protected String read (InputStreamReader r, int len, String type, String separator)
         throws IOException 
     {
-        StringBuilder sb = new StringBuilder();
+        return readChars (r, len, type, separator);
+    }
+    /**
+     * Same as {@link #read(InputStreamReader, int, String, String)}, for any Reader.
+     * InputStreamReaders go through the InputStreamReader variant.
+     */
+    protected String read (Reader r, int len, String type, String separator)
+        throws IOException 
+    {
+        if (r instanceof InputStreamReader)
+            return read ((InputStreamReader) r, len, type, separator);
+        return readChars (r, len, type, separator);
+    }
+    private String readChars (Reader r, int len, String type, String separator)
+        throws IOException 
+    {
+        StringBuilder sb = new StringBuilder(len < 64 ? len : 64);
         char[] c = new char[1];
         boolean expectSeparator = isSeparated(separator);
         boolean separated = expectSeparator;
@@ -473,6 +570,7 @@ public class FSDMsg implements Loggeable, Cloneable {
                 sb.append(c[0]);
             }
         } else {
+            char sep = expectSeparator ? getSeparator(separator) : 0;
             for (int i = 0; i < len; i++) {
                 if (r.read(c) < 0) {
                     if (!"EOF".equals(separator))
@@ -482,7 +580,7 @@ public class FSDMsg implements Loggeable, Cloneable {
                         break;
                     }
                 }
-                if (expectSeparator && (c[0] == getSeparator(separator))) {
+                if (expectSeparator && (c[0] == sep)) {
                     separated = false;
                     break;
                 }
@@ -498,6 +596,22 @@ public class FSDMsg implements Loggeable, Cloneable {
     }
     protected String readField (InputStreamReader r, String fieldName, int len,
         String type, String separator) throws IOException
+    {
+        return readFieldValue (r, fieldName, len, type, separator);
+    }
+    /**
+     * Same as {@link #readField(InputStreamReader, String, int, String, String)}, for any Reader.
+     * InputStreamReaders go through the InputStreamReader variant.
+     */
+    protected String readField (Reader r, String fieldName, int len,
+        String type, String separator) throws IOException
+    {
+        if (r instanceof InputStreamReader)
+            return readField ((InputStreamReader) r, fieldName, len, type, separator);
+        return readFieldValue (r, fieldName, len, type, separator);
+    }
+    private String readFieldValue (Reader r, String fieldName, int len,
+        String type, String separator) throws IOException
     {
         String fieldValue = read (r, len, type, separator);
         
@@ -575,7 +689,25 @@ public class FSDMsg implements Loggeable, Cloneable {
         throws JDOMException, IOException {
         return getSchema (message, "", null);
     }
+    /**
+     * Resolves basePath+prefix+suffix once per message, later records and
+     * keyed sub-schemas are served from the per-instance cache.
+     */
     protected Element getSchema (String prefix, String suffix, String defSuffix)
+        throws JDOMException, IOException {
+        Map<String,Element> bySuffix = schemas.get (prefix);
+        if (bySuffix == null) {
+            bySuffix = new HashMap<String,Element>();
+            schemas.put (prefix, bySuffix);
+        }
+        Element schema = bySuffix.get (suffix);
+        if (schema == null) {
+            schema = resolveSchema (prefix, suffix, defSuffix);
+            bySuffix.put (suffix, schema);
+        }
+        return schema;
+    }
+    private Element resolveSchema (String prefix, String suffix, String defSuffix)
         throws JDOMException, IOException {
         StringBuilder sb = new StringBuilder (basePath);
         sb.append (prefix);
@@ -639,6 +771,8 @@ public class FSDMsg implements Loggeable, Cloneable {
         try {              
             FSDMsg m = (FSDMsg) super.clone();
             m.fields = (Map) ((LinkedHashMap) fields).clone();
+            m.schemas = new HashMap<String,Map<String,Element>>();
+            m.packBuffer = null;
             return m;
         } catch (CloneNotSupportedException e) {
             throw new InternalError();
@@ -648,4 +782,39 @@ public class FSDMsg implements Loggeable, Cloneable {
         for (Entry<String,String> entry: m.fields.entrySet())
              set (entry.getKey(), entry.getValue());
     }
+
+    /**
+     * field element attributes, parsed once
+     */
+    private static class FieldDef {
+        final String id;
+        final int length;
+        final String type;
+        final String separator;
+        final String unpackType;
+        final String unpackSeparator;
+        final boolean key;
+        final Map properties;
+        final String text;
+        final String packDefValue;
+        final String defaultKey;
+
+        FieldDef (Element elem) {
+            id = elem.getAttributeValue ("id");
+            length = Integer.parseInt (elem.getAttributeValue ("length"));
+            type = elem.getAttributeValue ("type");
+            unpackType = type != null ? type.toUpperCase() : null;
+            // For backward compatibility, look for a separator at the end of the type attribute, if no separator has been defined.
+            String sep = elem.getAttributeValue ("separator");
+            separator = type != null && sep == null ? getSeparatorType (type) : sep;
+            unpackSeparator = type != null && sep == null ? getSeparatorType (unpackType) : sep;
+            key = "true".equals (elem.getAttributeValue ("key"));
+            properties = key ? loadProperties(elem) : Collections.EMPTY_MAP;
+            text = elem.getText();
+            // If properties were specified, then the defValue contains lots of \n and \t in it. It should just be set to the empty string, or null.
+            packDefValue = properties.isEmpty() ? text :
+                text.replace("\n", "").replace("\t", "").replace("\r", "");
+            defaultKey = elem.getAttributeValue ("default-key");
+        }
+    }
 }
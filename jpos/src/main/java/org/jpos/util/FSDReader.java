@@ -0,0 +1,91 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jpos.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+
+import org.jdom.JDOMException;
+
+/**
+ * Reads consecutive FSDMsg records from a stream (i.e. a settlement file).
+ *
+ * A single FSDMsg is reused for every record, its schema definitions
+ * are parsed once and the stream is read through a buffer, so no
+ * per record mark/reset or whole file buffering takes place.
+ *
+ * <pre>
+ * FSDReader reader = new FSDReader (new FileInputStream (file), new FSDMsg ("file:cfg/settle-"));
+ * for (FSDMsg m; (m = reader.next()) != null; ) {
+ *     ...
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * @since 1.9.7
+ * @see FSDWriter
+ */
+public class FSDReader implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+    private final PushbackReader reader;
+    private final FSDMsg msg;
+
+    /**
+     * @param is input stream, decoded using msg's charset
+     * @param msg message to be reused for every record
+     */
+    public FSDReader (InputStream is, FSDMsg msg) {
+        this (new InputStreamReader (is, msg.charset), msg);
+    }
+    /**
+     * @param r reader
+     * @param msg message to be reused for every record
+     */
+    public FSDReader (Reader r, FSDMsg msg) {
+        this.reader = new PushbackReader (new BufferedReader (r, BUFFER_SIZE));
+        this.msg = msg;
+    }
+    /**
+     * @return the FSDMsg holding the next record (same instance on every call),
+     *         or null at end of stream. A truncated last record gets an EOF field.
+     * @throws IOException
+     * @throws JDOMException
+     */
+    public FSDMsg next () throws IOException, JDOMException {
+        int c = reader.read();
+        if (c < 0)
+            return null;
+        reader.unread (c);
+        msg.clear();
+        msg.unpack (reader);
+        return msg;
+    }
+    public FSDMsg getFSDMsg () {
+        return msg;
+    }
+    public void close () throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jpos.util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.jdom.JDOMException;
+import org.jpos.iso.ISOException;
+
+/**
+ * Writes FSDMsg records through to a stream (i.e. a file or socket)
+ * without building whole message strings.
+ *
+ * @since 1.9.7
+ * @see FSDReader
+ */
+public class FSDWriter implements Closeable, Flushable {
+    private static final int BUFFER_SIZE = 8192;
+    private final Writer writer;
+
+    /**
+     * @param os output stream
+     * @param charset records encoding
+     */
+    public FSDWriter (OutputStream os, Charset charset) {
+        this (new OutputStreamWriter (os, charset));
+    }
+    /**
+     * @param w writer
+     */
+    public FSDWriter (Writer w) {
+        this.writer = new BufferedWriter (w, BUFFER_SIZE);
+    }
+    /**
+     * packs msg straight into the underlying stream
+     * @param msg message to write
+     * @throws JDOMException
+     * @throws IOException
+     * @throws ISOException
+     */
+    public void write (FSDMsg msg) throws JDOMException, IOException, ISOException {
+        msg.pack (writer);
+    }
+    public void flush () throws IOException {
+        writer.flush();
+    }
+    public void close () throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.util;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, fixed size, log-linear histogram (HDR style).
+ *
+ * <p>Values (typically latencies in microseconds) are placed in buckets
+ * with {@value #SUB_BUCKETS} linear sub-buckets per power of two, so the
+ * reported percentiles are accurate to ~12%. Values up to 2^{@value #MAX_EXPONENT}
+ * are tracked, larger ones are accounted in the last bucket (exact max is
+ * preserved).</p>
+ */
+public class Histogram implements Loggeable {
+    private static final int SUB_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+    public static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = 2*SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray (BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private String unit;
+
+    public Histogram () {
+        this ("us");
+    }
+    /**
+     * @param unit unit used by {@link #toString()} and {@link #dump(PrintStream, String)}
+     */
+    public Histogram (String unit) {
+        super();
+        this.unit = unit;
+    }
+
+    /**
+     * @param value value to record, negative values are recorded as zero
+     */
+    public void record (long value) {
+        if (value < 0L)
+            value = 0L;
+        buckets.incrementAndGet (indexOf (value));
+        count.incrementAndGet();
+        total.addAndGet (value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet (m, value))
+            ;
+    }
+
+    /**
+     * Adds other histogram's samples into this one
+     * @param h histogram to merge
+     */
+    public void add (Histogram h) {
+        for (int i=0; i<BUCKETS; i++) {
+            long l = h.buckets.get (i);
+            if (l > 0L)
+                buckets.addAndGet (i, l);
+        }
+        count.addAndGet (h.count.get());
+        total.addAndGet (h.total.get());
+        long v = h.max.get();
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet (m, v))
+            ;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+    public long getTotal() {
+        return total.get();
+    }
+    public long getMax() {
+        return max.get();
+    }
+    public long getMean() {
+        long n = count.get();
+        return n > 0L ? total.get() / n : 0L;
+    }
+
+    /**
+     * @param percentile 0.0 to 100.0
+     * @return highest value in the bucket holding the given percentile
+     */
+    public long getPercentile (double percentile) {
+        long n = count.get();
+        if (n == 0L)
+            return 0L;
+        long target = Math.max (1L, (long) Math.ceil (n * Math.min (percentile, 100.0) / 100.0));
+        long seen = 0L;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += buckets.get (i);
+            if (seen >= target)
+                return i < BUCKETS - 1 ? Math.min (upperBoundOf (i), max.get()) : max.get();
+        }
+        return max.get();
+    }
+
+    public void reset () {
+        for (int i=0; i<BUCKETS; i++)
+            buckets.set (i, 0L);
+        count.set (0L);
+        total.set (0L);
+        max.set (0L);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append ("n=").append (getCount());
+        sb.append (", avg=").append (getMean()).append (unit);
+        sb.append (", p50=").append (getPercentile (50.0)).append (unit);
+        sb.append (", p90=").append (getPercentile (90.0)).append (unit);
+        sb.append (", p99=").append (getPercentile (99.0)).append (unit);
+        sb.append (", p99.9=").append (getPercentile (99.9)).append (unit);
+        sb.append (", max=").append (getMax()).append (unit);
+        return sb.toString();
+    }
+
+    public void dump (PrintStream p, String indent) {
+        p.println (indent + toString());
+    }
+
+    static int indexOf (long value) {
+        if (value < 2*SUB_BUCKETS)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros (value);
+        if (exp > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int shift = exp - SUB_BITS;
+        return 2*SUB_BUCKETS + (shift-1)*SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    static long upperBoundOf (int index) {
+        if (index < 2*SUB_BUCKETS)
+            return index;
+        int i = index - 2*SUB_BUCKETS;
+        int shift = i / SUB_BUCKETS + 1;
+        long mantissa = i % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
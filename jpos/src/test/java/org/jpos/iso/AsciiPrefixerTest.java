@@ -40,6 +40,13 @@ public class AsciiPrefixerTest extends TestCase
         TestUtils.assertEquals(new byte[]{0x30, 0x33}, b);
     }
 
+    public void testEncodeAtOffset() throws Exception
+    {
+        byte[] b = new byte[4];
+        AsciiPrefixer.LL.encodeLength(21, b, 2);
+        TestUtils.assertEquals(new byte[]{0x00, 0x00, 0x32, 0x31}, b);
+    }
+
     public void testDecode() throws Exception
     {
         byte[] b = new byte[]{0x32, 0x35};
@@ -1135,4 +1135,28 @@ public class BaseChannelTest {
         byte[] result = aSCIIChannel.streamReceive();
         assertEquals("result.length", 0, result.length);
     }
+
+    @Test
+    public void testTrustedFrameCodec() throws Throwable {
+        BaseChannel nac = new NACChannel();
+        assertSame(nac.getFrameCodec(), nac.getTrustedFrameCodec());
+        BaseChannel base24 = new BASE24TCPChannel();
+        assertSame(base24.getFrameCodec(), base24.getTrustedFrameCodec());
+        BaseChannel ownFraming = new NACChannel() {
+            protected int getMessageLength() throws IOException, ISOException {
+                return super.getMessageLength() - 1;
+            }
+        };
+        assertTrue("codec inherited", ownFraming.getFrameCodec() != null);
+        assertNull("codec trusted despite own framing", ownFraming.getTrustedFrameCodec());
+        BaseChannel ownCodec = new NACChannel() {
+            protected int getMessageLength() throws IOException, ISOException {
+                return super.getMessageLength();
+            }
+            public FrameCodec getFrameCodec() {
+                return super.getFrameCodec();
+            }
+        };
+        assertSame(ownCodec.getFrameCodec(), ownCodec.getTrustedFrameCodec());
+    }
 }
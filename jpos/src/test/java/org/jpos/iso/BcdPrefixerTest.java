@@ -61,6 +61,13 @@ public class BcdPrefixerTest extends TestCase
         TestUtils.assertEquals(new byte[]{(byte)0x99}, b);
     }
 
+    public void testEncodeLLLAtOffset() throws Exception
+    {
+        byte[] b = new byte[3];
+        BcdPrefixer.LLL.encodeLength(321, b, 1);
+        TestUtils.assertEquals(new byte[]{0x00, 0x03, 0x21}, b);
+    }
+
     public void testDecode() throws Exception
     {
         byte[] b = new byte[]{0x25};
@@ -0,0 +1,193 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.iso.channel.NACChannel;
+import org.jpos.iso.packager.ISO87BPackager;
+import org.jpos.util.ThreadPool;
+import org.junit.Test;
+
+public class BufferPoolTest {
+    @Test
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool (4096, 2);
+        assertEquals (BufferPool.MIN_SIZE, pool.acquire (1).length);
+        assertEquals (256, pool.acquire (256).length);
+        assertEquals (512, pool.acquire (257).length);
+        assertEquals (4096, pool.acquire (4000).length);
+        assertEquals (5000, pool.acquire (5000).length);
+        assertEquals (0L, pool.getHits());
+    }
+
+    @Test
+    public void testReleaseAndReuse() {
+        BufferPool pool = new BufferPool (4096, 2);
+        byte[] a = pool.acquire (300);
+        byte[] b = pool.acquire (300);
+        byte[] c = pool.acquire (300);
+        pool.release (a);
+        pool.release (b);
+        pool.release (c);         // over the per class limit
+        pool.release (new byte[300]);  // not a size class
+        pool.release (new byte[8192]); // larger than maxSize
+        assertEquals (2, pool.getIdleCount());
+        assertSame (a, pool.acquire (400));
+        assertSame (b, pool.acquire (512));
+        assertNotSame (c, pool.acquire (300));
+        assertEquals (2L, pool.getHits());
+    }
+
+    @Test
+    public void testUnpackWithLength() throws ISOException {
+        ISOMsg m = new ISOMsg ("0800");
+        m.set (11, "000001");
+        m.set (70, "301");
+        ISOPackager p = new ISO87BPackager();
+        m.setPackager (p);
+        byte[] image = m.pack();
+        byte[] b = new byte[image.length + 100];
+        System.arraycopy (image, 0, b, 0, image.length);
+
+        ISOMsg m1 = new ISOMsg();
+        assertEquals (image.length, ((ISOBasePackager) p).unpack (m1, b, image.length));
+        assertEquals ("000001", m1.getString (11));
+        assertEquals ("301", m1.getString (70));
+        try {
+            ((ISOBasePackager) p).unpack (new ISOMsg(), b, image.length - 1);
+            assertTrue ("ISOException expected", false);
+        } catch (ISOException expected) { }
+    }
+
+    @Test
+    public void testMessagePool() throws ISOException {
+        ISOMsgPool pool = new ISOMsgPool (1);
+        ISOMsg m = new ISOMsg ("0800");
+        m.set (11, "000001");
+        m.setDirection (ISOMsg.INCOMING);
+        assertTrue (pool.recycle (m));
+        assertFalse (pool.recycle (new ISOMsg()));     // pool full
+        assertFalse (new ISOMsgPool (1).recycle (new ISOMsg() { }));
+        ISOMsgPool pool2 = new ISOMsgPool (2);
+        ISOMsg m2 = new ISOMsg();
+        assertTrue (pool2.recycle (m2));
+        assertFalse (pool2.recycle (m2));              // already pooled
+        assertSame (m2, pool2.borrow());
+        assertNull (pool2.borrow());
+        assertTrue (pool2.recycle (m2));
+
+        ISOMsg m1 = pool.borrow();
+        assertSame (m, m1);
+        assertFalse (m1.hasFields());
+        assertEquals (0, m1.getDirection());
+        assertNull (pool.borrow());
+    }
+
+    @Test
+    public void testMessagePoolHonorsPackagerMessageClass() throws Throwable {
+        final ISOPackager packager = new ISO87BPackager() {
+            public ISOMsg createISOMsg() {
+                return new ISOMsg() { };
+            }
+        };
+        NACChannel channel = new NACChannel (packager, null);
+        ISOMsgPool pool = new ISOMsgPool (2);
+        pool.recycle (new ISOMsg());
+        channel.setMessagePool (pool);
+        for (int i=0; i<2; i++)
+            assertNotSame (ISOMsg.class, channel.createISOMsg().getClass());
+        assertEquals (1, pool.getIdleCount());
+
+        channel.setPackager (new ISO87BPackager());
+        channel.createISOMsg();
+        assertSame (ISOMsg.class, channel.createISOMsg().getClass());
+        assertEquals (0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testPooledReceive() throws Throwable {
+        ISOServer server = new ISOServer (
+            4014, new NACChannel (new ISO87BPackager(), null), new ThreadPool (1, 10)
+        );
+        server.setConfiguration (new SimpleConfiguration());
+        server.addISORequestListener (new ISORequestListener() {
+            public boolean process (ISOSource source, ISOMsg m) {
+                try {
+                    m.setResponseMTI();
+                    m.set (39, "00");
+                    source.send (m);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                return true;
+            }
+        });
+        new Thread (server).start();
+
+        NACChannel client = new NACChannel ("localhost", 4014, new ISO87BPackager(), null);
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put ("host", "localhost");
+        cfg.put ("port", "4014");
+        cfg.put ("receive-buffer-pool", "true");
+        cfg.put ("message-pool-size", "4");
+        client.setConfiguration (cfg);
+        for (int i=0; !client.isConnected(); i++) {
+            try {
+                client.connect();
+            } catch (IOException e) {
+                if (i == 50)
+                    throw e;
+                ISOUtil.sleep (100L);
+            }
+        }
+        try {
+            BufferPool pool = client.getReceiveBufferPool();
+            long hits = pool.getHits();
+            ISOMsg previous = null;
+            for (int i=0; i<10; i++) {
+                ISOMsg m = new ISOMsg ("0800");
+                m.set (11, ISOUtil.zeropad (i, 6));
+                m.set (70, "301");
+                client.send (m);
+                ISOMsg r = client.receive();
+                if (previous != null)
+                    assertSame (previous, r);
+                assertEquals ("0810", r.getMTI());
+                assertEquals (ISOUtil.zeropad (i, 6), r.getString (11));
+                assertEquals ("00", r.getString (39));
+                assertSame (client, r.getSource());
+                assertTrue (client.recycle (r));
+                previous = r;
+            }
+            assertTrue (pool.getHits() - hits >= 9);
+        } finally {
+            client.disconnect();
+            server.shutdown();
+        }
+    }
+}
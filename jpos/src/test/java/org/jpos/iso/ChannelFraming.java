@@ -0,0 +1,39 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jpos.iso;
+
+import java.io.IOException;
+
+/**
+ * Lets channel tests outside org.jpos.iso call BaseChannel's
+ * protected framing methods.
+ */
+public class ChannelFraming {
+    public static int getMessageLength (BaseChannel c) throws IOException, ISOException {
+        return c.getMessageLength();
+    }
+    public static void sendMessageLength (BaseChannel c, int len) throws IOException {
+        c.sendMessageLength (len);
+    }
+    @SuppressWarnings ("deprecation")
+    public static void sendMessageTrailler (BaseChannel c, ISOMsg m, int len) throws IOException {
+        c.sendMessageTrailler (m, len);
+    }
+}
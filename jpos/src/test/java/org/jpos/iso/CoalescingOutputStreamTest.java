@@ -0,0 +1,243 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.iso.channel.NACChannel;
+import org.jpos.iso.packager.ISO87BPackager;
+import org.jpos.util.ThreadPool;
+import org.junit.Test;
+
+public class CoalescingOutputStreamTest {
+    static final int THREADS = 8;
+    static final int FRAMES  = 200;
+
+    @Test
+    public void testConcurrentFramesAreNotInterleaved() throws Throwable {
+        final SlowStream sink = new SlowStream();
+        final CoalescingOutputStream out = new CoalescingOutputStream (sink, 0L);
+        final Object lock = new Object();
+        Thread[] t = new Thread[THREADS];
+        for (int i=0; i<THREADS; i++) {
+            final byte id = (byte) ('A' + i);
+            t[i] = new Thread() {
+                public void run () {
+                    try {
+                        for (int n=0; n<FRAMES; n++) {
+                            synchronized (lock) {
+                                out.write (id);
+                                out.write (new byte[] { id, id, id });
+                            }
+                            out.drain();
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException (e);
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (Thread thread : t)
+            thread.join();
+        out.flush();
+
+        byte[] b = sink.toByteArray();
+        assertEquals (THREADS * FRAMES * 4, b.length);
+        int[] counts = new int[THREADS];
+        for (int i=0; i<b.length; i+=4) {
+            for (int j=1; j<4; j++)
+                assertEquals ("frame at " + i, b[i], b[i+j]);
+            counts[b[i] - 'A']++;
+        }
+        for (int c : counts)
+            assertEquals (FRAMES, c);
+        assertEquals (0, out.pending());
+        assertTrue (
+            "batches=" + out.getBatchCount() + " frames=" + out.getFrameCount(),
+            out.getBatchCount() < out.getFrameCount()
+        );
+    }
+
+    @Test
+    public void testLingerWritesPendingFrames() throws Throwable {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        CoalescingOutputStream out = new CoalescingOutputStream (sink, 500L);
+        out.write ("0800".getBytes());
+        out.drain();
+        assertEquals ("0800", sink.toString());
+        assertEquals (1L, out.getBatchCount());
+    }
+
+    @Test
+    public void testAppendersBlockWhileBatchIsFull() throws Throwable {
+        final CountDownLatch writing = new CountDownLatch (1);
+        final CountDownLatch release = new CountDownLatch (1);
+        OutputStream sink = new OutputStream() {
+            public void write (int c) { }
+            public void write (byte[] buf, int off, int len) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) { }
+            }
+        };
+        final CoalescingOutputStream out = new CoalescingOutputStream (sink, 0L, 8);
+        out.write (new byte[4]);
+        Thread writer = new Thread() {
+            public void run () {
+                try {
+                    out.drain();
+                } catch (IOException ignored) { }
+            }
+        };
+        writer.start();
+        writing.await();
+        out.write (new byte[8]);
+        final CountDownLatch appended = new CountDownLatch (1);
+        Thread appender = new Thread() {
+            public void run () {
+                try {
+                    out.write (new byte[8]);
+                    appended.countDown();
+                } catch (IOException ignored) { }
+            }
+        };
+        appender.start();
+        assertFalse (appended.await (200L, TimeUnit.MILLISECONDS));
+        assertEquals (8, out.pending());
+        release.countDown();
+        assertTrue (appended.await (5L, TimeUnit.SECONDS));
+        writer.join();
+        out.drain();
+        assertEquals (0, out.pending());
+    }
+
+    @Test
+    public void testWriteFailureIsSticky() throws Throwable {
+        OutputStream sink = new OutputStream() {
+            public void write (int c) throws IOException {
+                throw new IOException ("broken pipe");
+            }
+        };
+        CoalescingOutputStream out = new CoalescingOutputStream (sink, 0L);
+        out.write (new byte[4]);
+        try {
+            out.drain();
+            fail ("IOException expected");
+        } catch (IOException e) {
+            assertEquals ("broken pipe", e.getMessage());
+        }
+        try {
+            out.write (new byte[4]);
+            fail ("IOException expected");
+        } catch (IOException e) {
+            assertEquals ("broken pipe", e.getCause().getMessage());
+        }
+        try {
+            out.drain();
+            fail ("IOException expected");
+        } catch (IOException e) {
+            assertEquals ("broken pipe", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testCoalescingChannel() throws Throwable {
+        ISOServer server = new ISOServer (
+            4013, new NACChannel (new ISO87BPackager(), null), new ThreadPool (1, 10)
+        );
+        server.setConfiguration (new SimpleConfiguration());
+        final AtomicInteger received = new AtomicInteger();
+        server.addISORequestListener (new ISORequestListener() {
+            public boolean process (ISOSource source, ISOMsg m) {
+                received.incrementAndGet();
+                return true;
+            }
+        });
+        new Thread (server).start();
+
+        final NACChannel client = new NACChannel ("localhost", 4013, new ISO87BPackager(), null);
+        client.setWriteCoalescing (true);
+        for (int i=0; !client.isConnected(); i++) {
+            try {
+                client.connect();
+            } catch (IOException e) {
+                if (i == 50)
+                    throw e;
+                ISOUtil.sleep (100L);
+            }
+        }
+        final CountDownLatch done = new CountDownLatch (THREADS);
+        for (int i=0; i<THREADS; i++) {
+            final int id = i;
+            new Thread() {
+                public void run () {
+                    try {
+                        for (int n=0; n<FRAMES/4; n++) {
+                            ISOMsg m = new ISOMsg ("0800");
+                            m.set (11, ISOUtil.zeropad (id * 1000 + n, 6));
+                            m.set (70, "301");
+                            client.send (m);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        try {
+            for (int i=0; i<100 && received.get() < THREADS*FRAMES/4; i++)
+                ISOUtil.sleep (50L);
+            assertEquals (THREADS*FRAMES/4, received.get());
+            assertEquals (THREADS*FRAMES/4, client.getCounters()[ISOChannel.TX]);
+        } finally {
+            client.disconnect();
+            server.shutdown();
+        }
+    }
+
+    static class SlowStream extends OutputStream {
+        private final ByteArrayOutputStream b = new ByteArrayOutputStream();
+        public void write (int c) {
+            b.write (c);
+        }
+        public void write (byte[] buf, int off, int len) {
+            ISOUtil.sleep (1L);
+            b.write (buf, off, len);
+        }
+        byte[] toByteArray () {
+            return b.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class DenseFieldMapTest extends TestCase {
+    private static final int[] KEYS = { -3, 200, 0, -1, 1, 2, 64, 65, 128, 129, 192, 193, 1000 };
+
+    public void testSameOrderAsTreeMap() {
+        DenseFieldMap m = new DenseFieldMap();
+        TreeMap<Integer,Object> t = new TreeMap<Integer,Object>();
+        for (int k : KEYS) {
+            m.put (k, "v" + k);
+            t.put (k, "v" + k);
+        }
+        assertEquals (t.size(), m.size());
+        assertEquals (t.toString(), m.toString());
+        assertEquals (t, m);
+        assertEquals (m, t);
+        assertEquals (t.hashCode(), m.hashCode());
+        for (int k : KEYS)
+            assertEquals ("v" + k, m.get (k));
+    }
+
+    public void testRemove() {
+        DenseFieldMap m = new DenseFieldMap();
+        for (int k : KEYS)
+            m.put (k, "v" + k);
+        assertEquals ("v64", m.remove (Integer.valueOf (64)));
+        assertNull (m.remove (Integer.valueOf (64)));
+        assertEquals ("v1000", m.remove (1000));
+        assertNull (m.get (64));
+        assertFalse (m.containsKey (1000));
+        assertEquals (KEYS.length - 2, m.size());
+        m.clear();
+        assertTrue (m.isEmpty());
+        assertEquals (-1, m.getMaxField());
+    }
+
+    public void testIteratorRemove() {
+        DenseFieldMap m = new DenseFieldMap();
+        for (int k : KEYS)
+            m.put (k, "v" + k);
+        Iterator<Integer> iter = m.keySet().iterator();
+        while (iter.hasNext()) {
+            int k = iter.next();
+            if (k % 2 != 0)
+                iter.remove();
+        }
+        assertEquals ("{0=v0, 2=v2, 64=v64, 128=v128, 192=v192, 200=v200, 1000=v1000}", m.toString());
+    }
+
+    public void testConcurrentModification() {
+        DenseFieldMap m = new DenseFieldMap();
+        m.put (2, "two");
+        m.put (3, "three");
+        Iterator<Integer> iter = m.keySet().iterator();
+        iter.next();
+        m.put (4, "four");
+        try {
+            iter.next();
+            fail ("ConcurrentModificationException expected");
+        } catch (ConcurrentModificationException expected) { }
+    }
+
+    public void testEntrySetValue() {
+        DenseFieldMap m = new DenseFieldMap();
+        m.put (2, "two");
+        m.put (500, "five hundred");
+        for (Map.Entry<Integer,Object> e : m.entrySet())
+            e.setValue (e.getValue().toString().toUpperCase());
+        assertEquals ("TWO", m.get (2));
+        assertEquals ("FIVE HUNDRED", m.get (500));
+    }
+
+    public void testMaxFieldAndBitSet() {
+        DenseFieldMap m = new DenseFieldMap();
+        m.put (-1, "bitmap");
+        m.put (0, "0800");
+        assertEquals (0, m.getMaxField());
+        m.put (70, "301");
+        m.put (11, "000001");
+        assertEquals (70, m.getMaxField());
+        assertEquals ("{11, 70}", m.getBitSet (192).toString());
+        assertEquals ("{11}", m.getBitSet (64).toString());
+        m.put (193, "x");
+        assertEquals (193, m.getMaxField());
+        m.remove (193);
+        m.remove (70);
+        assertEquals (11, m.getMaxField());
+    }
+
+    public void testClone() {
+        DenseFieldMap m = new DenseFieldMap();
+        for (int k : KEYS)
+            m.put (k, "v" + k);
+        DenseFieldMap c = m.clone();
+        c.put (2, "changed");
+        c.remove (1000);
+        c.remove (65);
+        assertEquals ("v2", m.get (2));
+        assertEquals ("v1000", m.get (1000));
+        assertTrue (m.getBitSet (192).get (65));
+        assertFalse (c.getBitSet (192).get (65));
+        assertEquals (KEYS.length, m.size());
+        assertEquals (KEYS.length - 2, c.size());
+    }
+
+    public void testNullValue() {
+        try {
+            new DenseFieldMap().put (2, null);
+            fail ("NullPointerException expected");
+        } catch (NullPointerException expected) { }
+    }
+
+    public void testISOMsgDefaultStorage() throws ISOException {
+        assertFalse (ISOMsg.isDenseStorage());
+        ISOMsg m = new ISOMsg ("0800");
+        assertTrue (m.getChildren() instanceof TreeMap);
+        assertTrue (((ISOMsg) m.clone (new int[] { 0 })).getChildren() instanceof TreeMap);
+        assertTrue (((ISOMsg) m.clone()).getChildren() instanceof TreeMap);
+    }
+
+    public void testISOMsgChildren() throws ISOException {
+        ISOMsg.setDenseStorage (true);
+        ISOMsg m;
+        try {
+            m = new ISOMsg ("0800");
+        } finally {
+            ISOMsg.setDenseStorage (false);
+        }
+        assertTrue (m.getChildren() instanceof DenseFieldMap);
+        m.set (11, "000001");
+        m.set (70, "301");
+        m.set ("127.2", "nested");
+        m.recalcBitMap();
+        Map children = m.getChildren();
+        assertEquals ("[-1, 0, 11, 70, 127]", children.keySet().toString());
+        assertEquals (127, m.getMaxField());
+        ISOMsg c = (ISOMsg) m.clone();
+        c.set ("127.2", "changed");
+        assertEquals ("nested", m.getString ("127.2"));
+        m.unset (127);
+        assertEquals (70, m.getMaxField());
+    }
+}
@@ -18,6 +18,9 @@
 
 package org.jpos.iso;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 
 /**
@@ -51,4 +54,24 @@ public class IFA_LLCHARTest extends TestCase
         packager.unpack(unpack, packager.pack(f), 0);
         assertEquals(origin, (String) unpack.getValue());
     }
+
+    public void testPackToBufferWithCustomPrefixer() throws Exception
+    {
+        ISOStringFieldPackager packager = new ISOStringFieldPackager(10, "custom prefixer",
+            NullPadder.INSTANCE, AsciiInterpreter.INSTANCE, new Prefixer() {
+                public void encodeLength(int length, byte[] b) throws ISOException {
+                    AsciiPrefixer.LL.encodeLength(length, b);
+                }
+                public int decodeLength(byte[] b, int offset) throws ISOException {
+                    return AsciiPrefixer.LL.decodeLength(b, offset);
+                }
+                public int getPackedLength() {
+                    return 2;
+                }
+            });
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.put((byte) 'X');
+        assertEquals(6, packager.pack(new ISOField(12, "ABCD"), buf));
+        TestUtils.assertEquals("X04ABCD".getBytes(), Arrays.copyOf(buf.array(), 7));
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jpos.iso;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Word based bitmaps must pack and unpack exactly like the BitSet ones
+ */
+public class ISOBitMapTest {
+    private static final int[] LENGTHS = { 8, 16, 24 };
+
+    @Test
+    public void testWordsAndBitSetViews() throws Exception {
+        ISOMsg m = new ISOMsg ("0200");
+        m.set (2, "4111111111111111");
+        m.set (64, "ABCDEF0123456789");
+        m.set (65, "1");
+        m.set (128, "ABCDEF0123456789");
+        m.set (192, "X");
+        m.recalcBitMap();
+        ISOBitMap bitmap = (ISOBitMap) m.getComponent (-1);
+        assertTrue (bitmap.get (2));
+        assertTrue (bitmap.get (192));
+        assertFalse (bitmap.get (3));
+        assertFalse (bitmap.get (0));
+        BitSet bs = (BitSet) bitmap.getValue();
+        assertEquals ("{2, 64, 65, 128, 192}", bs.toString());
+        bs.clear (192);
+        assertFalse ("BitSet is the value once requested", bitmap.get (192));
+        m.unset (192);
+        m.recalcBitMap();
+        assertArrayEquals (ISOUtil.hex2byte ("C0000000000000018000000000000001"),
+            new IFB_BITMAP (16, "").pack (m.getComponent (-1)));
+    }
+
+    @Test
+    public void testPackMatchesBitSet() throws Exception {
+        Random r = new Random (8583L);
+        for (int n=0; n<2000; n++) {
+            BitSet bs = randomBitSet (r);
+            for (int len : LENGTHS) {
+                ISOBitMapPackager[] packagers = packagers (len);
+                for (ISOBitMapPackager p : packagers) {
+                    byte[] expected;
+                    try {
+                        expected = p.pack (new BitSetComponent (bs));
+                    } catch (ISOException e) {
+                        assertPackFails (p, new ISOBitMap (-1, bs));
+                        assertPackFails (p, new ISOBitMap (-1, words (bs), 192));
+                        continue;
+                    }
+                    assertArrayEquals (p.getClass().getName() + " " + bs,
+                        expected, p.pack (new ISOBitMap (-1, bs)));
+                    assertArrayEquals (p.getClass().getName() + " " + bs,
+                        expected, p.pack (new ISOBitMap (-1, words (bs), 192)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnpackMatchesBitSet() throws Exception {
+        Random r = new Random (8583L);
+        for (int n=0; n<2000; n++) {
+            byte[] raw = new byte[24];
+            r.nextBytes (raw);
+            byte[] hex = ISOUtil.hexString (raw).getBytes();
+            if (n % 3 == 0)
+                hex = ISOUtil.hexString (raw).toLowerCase().getBytes();
+            byte[] ebcdic = ISOUtil.asciiToEbcdic (hex);
+            for (int len : LENGTHS) {
+                assertUnpack (new IFB_BITMAP (len, ""), raw);
+                assertUnpack (new IFA_BITMAP (len, ""), hex);
+                assertUnpack (new IFE_BITMAP (len, ""), ebcdic);
+            }
+        }
+    }
+
+    private void assertPackFails (ISOBitMapPackager p, ISOBitMap bitmap) {
+        try {
+            p.pack (bitmap);
+            fail (p.getClass().getName() + " should not pack " + bitmap.getValue());
+        } catch (ISOException e) { }
+    }
+
+    private void assertUnpack (ISOBitMapPackager p, byte[] b) throws Exception {
+        BitSetComponent legacy = new BitSetComponent (null);
+        ISOBitMap bitmap = new ISOBitMap (-1);
+        int consumed = p.unpack (legacy, b, 0);
+        assertEquals (consumed, p.unpack (bitmap, b, 0));
+        BitSet expected = (BitSet) legacy.getValue();
+        for (int i=0; i<=192; i++)
+            assertEquals (p.getClass().getName() + " fld " + i, expected.get (i), bitmap.get (i));
+        assertEquals (expected.size(), bitmap.size());
+        assertEquals (expected, bitmap.getValue());
+    }
+
+    private static ISOBitMapPackager[] packagers (int len) {
+        return new ISOBitMapPackager[] {
+            new IFB_BITMAP (len, ""), new IFA_BITMAP (len, ""), new IFE_BITMAP (len, "")
+        };
+    }
+
+    private static BitSet randomBitSet (Random r) {
+        BitSet bs = new BitSet (192);
+        int max = 1 + r.nextInt (192);
+        int count = r.nextInt (max);
+        for (int i=0; i<count; i++)
+            bs.set (1 + r.nextInt (max));
+        return bs;
+    }
+
+    private static long[] words (BitSet bs) {
+        long[] w = new long[3];
+        for (int i = bs.nextSetBit (1); i >= 0; i = bs.nextSetBit (i+1))
+            w[(i-1) >> 6] |= 1L << (63 - ((i-1) & 63));
+        return w;
+    }
+
+    /**
+     * not an ISOBitMap, forces packagers through their BitSet code
+     */
+    private static class BitSetComponent extends ISOComponent {
+        private Object value;
+        BitSetComponent (BitSet value) {
+            this.value = value;
+        }
+        public Object getValue() {
+            return value;
+        }
+        public void setValue (Object obj) {
+            value = obj;
+        }
+        public void setFieldNumber (int fieldNumber) { }
+        public byte[] pack() throws ISOException {
+            throw new ISOException ("Not available");
+        }
+        public int unpack (byte[] b) throws ISOException {
+            throw new ISOException ("Not available");
+        }
+        public void unpack (InputStream in) throws ISOException {
+            throw new ISOException ("Not available");
+        }
+        public void dump (PrintStream p, String indent) { }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ISOCompiledFieldPackagerTest extends TestCase {
+    public void testStringPackagers() throws Exception {
+        check (new IF_CHAR (10, "char"), "abc");
+        check (new IF_CHAR (3, "char"), "abc");
+        check (new IFA_NUMERIC (6, "numeric"), "123");
+        check (new IFA_LLNUM (10, "llnum"), "12345");
+        check (new IFA_LLCHAR (99, "llchar"), "");
+        check (new IFA_LLLCHAR (20, "lllchar"), "abc");
+        check (new IFA_LLLLLCHAR (20, "lllllchar"), "abc");
+        check (new IFB_NUMERIC (7, "bcd", true), "123");
+        check (new IFB_NUMERIC (7, "bcd", false), "123");
+        check (new IFB_LLNUM (19, "llnum", true), "12345");
+        check (new IFB_LLNUM (19, "llnum", false), "12345");
+        check (new IFB_LLNUM (19, "llnum", true, true), "12345");
+        check (new IFB_LLLNUM (999, "lllnum", false), "123456789");
+        check (new IFB_LLHNUM (19, "llhnum", true), "12345");
+        check (new IFB_LLCHAR (20, "llchar"), "abc");
+        check (new IFB_LLHCHAR (20, "llhchar"), "abc");
+        check (new IFE_CHAR (10, "ebcdic"), "abc");
+        check (new IFE_NUMERIC (10, "ebcdic"), "123");
+        check (new IFE_LLCHAR (20, "ebcdic"), "abc");
+    }
+
+    public void testBinaryPackagers() throws Exception {
+        byte[] b = new byte[] { 1, 2, 3, (byte) 0xFF };
+        check (new IFB_BINARY (4, "binary"), b);
+        check (new IFB_LLBINARY (20, "llbinary"), b);
+        check (new IFB_LLHBINARY (20, "llhbinary"), b);
+    }
+
+    public void testNotCompiled() {
+        ISOFieldPackager fp = new IFA_BINARY (4, "hex");
+        assertSame (fp, ISOCompiledFieldPackager.compile (fp));
+        fp = new IFB_BITMAP (16, "bitmap");
+        assertSame (fp, ISOCompiledFieldPackager.compile (fp));
+        fp = new IFA_AMOUNT (12, "amount");
+        assertSame (fp, ISOCompiledFieldPackager.compile (fp));
+    }
+
+    public void testErrors() throws Exception {
+        ISOFieldPackager fp = ISOCompiledFieldPackager.compile (new IFA_LLCHAR (5, "llchar"));
+        try {
+            fp.pack (new ISOField (2, "123456"));
+            fail ("ISOException expected");
+        } catch (ISOException e) {
+            assertEquals ("org.jpos.iso.IFA_LLCHAR: Problem packing field 2", e.getMessage());
+        }
+        try {
+            fp.unpack (new ISOField (2), "09123456789".getBytes(), 0);
+            fail ("ISOException expected");
+        } catch (ISOException e) {
+            assertEquals ("org.jpos.iso.IFA_LLCHAR: Problem unpacking field 2", e.getMessage());
+        }
+        fp = ISOCompiledFieldPackager.compile (new IFB_BINARY (4, "binary"));
+        try {
+            fp.pack (new ISOBinaryField (2, new byte[3]));
+            fail ("ISOException expected");
+        } catch (ISOException expected) { }
+    }
+
+    public void testNonLatin1Data() throws Exception {
+        ISOFieldPackager fp = new IF_CHAR (10, "char");
+        ISOField f = new ISOField (2, "a€b");
+        TestUtils.assertEquals (fp.pack (f), ISOCompiledFieldPackager.compile (fp).pack (f));
+    }
+
+    private void check (ISOFieldPackager fp, String value) throws Exception {
+        check (fp, new ISOField (2, value));
+    }
+
+    private void check (ISOFieldPackager fp, byte[] value) throws Exception {
+        check (fp, new ISOBinaryField (2, value));
+    }
+
+    private void check (ISOFieldPackager fp, ISOComponent c) throws Exception {
+        ISOFieldPackager cfp = ISOCompiledFieldPackager.compile (fp);
+        String name = fp.getClass().getName();
+        assertTrue (name, cfp instanceof ISOCompiledFieldPackager);
+        assertEquals (name, fp.getMaxPackedLength(), cfp.getMaxPackedLength());
+
+        byte[] b = fp.pack (c);
+        TestUtils.assertEquals (b, cfp.pack (c));
+
+        ByteBuffer buf = ByteBuffer.allocate (b.length + 4);
+        Arrays.fill (buf.array(), (byte) 0xFF);
+        buf.position (2);
+        assertEquals (name, b.length, cfp.pack (c, buf));
+        assertEquals (name, b.length + 2, buf.position());
+        TestUtils.assertEquals (b, Arrays.copyOfRange (buf.array(), 2, b.length + 2));
+
+        byte[] image = new byte[b.length + 3];
+        System.arraycopy (b, 0, image, 3, b.length);
+        ISOComponent expected = fp.createComponent (2);
+        ISOComponent actual = cfp.createComponent (2);
+        assertEquals (name, expected.getClass(), actual.getClass());
+        assertEquals (name, fp.unpack (expected, image, 3), cfp.unpack (actual, image, 3));
+        assertEquals (name, fp.getPackedLength (image, 3), cfp.getPackedLength (image, 3));
+        if (expected.getValue() instanceof byte[])
+            TestUtils.assertEquals ((byte[]) expected.getValue(), (byte[]) actual.getValue());
+        else
+            assertEquals (name, expected.getValue(), actual.getValue());
+    }
+}
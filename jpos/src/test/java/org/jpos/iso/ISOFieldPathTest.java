@@ -0,0 +1,71 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import junit.framework.TestCase;
+
+public class ISOFieldPathTest extends TestCase {
+    public void testValueOf() {
+        ISOFieldPath p = ISOFieldPath.valueOf ("63.2.3");
+        assertEquals (3, p.length());
+        assertEquals (63, p.getFieldNumber (0));
+        assertEquals (2, p.getFieldNumber (1));
+        assertEquals (3, p.getLastFieldNumber());
+        assertEquals ("63.2.3", p.toString());
+    }
+
+    public void testInterned() {
+        assertSame (ISOFieldPath.valueOf ("127.2"), ISOFieldPath.valueOf ("127.2"));
+        assertEquals (ISOFieldPath.valueOf ("127.2"), ISOFieldPath.valueOf ("127..2"));
+    }
+
+    public void testInvalidPath() {
+        try {
+            ISOFieldPath.valueOf ("63.x");
+            fail ("NumberFormatException expected");
+        } catch (NumberFormatException expected) { }
+        try {
+            ISOFieldPath.valueOf ("");
+            fail ("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) { }
+    }
+
+    public void testISOMsgOverloads() throws ISOException {
+        ISOFieldPath f127_2 = ISOFieldPath.valueOf ("127.2");
+        ISOFieldPath f127_3 = ISOFieldPath.valueOf ("127.3");
+        ISOMsg m = new ISOMsg ("0800");
+        m.set (f127_2, "ABC");
+        m.set (f127_3, new byte[] { 0x12, 0x34 });
+        assertEquals ("ABC", m.getString ("127.2"));
+        assertEquals ("ABC", m.getString (f127_2));
+        assertEquals ("1234", m.getString (f127_3));
+        assertEquals ("ABC", new String (m.getBytes (f127_2)));
+        assertTrue (m.hasField (f127_2));
+        assertEquals ("ABC", m.getValue (f127_2));
+        assertEquals (2, m.getComponent (f127_2).getKey());
+        m.set (f127_2, new ISOField (2, "DEF"));
+        assertEquals ("DEF", m.getString (f127_2));
+        m.unset (f127_2);
+        assertFalse (m.hasField (f127_2));
+        assertTrue (m.hasField (127));
+        m.unset (f127_3);
+        assertFalse (m.hasField (127));
+        assertNull (m.getString (ISOFieldPath.valueOf ("3.1")));
+    }
+}
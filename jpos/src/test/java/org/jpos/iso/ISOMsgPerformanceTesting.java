@@ -0,0 +1,109 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import org.jpos.iso.packager.ISO87BPackager;
+
+/**
+ * Compares ISOMsg set/get/pack/clone times using dense field storage
+ * against the default TreeMap based storage.
+ */
+public class ISOMsgPerformanceTesting
+{
+    private static final int ITERATIONS = 300000;
+    private static final ISOPackager packager = new ISO87BPackager();
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : ITERATIONS;
+        for (int i = 0; i < 2; i++) { // first round is warm up
+            run("dense  ", newMsg(true), iterations);
+            run("treemap", newMsg(false), iterations);
+        }
+    }
+
+    private static void run(String name, ISOMsg m, int iterations) throws Exception
+    {
+        m.setPackager(packager);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            fill(m);
+        long set = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int n = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (int f = 0; f <= 128; f++)
+                if (m.hasField(f))
+                    n += m.getString(f).length();
+        }
+        long get = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            m.set(11, "000001"); // mark dirty so the bitmap gets recalculated
+            n += m.pack().length;
+        }
+        long pack = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ((ISOMsg) m.clone()).getMaxField();
+        long clone = System.nanoTime() - start;
+
+        System.out.println(name
+            + " set=" + (set / iterations) + "ns"
+            + " get=" + (get / iterations) + "ns"
+            + " pack=" + (pack / iterations) + "ns"
+            + " clone=" + (clone / iterations) + "ns"
+            + " (" + n + ")");
+    }
+
+    private static void fill(ISOMsg m) throws ISOException
+    {
+        m.setMTI("0200");
+        m.set(2, "4111111111111111");
+        m.set(3, "000000");
+        m.set(4, "000000010000");
+        m.set(7, "1018123456");
+        m.set(11, "000001");
+        m.set(12, "123456");
+        m.set(13, "1018");
+        m.set(22, "051");
+        m.set(25, "00");
+        m.set(32, "123456");
+        m.set(37, "000000000001");
+        m.set(41, "29110001");
+        m.set(42, "001001001001001");
+        m.set(49, "840");
+        m.set(70, "301");
+        m.set(100, "654321");
+    }
+
+    private static ISOMsg newMsg(boolean dense)
+    {
+        boolean saved = ISOMsg.isDenseStorage();
+        ISOMsg.setDenseStorage(dense);
+        try {
+            return new ISOMsg();
+        } finally {
+            ISOMsg.setDenseStorage(saved);
+        }
+    }
+}
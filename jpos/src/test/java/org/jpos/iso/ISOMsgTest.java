@@ -19,6 +19,10 @@
 package org.jpos.iso;
 
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
 import junit.framework.TestCase;
 
 /**
@@ -26,6 +30,22 @@ import junit.framework.TestCase;
  */
 public class ISOMsgTest extends TestCase
 {
+    public void testWriteExternalReportsUndecodableField() throws Exception {
+        ISOFieldPackager broken = new IF_CHAR (4, "BROKEN") {
+            public int unpack (ISOComponent c, byte[] b, int offset) throws ISOException {
+                throw new ISOException ("bad field");
+            }
+        };
+        ISOMsg m = new ISOMsg ("0800");
+        m.set (new ISOLazyField (11, broken, "1234".getBytes(), 0));
+        try {
+            m.writeExternal (new ObjectOutputStream (new ByteArrayOutputStream()));
+            fail ("IOException expected");
+        } catch (IOException e) {
+            assertTrue (e.getCause() instanceof ISOException);
+        }
+    }
+
     public void testGetBytes() throws Exception {
         ISOMsg m = new ISOMsg("0800");
         m.set (3, "000000");
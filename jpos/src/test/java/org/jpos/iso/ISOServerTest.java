@@ -19,10 +19,25 @@
 package org.jpos.iso;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.iso.channel.ASCIIChannel;
+import org.jpos.iso.channel.XMLChannel;
+import org.jpos.iso.packager.ISO87APackager;
+import org.jpos.iso.packager.XMLPackager;
 import org.jpos.util.NameRegistrar;
+import org.jpos.util.ThreadPool;
 import org.junit.Test;
 
 public class ISOServerTest {
@@ -46,4 +61,298 @@ public class ISOServerTest {
             assertEquals("ex.getMessage()", "server.testISOServerName", ex.getMessage());
         }
     }
+
+    @Test
+    public void testNIOServerHoldsConnectionsWithoutThreads() throws Throwable {
+        ThreadPool pool = new ThreadPool (1, 100);
+        ISOServer server = newNIOServer (4010, new ASCIIChannel (new ISO87APackager()), pool);
+        ASCIIChannel[] clients = new ASCIIChannel[50];
+        try {
+            for (int i=0; i<clients.length; i++) {
+                clients[i] = new ASCIIChannel ("localhost", 4010, new ISO87APackager());
+                connect (clients[i]);
+            }
+            for (int n=0; n<3; n++) {
+                for (int i=0; i<clients.length; i++) {
+                    String stan = ISOUtil.zeropad (i*10+n, 6);
+                    clients[i].send (newRequest (stan));
+                    ISOMsg r = clients[i].receive();
+                    assertEquals ("0810", r.getMTI());
+                    assertEquals (stan, r.getString (11));
+                }
+            }
+            assertEquals (clients.length, server.getConnectionCount());
+            assertTrue ("pool size " + pool.getPoolSize(), pool.getPoolSize() < 10);
+        } finally {
+            for (ASCIIChannel c : clients) {
+                if (c != null)
+                    c.disconnect();
+            }
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testNIOServerPipelinedMessages() throws Throwable {
+        ISOServer server = newNIOServer (4011, new XMLChannel (new XMLPackager()), null);
+        XMLChannel client = new XMLChannel ("localhost", 4011, new XMLPackager());
+        client.setTimingMetrics (true);
+        try {
+            connect (client);
+            for (int i=0; i<5; i++)
+                client.send (newRequest (ISOUtil.zeropad (i, 6)));
+            for (int i=0; i<5; i++) {
+                ISOMsg r = client.receive();
+                assertEquals ("0810", r.getMTI());
+                assertEquals (ISOUtil.zeropad (i, 6), r.getString (11));
+            }
+            ChannelMetrics metrics = client.getMetrics();
+            assertEquals (5L, metrics.getMessagesOut());
+            assertEquals (5L, metrics.getMessagesIn());
+            assertEquals (5L, metrics.getPackTime().getCount());
+            assertEquals (5L, metrics.getUnpackTime().getCount());
+            assertEquals (5L, metrics.getWriteTime().getCount());
+            assertEquals (10L, metrics.getFilterTime().getCount());
+            metrics = server.getMetrics();
+            assertFalse (metrics.isTimed());
+            assertNull (metrics.getPackTime());
+            assertEquals (5L, metrics.getMessagesIn());
+            assertEquals (5L, metrics.getMessagesOut());
+            assertTrue (metrics.getBytesIn() > 0L);
+            assertTrue (metrics.getBytesOut() > 0L);
+            client.disconnect();
+            for (int i=0; i<50 && server.getConnections() > 0; i++)
+                ISOUtil.sleep (100L);
+            assertEquals (0, server.getConnections());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testNIOServerPartialFramesAndPolls() throws Throwable {
+        ISOServer server = newNIOServer (4012, new ASCIIChannel (new ISO87APackager()), null);
+        Socket socket = null;
+        for (int i=0; socket == null; i++) {
+            try {
+                socket = new Socket ("localhost", 4012);
+            } catch (IOException e) {
+                if (i == 50)
+                    throw e;
+                ISOUtil.sleep (100L);
+            }
+        }
+        try {
+            socket.setSoTimeout (5000);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream (socket.getInputStream());
+
+            out.write ("0000".getBytes());
+            byte[] poll = new byte[4];
+            in.readFully (poll);
+            assertEquals ("0000", new String (poll));
+
+            ISOMsg m = newRequest ("000001");
+            m.setPackager (new ISO87APackager());
+            byte[] b = m.pack();
+            byte[] frame = (ISOUtil.zeropad (b.length, 4) + new String (b, "ISO8859_1")).getBytes ("ISO8859_1");
+            for (byte c : frame) {
+                out.write (c);
+                out.flush ();
+                ISOUtil.sleep (2L);
+            }
+            byte[] len = new byte[4];
+            in.readFully (len);
+            byte[] r = new byte[Integer.parseInt (new String (len))];
+            in.readFully (r);
+            ISOMsg resp = new ISOMsg();
+            resp.setPackager (new ISO87APackager());
+            resp.unpack (r);
+            assertEquals ("0810", resp.getMTI());
+            assertEquals ("000001", resp.getString (11));
+        } finally {
+            socket.close();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testNIOServerTLS() throws Throwable {
+        System.setProperty ("java.security.egd", "file:/dev/./urandom");
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put ("keystore", "src/test/resources/keystore.jks");
+        cfg.put ("storepassword", "password");
+        cfg.put ("keypassword", "password");
+        cfg.put ("ssl-handshake-threads", "2");
+        cfg.put ("ssl-session-cache-size", "100");
+        ISOServer server = newNIOServer (
+            4015, new ASCIIChannel (new ISO87APackager()), null, new SunJSSESocketFactory(), cfg
+        );
+        SunJSSESocketFactory factory = new SunJSSESocketFactory();
+        SimpleConfiguration clientCfg = new SimpleConfiguration();
+        clientCfg.put ("keystore", "src/test/resources/keystore.jks");
+        clientCfg.put ("storepassword", "password");
+        clientCfg.put ("keypassword", "password");
+        clientCfg.put ("serverauth", "false");
+        factory.setConfiguration (clientCfg);
+        try {
+            for (int n=0; n<2; n++) {
+                ASCIIChannel client = new ASCIIChannel ("localhost", 4015, new ISO87APackager());
+                client.setSocketFactory (factory);
+                client.setTimeout (10000);
+                connect (client);
+                for (int i=0; i<3; i++)
+                    client.send (newRequest (ISOUtil.zeropad (i, 6)));
+                for (int i=0; i<3; i++) {
+                    ISOMsg r = client.receive();
+                    assertEquals ("0810", r.getMTI());
+                    assertEquals (ISOUtil.zeropad (i, 6), r.getString (11));
+                }
+                client.disconnect();
+            }
+            for (int i=0; i<50 && server.getConnections() > 0; i++)
+                ISOUtil.sleep (100L);
+            assertEquals (0, server.getConnections());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testDispatchPreservesPerConnectionOrder() throws Throwable {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put ("dispatch-threads", "4");
+        ISOServer server = newServer (4016, new XMLChannel (new XMLPackager()), cfg, new SlowEchoListener());
+        XMLChannel client = new XMLChannel ("localhost", 4016, new XMLPackager());
+        try {
+            connect (client);
+            for (int i=0; i<5; i++)
+                client.send (newRequest (ISOUtil.zeropad (i, 6)));
+            for (int i=0; i<5; i++)
+                assertEquals (ISOUtil.zeropad (i, 6), client.receive().getString (11));
+        } finally {
+            client.disconnect();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnorderedDispatchDoesNotBlockOnSlowListener() throws Throwable {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put ("nio", "true");
+        cfg.put ("dispatch-threads", "4");
+        cfg.put ("dispatch-ordered", "false");
+        ISOServer server = newServer (4017, new XMLChannel (new XMLPackager()), cfg, new SlowEchoListener());
+        XMLChannel client = new XMLChannel ("localhost", 4017, new XMLPackager());
+        try {
+            connect (client);
+            for (int i=0; i<5; i++)
+                client.send (newRequest (ISOUtil.zeropad (i, 6)));
+            Set<String> stans = new HashSet<String>();
+            stans.add (client.receive().getString (11));
+            assertFalse ("slow request should not be answered first", stans.contains ("000000"));
+            for (int i=1; i<5; i++)
+                stans.add (client.receive().getString (11));
+            assertEquals (5, stans.size());
+        } finally {
+            client.disconnect();
+            server.shutdown();
+        }
+    }
+
+    @Test(timeout=5000)
+    public void testDispatchToClosedPoolReleasesPermits() throws Throwable {
+        for (String ordered : new String[] { "true", "false" }) {
+            SimpleConfiguration cfg = new SimpleConfiguration();
+            cfg.put ("dispatch-ordered", ordered);
+            cfg.put ("max-in-flight", "1");
+            ISOServer server = new ISOServer (0, new XMLChannel (new XMLPackager()), null);
+            server.setConfiguration (cfg);
+            server.dispatchPool = new ThreadPool (1, 1);
+            server.dispatchPool.close();
+            ISOServer.Dispatcher dispatcher = server.createDispatcher (null);
+            for (int i=0; i<3; i++)
+                dispatcher.dispatch (new ISOMsg ("0800")); // would block on the 2nd message
+            assertEquals (0, dispatcher.queue.size());
+            assertFalse (dispatcher.scheduled);
+        }
+    }
+
+    private ISOServer newServer (int port, ServerChannel channel, SimpleConfiguration cfg,
+        ISORequestListener listener) throws Exception
+    {
+        ISOServer server = new ISOServer (port, channel, null);
+        server.setConfiguration (cfg);
+        server.addISORequestListener (listener);
+        new Thread (server).start();
+        return server;
+    }
+
+    /**
+     * Echoes requests back, taking 500ms to answer STAN 000000
+     */
+    private static class SlowEchoListener implements ISORequestListener {
+        public boolean process (ISOSource source, ISOMsg m) {
+            try {
+                if ("000000".equals (m.getString (11)))
+                    ISOUtil.sleep (500L);
+                m.setResponseMTI();
+                source.send (m);
+            } catch (Exception e) {
+                fail (e.getMessage());
+            }
+            return true;
+        }
+    }
+
+    private ISOServer newNIOServer (int port, ServerChannel channel, ThreadPool pool)
+        throws Exception
+    {
+        return newNIOServer (port, channel, pool, null, new SimpleConfiguration());
+    }
+
+    private ISOServer newNIOServer (int port, ServerChannel channel, ThreadPool pool,
+        ISOServerSocketFactory socketFactory, SimpleConfiguration cfg)
+        throws Exception
+    {
+        ISOServer server = new ISOServer (port, channel, pool);
+        if (socketFactory != null)
+            server.setSocketFactory (socketFactory);
+        cfg.put ("nio", "true");
+        cfg.put ("nio-selectors", "2");
+        server.setConfiguration (cfg);
+        server.addISORequestListener (new ISORequestListener() {
+            public boolean process (ISOSource source, ISOMsg m) {
+                try {
+                    m.setResponseMTI();
+                    source.send (m);
+                } catch (Exception e) {
+                    fail (e.getMessage());
+                }
+                return true;
+            }
+        });
+        new Thread (server).start();
+        return server;
+    }
+
+    private void connect (BaseChannel channel) throws IOException {
+        for (int i=0; ; i++) {
+            try {
+                channel.connect();
+                return;
+            } catch (IOException e) {
+                if (i == 50)
+                    throw e;
+                ISOUtil.sleep (100L);
+            }
+        }
+    }
+
+    private ISOMsg newRequest (String stan) throws ISOException {
+        ISOMsg m = new ISOMsg ("0800");
+        m.set (11, stan);
+        m.set (70, "301");
+        return m;
+    }
 }
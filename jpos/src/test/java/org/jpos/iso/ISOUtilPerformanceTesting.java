@@ -0,0 +1,179 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+/**
+ * Compares the table driven ISOUtil codecs against the previous
+ * char by char implementations (kept here as reference) using
+ * typical field sizes.
+ */
+public class ISOUtilPerformanceTesting
+{
+    private static final int[] SIZES = { 4, 8, 16, 64, 256 };
+    private static final int ITERATIONS = 2000000;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : ITERATIONS;
+        for (int round = 0; round < 2; round++) { // first round is warm up
+            for (int size : SIZES)
+                run(size, iterations, round > 0);
+        }
+    }
+
+    private static void run(int size, int iterations, boolean print) throws Exception
+    {
+        byte[] bin = new byte[size];
+        new Random(size).nextBytes(bin);
+        byte[] hex = ISOUtil.hexString(bin).getBytes(ISOUtil.ENCODING);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size * 2; i++)
+            sb.append((char) ('0' + i % 10));
+        String digits = sb.toString();
+        byte[] bcd = ISOUtil.str2bcd(digits, true);
+        byte[] out = new byte[size * 2];
+        int n = 0;
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += legacyHexString(bin).length();
+        long t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.hexString(bin).length();
+        long t2 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.hexEncode(bin, 0, size, out, 0);
+        long t3 = System.nanoTime();
+        report(print, "hexString ", size, t1 - t0, t2 - t1, t3 - t2, iterations);
+
+        t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += legacyHex2byte(hex, 0, size).length;
+        t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.hex2byte(hex, 0, size).length;
+        t2 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.hexDecode(hex, 0, size * 2, out, 0);
+        t3 = System.nanoTime();
+        report(print, "hex2byte  ", size, t1 - t0, t2 - t1, t3 - t2, iterations);
+
+        t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += legacyStr2bcd(digits, true, new byte[size], 0).length;
+        t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.str2bcd(digits, true, new byte[size], 0).length;
+        t2 = System.nanoTime();
+        byte[] ascii = digits.getBytes(ISOUtil.ENCODING);
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.ascii2bcd(ascii, 0, ascii.length, true, new byte[size], 0);
+        t3 = System.nanoTime();
+        report(print, "str2bcd   ", size, t1 - t0, t2 - t1, t3 - t2, iterations);
+
+        t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += legacyBcd2str(bcd, 0, size * 2, true).length();
+        t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.bcd2str(bcd, 0, size * 2, true).length();
+        t2 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.bcd2ascii(bcd, 0, size * 2, true, out, 0);
+        t3 = System.nanoTime();
+        report(print, "bcd2str   ", size, t1 - t0, t2 - t1, t3 - t2, iterations);
+
+        t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += legacyEbcdicToAscii(bin, 0, size).length();
+        t1 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.ebcdicToAscii(bin, 0, size).length();
+        t2 = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            n += ISOUtil.ebcdicToAscii(bin, 0, size, out, 0);
+        t3 = System.nanoTime();
+        report(print, "ebcdic2asc", size, t1 - t0, t2 - t1, t3 - t2, iterations);
+
+        if (n == 42)
+            System.out.println(); // keep the JIT from removing the loops
+    }
+
+    private static void report(boolean print, String name, int size,
+                               long legacy, long wrapper, long direct, int iterations)
+    {
+        if (print)
+            System.out.println(name + " " + size + " bytes:"
+                + " legacy=" + (legacy / iterations) + "ns"
+                + " new=" + (wrapper / iterations) + "ns"
+                + " no-alloc=" + (direct / iterations) + "ns");
+    }
+
+    static String legacyHexString(byte[] b)
+    {
+        StringBuilder d = new StringBuilder(b.length * 2);
+        for (byte aB : b)
+            d.append(ISOUtil.hexStrings[(int) aB & 0xFF]);
+        return d.toString();
+    }
+
+    static byte[] legacyHex2byte(byte[] b, int offset, int len)
+    {
+        byte[] d = new byte[len];
+        for (int i = 0; i < len * 2; i++) {
+            int shift = i % 2 == 1 ? 0 : 4;
+            d[i >> 1] |= Character.digit((char) b[offset + i], 16) << shift;
+        }
+        return d;
+    }
+
+    static byte[] legacyStr2bcd(String s, boolean padLeft, byte[] d, int offset)
+    {
+        int len = s.length();
+        int start = (((len & 1) == 1) && padLeft) ? 1 : 0;
+        for (int i = start; i < len + start; i++)
+            d[offset + (i >> 1)] |= (s.charAt(i - start) - '0') << ((i & 1) == 1 ? 0 : 4);
+        return d;
+    }
+
+    static String legacyBcd2str(byte[] b, int offset, int len, boolean padLeft)
+    {
+        StringBuilder d = new StringBuilder(len);
+        int start = (((len & 1) == 1) && padLeft) ? 1 : 0;
+        for (int i = start; i < len + start; i++) {
+            int shift = ((i & 1) == 1 ? 0 : 4);
+            char c = Character.forDigit(((b[offset + (i >> 1)] >> shift) & 0x0F), 16);
+            if (c == 'd')
+                c = '=';
+            d.append(Character.toUpperCase(c));
+        }
+        return d.toString();
+    }
+
+    static String legacyEbcdicToAscii(byte[] e, int offset, int len) throws UnsupportedEncodingException
+    {
+        byte[] a = new byte[len];
+        for (int i = 0; i < len; i++)
+            a[i] = ISOUtil.EBCDIC2ASCII[e[offset + i] & 0xFF];
+        return new String(a, ISOUtil.ENCODING);
+    }
+}
@@ -4752,4 +4752,58 @@ public class ISOUtilTest {
         char check = ISOUtil.calcLUHN("411111111111111");
         assertThat(check, is('1'));
     }
+
+    @Test
+    public void testTableCodecsMatchReference() throws Throwable {
+        byte[] all = new byte[256];
+        for (int i = 0; i < 256; i++)
+            all[i] = (byte) i;
+        assertEquals(ISOUtilPerformanceTesting.legacyHexString(all), ISOUtil.hexString(all));
+        assertEquals(ISOUtilPerformanceTesting.legacyBcd2str(all, 0, 512, false), ISOUtil.bcd2str(all, 0, 512, false));
+        assertEquals(ISOUtilPerformanceTesting.legacyBcd2str(all, 1, 13, true), ISOUtil.bcd2str(all, 1, 13, true));
+        assertEquals(ISOUtilPerformanceTesting.legacyBcd2str(all, 1, 13, false), ISOUtil.bcd2str(all, 1, 13, false));
+        assertEquals(ISOUtilPerformanceTesting.legacyEbcdicToAscii(all, 0, 256), ISOUtil.ebcdicToAscii(all));
+
+        byte[] pairs = new byte[2];
+        for (int i = 0; i < 65536; i++) {
+            pairs[0] = (byte) (i >> 8);
+            pairs[1] = (byte) i;
+            assertArrayEquals(ISOUtilPerformanceTesting.legacyHex2byte(pairs, 0, 1), ISOUtil.hex2byte(pairs, 0, 1));
+        }
+
+        for (String s : new String[] { "", "1", "12", "123", "1234567890=D", "/:;?" }) {
+            for (boolean padLeft : new boolean[] { true, false }) {
+                byte[] expected = ISOUtilPerformanceTesting.legacyStr2bcd(s, padLeft, new byte[8], 1);
+                assertArrayEquals(s, expected, ISOUtil.str2bcd(s, padLeft, new byte[8], 1));
+                byte[] d = new byte[8];
+                assertEquals((s.length() + 1) / 2, ISOUtil.ascii2bcd(s.getBytes(), 0, s.length(), padLeft, d, 1));
+                assertArrayEquals(s, expected, d);
+            }
+        }
+    }
+
+    @Test
+    public void testNoAllocCodecs() throws Throwable {
+        byte[] src = new byte[] { 0x00, 0x12, (byte) 0xAB, (byte) 0xFF };
+        byte[] dst = new byte[12];
+        assertEquals(8, ISOUtil.hexEncode(src, 0, 4, dst, 2));
+        assertEquals("0012ABFF", new String(dst, 2, 8, ISOUtil.ENCODING));
+        byte[] back = new byte[5];
+        assertEquals(4, ISOUtil.hexDecode(dst, 2, 8, back, 1));
+        assertArrayEquals(new byte[] { 0x00, 0x00, 0x12, (byte) 0xAB, (byte) 0xFF }, back);
+
+        byte[] bcd = new byte[3];
+        assertEquals(3, ISOUtil.ascii2bcd("12345".getBytes(), 0, 5, true, bcd, 0));
+        assertArrayEquals(new byte[] { 0x01, 0x23, 0x45 }, bcd);
+        byte[] digits = new byte[6];
+        assertEquals(5, ISOUtil.bcd2ascii(bcd, 0, 5, true, digits, 1));
+        assertEquals("12345", new String(digits, 1, 5, ISOUtil.ENCODING));
+
+        byte[] ebcdic = new byte[5];
+        assertEquals(3, ISOUtil.asciiToEbcdic("AB1".getBytes(), 0, 3, ebcdic, 1));
+        assertArrayEquals(new byte[] { 0x00, (byte) 0xC1, (byte) 0xC2, (byte) 0xF1, 0x00 }, ebcdic);
+        byte[] ascii = new byte[3];
+        assertEquals(3, ISOUtil.ebcdicToAscii(ebcdic, 1, 3, ascii, 0));
+        assertEquals("AB1", new String(ascii, ISOUtil.ENCODING));
+    }
 }
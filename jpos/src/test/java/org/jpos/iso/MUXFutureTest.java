@@ -0,0 +1,93 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class MUXFutureTest {
+    @Test
+    public void testResponse() throws Exception {
+        MUXFuture f = new MUXFuture();
+        Recorder r = new Recorder();
+        f.addResponseListener (r, "one");
+        assertFalse (f.isDone());
+        ISOMsg m = new ISOMsg ("0810");
+        f.responseReceived (m, null);
+        assertTrue (f.isDone());
+        assertFalse (f.isExpired());
+        assertSame (m, f.get());
+        assertSame (m, r.response);
+        assertEquals ("one", r.handBack);
+        f.expired (null);
+        assertSame ("completed future should not change", m, f.get (0L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        MUXFuture f = new MUXFuture();
+        f.expired (null);
+        assertTrue (f.isExpired());
+        assertNull (f.get());
+        Recorder r = new Recorder();
+        f.addResponseListener (r, "late");
+        assertTrue ("listener added after completion should be called", r.expired);
+        assertEquals ("late", r.handBack);
+    }
+
+    @Test
+    public void testTimeoutAndCancel() throws Exception {
+        MUXFuture f = new MUXFuture();
+        try {
+            f.get (10L, TimeUnit.MILLISECONDS);
+            fail ("TimeoutException expected");
+        } catch (TimeoutException expected) { }
+        assertTrue (f.cancel (false));
+        assertTrue (f.isCancelled());
+        assertFalse (f.isExpired());
+        try {
+            f.get();
+            fail ("CancellationException expected");
+        } catch (CancellationException expected) { }
+    }
+
+    static class Recorder implements ISOResponseListener {
+        ISOMsg response;
+        Object handBack;
+        boolean expired;
+        public void responseReceived (ISOMsg m, Object handBack) {
+            this.response = m;
+            this.handBack = handBack;
+        }
+        public void expired (Object handBack) {
+            this.expired = true;
+            this.handBack = handBack;
+        }
+    }
+}
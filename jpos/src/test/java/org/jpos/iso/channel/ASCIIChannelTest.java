@@ -27,6 +27,7 @@ import static org.junit.Assert.fail;
 import java.io.IOException;
 import java.net.ServerSocket;
 
+import org.jpos.iso.ChannelFraming;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.packager.Base1Packager;
 import org.jpos.iso.packager.Base1SubFieldPackager;
@@ -119,7 +120,7 @@ public class ASCIIChannelTest {
     public void testGetMessageLengthThrowsNullPointerException() throws Throwable {
         ASCIIChannel aSCIIChannel = new ASCIIChannel(new Base1Packager());
         try {
-            aSCIIChannel.getMessageLength();
+            ChannelFraming.getMessageLength(aSCIIChannel);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -129,7 +130,7 @@ public class ASCIIChannelTest {
     @Test
     public void testSendMessageLength() throws Throwable {
         ASCIIChannel aSCIIChannel = new ASCIIChannel("testASCIIChannelHost", 100, new GenericPackager());
-        aSCIIChannel.sendMessageLength(Integer.MIN_VALUE);
+        ChannelFraming.sendMessageLength(aSCIIChannel, Integer.MIN_VALUE);
         assertTrue("Executed without Exception", true);
     }
 
@@ -137,7 +138,7 @@ public class ASCIIChannelTest {
     public void testSendMessageLengthThrowsIOException() throws Throwable {
         ASCIIChannel aSCIIChannel = new ASCIIChannel();
         try {
-            aSCIIChannel.sendMessageLength(10000);
+            ChannelFraming.sendMessageLength(aSCIIChannel, 10000);
             fail("Expected IOException to be thrown");
         } catch (IOException ex) {
             assertEquals("ex.getClass()", IOException.class, ex.getClass());
@@ -148,7 +149,7 @@ public class ASCIIChannelTest {
     public void testSendMessageLengthThrowsNullPointerException() throws Throwable {
         ASCIIChannel aSCIIChannel = new ASCIIChannel();
         try {
-            aSCIIChannel.sendMessageLength(9999);
+            ChannelFraming.sendMessageLength(aSCIIChannel, 9999);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -159,7 +160,7 @@ public class ASCIIChannelTest {
     public void testSendMessageLengthThrowsNullPointerException1() throws Throwable {
         ASCIIChannel aSCIIChannel = new ASCIIChannel(new Base1SubFieldPackager());
         try {
-            aSCIIChannel.sendMessageLength(9998);
+            ChannelFraming.sendMessageLength(aSCIIChannel, 9998);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -25,6 +25,7 @@ import static org.junit.Assert.fail;
 
 import java.net.ServerSocket;
 
+import org.jpos.iso.ChannelFraming;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.packager.ISO87APackager;
@@ -126,7 +127,7 @@ public class BASE24TCPChannelTest {
     public void testSendMessageLengthThrowsNullPointerException() throws Throwable {
         BASE24TCPChannel bASE24TCPChannel = new BASE24TCPChannel(new ISO87APackager());
         try {
-            bASE24TCPChannel.sendMessageLength(100);
+            ChannelFraming.sendMessageLength(bASE24TCPChannel, 100);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -138,7 +139,7 @@ public class BASE24TCPChannelTest {
         BASE24TCPChannel bASE24TCPChannel = new BASE24TCPChannel();
 
         try {
-            bASE24TCPChannel.sendMessageTrailler(m, 100);
+            ChannelFraming.sendMessageTrailler(bASE24TCPChannel, m, 100);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
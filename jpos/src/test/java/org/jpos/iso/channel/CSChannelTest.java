@@ -25,6 +25,7 @@ import static org.junit.Assert.fail;
 
 import java.net.ServerSocket;
 
+import org.jpos.iso.ChannelFraming;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.packager.Base1Packager;
@@ -125,7 +126,7 @@ public class CSChannelTest {
     public void testGetMessageLengthThrowsNullPointerException() throws Throwable {
         CSChannel cSChannel = new CSChannel();
         try {
-            cSChannel.getMessageLength();
+            ChannelFraming.getMessageLength(cSChannel);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -143,7 +144,7 @@ public class CSChannelTest {
     public void testSendMessageLengthThrowsNullPointerException() throws Throwable {
         CSChannel cSChannel = new CSChannel();
         try {
-            cSChannel.sendMessageLength(100);
+            ChannelFraming.sendMessageLength(cSChannel, 100);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
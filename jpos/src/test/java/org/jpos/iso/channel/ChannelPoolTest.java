@@ -26,11 +26,14 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.jpos.core.Configuration;
 import org.jpos.core.SimpleConfiguration;
 import org.jpos.core.SubConfiguration;
 import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.packager.Base1SubFieldPackager;
@@ -493,4 +496,129 @@ public class ChannelPoolTest {
         int result = channelPool.size();
         assertEquals("result", 1, result);
     }
+
+    @Test
+    public void testAdaptiveConnectDoesNotWaitForSlowMember() throws Throwable {
+        StubChannel slow = new StubChannel (3000L);
+        StubChannel fast = new StubChannel (0L);
+        ChannelPool channelPool = newAdaptivePool (slow, fast);
+        try {
+            long start = System.currentTimeMillis();
+            channelPool.connect();
+            assertTrue ("connect blocked", System.currentTimeMillis() - start < 2000L);
+            assertTrue (channelPool.isConnected());
+            for (int i=0; i<10; i++)
+                channelPool.send (new ISOMsg ("0800"));
+            assertEquals (10, fast.sent.size());
+            assertEquals (0, slow.sent.size());
+        } finally {
+            channelPool.disconnect();
+        }
+    }
+
+    @Test
+    public void testAdaptiveFailoverAndBackgroundReconnect() throws Throwable {
+        StubChannel a = new StubChannel (0L);
+        StubChannel b = new StubChannel (0L);
+        ChannelPool channelPool = newAdaptivePool (a, b);
+        try {
+            channelPool.connect();
+            for (int i=0; i<50 && !(a.isConnected() && b.isConnected()); i++)
+                Thread.sleep (20L);
+            a.failSends = true;
+            for (int i=0; i<10; i++)
+                channelPool.send (new ISOMsg ("0800"));
+            assertEquals (10, b.sent.size());
+            assertEquals (0, a.sent.size());
+
+            a.failSends = false;
+            for (int i=0; i<100 && !a.isConnected(); i++)
+                Thread.sleep (20L);
+            assertTrue ("member not reconnected", a.isConnected());
+
+            ISOMsg r = new ISOMsg ("0810");
+            a.incoming.add (r);
+            assertSame (r, channelPool.receive());
+            assertTrue (channelPool.getMembersAsString().contains ("member-1 up"));
+        } finally {
+            channelPool.disconnect();
+        }
+    }
+
+    @Test
+    public void testAdaptiveReceiveQueueIsBoundedAndCleared() throws Throwable {
+        StubChannel a = new StubChannel (0L);
+        ChannelPool channelPool = newAdaptivePool (a);
+        channelPool.setReceiveQueueSize (2);
+        try {
+            channelPool.connect();
+            for (int i=0; i<5; i++)
+                a.incoming.add (new ISOMsg ("0810"));
+            Thread.sleep (300L);
+            assertEquals ("member should stop reading", 2, a.incoming.size());
+
+            channelPool.disconnect();
+            a.incoming.clear();
+            channelPool.connect();
+            ISOMsg r = new ISOMsg ("0810");
+            a.incoming.add (r);
+            assertSame ("stale response received", r, channelPool.receive());
+        } finally {
+            channelPool.disconnect();
+        }
+    }
+
+    @Test
+    public void testAdaptiveDisconnectWhileMemberConnects() throws Throwable {
+        StubChannel slow = new StubChannel (500L);
+        StubChannel fast = new StubChannel (0L);
+        ChannelPool channelPool = newAdaptivePool (slow, fast);
+        channelPool.connect();
+        channelPool.disconnect();
+        Thread.sleep (800L);
+        assertFalse ("member left connected", slow.isConnected());
+        assertFalse (fast.isConnected());
+    }
+
+    @Test
+    public void testAdaptiveRttMatchesResponsesByKey() throws Throwable {
+        StubChannel a = new StubChannel (0L);
+        ChannelPool channelPool = newAdaptivePool (a);
+        try {
+            channelPool.connect();
+            ISOMsg first = newRequest ("000001");
+            ISOMsg second = newRequest ("000002");
+            channelPool.send (first);
+            Thread.sleep (300L);
+            channelPool.send (second);
+            a.respond (second);
+            assertEquals ("000002", channelPool.receive().getString (11));
+            String s = channelPool.getMembersAsString();
+            Matcher m = Pattern.compile ("rtt=([0-9.]+)ms").matcher (s);
+            assertTrue (s, m.find());
+            assertTrue ("response matched with the wrong request: " + s, Double.parseDouble (m.group (1)) < 150.0);
+            assertTrue (s, s.contains ("outstanding=1"));
+            a.respond (first);
+            channelPool.receive();
+            assertTrue (channelPool.getMembersAsString().contains ("outstanding=0"));
+        } finally {
+            channelPool.disconnect();
+        }
+    }
+
+    private ISOMsg newRequest (String stan) throws ISOException {
+        ISOMsg m = new ISOMsg ("0800");
+        m.set (11, stan);
+        m.set (41, "00000001");
+        return m;
+    }
+
+    private ChannelPool newAdaptivePool (ISOChannel... channels) {
+        ChannelPool channelPool = new ChannelPool();
+        channelPool.setAdaptive (true);
+        channelPool.setReconnectDelay (100L);
+        for (ISOChannel c : channels)
+            channelPool.addChannel (c);
+        return channelPool;
+    }
 }
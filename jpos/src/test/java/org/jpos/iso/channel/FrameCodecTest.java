@@ -0,0 +1,117 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso.channel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.FrameCodec;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOUtil;
+import org.junit.Test;
+
+public class FrameCodecTest {
+
+    @Test
+    public void testBinary() throws Throwable {
+        assertWire (BinaryFrameCodec.BB, 0x1234, "1234");
+        assertWire (BinaryFrameCodec.BBBB, 0x123456, "00123456");
+        assertEquals (0, decode (BinaryFrameCodec.BB, "0000"));
+    }
+
+    @Test
+    public void testBinaryChannels() throws Throwable {
+        // CSChannel: length followed by two zero bytes, polls echoed
+        FrameCodec cs = new CSChannel().getFrameCodec();
+        assertWire (cs, 100, "00640000");
+        assertEquals (100, decode (cs, "0064FFFF"));
+        assertEquals (FrameCodec.POLL, decode (cs, "00000000"));
+
+        // BASE24TCPChannel: length covers the 0x03 trailer
+        FrameCodec b24 = new BASE24TCPChannel().getFrameCodec();
+        assertWire (b24, 100, "0065");
+        assertEquals (1, b24.getTrailerSize());
+        ByteBuffer t = ByteBuffer.allocate (1);
+        b24.encodeTrailer (t);
+        assertEquals (3, t.get (0));
+
+        // RBPChannel: protocol identifier ... LAST
+        assertWire (new RBPChannel().getFrameCodec(), 100, "D04A00640000");
+    }
+
+    @Test
+    public void testAscii() throws Throwable {
+        assertWire (AsciiFrameCodec.LLLL, 123, ISOUtil.hexString ("0123".getBytes()));
+        assertWire (AsciiFrameCodec.HHHH, 0xABC, ISOUtil.hexString ("0abc".getBytes()));
+        assertEquals (FrameCodec.POLL, decode (AsciiFrameCodec.LLLL, ISOUtil.hexString ("0000".getBytes())));
+        assertEquals (0, decode (AsciiFrameCodec.HHHH, ISOUtil.hexString ("0000".getBytes())));
+        assertEquals (0xABC, decode (AsciiFrameCodec.HHHH, ISOUtil.hexString ("0ABC".getBytes())));
+    }
+
+    @Test
+    public void testAsciiInvalidLength() throws Throwable {
+        try {
+            decode (AsciiFrameCodec.LLLL, ISOUtil.hexString ("01A3".getBytes()));
+            fail ("ISOException expected");
+        } catch (ISOException e) {
+            assertEquals ("Invalid message length 01A3", e.getMessage());
+        }
+        try {
+            AsciiFrameCodec.LLLL.encodeLength (10000, ByteBuffer.allocate (4));
+            fail ("IOException expected");
+        } catch (IOException e) { }
+    }
+
+    @Test
+    public void testBcd() throws Throwable {
+        assertWire (BcdFrameCodec.LLLL, 1234, "1234");
+        assertWire (BcdFrameCodec.LLLL_MOD, 1234, "1234");
+        ByteBuffer b = ByteBuffer.allocate (2);
+        BcdFrameCodec.LLLL_MOD.encodeLength (12345, b);
+        assertEquals ("2345", ISOUtil.hexString (b.array()));
+        try {
+            BcdFrameCodec.LLLL.encodeLength (12345, ByteBuffer.allocate (2));
+            fail ("ISOException expected");
+        } catch (ISOException e) { }
+        try {
+            decode (BcdFrameCodec.LLLL, "12A4");
+            fail ("ISOException expected");
+        } catch (ISOException e) { }
+    }
+
+    private void assertWire (FrameCodec codec, int len, String hex) throws Exception {
+        ByteBuffer b = ByteBuffer.allocate (codec.getEncodedLengthSize());
+        codec.encodeLength (len, b);
+        assertEquals (b.capacity(), b.position());
+        assertArrayEquals (ISOUtil.hex2byte (hex), b.array());
+        assertEquals (len, decode (codec, hex));
+    }
+
+    private int decode (FrameCodec codec, String hex) throws ISOException {
+        ByteBuffer b = ByteBuffer.wrap (ISOUtil.hex2byte (hex));
+        assertEquals (b.capacity(), codec.getLengthSize());
+        int len = codec.decodeLength (b);
+        assertEquals (codec.getLengthSize(), b.position());
+        return len;
+    }
+}
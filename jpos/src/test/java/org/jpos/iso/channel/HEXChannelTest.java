@@ -25,6 +25,7 @@ import static org.junit.Assert.fail;
 
 import java.net.ServerSocket;
 
+import org.jpos.iso.ChannelFraming;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.packager.GenericPackager;
 import org.jpos.iso.packager.ISO93APackager;
@@ -120,7 +121,7 @@ public class HEXChannelTest {
         byte[] TPDU = new byte[1];
         HEXChannel hEXChannel = new HEXChannel("testHEXChannelHost", 100, null, TPDU);
         try {
-            hEXChannel.getMessageLength();
+            ChannelFraming.getMessageLength(hEXChannel);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -131,7 +132,7 @@ public class HEXChannelTest {
     public void testSendMessageLengthThrowsNullPointerException() throws Throwable {
         HEXChannel hEXChannel = new HEXChannel(new ISOBaseValidatingPackager(), null, new ServerSocket());
         try {
-            hEXChannel.sendMessageLength(100);
+            ChannelFraming.sendMessageLength(hEXChannel, 100);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -26,6 +26,7 @@ import static org.junit.Assert.fail;
 
 import java.net.ServerSocket;
 
+import org.jpos.iso.ChannelFraming;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.filter.DelayFilter;
@@ -123,7 +124,7 @@ public class NACChannelTest {
     public void testGetMessageLengthThrowsNullPointerException() throws Throwable {
         NACChannel nACChannel = new NACChannel();
         try {
-            nACChannel.getMessageLength();
+            ChannelFraming.getMessageLength(nACChannel);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -182,7 +183,7 @@ public class NACChannelTest {
         byte[] TPDU = new byte[0];
         NACChannel nACChannel = new NACChannel("testNACChannelHost", 100, new ISO93APackager(), TPDU);
         try {
-            nACChannel.sendMessageLength(100);
+            ChannelFraming.sendMessageLength(nACChannel, 100);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -26,6 +26,7 @@ import static org.junit.Assert.fail;
 
 import java.net.ServerSocket;
 
+import org.jpos.iso.ChannelFraming;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.header.BASE1Header;
@@ -124,7 +125,7 @@ public class NCCChannelTest {
     public void testGetMessageLengthThrowsNullPointerException() throws Throwable {
         NCCChannel nCCChannel = new NCCChannel();
         try {
-            nCCChannel.getMessageLength();
+            ChannelFraming.getMessageLength(nCCChannel);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -181,7 +182,7 @@ public class NCCChannelTest {
     @Test
     public void testSendMessageLength() throws Throwable {
         NCCChannel nCCChannel = new NCCChannel(new BASE24Packager(), "testString".getBytes());
-        nCCChannel.sendMessageLength(-2147483646);
+        ChannelFraming.sendMessageLength(nCCChannel, -2147483646);
         assertTrue("should execute without exception", true);
     }
 
@@ -190,7 +191,7 @@ public class NCCChannelTest {
         byte[] TPDU = new byte[0];
         NCCChannel nCCChannel = new NCCChannel(new ISO87APackager(), TPDU);
         try {
-            nCCChannel.sendMessageLength(100);
+            ChannelFraming.sendMessageLength(nCCChannel, 100);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
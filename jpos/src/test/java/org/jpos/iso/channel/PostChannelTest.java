@@ -23,6 +23,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
+import org.jpos.iso.ChannelFraming;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.packager.ISO93APackager;
 import org.jpos.iso.packager.ISOBaseValidatingPackager;
@@ -92,7 +93,7 @@ public class PostChannelTest {
     public void testGetMessageLengthThrowsNullPointerException() throws Throwable {
         PostChannel postChannel = new PostChannel();
         try {
-            postChannel.getMessageLength();
+            ChannelFraming.getMessageLength(postChannel);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -103,7 +104,7 @@ public class PostChannelTest {
     public void testSendMessageLengthThrowsNullPointerException() throws Throwable {
         PostChannel postChannel = new PostChannel(new ISO93APackager());
         try {
-            postChannel.sendMessageLength(100);
+            ChannelFraming.sendMessageLength(postChannel, 100);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -26,6 +26,7 @@ import static org.mockito.Mockito.mock;
 
 import java.net.ServerSocket;
 
+import org.jpos.iso.ChannelFraming;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.packager.BASE24Packager;
 import org.jpos.iso.packager.ISOBaseValidatingPackager;
@@ -124,7 +125,7 @@ public class RawChannelTest {
     public void testGetMessageLengthThrowsNullPointerException() throws Throwable {
         RawChannel rawChannel = new RawChannel();
         try {
-            rawChannel.getMessageLength();
+            ChannelFraming.getMessageLength(rawChannel);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
@@ -135,7 +136,7 @@ public class RawChannelTest {
     public void testSendMessageLengthThrowsNullPointerException() throws Throwable {
         RawChannel rawChannel = new RawChannel();
         try {
-            rawChannel.sendMessageLength(100);
+            ChannelFraming.sendMessageLength(rawChannel, 100);
             fail("Expected NullPointerException to be thrown");
         } catch (NullPointerException ex) {
             assertNull("ex.getMessage()", ex.getMessage());
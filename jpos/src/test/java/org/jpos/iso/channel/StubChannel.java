@@ -0,0 +1,114 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.iso.channel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOPackager;
+
+/**
+ * In-memory ISOChannel test double: sent messages are queued in
+ * <code>sent</code>, received ones are taken from <code>incoming</code>.
+ */
+public class StubChannel implements ISOChannel {
+    static final ISOMsg EOF = new ISOMsg();
+    final long connectDelay;
+    public final BlockingQueue<ISOMsg> sent = new LinkedBlockingQueue<ISOMsg>();
+    public final BlockingQueue<ISOMsg> incoming = new LinkedBlockingQueue<ISOMsg>();
+    public final AtomicInteger sendAttempts = new AtomicInteger();
+    public volatile boolean connected, failSends, failConnects;
+
+    public StubChannel () {
+        this (0L);
+    }
+    public StubChannel (long connectDelay) {
+        this.connectDelay = connectDelay;
+    }
+    public void setPackager (ISOPackager p) { }
+    public void connect () throws IOException {
+        if (failConnects)
+            throw new IOException ("simulated connect error");
+        try {
+            Thread.sleep (connectDelay);
+        } catch (InterruptedException e) {
+            throw new IOException (e.getMessage());
+        }
+        while (incoming.remove (EOF))
+            ; // a new connection doesn't see the previous one's disconnect
+        connected = true;
+    }
+    public void disconnect () {
+        connected = false;
+        incoming.add (EOF);
+    }
+    public void reconnect () { }
+    public boolean isConnected () {
+        return connected;
+    }
+    public ISOMsg receive () throws IOException, ISOException {
+        if (!connected)
+            throw new ISOException ("unconnected ISOChannel");
+        try {
+            ISOMsg m = incoming.poll (5L, TimeUnit.SECONDS);
+            if (m == EOF || !connected)
+                throw new EOFException ("simulated disconnect");
+            if (m == null)
+                throw new IOException ("timeout");
+            return m;
+        } catch (InterruptedException e) {
+            throw new IOException (e.getMessage());
+        }
+    }
+    public void send (ISOMsg m) throws IOException, ISOException {
+        sendAttempts.incrementAndGet();
+        if (failSends)
+            throw new IOException ("simulated send error");
+        sent.add (m);
+    }
+    public void send (byte[] b) { }
+    public void setUsable (boolean b) { }
+    public void setName (String name) { }
+    public String getName () {
+        return "stub";
+    }
+    public ISOPackager getPackager () {
+        return null;
+    }
+    public Object clone () {
+        throw new UnsupportedOperationException();
+    }
+    /**
+     * queues the response to <code>m</code> to be received
+     * @param m request
+     * @throws ISOException on error
+     */
+    public void respond (ISOMsg m) throws ISOException {
+        ISOMsg r = (ISOMsg) m.clone();
+        r.setResponseMTI();
+        incoming.add (r);
+    }
+}
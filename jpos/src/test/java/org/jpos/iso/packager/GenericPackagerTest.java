@@ -19,13 +19,19 @@
 package org.jpos.iso.packager;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.EmptyStackException;
 
 import org.jpos.core.Configuration;
@@ -36,6 +42,8 @@ import org.jpos.iso.IFA_AMOUNT;
 import org.jpos.iso.IFA_BITMAP;
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOFieldPackager;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOUtil;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.xml.sax.Attributes;
@@ -473,4 +481,73 @@ public class GenericPackagerTest {
             assertNull("(GenericSubFieldPackager) genericSubFieldPackager.getRealm()", genericSubFieldPackager.getRealm());
         }
     }
+
+    @Test
+    public void testSetConfigurationSharesDefinition() throws Throwable {
+        File f = copyOf("src/main/resources/packager/iso87ascii.xml");
+        try {
+            GenericPackager p1 = configure(f, true);
+            GenericPackager p2 = configure(f, true);
+            assertNotSame(p1, p2);
+            assertSame(p1.getFieldPackager(2), p2.getFieldPackager(2));
+            assertPacks(p1, p2);
+
+            p2.setFieldPackager(2, new IFA_AMOUNT(12, "amount"));
+            assertTrue(p1.getFieldPackager(2) != p2.getFieldPackager(2));
+
+            GenericPackager p3 = configure(f, false);
+            assertTrue(p1.getFieldPackager(3) != p3.getFieldPackager(3));
+            assertPacks(p1, p3);
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testSetConfigurationReloadsModifiedFile() throws Throwable {
+        File f = copyOf("src/main/resources/packager/iso87ascii.xml");
+        try {
+            GenericPackager p1 = configure(f, true);
+            f.setLastModified(f.lastModified() + 2000L);
+            GenericPackager p2 = configure(f, true);
+            assertTrue(p1.getFieldPackager(2) != p2.getFieldPackager(2));
+            assertSame(p2.getFieldPackager(2), configure(f, true).getFieldPackager(2));
+        } finally {
+            f.delete();
+        }
+    }
+
+    private GenericPackager configure(File f, boolean cache) throws Throwable {
+        Configuration cfg = new SimpleConfiguration();
+        cfg.put("packager-config", f.getPath());
+        cfg.put("packager-cache", Boolean.toString(cache));
+        GenericPackager p = new GenericPackager();
+        p.setConfiguration(cfg);
+        return p;
+    }
+
+    private File copyOf(String filename) throws Throwable {
+        File f = File.createTempFile("genericpackager", ".xml");
+        InputStream in = new FileInputStream(filename);
+        OutputStream out = new FileOutputStream(f);
+        try {
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) > 0)
+                out.write(b, 0, n);
+        } finally {
+            in.close();
+            out.close();
+        }
+        return f;
+    }
+
+    private void assertPacks(GenericPackager p1, GenericPackager p2) throws Throwable {
+        ISOMsg m = new ISOMsg("0800");
+        m.set(11, "000001");
+        m.set(41, "29110001");
+        m.set(70, "301");
+        m.recalcBitMap();
+        assertEquals(ISOUtil.hexString(p1.pack(m)), ISOUtil.hexString(p2.pack(m)));
+    }
 }
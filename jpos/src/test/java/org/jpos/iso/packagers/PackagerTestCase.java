@@ -19,7 +19,10 @@
 package org.jpos.iso.packagers;
 
 import junit.framework.TestCase;
+import org.jpos.iso.ISOBasePackager;
 import org.jpos.iso.ISODate;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOField;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOPackager;
 import org.jpos.iso.TestUtils;
@@ -31,6 +34,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -128,6 +132,54 @@ public class PackagerTestCase extends TestCase {
     public void testGeneric93ebcdic() throws Exception {
         doTest (new GenericPackager ("src/dist/cfg/packager/iso93ebcdic-custom.xml"), "ISO93ebcdic-Custom-XmlMsg", "ISO93ebcdic-Custom-Img");        
     }
+    public void testCompiledGeneric87ascii() throws Exception {
+        doTest (compiled ("src/main/resources/packager/iso87ascii.xml"),
+            "ISO87", "ISO87APackager");
+    }
+    public void testCompiledGeneric87binary() throws Exception {
+        doTest (compiled ("src/main/resources/packager/iso87binary.xml"),
+            "ISO87", "ISO87BPackager");
+    }
+    public void testCompiledGeneric93ascii() throws Exception {
+        doTest (compiled ("src/main/resources/packager/iso93ascii.xml"),
+            "ISO93", "ISO93APackager");
+    }
+    public void testCompiledGeneric93binary() throws Exception {
+        doTest (compiled ("src/main/resources/packager/iso93binary.xml"),
+            "ISO93", "ISO93BPackager");
+    }
+    public void testCompiledGeneric93ebcdic() throws Exception {
+        doTest (compiled ("src/dist/cfg/packager/iso93ebcdic-custom.xml"),
+            "ISO93ebcdic-Custom-XmlMsg", "ISO93ebcdic-Custom-Img");
+    }
+    private GenericPackager compiled (String filename) throws ISOException {
+        GenericPackager p = new GenericPackager (filename);
+        p.compileFieldPackagers();
+        return p;
+    }
+    public void testLazyUnpack() throws Exception {
+        GenericPackager p = new GenericPackager ("src/main/resources/packager/iso87binary.xml");
+        byte[] b = getImage ("ISO87BPackager");
+        ISOMsg eager = new ISOMsg();
+        eager.setPackager (p);
+        eager.unpack (b);
+
+        p.setLazyUnpack (true);
+        ISOMsg lazy = new ISOMsg();
+        lazy.setPackager (p);
+        assertEquals (b.length, lazy.unpack (b));
+        for (int i=0; i<=128; i++) {
+            assertEquals ("field " + i, eager.hasField(i), lazy.hasField(i));
+            assertEquals ("field " + i, eager.getString(i), lazy.getString(i));
+        }
+        assertTrue (lazy.getComponent(2) instanceof ISOField);
+        TestUtils.assertEquals(b, lazy.pack());
+
+        lazy = new ISOMsg();
+        lazy.setPackager (p);
+        lazy.unpack (b);
+        TestUtils.assertEquals(b, lazy.pack());
+    }
     public void testPerformance() throws Exception {
         final int COUNT = 100000;
         ISOPackager p = new GenericPackager ("src/main/resources/packager/iso87binary.xml");
@@ -224,6 +276,30 @@ public class PackagerTestCase extends TestCase {
         // packager.setLogger (logger, msg + "-m2");
         m2.unpack (new ByteArrayInputStream (out.toByteArray()));
         TestUtils.assertEquals(b, m2.pack());
+
+        if (packager instanceof ISOBasePackager) {
+            ISOBasePackager bp = (ISOBasePackager) packager;
+            bp.setLazyUnpack (true);
+            ISOMsg m3 = new ISOMsg ();
+            m3.setPackager (packager);
+            m3.unpack (b);
+            bp.setLazyUnpack (false);
+            TestUtils.assertEquals(b, m3.pack());
+
+            ByteBuffer heap = ByteBuffer.allocate (b.length + 16);
+            Arrays.fill (heap.array(), (byte) 0xFF); // BCD interpreters OR their nibbles
+            heap.position (8);
+            assertEquals (b.length, bp.pack (m1, heap));
+            assertEquals (b.length + 8, heap.position());
+            TestUtils.assertEquals(b, Arrays.copyOfRange (heap.array(), 8, 8 + b.length));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect (b.length);
+            assertEquals (b.length, bp.pack (m1, direct));
+            direct.flip();
+            byte[] d = new byte[direct.remaining()];
+            direct.get (d);
+            TestUtils.assertEquals(b, d);
+        }
     }
 
     /*
@@ -35,11 +35,13 @@ import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeMatcher;
 import org.jdom.Element;
 import org.jpos.core.ConfigurationException;
+import org.jpos.core.SimpleConfiguration;
 import org.jpos.iso.ISOChannel;
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOPackager;
 import org.jpos.space.Space;
+import org.jpos.space.SpaceFactory;
 import org.jpos.space.TSpace;
 import org.jpos.util.*;
 import org.junit.After;
@@ -195,6 +197,82 @@ public class ChannelAdaptorTest {
         assertCallToStopCompletes(1);
     }
 
+    @Test
+    public void boundedQueueRejectsWhenFull() throws Exception {
+        Space space = new TSpace();
+        channelAdaptor = configureAndStart(new ChannelAdaptorWithStubSpace(new NeverConnectingISOChannel(), space),
+                boundedConfiguration(2, ChannelAdaptor.POLICY_REJECT, 0L));
+        channelAdaptor.send(new ISOMsg("0800"));
+        channelAdaptor.send(new ISOMsg("0800"));
+        assertFalse("queue should be full", channelAdaptor.offer(new ISOMsg("0800")));
+        try {
+            channelAdaptor.send(new ISOMsg("0800"));
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(2, channelAdaptor.getQueueDepth());
+        assertEquals(2L, channelAdaptor.getRejectedCounter());
+        assertEquals(0L, channelAdaptor.getDroppedCounter());
+    }
+
+    @Test
+    public void boundedQueueDropsOldest() throws Exception {
+        Space space = new TSpace();
+        channelAdaptor = configureAndStart(new ChannelAdaptorWithStubSpace(new NeverConnectingISOChannel(), space),
+                boundedConfiguration(2, ChannelAdaptor.POLICY_DROP_OLDEST, 0L));
+        channelAdaptor.send(new ISOMsg("0800"));
+        channelAdaptor.send(new ISOMsg("0200"));
+        assertTrue(channelAdaptor.offer(new ISOMsg("0100")));
+        assertEquals(2, channelAdaptor.getQueueDepth());
+        assertEquals(1L, channelAdaptor.getDroppedCounter());
+        assertThat((ISOMsg) space.inp(IN_SPACE_KEY), hasMti("0200"));
+        assertThat((ISOMsg) space.inp(IN_SPACE_KEY), hasMti("0100"));
+    }
+
+    @Test
+    public void boundedQueueBlocksUntilTimeout() throws Exception {
+        Space space = new TSpace();
+        channelAdaptor = configureAndStart(new ChannelAdaptorWithStubSpace(new NeverConnectingISOChannel(), space),
+                boundedConfiguration(1, ChannelAdaptor.POLICY_BLOCK, 300L));
+        channelAdaptor.send(new ISOMsg("0800"));
+        long start = System.currentTimeMillis();
+        assertFalse(channelAdaptor.offer(new ISOMsg("0800")));
+        assertTrue("offer should have blocked", System.currentTimeMillis() - start >= 250L);
+        assertEquals(1L, channelAdaptor.getRejectedCounter());
+    }
+
+    @Test
+    public void boundedQueueBlocksUntilSenderTakesMessage() throws Exception {
+        final Space space = new TSpace();
+        channelAdaptor = configureAndStart(new ChannelAdaptorWithStubSpace(new NeverConnectingISOChannel(), space),
+                boundedConfiguration(1, ChannelAdaptor.POLICY_BLOCK, 5000L));
+        channelAdaptor.send(new ISOMsg("0800"));
+        executorService.schedule(new Runnable() {
+            public void run() {
+                channelAdaptor.dequeued((ISOMsg) space.inp(IN_SPACE_KEY));
+            }
+        }, 200, TimeUnit.MILLISECONDS);
+        assertTrue(channelAdaptor.offer(new ISOMsg("0200")));
+        assertThat((ISOMsg) space.inp(IN_SPACE_KEY), hasMti("0200"));
+        assertEquals(0L, channelAdaptor.getRejectedCounter());
+        // offer may return as soon as the message is taken, before dequeued() records it
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(channelAdaptor.getMaxQueueLatency() >= 150L);
+    }
+
+    @Test
+    public void boundedQueueBlockNoticesExpiredEntries() throws Exception {
+        Space space = new TSpace();
+        channelAdaptor = configureAndStart(new ChannelAdaptorWithStubSpace(new NeverConnectingISOChannel(), space),
+                boundedConfiguration(1, ChannelAdaptor.POLICY_BLOCK, 5000L));
+        assertTrue(channelAdaptor.enqueue(new ISOMsg("0800"), 200L));
+        long start = System.currentTimeMillis();
+        assertTrue(channelAdaptor.offer(new ISOMsg("0200")));
+        assertTrue("offer waited for the full timeout", System.currentTimeMillis() - start < 2000L);
+        assertThat((ISOMsg) space.inp(IN_SPACE_KEY), hasMti("0200"));
+    }
+
     private Matcher<LogEvent> sendErrorLogEvent() {
         return new TypeSafeMatcher<LogEvent>() {
             @Override
@@ -327,6 +405,53 @@ public class ChannelAdaptorTest {
         channelAdaptor.start();
         return channelAdaptor;
     }
+    @Test
+    public void boundedQueueAppliesToQMUX() throws Exception {
+        Space space = SpaceFactory.getSpace("transient:TestLink");
+        while (space.inp(IN_SPACE_KEY) != null)
+            ; // left behind by tests whose channel never connects
+        channelAdaptor = configureAndStart(new ChannelAdaptorWithoutQ2(new NeverConnectingISOChannel()),
+                boundedConfiguration(1, ChannelAdaptor.POLICY_REJECT, 0L));
+        Element persist = new Element("qmux");
+        persist.addContent(new Element("space").addContent("transient:TestLink"));
+        persist.addContent(new Element("in").addContent(OUT_SPACE_KEY));
+        persist.addContent(new Element("out").addContent(IN_SPACE_KEY));
+        QMUX mux = new QMUX();
+        mux.setName("bounded-test-mux");
+        mux.setConfiguration(new SimpleConfiguration());
+        mux.setPersist(persist);
+        mux.init();
+        try {
+            mux.send(new ISOMsg("0800"));
+            ISOMsg m = new ISOMsg("0800");
+            m.set(11, "000001");
+            m.set(41, "00000001");
+            long start = System.currentTimeMillis();
+            try {
+                mux.request(m, 5000L);
+                fail("ISOException expected");
+            } catch (ISOException expected) {
+            }
+            assertTrue("request didn't fail fast", System.currentTimeMillis() - start < 1000L);
+            assertFalse(mux.hasPendingRequest(mux.getKey(m)));
+            assertEquals(1, channelAdaptor.getQueueDepth());
+            assertEquals(1L, channelAdaptor.getRejectedCounter());
+        } finally {
+            mux.destroy();
+        }
+    }
+
+    private ChannelAdaptor configureAndStart(ChannelAdaptor channelAdaptor, Element persist) {
+        Logger logger = new Logger();
+        logger.addListener(new SimpleLogListener());
+        logger.setName("testLinkLogger");
+        channelAdaptor.setName(LINK_NAME);
+        channelAdaptor.setLogger(logger.getName());
+        channelAdaptor.setPersist(persist);
+        channelAdaptor.init();
+        channelAdaptor.start();
+        return channelAdaptor;
+    }
 
     private Element createConfiguration() {
         Element persist = new Element("channel-adaptor");
@@ -338,6 +463,14 @@ public class ChannelAdaptorTest {
         return persist;
     }
 
+    private Element boundedConfiguration(int maxQueueSize, String policy, long blockTimeout) {
+        Element persist = createConfiguration();
+        persist.addContent(new Element("max-queue-size").addContent(Integer.toString(maxQueueSize)));
+        persist.addContent(new Element("queue-policy").addContent(policy));
+        persist.addContent(new Element("queue-block-timeout").addContent(Long.toString(blockTimeout)));
+        return persist;
+    }
+
     private static class StubISOChannel implements ISOChannel {
 
         private static final ISOMsg DISCONNECT_TOKEN = new ISOMsg();
@@ -427,6 +560,13 @@ public class ChannelAdaptorTest {
         }
     }
 
+    private static class NeverConnectingISOChannel extends StubISOChannel {
+        @Override
+        public void connect() throws IOException {
+            throw new IOException("simulated connect failure");
+        }
+    }
+
     private static class ChannelAdaptorWithoutQ2 extends ChannelAdaptor {
 
         private final ISOChannel channel;
@@ -20,14 +20,22 @@ package org.jpos.q2.iso;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.jdom.Element;
+import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOResponseListener;
+import org.jpos.iso.ISOUtil;
+import org.jpos.iso.MUX;
+import org.jpos.iso.MUXFuture;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class MUXPoolTest {
     @Test
     public void testInitServiceThrowsNullPointerException() throws Throwable {
@@ -87,4 +95,166 @@ public class MUXPoolTest {
         mUXPool.stopService();
         assertNull("mUXPool.getName()", mUXPool.getName());
     }
+
+    @Test
+    public void testLeastPendingAvoidsBusyMember() throws Throwable {
+        StubMUX slow = new StubMUX (300L, true);
+        StubMUX fast = new StubMUX (0L, true);
+        final MUXPool pool = newPool (MUXPool.LEAST_PENDING, slow, fast);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    pool.request (new ISOMsg ("0800"), 1000L);
+                } catch (ISOException ignored) { }
+            }
+        };
+        pool.members[1].pending.set (1); // make the slow one the first pick
+        t.start();
+        ISOUtil.sleep (100L);
+        pool.members[1].pending.set (0);
+        for (int i=0; i<5; i++)
+            assertNotNull (pool.request (new ISOMsg ("0800"), 1000L));
+        t.join();
+        assertEquals (1, slow.count.get());
+        assertEquals (5, fast.count.get());
+    }
+
+    @Test
+    public void testPowerOfTwoPrefersFasterMember() throws Throwable {
+        StubMUX slow = new StubMUX (20L, true);
+        StubMUX fast = new StubMUX (0L, true);
+        MUXPool pool = newPool (MUXPool.POWER_OF_TWO, slow, fast);
+        pool.members[0].latency.set (20000L);
+        pool.members[1].latency.set (100L);
+        for (int i=0; i<20; i++)
+            pool.request (new ISOMsg ("0800"), 1000L);
+        assertEquals (0, slow.count.get());
+        assertEquals (20L, pool.members[1].selected.get());
+    }
+
+    @Test
+    public void testCircuitBreakerSkipsTimingOutMember() throws Throwable {
+        StubMUX broken = new StubMUX (0L, false);
+        StubMUX healthy = new StubMUX (0L, true);
+        MUXPool pool = newPool (MUXPool.PRIMARY_SECONDARY, broken, healthy);
+        pool.breakerTimeoutRate = 0.5D;
+        pool.breakerMinRequests = 5;
+        pool.breakerOpenTime = 60000L;
+        for (int i=0; i<20; i++)
+            pool.request (new ISOMsg ("0800"), 1000L);
+        assertEquals (1L, pool.members[0].trips.get());
+        assertTrue ("primary should have been skipped", healthy.count.get() > 0);
+        assertTrue (pool.getMemberStats()[0].endsWith ("open"));
+    }
+
+    @Test
+    public void testTimeoutRateDecays() throws Throwable {
+        MUXPool pool = newPool (MUXPool.PRIMARY_SECONDARY, new StubMUX (0L, true));
+        MUXPool.Member member = pool.members[0];
+        member.latency.set (100L);
+        member.completed (member.start() - 5000000000L, true);
+        assertEquals ("timed out request counted as latency", 100L, member.latency.get());
+        assertTrue (member.getTimeoutRate() > 0.05D);
+        for (int i=0; i<200; i++)
+            member.completed (member.start(), false);
+        assertTrue ("timeout rate should decay", member.getTimeoutRate() < 0.001D);
+        assertTrue (pool.getMemberStats()[0].contains ("timeout-rate=0.0%"));
+    }
+
+    @Test
+    public void testCancelIsNotATimeout() throws Throwable {
+        MUXPool pool = newPool (MUXPool.PRIMARY_SECONDARY, new StubMUX (200L, true));
+        MUXPool.Member member = pool.members[0];
+        MUXFuture f = pool.requestAsync (new ISOMsg ("0800"), 1000L);
+        assertEquals (1, member.pending.get());
+        assertTrue (f.cancel (false));
+        assertEquals (0, member.pending.get());
+        assertEquals (0L, member.timeouts.get());
+        assertEquals (0D, member.getTimeoutRate(), 0D);
+    }
+
+    @Test
+    public void testHedgedRequest() throws Throwable {
+        StubMUX slow = new StubMUX (1000L, true);
+        StubMUX fast = new StubMUX (10L, true);
+        MUXPool pool = newPool (MUXPool.PRIMARY_SECONDARY, slow, fast);
+        pool.hedgeTypes = new String[] { "0100:31" };
+        pool.hedgePercentile = 95D;
+        for (int i=0; i<MUXPool.HEDGE_MIN_SAMPLES; i++)
+            pool.members[0].window.get().record (20000L);
+        ISOMsg m = new ISOMsg ("0100");
+        m.set (3, "310000");
+        m.set (11, "000001");
+        long start = System.currentTimeMillis();
+        ISOMsg r = pool.request (m, 2000L);
+        assertNotNull (r);
+        assertEquals ("0110", r.getMTI());
+        assertTrue ("hedged response took too long", System.currentTimeMillis() - start < 500L);
+        assertEquals (1L, pool.getHedgedCounter());
+        assertEquals (1L, pool.getHedgeWinsCounter());
+    }
+
+    @Test
+    public void testHedgeTypes() throws Throwable {
+        MUXPool pool = new MUXPool();
+        pool.hedgeTypes = new String[] { "0100:31", "0800" };
+        ISOMsg m = new ISOMsg ("0100");
+        m.set (3, "000000");
+        assertFalse (pool.isHedgeable (m));
+        m.set (3, "311000");
+        assertTrue (pool.isHedgeable (m));
+        assertTrue (pool.isHedgeable (new ISOMsg ("0800")));
+        assertFalse (pool.isHedgeable (new ISOMsg ("0400")));
+    }
+
+    private MUXPool newPool (int strategy, MUX... muxes) {
+        MUXPool pool = new MUXPool();
+        pool.strategy = strategy;
+        pool.mux = muxes;
+        pool.members = new MUXPool.Member[muxes.length];
+        for (int i=0; i<muxes.length; i++)
+            pool.members[i] = pool.new Member ("mux" + i, muxes[i]);
+        return pool;
+    }
+
+    static class StubMUX implements MUX {
+        final long delay;
+        final boolean answer;
+        final AtomicInteger count = new AtomicInteger();
+        StubMUX (long delay, boolean answer) {
+            this.delay = delay;
+            this.answer = answer;
+        }
+        public ISOMsg request (ISOMsg m, long timeout) throws ISOException {
+            count.incrementAndGet();
+            if (delay > 0L)
+                ISOUtil.sleep (delay);
+            if (!answer)
+                return null;
+            ISOMsg r = (ISOMsg) m.clone();
+            r.setResponseMTI();
+            return r;
+        }
+        public void request (final ISOMsg m, final long timeout, final ISOResponseListener r, final Object handBack) {
+            new Thread() {
+                public void run() {
+                    try {
+                        ISOMsg resp = request (m, timeout);
+                        if (resp != null)
+                            r.responseReceived (resp, handBack);
+                        else
+                            r.expired (handBack);
+                    } catch (ISOException e) {
+                        r.expired (handBack);
+                    }
+                }
+            }.start();
+        }
+        public void send (ISOMsg m) {
+            count.incrementAndGet();
+        }
+        public boolean isConnected() {
+            return true;
+        }
+    }
 }
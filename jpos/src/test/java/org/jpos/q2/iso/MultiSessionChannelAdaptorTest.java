@@ -0,0 +1,161 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.q2.iso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.jdom.Element;
+import org.jpos.core.ConfigurationException;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOUtil;
+import org.jpos.iso.channel.StubChannel;
+import org.junit.After;
+import org.junit.Test;
+
+public class MultiSessionChannelAdaptorTest {
+    private MultiSessionChannelAdaptor adaptor;
+
+    @After
+    public void tearDown() {
+        if (adaptor != null) {
+            adaptor.stop();
+            adaptor.destroy();
+        }
+    }
+
+    @Test
+    public void testLeastOutstandingBalancing() throws Exception {
+        StubChannel c0 = new StubChannel();
+        StubChannel c1 = new StubChannel();
+        adaptor = start ("least-outstanding", c0, c1);
+        waitForConnections (c0, c1);
+
+        for (int i=0; i<4; i++)
+            adaptor.send (request (i));
+        ISOMsg[] sent0 = { take (c0), take (c0) };
+        take (c1);
+        take (c1);
+        assertEquals (2, adaptor.getSession (0).getInFlight());
+        assertEquals (2, adaptor.getSession (1).getInFlight());
+
+        for (ISOMsg m : sent0)
+            c0.respond (m);
+        assertNotNull (adaptor.receive (1000L));
+        assertNotNull (adaptor.receive (1000L));
+        assertEquals (0, adaptor.getSession (0).getInFlight());
+        assertEquals (2L, adaptor.getSession (0).getResponses());
+        assertTrue (adaptor.getSession (0).getMaxLatency() > 0L);
+
+        adaptor.send (request (4));
+        adaptor.send (request (5));
+        assertEquals ("000004", take (c0).getString (11));
+        assertEquals ("000005", take (c0).getString (11));
+        assertNull (c1.sent.poll (100L, TimeUnit.MILLISECONDS));
+        assertEquals (2, adaptor.getSessionStats().length);
+    }
+
+    @Test
+    public void testFailingSessionIsDrained() throws Exception {
+        StubChannel c0 = new StubChannel();
+        StubChannel c1 = new StubChannel();
+        adaptor = start ("least-outstanding", c0, c1);
+        waitForConnections (c0, c1);
+        c0.failConnects = true;
+        c0.failSends = true;
+
+        for (int i=0; i<3; i++)
+            adaptor.send (request (i));
+        for (int i=0; i<3; i++)
+            assertNotNull ("message " + i + " lost", c1.sent.poll (5L, TimeUnit.SECONDS));
+        assertTrue (c0.sent.isEmpty());
+        assertEquals (0, adaptor.getSession (0).getInFlight());
+        assertEquals (3, adaptor.getSession (1).getInFlight());
+    }
+
+    @Test
+    public void testRepeatedSendFailureDropsMessage() throws Exception {
+        StubChannel c0 = new StubChannel();
+        adaptor = start ("least-outstanding", c0);
+        waitForConnections (c0);
+        c0.failSends = true;
+
+        adaptor.send (request (0));
+        for (int i=0; i<250 && c0.sendAttempts.get() < 2; i++)
+            ISOUtil.sleep (20L);
+        assertEquals (2, c0.sendAttempts.get());
+        c0.failSends = false;
+        adaptor.send (request (1));
+        ISOMsg m = c0.sent.poll (10L, TimeUnit.SECONDS); // session reconnects first
+        assertNotNull ("no message sent", m);
+        assertEquals ("000001", m.getString (11));
+        assertNull (c0.sent.poll (1500L, TimeUnit.MILLISECONDS));
+        assertEquals (3, c0.sendAttempts.get());
+    }
+
+    private MultiSessionChannelAdaptor start (String balance, ISOChannel... channels) {
+        final LinkedList<ISOChannel> l = new LinkedList<ISOChannel>();
+        for (ISOChannel c : channels)
+            l.add (c);
+        MultiSessionChannelAdaptor a = new MultiSessionChannelAdaptor() {
+            @Override
+            protected ISOChannel initChannel() throws ConfigurationException {
+                return l.removeFirst();
+            }
+        };
+        Element persist = new Element ("channel-adaptor");
+        persist.addContent (new Element ("space").addContent ("tspace:MultiSessionTest"));
+        persist.addContent (new Element ("in").addContent ("multi-session-send"));
+        persist.addContent (new Element ("out").addContent ("multi-session-receive"));
+        persist.addContent (new Element ("reconnect-delay").addContent ("200"));
+        persist.addContent (new Element ("sessions").addContent (Integer.toString (channels.length)));
+        persist.addContent (new Element ("balance").addContent (balance));
+        a.setName ("multi-session-test");
+        a.setPersist (persist);
+        a.init();
+        a.start();
+        return a;
+    }
+
+    private void waitForConnections (StubChannel... channels) {
+        for (StubChannel c : channels)
+            for (int i=0; i<100 && !c.isConnected(); i++)
+                ISOUtil.sleep (20L);
+    }
+
+    private ISOMsg request (int stan) throws ISOException {
+        ISOMsg m = new ISOMsg ("0800");
+        m.set (11, ISOUtil.zeropad (stan, 6));
+        m.set (41, "00000001");
+        return m;
+    }
+
+    private ISOMsg take (StubChannel c) throws InterruptedException {
+        ISOMsg m = c.sent.poll (2L, TimeUnit.SECONDS);
+        assertNotNull ("no message sent", m);
+        return m;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.q2.iso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QMUXKeyExtractorTest {
+    private QMUX mux;
+
+    @Before
+    public void setUp() {
+        mux = new QMUX();
+        mux.out = "send";
+        mux.key = new String[] { "41", "11" };
+        mux.mtiMapping = new String[] { QMUX.nomap, QMUX.nomap, "0022446789" };
+    }
+
+    @Test
+    public void testMatchesGetKey() throws Throwable {
+        QMUXKeyExtractor ex = extractor();
+        ISOMsg[] msgs = new ISOMsg[] {
+            msg ("0800", "29110001", "1"),
+            msg ("0810", "29110001", "000001"),
+            msg ("0810", "  29110001  ", " 1 "),
+            msg ("0200", "29110001", "1234567"),
+            msg ("0210", "29110001", "1234567"),
+            msg ("2100", "29110001", "1"),
+            msg ("2110", "29110001", "000000000001"),
+            msg ("0800", null, "1"),
+            msg ("0800", "29110001", null),
+            msg ("0800", "29110002", "1"),
+            msg ("0420", "29110001", "1"),
+            msg ("800", "29110001", "1")
+        };
+        for (ISOMsg a : msgs) {
+            assertEquals (mux.getKey (a), ex.extract (a).toString());
+            for (ISOMsg b : msgs) {
+                boolean same = mux.getKey (a).equals (mux.getKey (b));
+                QMUXKeyExtractor.Key ka = ex.extract (a);
+                QMUXKeyExtractor.Key kb = ex.extract (b);
+                assertEquals (mux.getKey (a) + "/" + mux.getKey (b), same, ka.equals (kb));
+                if (same) {
+                    assertEquals (ka.longHashCode(), kb.longHashCode());
+                    assertEquals (ka.hashCode(), kb.hashCode());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFieldBoundaries() throws Throwable {
+        mux.key = new String[] { "41", "42" };
+        QMUXKeyExtractor ex = extractor();
+        ISOMsg a = msg ("0800", "1", null);
+        a.set (42, "23");
+        ISOMsg b = msg ("0800", "12", null);
+        b.set (42, "3");
+        assertFalse (ex.extract (a).equals (ex.extract (b)));
+    }
+
+    @Test
+    public void testHeader() throws Throwable {
+        QMUXKeyExtractor ex = new QMUXKeyExtractor (mux, mux.key, mux.mtiMapping, true);
+        ISOMsg a = msg ("0800", "29110001", "1");
+        a.setHeader (new byte[] { 1, 2 });
+        ISOMsg b = msg ("0810", "29110001", "1");
+        b.setHeader (new byte[] { 1, 2 });
+        ISOMsg c = msg ("0810", "29110001", "1");
+        c.setHeader (new byte[] { 1, 3 });
+        assertTrue (ex.extract (a).equals (ex.extract (b)));
+        assertFalse (ex.extract (a).equals (ex.extract (c)));
+        assertEquals ("send.080.0102.0000000029110001000001", ex.extract (a).toString());
+    }
+
+    @Test
+    public void testErrors() throws Throwable {
+        QMUXKeyExtractor ex = extractor();
+        try {
+            ex.extract (msg ("0800", null, null));
+            fail ("ISOException expected");
+        } catch (ISOException e) {
+            assertEquals ("Key fields not found - not sending send.080", e.getMessage());
+        }
+        try {
+            ex.extract (msg ("0800", "12345678901234567", "1"));
+            fail ("ISOException expected");
+        } catch (ISOException e) {
+            assertEquals ("invalid len 17/16", e.getMessage());
+        }
+    }
+
+    private QMUXKeyExtractor extractor() {
+        return new QMUXKeyExtractor (mux, mux.key, mux.mtiMapping, false);
+    }
+    private static ISOMsg msg (String mti, String tid, String stan) throws ISOException {
+        ISOMsg m = new ISOMsg (mti);
+        if (tid != null)
+            m.set (41, tid);
+        if (stan != null)
+            m.set (11, stan);
+        return m;
+    }
+}
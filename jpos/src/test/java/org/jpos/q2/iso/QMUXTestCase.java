@@ -28,14 +28,18 @@ import static org.junit.Assert.fail;
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOMsg;
 import org.jpos.iso.ISOResponseListener;
+import org.jpos.iso.ISOUtil;
 import org.jpos.iso.MUX;
+import org.jpos.iso.MUXFuture;
 import org.jpos.q2.Q2;
 import org.jpos.space.Space;
 import org.jpos.space.SpaceFactory;
 import org.jpos.util.NameRegistrar;
 import org.junit.*;
 
-import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 @SuppressWarnings("unchecked")
 public class QMUXTestCase implements ISOResponseListener {
@@ -66,10 +70,10 @@ public class QMUXTestCase implements ISOResponseListener {
     public void testExpiredMessage() throws Exception {
         mux.request(createMsg("000001"), 500L, this, "Handback One");
         assertFalse("expired called too fast", expiredCalled);
-        assertNotNull("Space doesn't contain message key", getInternalSpace(mux).rdp("send.0800000000029110001000001.req"));
+        assertTrue("MUX doesn't contain message key", ((QMUX) mux).hasPendingRequest("send.0800000000029110001000001"));
         Thread.sleep(1000L);
         assertTrue("expired has not been called after 1 second", expiredCalled);
-        assertNull("Cleanup failed, Space still contains message key", getInternalSpace(mux).rdp("send.0800000000029110001000001.req"));
+        assertFalse("Cleanup failed, MUX still contains message key", ((QMUX) mux).hasPendingRequest("send.0800000000029110001000001"));
         assertEquals("Handback One not received", "Handback One", receivedHandback);
     }
 
@@ -79,17 +83,140 @@ public class QMUXTestCase implements ISOResponseListener {
         assertFalse("expired called too fast", expiredCalled);
         ISOMsg m = (ISOMsg) sp.in("send", 500L);
         assertNotNull("Message not received by pseudo-channel", m);
-        assertNotNull("Space doesn't contain message key", getInternalSpace(mux).rdp("send.0800000000029110001000002.req"));
+        assertTrue("MUX doesn't contain message key", ((QMUX) mux).hasPendingRequest("send.0800000000029110001000002"));
         m.setResponseMTI();
         sp.out("receive", m);
         Thread.sleep(100L);
         assertNotNull("Response not received", responseMsg);
         Thread.sleep(1000L);
         assertFalse("Response received but expired was called", expiredCalled);
-        assertNull("Cleanup failed, Space still contains message key", getInternalSpace(mux).rdp("send.0800000000029110001000002.req"));
+        assertFalse("Cleanup failed, MUX still contains message key", ((QMUX) mux).hasPendingRequest("send.0800000000029110001000002"));
         assertEquals("Handback Two not received", "Handback Two", receivedHandback);
     }
 
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        final int n = 64;
+        Thread responder = new Thread() {
+            public void run() {
+                for (int i=0; i<n; i++) {
+                    ISOMsg m = (ISOMsg) sp.in("send", 5000L);
+                    if (m == null)
+                        return;
+                    try {
+                        m.setResponseMTI();
+                    } catch (ISOException ignored) { }
+                    sp.out("receive", m);
+                }
+            }
+        };
+        responder.start();
+        final AtomicInteger matched = new AtomicInteger();
+        Thread[] callers = new Thread[n];
+        for (int i=0; i<n; i++) {
+            final String stan = ISOUtil.zeropad(100 + i, 6);
+            callers[i] = new Thread() {
+                public void run() {
+                    try {
+                        ISOMsg r = mux.request(createMsg(stan), 5000L);
+                        if (r != null && "0810".equals(r.getMTI()) && stan.equals(r.getString(11)))
+                            matched.incrementAndGet();
+                    } catch (ISOException ignored) { }
+                }
+            };
+            callers[i].start();
+        }
+        for (Thread t : callers)
+            t.join();
+        responder.join();
+        assertEquals("responses matched", n, matched.get());
+        assertFalse(((QMUX) mux).hasPendingRequest("send.0800000000029110001000100"));
+    }
+
+    @Test
+    public void testIgnoredResponseIsDropped() throws Exception {
+        Thread responder = new Thread() {
+            public void run() {
+                try {
+                    ISOMsg m = (ISOMsg) sp.in("send", 5000L);
+                    m.setResponseMTI();
+                    ISOMsg ignored = (ISOMsg) m.clone();
+                    ignored.set(39, "91");
+                    sp.out("receive", ignored);
+                    Thread.sleep(200L);
+                    m.set(39, "00");
+                    sp.out("receive", m);
+                } catch (Exception ignored) { }
+            }
+        };
+        responder.start();
+        ISOMsg r = mux.request(createMsg("000006"), 5000L);
+        responder.join();
+        assertNotNull("Response not received", r);
+        assertEquals("00", r.getString(39));
+        assertNull("ignored response went to unhandled", sp.rdp("unhandled"));
+    }
+
+    @Test
+    public void testRequestAsync() throws Exception {
+        MUXFuture answered = ((QMUX) mux).requestAsync(createMsg("000004"), 1000L);
+        MUXFuture expired = ((QMUX) mux).requestAsync(createMsg("000005"), 500L);
+        ISOMsg m = (ISOMsg) sp.in("send", 500L);
+        assertNotNull("Message not received by pseudo-channel", m);
+        assertNotNull(sp.in("send", 500L));
+        assertFalse(answered.isDone());
+        m.setResponseMTI();
+        sp.out("receive", m);
+        ISOMsg r = answered.get(1000L, TimeUnit.MILLISECONDS);
+        assertNotNull("Response not received", r);
+        assertEquals("0810", r.getMTI());
+        assertNull("expired request should complete with null", expired.get(2000L, TimeUnit.MILLISECONDS));
+        assertTrue(expired.isExpired());
+    }
+
+    @Test
+    public void testCancelledRequestIsDeregistered() throws Exception {
+        MUXFuture f = ((QMUX) mux).requestAsync(createMsg("000007"), 5000L);
+        assertNotNull(sp.in("send", 500L));
+        assertTrue(((QMUX) mux).hasPendingRequest("send.0800000000029110001000007"));
+        assertTrue(f.cancel(false));
+        assertTrue(f.isCancelled());
+        assertFalse("cancelled request still pending", ((QMUX) mux).hasPendingRequest("send.0800000000029110001000007"));
+        MUXFuture again = ((QMUX) mux).requestAsync(createMsg("000007"), 1000L);
+        ISOMsg m = (ISOMsg) sp.in("send", 500L);
+        assertNotNull(m);
+        m.setResponseMTI();
+        sp.out("receive", m);
+        assertNotNull("Response not received", again.get(1000L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testShortTimeoutAlwaysExpires() throws Exception {
+        final AtomicInteger expired = new AtomicInteger();
+        ISOResponseListener rl = new ISOResponseListener() {
+            public void responseReceived(ISOMsg m, Object handBack) { }
+            public void expired(Object handBack) {
+                expired.incrementAndGet();
+            }
+        };
+        for (int i = 0; i < 200; i++)
+            mux.request(createMsg(ISOUtil.zeropad(100000 + i, 6)), 1L, rl, null);
+        for (int i = 0; i < 100 && expired.get() < 200; i++)
+            Thread.sleep(20L);
+        assertEquals(200, expired.get());
+        for (int i = 0; i < 200; i++)
+            assertFalse(((QMUX) mux).hasPendingRequest("send.08000000000291100010" + (100000 + i)));
+    }
+
+    @Test
+    public void testDuplicateKey() throws Exception {
+        mux.request(createMsg("000003"), 500L, this, "Handback Three");
+        try {
+            mux.request(createMsg("000003"), 500L);
+            fail("Duplicate key not detected");
+        } catch (ISOException expected) { }
+    }
+
     @After
     public void tearDown() throws Exception {
         Thread.sleep(2000L); // let the thing run
@@ -131,10 +258,4 @@ public class QMUXTestCase implements ISOResponseListener {
             assertEquals(((QMUX) mux).getKey(request), ((QMUX) mux).getKey(response));
         }
     }
-
-    private Space getInternalSpace (MUX mux) throws NoSuchFieldException, IllegalAccessException {
-        Field field = mux.getClass().getDeclaredField("isp");
-        field.setAccessible(true);
-        return (Space) field.get(mux);
-    }
 }
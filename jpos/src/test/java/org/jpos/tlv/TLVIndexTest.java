@@ -0,0 +1,128 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.jpos.tlv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOUtil;
+import org.junit.Test;
+
+public class TLVIndexTest {
+    // 9F02 amount, 5A PAN, 70 template holding 57 and 9F1F, 9F02 again, 0x00 padding
+    static final byte[] DATA = ISOUtil.hex2byte(
+        "9F0206000000001000" + "5A084111111111111111" + "0000"
+      + "700D" + "5702ABCD" + "9F1F05313233343500" + "9F0206000000002000" + "FFFF"
+    );
+
+    @Test
+    public void testLookups() throws Throwable {
+        TLVIndex idx = new TLVIndex(DATA);
+        assertEquals(4, idx.size());
+        assertTrue(idx.hasTag(0x9F02));
+        assertFalse(idx.hasTag(0x57));
+        assertEquals("000000001000", idx.getString(0x9F02));
+        assertArrayEquals(ISOUtil.hex2byte("4111111111111111"), idx.getValue(0x5A));
+        assertNull(idx.getValue(0x9F03));
+        assertNull(idx.getString(0x9F03));
+
+        int i = idx.indexOf(0x9F02);
+        assertEquals(0, i);
+        i = idx.nextIndexOf(i);
+        assertEquals(3, i);
+        assertEquals(0x9F02, idx.getTag(i));
+        assertEquals(-1, idx.nextIndexOf(i));
+        assertSame(DATA, idx.getBuffer());
+        assertEquals(6, idx.getValueLength(i));
+        assertEquals(DATA.length - 8, idx.getValueOffset(i));
+    }
+
+    @Test
+    public void testNested() throws Throwable {
+        TLVIndex idx = new TLVIndex(DATA);
+        int i = idx.indexOf(0x70);
+        assertTrue(idx.isConstructed(i));
+        assertFalse(idx.isConstructed(idx.indexOf(0x5A)));
+        TLVIndex t = idx.getNested(0x70);
+        assertSame(t, idx.getNestedAt(i));
+        assertSame(DATA, t.getBuffer());
+        assertEquals(2, t.size());
+        assertEquals("ABCD", t.getString(0x57));
+        assertEquals("3132333435", t.getString(0x9F1F));
+        assertNull(idx.getNested(0x71));
+    }
+
+    @Test
+    public void testMatchesTLVList() throws Throwable {
+        Random r = new Random(55L);
+        int[] tagPool = { 0x5A, 0x57, 0x82, 0x95, 0x9A, 0x9C, 0x9F02, 0x9F1A, 0x9F37, 0xDF8101 };
+        for (int n=0; n<200; n++) {
+            TLVList list = new TLVList();
+            int count = r.nextInt(30);
+            for (int i=0; i<count; i++) {
+                byte[] v = new byte[r.nextInt(n % 10 == 0 ? 300 : 20)];
+                r.nextBytes(v);
+                list.append(tagPool[r.nextInt(tagPool.length)], v);
+            }
+            byte[] packed = list.pack();
+            TLVList unpacked = new TLVList();
+            unpacked.unpack(packed);
+            TLVIndex idx = new TLVIndex(packed);
+            assertEquals(unpacked.getTags().size(), idx.size());
+            for (int tag : tagPool) {
+                assertEquals(unpacked.hasTag(tag), idx.hasTag(tag));
+                assertArrayEquals(unpacked.getValue(tag), idx.getValue(tag));
+                int j = idx.indexOf(tag);
+                for (TLVMsg m = unpacked.find(tag); m != null; m = unpacked.findNextTLV()) {
+                    assertArrayEquals(m.getValue(), idx.getTLVMsg(j).getValue());
+                    j = idx.nextIndexOf(j);
+                }
+                assertEquals(-1, j);
+            }
+        }
+    }
+
+    @Test
+    public void testBadFormat() throws Throwable {
+        assertBad("9F");
+        assertBad("5A");
+        assertBad("5A05010203");
+        assertBad("5A8501000000000000");
+        assertBad("5A82");
+        assertEquals(0, new TLVIndex(new byte[3]).size());
+    }
+
+    private void assertBad(String hex) {
+        try {
+            new TLVIndex(ISOUtil.hex2byte(hex));
+            fail("ISOException expected for " + hex);
+        } catch (ISOException e) {
+            assertTrue(e.getMessage().startsWith("BAD TLV FORMAT"));
+        }
+    }
+}
@@ -20,9 +20,19 @@ package org.jpos.util;
 
 import junit.framework.TestCase;
 import org.jpos.iso.FSDISOMsg;
+import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class FSDMsgTestCase extends TestCase {
     private static final String SCHEMA_DIR_URL = "file:build/resources/test/org/jpos/util/";
@@ -278,6 +288,117 @@ public class FSDMsgTestCase extends TestCase {
         assertEquals ("Default defined - used - unpack", "DEFAULT   ", u1.get("z") );
 
     }
+
+    public void testStreamRecords () throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FSDWriter writer = new FSDWriter (out, Charset.forName (ISOUtil.ENCODING));
+        for (int i=0; i<100; i++) {
+            FSDMsg m = new FSDMsg(SCHEMA_DIR_URL + "fsd-");
+            m.set ("x", Integer.toString (i));
+            if (i % 2 == 0) {
+                m.set ("message-id", "03");
+                m.set ("y", Integer.toString (i*i));
+            } else {
+                m.set ("message-id", "99");
+                m.set ("z", "REC" + i);
+            }
+            assertEquals ("pack(Writer)", m.pack(), packToWriter (m));
+            writer.write (m);
+        }
+        writer.flush();
+        byte[] file = out.toByteArray();
+        assertEquals (100 * 16, file.length);
+        assertEquals ("000003000000000000019", new String (file, 0, 21, ISOUtil.ENCODING));
+
+        FSDReader reader = new FSDReader (new ByteArrayInputStream (file), new FSDMsg(SCHEMA_DIR_URL + "fsd-"));
+        int n = 0;
+        for (FSDMsg m; (m = reader.next()) != null; n++) {
+            assertSame (reader.getFSDMsg(), m);
+            assertEquals (n, m.getInt ("x"));
+            if (n % 2 == 0) {
+                assertEquals (n*n, m.getInt ("y"));
+                assertFalse (m.hasField ("z"));
+            } else {
+                assertEquals ("REC" + n, m.get ("z").trim());
+                assertFalse (m.hasField ("y"));
+            }
+            assertFalse (m.hasField ("EOF"));
+        }
+        reader.close();
+        assertEquals (100, n);
+    }
+
+    public void testStreamTruncatedRecord () throws Exception {
+        FSDReader reader = new FSDReader (
+            new ByteArrayInputStream ("000X0300WHYWHY03000X03".getBytes (ISOUtil.ENCODING)),
+            new FSDMsg(SCHEMA_DIR_URL + "fsd-")
+        );
+        assertEquals ("00WHYWHY03", reader.next().get ("y"));
+        FSDMsg m = reader.next();
+        assertEquals ("true", m.get ("EOF"));
+        assertNull (m.get ("y"));
+        assertNull (reader.next());
+    }
+
+    public void testInputStreamReaderHooks () throws Exception {
+        final List<String> read = new ArrayList<String>();
+        FSDMsg m = new FSDMsg(SCHEMA_DIR_URL + "fsd-") {
+            @Override
+            protected String readField (InputStreamReader r, String fieldName, int len,
+                String type, String separator) throws IOException
+            {
+                read.add (fieldName);
+                return super.readField (r, fieldName, len, type, separator);
+            }
+        };
+        m.unpack (new ByteArrayInputStream ("000X0300WHYWHY03".getBytes (ISOUtil.ENCODING)));
+        assertEquals ("00WHYWHY03", m.get ("y"));
+        assertEquals (Arrays.asList ("x", "message-id", "y"), read);
+        m.unpack (new StringReader ("000X0300WHYWHY03"));
+        assertEquals (16, m.readCount);
+        m.clear();
+        assertEquals (0, m.readCount);
+    }
+
+    public void testPackToWriterIsAllOrNothing () throws Exception {
+        FSDMsg m = new FSDMsg(SCHEMA_DIR_URL + "fsd-") {
+            @Override
+            protected String get (String id, String type, int length, String defValue, String separator)
+                throws ISOException
+            {
+                if ("y".equals (id) && "bad".equals (fields.get ("y")))
+                    throw new ISOException ("bad y");
+                return super.get (id, type, length, defValue, separator);
+            }
+        };
+        m.set ("x", "1");
+        m.set ("message-id", "03");
+        m.set ("y", "bad");
+        StringWriter w = new StringWriter();
+        try {
+            m.pack (w);
+            fail ("ISOException expected");
+        } catch (ISOException e) {
+            assertEquals ("truncated record written", "", w.toString());
+        }
+        m.set ("y", "2");
+        m.pack (w);
+        assertEquals ("000103000000000" + "2", w.toString());
+    }
+
+    public void testSchemaResolvedOnce () throws Exception {
+        FSDMsg m = new FSDMsg(SCHEMA_DIR_URL + "fsd-");
+        assertSame (m.getSchema(), m.getSchema());
+        assertSame (m.getSchema ("", "03", null), m.getSchema ("", "03", null));
+        assertSame (m.getSchema ("", "03", null), m.getSchema ("", "03", "default"));
+        assertNotSame (m.getSchema ("", "03", null), m.getSchema ("", "99", "default"));
+    }
+
+    private String packToWriter (FSDMsg m) throws Exception {
+        StringWriter w = new StringWriter();
+        m.pack (w);
+        return w.toString();
+    }
     
     
 }
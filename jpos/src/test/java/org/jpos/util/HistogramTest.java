@@ -0,0 +1,84 @@
+/*
+ * jPOS Project [http://jpos.org]
+ * Copyright (C) 2000-2014 Alejandro P. Revilla
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jpos.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+    @Test
+    public void testBucketBoundaries() {
+        long previous = -1L;
+        for (long v=0; v<100000L; v++) {
+            int i = Histogram.indexOf (v);
+            long upper = Histogram.upperBoundOf (i);
+            assertTrue ("value " + v + " above bucket bound " + upper, v <= upper);
+            assertTrue ("bucket " + i + " too wide for " + v, upper - v <= v / Histogram.SUB_BUCKETS);
+            assertTrue (upper >= previous);
+            previous = upper;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram h = new Histogram();
+        for (int i=1; i<=1000; i++)
+            h.record (i);
+        assertEquals (1000L, h.getCount());
+        assertEquals (500L, h.getMean());
+        assertEquals (1000L, h.getMax());
+        assertWithin (500L, h.getPercentile (50.0));
+        assertWithin (990L, h.getPercentile (99.0));
+        assertEquals (1000L, h.getPercentile (100.0));
+    }
+
+    @Test
+    public void testLargeValuesAndReset() {
+        Histogram h = new Histogram();
+        h.record (-1L);
+        h.record (Long.MAX_VALUE / 2);
+        assertEquals (2L, h.getCount());
+        assertEquals (0L, h.getPercentile (50.0));
+        assertEquals (Long.MAX_VALUE / 2, h.getPercentile (100.0));
+        h.reset();
+        assertEquals (0L, h.getCount());
+        assertEquals (0L, h.getMax());
+        assertEquals (0L, h.getPercentile (99.0));
+    }
+
+    @Test
+    public void testAdd() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        a.record (10L);
+        b.record (20L);
+        b.record (30L);
+        a.add (b);
+        assertEquals (3L, a.getCount());
+        assertEquals (60L, a.getTotal());
+        assertEquals (30L, a.getMax());
+    }
+
+    private void assertWithin (long expected, long actual) {
+        assertTrue ("expected ~" + expected + " got " + actual,
+          actual >= expected && actual <= expected + expected / Histogram.SUB_BUCKETS);
+    }
+}